@@ -3,41 +3,145 @@ package dk.kb.yggdrasil;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.utils.NamedThreadFactory;
+import dk.kb.yggdrasil.warc.Digest;
 
 /**
  * A small class to send a HTTP GET or PUT request to a given URL.
+ * All requests share a single client with a pool of connections, which are kept alive between the requests, thus 
+ * repeated requests to the same host reuse the connection instead of establishing a new one.
  */
 public class HttpCommunication {
 
     /** Logging mechanism. */
     private static Logger logger = LoggerFactory.getLogger(HttpCommunication.class.getName());
+    /** The default maximum number of pooled connections in total. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    /** The default maximum number of pooled connections to the same host. */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    /** The default timeout in milliseconds for establishing a connection. */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    /** The default timeout in milliseconds for waiting for a pooled connection: no timeout. */
+    private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 0;
+    /** The default timeout in milliseconds for waiting for data. */
+    private static final int DEFAULT_SOCKET_TIMEOUT = 600000;
+    /** The default keep-alive in milliseconds of an idle connection. */
+    private static final long DEFAULT_KEEP_ALIVE = 60000L;
+    /** The size of the buffer for the segments of a download. */
+    private static final int DOWNLOAD_BUFFER_SIZE = 64*1024;
+    /** The interval in milliseconds between the checkpoints of the progress of a download. */
+    private static final long CHECKPOINT_INTERVAL = 10000L;
+
     /** The directory, where the file should be placed. */
     private final File tmpDir;
+    /** The client shared by all the requests. */
+    private final CloseableHttpClient httpClient;
 
     /** 
-     * Constructor.
+     * Constructor with the default settings of the connection pool.
      * @param tmpDir The temporary directory, where the files will be stored while downloading.
      */
     public HttpCommunication(File tmpDir) {
+        this(tmpDir, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT, 
+                DEFAULT_CONNECTION_REQUEST_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_KEEP_ALIVE);
+    }
+
+    /** 
+     * Constructor.
+     * @param tmpDir The temporary directory, where the files will be stored while downloading.
+     * @param maxConnections The maximum number of pooled connections in total.
+     * @param maxConnectionsPerRoute The maximum number of pooled connections to the same host.
+     * @param connectTimeout The timeout in milliseconds for establishing a connection. 0 means no timeout.
+     * @param connectionRequestTimeout The timeout in milliseconds for waiting for a pooled connection, when all the 
+     * connections to the host are in use, e.g. by other downloads. 0 means no timeout.
+     * @param socketTimeout The timeout in milliseconds for waiting for data. 0 means no timeout.
+     * @param keepAlive How long in milliseconds an idle connection is kept alive, when the server does not tell 
+     * with a Keep-Alive header.
+     */
+    public HttpCommunication(File tmpDir, int maxConnections, int maxConnectionsPerRoute, int connectTimeout, 
+            int connectionRequestTimeout, int socketTimeout, final long keepAlive) {
+        ArgumentCheck.checkPositiveInt(maxConnections, "int maxConnections");
+        ArgumentCheck.checkPositiveInt(maxConnectionsPerRoute, "int maxConnectionsPerRoute");
+        ArgumentCheck.checkNotNegativeInt(connectTimeout, "int connectTimeout");
+        ArgumentCheck.checkNotNegativeInt(connectionRequestTimeout, "int connectionRequestTimeout");
+        ArgumentCheck.checkNotNegativeInt(socketTimeout, "int socketTimeout");
+        ArgumentCheck.checkPositiveLong(keepAlive, "long keepAlive");
         this.tmpDir = tmpDir;
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+        ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAlive;
+            }
+        };
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Closes the shared client and its pooled connections.
+     */
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.debug("Ignoring exception while closing the HTTP client", e);
+        }
     }
     
     /**
      * Send a HTTP GET request and return the result, if any, to the caller.
+     * The connection is released to the pool, when the content body of the payload has been read or closed.
      * @param url the url to send a GET request to
      * @return HTTP response content body or null
      */
@@ -45,12 +149,10 @@ public class HttpCommunication {
         ArgumentCheck.checkNotNullOrEmpty(url, "'url' is null or empty.");
 
         HttpPayload httpResponse = null;
-        InputStream in = null;
         try {
             /*
              * HTTP request.
              */
-            CloseableHttpClient httpClient = HttpClients.createDefault();;
             HttpGet getRequest = new HttpGet(url);
             /*
              * HTTP response.
@@ -59,8 +161,8 @@ public class HttpCommunication {
             if (response != null) {
                 int responseCode = response.getStatusLine().getStatusCode();
                 HttpEntity responseEntity = response.getEntity();
-                in = responseEntity.getContent();
-                if (responseCode == 200) {
+                if (responseCode == 200 && responseEntity != null) {
+                    InputStream in = responseEntity.getContent();
                     Header contentEncodingHeader = responseEntity.getContentEncoding();
                     String contentEncoding = null;
                     if (contentEncodingHeader != null) {
@@ -74,10 +176,8 @@ public class HttpCommunication {
                     httpResponse = new HttpPayload(in, contentEncoding,
                             contentType, responseEntity.getContentLength(), tmpDir);
                 } else {
-                    if (in != null) {
-                        in.close();
-                        in = null;
-                    }
+                    // Consumes the content, thus the connection is released to the pool.
+                    EntityUtils.consume(responseEntity);
                     logger.error("Http request resulted in status code '"
                             + responseCode + "'. (" + url + ")");
                 }
@@ -90,6 +190,267 @@ public class HttpCommunication {
         return httpResponse;
     }
 
+    /**
+     * Downloads the resource at the given URL to a file in the temporary directory, while calculating its checksum.
+     * A large resource is split into segments, which are retrieved in parallel with HTTP range requests and written
+     * at their position in the preallocated file. A failed segment is resumed from where it stopped, until it has 
+     * been attempted the given number of times.
+     * If the server does not accept range requests, or the resource is too small for more than one segment, then 
+     * it is downloaded with a single GET request.
+     * @param url The url of the resource.
+     * @param segments The maximum number of segments, which are retrieved in parallel.
+     * @param minSegmentSize The minimum size of a segment in bytes.
+     * @param attempts The number of attempts to retrieve each segment.
+     * @param digestor The digest to calculate of the downloaded file, while it is being downloaded. When the file 
+     * has been downloaded, the checksum is retrieved with its getDigestOfReadBytes.
+     * @return The downloaded file, or null if the download failed.
+     * @throws IOException If the file cannot be written.
+     */
+    public File download(String url, int segments, long minSegmentSize, int attempts, Digest digestor) 
+            throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+        ArgumentCheck.checkPositiveInt(segments, "int segments");
+        ArgumentCheck.checkPositiveLong(minSegmentSize, "long minSegmentSize");
+        ArgumentCheck.checkPositiveInt(attempts, "int attempts");
+        ArgumentCheck.checkNotNull(digestor, "Digest digestor");
+
+        SegmentedDownload download = null;
+        if (segments > 1) {
+            download = prepareDownload(url, segments, minSegmentSize);
+        }
+        if (download == null || download.getSegmentCount() < 2) {
+            HttpPayload payload = get(url);
+            if (payload == null) {
+                return null;
+            }
+            return payload.writeToFile(digestor);
+        }
+        if (!download(download, attempts, null, digestor)) {
+            if (download.getFile().exists() && !download.getFile().delete()) {
+                logger.warn("Could not delete the partial download '" + download.getFile() + "'.");
+            }
+            return null;
+        }
+        return download.getFile();
+    }
+
+    /**
+     * Asks the server with a HEAD request, whether the resource can be downloaded with range requests, and 
+     * prepares the download in as many segments as the size of the resource allows, but at least one.
+     * @param url The url of the resource.
+     * @param segments The maximum number of segments.
+     * @param minSegmentSize The minimum size of a segment in bytes.
+     * @return The download, or null if the server does not accept range requests, thus the resource must be 
+     * downloaded with a single GET request.
+     */
+    public SegmentedDownload prepareDownload(String url, int segments, long minSegmentSize) {
+        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+        ArgumentCheck.checkPositiveInt(segments, "int segments");
+        ArgumentCheck.checkPositiveLong(minSegmentSize, "long minSegmentSize");
+        try (CloseableHttpResponse response = httpClient.execute(new HttpHead(url))) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                logger.debug("HEAD request resulted in status code '" + response.getStatusLine().getStatusCode()
+                        + "'. Downloading '" + url + "' without segments.");
+                return null;
+            }
+            Header acceptRanges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+            Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+            if (acceptRanges == null || !acceptRanges.getValue().contains("bytes") || contentLength == null) {
+                logger.debug("The server does not accept range requests. Downloading '" + url 
+                        + "' without segments.");
+                return null;
+            }
+            long length = Long.parseLong(contentLength.getValue().trim());
+            if (length < 1) {
+                return null;
+            }
+            int segmentCount = (int) Math.max(1L, Math.min(segments, length / minSegmentSize));
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+            return new SegmentedDownload(url, new File(tmpDir, UUID.randomUUID().toString()), length, 
+                    etag == null ? null : etag.getValue(), lastModified == null ? null : lastModified.getValue(), 
+                    segmentCount);
+        } catch (IOException | NumberFormatException e) {
+            logger.debug("Could not prepare a segmented download of '" + url + "'. Downloading it without segments.", 
+                    e);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the missing parts of the segments of the download in parallel, and writes them at their position 
+     * in the file. The file is preallocated to the length of the resource.
+     * @param download The segmented download.
+     * @param attempts The number of attempts to retrieve each segment.
+     * @return Whether all the segments were retrieved.
+     * @throws IOException If the file cannot be written.
+     */
+    public boolean download(SegmentedDownload download, int attempts) throws IOException {
+        return download(download, attempts, null);
+    }
+
+    /**
+     * Retrieves the missing parts of the segments of the download in parallel, and writes them at their position 
+     * in the file. The file is preallocated to the length of the resource.
+     * The progress is regularly handed to the checkpoint, e.g. for storing it, thus the download can be resumed 
+     * after a restart.
+     * @param download The segmented download.
+     * @param attempts The number of attempts to retrieve each segment.
+     * @param checkpoint Called with regular intervals by the downloading threads, or null for no checkpoints.
+     * @return Whether all the segments were retrieved.
+     * @throws IOException If the file cannot be written.
+     */
+    public boolean download(SegmentedDownload download, int attempts, Runnable checkpoint) throws IOException {
+        return download(download, attempts, checkpoint, null);
+    }
+
+    /**
+     * Retrieves the missing parts of the segments of the download in parallel, and writes them at their position 
+     * in the file, while calculating the checksum of the file. The file is preallocated to the length of the 
+     * resource.
+     * The progress is regularly handed to the checkpoint, e.g. for storing it, thus the download can be resumed 
+     * after a restart.
+     * The checksum is calculated in the order of the bytes, see SegmentedDigest. Only the bytes written ahead of 
+     * the bytes digested so far are read back from the file, and for a resumed download the bytes written before.
+     * @param download The segmented download.
+     * @param attempts The number of attempts to retrieve each segment.
+     * @param checkpoint Called with regular intervals by the downloading threads, or null for no checkpoints.
+     * @param digestor The digest to calculate of the file, or null for no checksum. When the file has been 
+     * downloaded, the checksum is retrieved with its getDigestOfReadBytes.
+     * @return Whether all the segments were retrieved.
+     * @throws IOException If the file cannot be written, or read for the checksum.
+     */
+    public boolean download(final SegmentedDownload download, final int attempts, final Runnable checkpoint, 
+            Digest digestor) throws IOException {
+        ArgumentCheck.checkNotNull(download, "SegmentedDownload download");
+        ArgumentCheck.checkPositiveInt(attempts, "int attempts");
+        logger.info("Downloading '" + download.getUrl() + "' (" + download.getContentLength() + " bytes) in " 
+                + download.getSegmentCount() + " segments, from " + download.getBytesReceived() + " bytes.");
+        ExecutorService executor = Executors.newFixedThreadPool(download.getSegmentCount(), 
+                new NamedThreadFactory("SegmentedDownload"));
+        try (RandomAccessFile raf = new RandomAccessFile(download.getFile(), "rw")) {
+            raf.setLength(download.getContentLength());
+            final FileChannel channel = raf.getChannel();
+            final SegmentedDigest digest = digestor == null ? null : new SegmentedDigest(download, channel, digestor);
+            if (digest != null) {
+                // The bytes written before a restart.
+                digest.readBack();
+            }
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < download.getSegmentCount(); i++) {
+                final int segment = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return downloadSegment(download, segment, channel, attempts, checkpoint, digest);
+                    }
+                }));
+            }
+            boolean res = true;
+            for (Future<Boolean> result : results) {
+                res &= result.get();
+            }
+            if (!res || !download.isComplete()) {
+                return false;
+            }
+            if (digest != null) {
+                // The bytes of segments, which were completed before the bytes in front of them.
+                digest.readBack();
+                if (!digest.isComplete()) {
+                    throw new IOException("Could not calculate the checksum of '" + download.getFile() + "'.");
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading '" + download.getUrl() + "'.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to download '" + download.getUrl() + "'.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieves the missing part of a segment with a range request, and writes it at its position in the file.
+     * If the retrieval fails, then it is resumed from where it stopped.
+     * @param download The segmented download.
+     * @param segment The index of the segment.
+     * @param channel The channel of the file.
+     * @param attempts The number of attempts to retrieve the segment.
+     * @param checkpoint Called with regular intervals, or null for no checkpoints.
+     * @param digest The checksum of the file, which is handed the written bytes, or null for no checksum.
+     * @return Whether the segment was retrieved.
+     */
+    private boolean downloadSegment(SegmentedDownload download, int segment, FileChannel channel, int attempts, 
+            Runnable checkpoint, SegmentedDigest digest) {
+        for (int attempt = 1; attempt <= attempts && !download.isSegmentComplete(segment); attempt++) {
+            long position = download.getSegmentPosition(segment);
+            HttpGet getRequest = new HttpGet(download.getUrl());
+            getRequest.setHeader(HttpHeaders.RANGE, "bytes=" + position + "-" + download.getSegmentEnd(segment));
+            if (download.getValidator() != null) {
+                getRequest.setHeader(HttpHeaders.IF_RANGE, download.getValidator());
+            }
+            try (CloseableHttpResponse response = httpClient.execute(getRequest)) {
+                int responseCode = response.getStatusLine().getStatusCode();
+                if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    // The resource has changed, or the server no longer accepts the range. Retrying will not help.
+                    logger.warn("Range request for '" + download.getUrl() + "' resulted in status code '" 
+                            + responseCode + "'.");
+                    EntityUtils.consume(response.getEntity());
+                    return false;
+                }
+                Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+                if (contentRange == null || !contentRange.getValue().startsWith("bytes " + position + "-")) {
+                    logger.warn("Range request for '" + download.getUrl() + "' resulted in the wrong range '" 
+                            + (contentRange == null ? null : contentRange.getValue()) + "'.");
+                    EntityUtils.consume(response.getEntity());
+                    return false;
+                }
+                try (InputStream in = response.getEntity().getContent()) {
+                    byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                        long written = position;
+                        while (bytes.hasRemaining()) {
+                            position += channel.write(bytes, position);
+                        }
+                        download.addReceived(segment, read);
+                        if (digest != null) {
+                            digest.written(written, buffer, read);
+                        }
+                        if (checkpoint != null && download.isCheckpointDue(CHECKPOINT_INTERVAL)) {
+                            checkpoint(download, channel, checkpoint);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Attempt " + attempt + " of " + attempts + " to retrieve segment " + segment + " of '" 
+                        + download.getUrl() + "' failed after " + download.getSegmentPosition(segment) + " bytes.", 
+                        e);
+            }
+        }
+        return download.isSegmentComplete(segment);
+    }
+
+    /**
+     * Forces the written bytes of the file to the disk before the checkpoint, thus the stored progress never covers
+     * bytes, which would be lost with a power loss. The downloading threads are kept from registering progress 
+     * meanwhile, since the progress is only registered after the bytes have been written.
+     * @param download The segmented download.
+     * @param channel The channel of the file.
+     * @param checkpoint The checkpoint, which stores the progress.
+     * @throws IOException If the file cannot be forced to the disk.
+     */
+    private void checkpoint(SegmentedDownload download, FileChannel channel, Runnable checkpoint) 
+            throws IOException {
+        synchronized (download) {
+            channel.force(false);
+            checkpoint.run();
+        }
+    }
+
     /**
      * Send a HTTP POST request with a given content and return the result
      * of the operation to the caller.
@@ -106,7 +467,6 @@ public class HttpCommunication {
             /*
              * HTTP request.
              */
-            CloseableHttpClient httpClient = HttpClients.createDefault();
             HttpPost postRequest = new HttpPost(url);
             postRequest.setEntity(content);
             
@@ -117,17 +477,14 @@ public class HttpCommunication {
             if (response != null) {
                 int responseCode = response.getStatusLine().getStatusCode();
                 HttpEntity responseEntity = response.getEntity();
-                InputStream in = responseEntity.getContent();
                 if (responseCode == 200) {
                     bSuccess = true;
                 } else {
                     logger.warn("Http post request (" + url + ") resulted in status code '" + responseCode + "', "
                             + "with the following reason: " + response.getStatusLine().getReasonPhrase());
                 }
-                if (in != null) {
-                    in.close();
-                    in = null;
-                }
+                // Consume the response, thus the connection is released to the pool for reuse.
+                EntityUtils.consume(responseEntity);
             } else {
                 logger.warn("Could not connect to '" + url + "'. No response received. ");
             }
@@ -155,7 +512,6 @@ public class HttpCommunication {
             /*
              * HTTP request.
              */
-            CloseableHttpClient httpClient = HttpClients.createDefault();
             HttpPost postRequest = new HttpPost(url);
             StringEntity putEntity = new StringEntity(new String(contentBody, Charset.defaultCharset()));
             putEntity.setContentType(contentType);
@@ -167,17 +523,14 @@ public class HttpCommunication {
             if (response != null) {
                 int responseCode = response.getStatusLine().getStatusCode();
                 HttpEntity responseEntity = response.getEntity();
-                InputStream in = responseEntity.getContent();
                 if (responseCode == 200) {
                     bSuccess = true;
                 } else {
                     logger.warn("Http request resulted in status code '"
                             + responseCode + "'. (" + url + ")");
                 }
-                if (in != null) {
-                    in.close();
-                    in = null;
-                }
+                // Consume the response, thus the connection is released to the pool for reuse.
+                EntityUtils.consume(responseEntity);
             } else {
                 logger.warn("Could not connect to '" + url + "'. No response received. ");
             }
@@ -6,6 +6,8 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.UUID;
 
+import dk.kb.yggdrasil.warc.Digest;
+
 /**
  * Wrapper for the HTTP response payload.
  */
@@ -58,20 +60,36 @@ public class HttpPayload {
      * @throws IOException If unable to read or write the data.
      */
     public File writeToFile() throws IOException {
+        return writeToFile(null);
+    }
+
+    /**
+     * Write the payload to a file, while calculating its checksum. A temporary file is created for this purpose. 
+     * The content body is closed afterwards, also if the writing fails, thus the connection is released. If the 
+     * writing fails, then the temporary file is deleted.
+     * @param digestor The digest to calculate while writing, or null for not calculating any. When the file has 
+     * been written, the checksum is retrieved with its getDigestOfReadBytes.
+     * @return the File containing the payload.
+     * @throws IOException If unable to read or write the data.
+     */
+    public File writeToFile(Digest digestor) throws IOException {
         byte[] tmpBuf = new byte[READBUFFERSIZE];
         int read;
-        File tmpFile = null;
-        RandomAccessFile raf;
         UUID uuid = UUID.randomUUID();
-        tmpFile = new File(tmpDir, uuid.toString());
-        raf = new RandomAccessFile(tmpFile, "rw");
-        InputStream in = contentBody;
-        while ((read = in.read(tmpBuf)) != -1 ) {
-            raf.write(tmpBuf, 0, read);
+        File tmpFile = new File(tmpDir, uuid.toString());
+        boolean written = false;
+        try (InputStream in = digestor == null ? contentBody : digestor.getDigestingInputStream(contentBody);
+                RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            while ((read = in.read(tmpBuf)) != -1 ) {
+                raf.write(tmpBuf, 0, read);
+            }
+            written = true;
+        } finally {
+            contentBody = null;
+            if (!written && tmpFile.exists() && !tmpFile.delete()) {
+                tmpFile.deleteOnExit();
+            }
         }
-        raf.close();
-        raf = null;
-        in.close();
         return tmpFile;
     }
 
@@ -12,11 +12,13 @@ import dk.kb.yggdrasil.bitmag.BitrepositoryConfig;
 import dk.kb.yggdrasil.config.Config;
 import dk.kb.yggdrasil.config.RabbitMqSettings;
 import dk.kb.yggdrasil.config.RunningMode;
+import dk.kb.yggdrasil.config.YggdrasilConfig;
 import dk.kb.yggdrasil.db.StateDatabase;
 import dk.kb.yggdrasil.exceptions.RabbitException;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
 import dk.kb.yggdrasil.messaging.MQ;
 import dk.kb.yggdrasil.messaging.RemotePreservationStateUpdater;
+import dk.kb.yggdrasil.messaging.ResponsePublisher;
 import dk.kb.yggdrasil.utils.RunState;
 
 /**
@@ -39,8 +41,12 @@ public class Main {
     private StateDatabase sd;
     /** The messagequeue.*/
     private MQ mq;
+    /** The publisher for sending the responses asynchronously, if enabled.*/
+    private ResponsePublisher responsePublisher;
     /** The bitrepository interface.*/
     private Bitrepository bitrepository;
+    /** Whether the uploads left by the previous run have been recovered. Only done by the first workflow.*/
+    private boolean uploadsRecovered = false;
 
     /**
      * Constructor.
@@ -74,7 +80,11 @@ public class Main {
 
         // Initiate call of StateDatabase
         StateDatabase sd = new StateDatabase(config.getYggdrasilConfig().getDatabaseDir());
-        HttpCommunication httpCommunication = new HttpCommunication(config.getYggdrasilConfig().getTemporaryDir());
+        YggdrasilConfig yggdrasilConfig = config.getYggdrasilConfig();
+        HttpCommunication httpCommunication = new HttpCommunication(yggdrasilConfig.getTemporaryDir(), 
+                yggdrasilConfig.getHttpMaxConnections(), yggdrasilConfig.getHttpMaxConnectionsPerRoute(), 
+                yggdrasilConfig.getHttpConnectTimeout(), yggdrasilConfig.getHttpConnectionRequestTimeout(), 
+                yggdrasilConfig.getHttpSocketTimeout(), yggdrasilConfig.getHttpKeepAlive());
 
         RunState runnableRunState = new RunState();
         Thread runstate = new Thread(runnableRunState);
@@ -89,13 +99,15 @@ public class Main {
         logger.info("Shutting down the Yggdrasil Main program");
         runstate.interrupt();
         main.cleanup();
+        httpCommunication.close();
     }
 
     /**
-     * Cleanup. Closes Bitrepository and MQ. 
+     * Cleanup. Closes Bitrepository, the response publisher and MQ. 
      */
     protected void cleanup() {
         bitrepository.shutdown();
+        closeResponsePublisher();
         try {
             if (!isUnittestmode) {this.mq.close();}
         } catch (IOException e) {
@@ -104,6 +116,16 @@ public class Main {
         sd.cleanup();
     }
 
+    /**
+     * Closes the response publisher, if any, after the queued responses have been published.
+     */
+    private void closeResponsePublisher() {
+        if (responsePublisher != null) {
+            responsePublisher.close();
+            responsePublisher = null;
+        }
+    }
+
     /**
      * Initialize message queue (RabbitMQ).
      * @throws YggdrasilException When unable to connect to message queue.
@@ -135,8 +157,19 @@ public class Main {
             throws YggdrasilException {
         logger.info("Starting main workflow of Yggdrasil program");
         this.initializeRabbitMQ(config.getMqSettings());
+        closeResponsePublisher();
+        RabbitMqSettings mqSettings = config.getMqSettings();
+        if (mqSettings.isAsynchronousPublishing()) {
+            this.responsePublisher = new ResponsePublisher(mq, mqSettings.getPublisherQueueCapacity(), 
+                    mqSettings.getPublisherBatchSize(), mqSettings.isPublisherConfirms(), 
+                    mqSettings.isCoalesceIntermediateStates());
+        }
         final Workflow wf = new Workflow(this.mq, sd, bitrepository, config.getYggdrasilConfig(), config.getModels(), 
-                httpCommunication, new RemotePreservationStateUpdater(mq));
+                httpCommunication, new RemotePreservationStateUpdater(mq, responsePublisher));
+        if (!uploadsRecovered) {
+            wf.recoverUploads();
+            uploadsRecovered = true;
+        }
         logger.info("Ready to run workflow");
         // Consider refactoring this at a time where the used rabbitmq.client.ConnectionFactory supports 
         // the setAutomaticRecoveryEnabled and setNetworkRecoveryInterval methods.
@@ -0,0 +1,117 @@
+package dk.kb.yggdrasil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.warc.Digest;
+
+/**
+ * Calculates the checksum of a segmented download in the order of the bytes, while the segments are written out of
+ * order by their downloading threads.
+ * The bytes written right after the bytes digested so far are digested directly from the buffer of the downloading
+ * thread. Bytes written further ahead are read back from the file, as soon as all the bytes before them have been
+ * digested, which is usually shortly after they were written, thus from the page cache.
+ * The state of the checksum cannot be stored, thus for a resumed download the bytes written before the restart are
+ * read from the file once.
+ */
+class SegmentedDigest {
+    /** The size of the chunks read back from the file. The lock is released between the chunks.*/
+    private static final int READ_BACK_CHUNK_SIZE = 1024 * 1024;
+
+    /** The download.*/
+    private final SegmentedDownload download;
+    /** The channel of the file of the download.*/
+    private final FileChannel channel;
+    /** The digest to calculate.*/
+    private final Digest digestor;
+    /** The number of bytes from the start of the file, which have been digested.*/
+    private long digested = 0L;
+
+    /**
+     * Constructor. Starts a new checksum with the digest.
+     * @param download The download.
+     * @param channel The channel of the file of the download.
+     * @param digestor The digest to calculate.
+     */
+    SegmentedDigest(SegmentedDownload download, FileChannel channel, Digest digestor) {
+        ArgumentCheck.checkNotNull(download, "SegmentedDownload download");
+        ArgumentCheck.checkNotNull(channel, "FileChannel channel");
+        ArgumentCheck.checkNotNull(digestor, "Digest digestor");
+        this.download = download;
+        this.channel = channel;
+        this.digestor = digestor;
+        digestor.reset();
+    }
+
+    /**
+     * Digests bytes written by a downloading thread, if they follow right after the bytes digested so far, and then
+     * the bytes written ahead of them. Must be called after the bytes have been registered as received.
+     * @param position The offset in the file, where the bytes were written.
+     * @param buffer The buffer containing the written bytes.
+     * @param length The number of bytes written.
+     * @throws IOException If the bytes written ahead cannot be read from the file.
+     */
+    void written(long position, byte[] buffer, int length) throws IOException {
+        synchronized (this) {
+            if (position != digested) {
+                return;
+            }
+            digestor.update(buffer, 0, length);
+            digested += length;
+        }
+        readBack();
+    }
+
+    /**
+     * Reads back and digests the bytes, which have been written right after the bytes digested so far.
+     * Stops at the first byte, which has not been written.
+     * @throws IOException If the file cannot be read.
+     */
+    void readBack() throws IOException {
+        ByteBuffer buffer = null;
+        while (true) {
+            synchronized (this) {
+                long end = getWrittenEnd(digested);
+                if (end <= digested) {
+                    return;
+                }
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(READ_BACK_CHUNK_SIZE);
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(READ_BACK_CHUNK_SIZE, end - digested));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, digested + buffer.position()) == -1) {
+                        throw new IOException("Unexpected end of '" + download.getFile() + "' at "
+                                + (digested + buffer.position()) + " bytes.");
+                    }
+                }
+                digestor.update(buffer.array(), 0, buffer.position());
+                digested += buffer.position();
+            }
+        }
+    }
+
+    /**
+     * @return Whether all the bytes of the download have been digested.
+     */
+    synchronized boolean isComplete() {
+        return digested == download.getContentLength();
+    }
+
+    /**
+     * Finds the end of the bytes written from the given offset, i.e. the position of the segment containing it.
+     * @param offset The offset in the file.
+     * @return The offset of the first byte after the offset, which has not been written.
+     */
+    private long getWrittenEnd(long offset) {
+        for (int segment = 0; segment < download.getSegmentCount(); segment++) {
+            if (offset <= download.getSegmentEnd(segment)) {
+                return download.getSegmentPosition(segment);
+            }
+        }
+        return download.getContentLength();
+    }
+}
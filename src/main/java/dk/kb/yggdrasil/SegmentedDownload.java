@@ -0,0 +1,196 @@
+package dk.kb.yggdrasil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * The progress of a download, which is split into segments retrieved with HTTP range requests.
+ * Each segment keeps track of the number of bytes written, thus a failed segment is resumed from where it stopped
+ * instead of from its start. The validators of the resource (ETag and Last-Modified) are kept to make sure,
+ * that all the segments are retrieved from the same version of the resource.
+ * The download is serializable, thus it can be stored and resumed after a restart.
+ */
+public class SegmentedDownload implements Serializable {
+    /** The serial version of the stored downloads. */
+    private static final long serialVersionUID = 1L;
+
+    /** The URL of the resource. */
+    private final String url;
+    /** The file, which the resource is downloaded to. */
+    private final File file;
+    /** The length of the resource. */
+    private final long contentLength;
+    /** The ETag of the resource, or null if the server did not tell. */
+    private final String etag;
+    /** The Last-Modified date of the resource, or null if the server did not tell. */
+    private final String lastModified;
+    /** The offsets of the first byte of each segment. */
+    private final long[] segmentStarts;
+    /** The number of bytes written for each segment. */
+    private final long[] segmentsReceived;
+    /** The time of the last checkpoint of the progress. Not stored, thus a resumed download starts anew. */
+    private transient long lastCheckpoint = 0L;
+
+    /**
+     * Constructor. The resource is split into the given number of segments of equal size, except for the last
+     * segment, which also gets the remainder.
+     * @param url The URL of the resource.
+     * @param file The file, which the resource is downloaded to.
+     * @param contentLength The length of the resource.
+     * @param etag The ETag of the resource, or null if the server did not tell.
+     * @param lastModified The Last-Modified date of the resource, or null if the server did not tell.
+     * @param segments The number of segments.
+     */
+    public SegmentedDownload(String url, File file, long contentLength, String etag, String lastModified,
+            int segments) {
+        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+        ArgumentCheck.checkNotNull(file, "File file");
+        ArgumentCheck.checkPositiveLong(contentLength, "long contentLength");
+        ArgumentCheck.checkPositiveInt(segments, "int segments");
+        if (segments > contentLength) {
+            throw new ArgumentCheck("The number of segments " + segments + " exceeds the content length "
+                    + contentLength + ".");
+        }
+        this.url = url;
+        this.file = file;
+        this.contentLength = contentLength;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.segmentStarts = new long[segments];
+        this.segmentsReceived = new long[segments];
+        long segmentSize = contentLength / segments;
+        for (int i = 0; i < segments; i++) {
+            segmentStarts[i] = i * segmentSize;
+        }
+    }
+
+    /**
+     * @return The URL of the resource.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The file, which the resource is downloaded to.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The length of the resource.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return The validator for the If-Range header of the range requests: the ETag if the server told it,
+     * otherwise the Last-Modified date, or null if the server told neither.
+     */
+    public String getValidator() {
+        if (etag != null) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * @return The number of segments.
+     */
+    public int getSegmentCount() {
+        return segmentStarts.length;
+    }
+
+    /**
+     * @param segment The index of the segment.
+     * @return The offset of the first byte of the segment.
+     */
+    public long getSegmentStart(int segment) {
+        return segmentStarts[segment];
+    }
+
+    /**
+     * @param segment The index of the segment.
+     * @return The offset of the last byte of the segment.
+     */
+    public long getSegmentEnd(int segment) {
+        if (segment == segmentStarts.length - 1) {
+            return contentLength - 1;
+        }
+        return segmentStarts[segment + 1] - 1;
+    }
+
+    /**
+     * @param segment The index of the segment.
+     * @return The offset, from where the rest of the segment is to be retrieved.
+     */
+    public synchronized long getSegmentPosition(int segment) {
+        return segmentStarts[segment] + segmentsReceived[segment];
+    }
+
+    /**
+     * Registers bytes written for a segment.
+     * @param segment The index of the segment.
+     * @param bytes The number of bytes written.
+     */
+    public synchronized void addReceived(int segment, long bytes) {
+        ArgumentCheck.checkNotNegativeLong(bytes, "long bytes");
+        segmentsReceived[segment] += bytes;
+    }
+
+    /**
+     * @param segment The index of the segment.
+     * @return Whether all the bytes of the segment have been written.
+     */
+    public synchronized boolean isSegmentComplete(int segment) {
+        return getSegmentPosition(segment) > getSegmentEnd(segment);
+    }
+
+    /**
+     * @return The number of bytes written for all the segments.
+     */
+    public synchronized long getBytesReceived() {
+        long res = 0L;
+        for (long received : segmentsReceived) {
+            res += received;
+        }
+        return res;
+    }
+
+    /**
+     * Tells whether the progress should be checkpointed, and registers the checkpoint if so.
+     * @param interval The interval in milliseconds between the checkpoints.
+     * @return Whether the interval has passed since the last checkpoint.
+     */
+    public synchronized boolean isCheckpointDue(long interval) {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint < interval) {
+            return false;
+        }
+        lastCheckpoint = now;
+        return true;
+    }
+
+    /**
+     * Serializes the download, while the downloading threads are kept from registering progress, thus the stored
+     * progress is consistent and never exceeds the bytes actually written.
+     * @param out The stream to serialize to.
+     * @throws IOException If the serialization fails.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * @return Whether all the segments have been written.
+     */
+    public synchronized boolean isComplete() {
+        return getBytesReceived() == contentLength;
+    }
+}
@@ -1,13 +1,17 @@
 package dk.kb.yggdrasil;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.yggdrasil.bitmag.Bitrepository;
+import dk.kb.yggdrasil.config.ConsumerGroupSettings;
 import dk.kb.yggdrasil.config.Models;
+import dk.kb.yggdrasil.config.RabbitMqSettings;
 import dk.kb.yggdrasil.config.RequestHandlerContext;
 import dk.kb.yggdrasil.config.YggdrasilConfig;
 import dk.kb.yggdrasil.db.StateDatabase;
@@ -18,8 +22,11 @@ import dk.kb.yggdrasil.messaging.MQ;
 import dk.kb.yggdrasil.messaging.MessageRequestHandler;
 import dk.kb.yggdrasil.messaging.MqResponse;
 import dk.kb.yggdrasil.messaging.RemotePreservationStateUpdater;
+import dk.kb.yggdrasil.messaging.RequestDispatcher;
 import dk.kb.yggdrasil.preservation.PreservationRequestHandler;
+import dk.kb.yggdrasil.preservation.WarcUploader;
 import dk.kb.yggdrasil.preservationimport.PreservationImportRequestHandler;
+import dk.kb.yggdrasil.utils.ThreadMode;
 
 /**
  * The class receiving and initiating the workflows for the different kinds of requests.
@@ -30,11 +37,23 @@ public class Workflow {
 
     /** Logging mechanism. */
     private static Logger logger = LoggerFactory.getLogger(Workflow.class.getName());
-    /** The mapping between message type and message request handlers.*/
-    private final Map<String, MessageRequestHandler> requestHandlers;
+    /** The maximum number of received requests per request handler thread, which have not yet been handled. */
+    private static final int OUTSTANDING_REQUESTS_PER_THREAD = 2;
+    /** The maximum time a receiver waits for a message, before checking for a shutdown received by any receiver. */
+    private static final long RECEIVE_TIMEOUT_IN_MILLIS = 1000L;
+    /** The context for the request handlers. */
+    private final RequestHandlerContext context;
+    /** The metadatamodelMapper for the preservation request handlers. */
+    private final Models models;
+    /** The uploader of the WARC files, shared by the preservation request handlers of all the consumer groups. */
+    private final WarcUploader uploader;
+    /** The handler of the import requests, shared by all the consumer groups, thus they share the import cache. */
+    private final PreservationImportRequestHandler importHandler;
+    /** The consumer group handling the requests from the preservation destination. */
+    private final ConsumerGroup defaultGroup;
     
     /** Whether or not to shutdown. */
-    private boolean shutdown = false;
+    private volatile boolean shutdown = false;
     
     /**
      * Constructor for the Workflow class.
@@ -54,25 +73,38 @@ public class Workflow {
         ArgumentCheck.checkNotNull(config, "Config config");
         ArgumentCheck.checkNotNull(models, "Models models");
         this.mq = rabbitconnector;
-        
-        RequestHandlerContext context = new RequestHandlerContext(bitrepository, config, states, 
-                updater, httpCommunication);
-        requestHandlers = new HashMap<String, MessageRequestHandler>();
-        requestHandlers.put(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE.toUpperCase(), 
-                new PreservationRequestHandler(context, models));
-        requestHandlers.put(MQ.IMPORTREQUEST_MESSAGE_TYPE.toUpperCase(), 
-                new PreservationImportRequestHandler(context));
+        this.models = models;
+        this.context = new RequestHandlerContext(bitrepository, config, states, updater, httpCommunication);
+        this.uploader = new WarcUploader(context);
+        this.importHandler = new PreservationImportRequestHandler(context);
+        this.defaultGroup = new ConsumerGroup("RequestHandler", config.getRequestHandlerThreads());
+    }
+
+    /**
+     * Uploads the WARC files left in the upload journal by a previous run of Yggdrasil.
+     * Must be called before running the workflow, and only once per run of Yggdrasil.
+     */
+    public void recoverUploads() {
+        uploader.recoverUploads();
     }
 
     /**
      * Run this method infinitely.
+     * When the shutdown message is received, it waits for the requests already received to be handled.
      * @throws YggdrasilException If a preservation request cannot be handled.
      * @throws RabbitException When message queue connection fails.
      */
     public void run() throws YggdrasilException, RabbitException {
-        RequestReceiver requestReceiver = new RequestReceiver(mq.getSettings().getPreservationDestination());
-        RequestReceiver shutdownReceiver = new RequestReceiver(mq.getSettings().getShutdownDestination());
+        RabbitMqSettings settings = mq.getSettings();
+        List<RequestReceiver> groupReceivers = createConsumerGroupReceivers(settings.getConsumerGroups());
+        RequestReceiver requestReceiver = new RequestReceiver(settings.getPreservationDestination(), defaultGroup, 
+                RECEIVE_TIMEOUT_IN_MILLIS);
+        RequestReceiver shutdownReceiver = new RequestReceiver(settings.getShutdownDestination(), defaultGroup, 
+                RECEIVE_TIMEOUT_IN_MILLIS);
 
+        for (RequestReceiver groupReceiver : groupReceivers) {
+            groupReceiver.start();
+        }
         requestReceiver.run();
         shutdownReceiver.run();
 
@@ -92,6 +124,79 @@ public class Workflow {
         synchronized(shutdownReceiver) {
             shutdownReceiver.notify();
         }
+        for (RequestReceiver groupReceiver : groupReceivers) {
+            try {
+                groupReceiver.join();
+            } catch (InterruptedException e) {
+                logger.debug("Ignore interruption.", e);
+            }
+            groupReceiver.group.shutdown();
+        }
+        defaultGroup.shutdown();
+        importHandler.shutdown();
+        uploader.shutdown();
+    }
+
+    /**
+     * Creates the consumer groups for the dedicated request queues, with a receiver for each of them.
+     * @param consumerGroups The settings for the consumer groups.
+     * @return The receivers of the consumer groups. They are not started.
+     */
+    private List<RequestReceiver> createConsumerGroupReceivers(List<ConsumerGroupSettings> consumerGroups) {
+        List<RequestReceiver> receivers = new ArrayList<RequestReceiver>();
+        for (ConsumerGroupSettings groupSettings : consumerGroups) {
+            ConsumerGroup group = new ConsumerGroup("RequestHandler-" + groupSettings.getDestination(), 
+                    groupSettings.getRequestHandlerThreads());
+            RequestReceiver receiver = new RequestReceiver(groupSettings.getDestination(), group, 
+                    RECEIVE_TIMEOUT_IN_MILLIS);
+            receiver.setName("RequestReceiver-" + groupSettings.getDestination());
+            receivers.add(receiver);
+        }
+        return receivers;
+    }
+
+    /**
+     * A group of request handlers with their own request handler threads, handling the requests from one queue.
+     * Each group has its own preservation packers, thus the collections of one group do not share WARC files 
+     * with the collections of other groups. The WARC uploader and the import handler, with its cache of retrieved
+     * WARC files, are shared by all the groups.
+     */
+    class ConsumerGroup {
+        /** The mapping between message type and message request handlers.*/
+        final Map<String, MessageRequestHandler> requestHandlers;
+        /** The dispatcher handling the received requests on the request handler threads. */
+        final RequestDispatcher dispatcher;
+        /** The handler of the preservation requests. */
+        final PreservationRequestHandler preservationHandler;
+
+        /**
+         * Constructor.
+         * @param name The name of the request handler threads.
+         * @param threads The number of request handler threads.
+         */
+        ConsumerGroup(String name, int threads) {
+            requestHandlers = new HashMap<String, MessageRequestHandler>();
+            preservationHandler = new PreservationRequestHandler(context, models, uploader);
+            requestHandlers.put(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE.toUpperCase(), preservationHandler);
+            requestHandlers.put(MQ.IMPORTREQUEST_MESSAGE_TYPE.toUpperCase(), importHandler);
+            YggdrasilConfig config = context.getConfig();
+            if (config.getThreadMode() == ThreadMode.VIRTUAL && ThreadMode.VIRTUAL.isSupported()) {
+                dispatcher = new RequestDispatcher(ThreadMode.VIRTUAL.newWorkerPool(name, threads), 
+                        config.getVirtualThreadRequestLimit());
+            } else {
+                dispatcher = new RequestDispatcher(ThreadMode.PLATFORM.newWorkerPool(name, threads), 
+                        threads * OUTSTANDING_REQUESTS_PER_THREAD);
+            }
+        }
+
+        /**
+         * Waits for the received requests to be handled, and shuts down the preservation request handler.
+         * The shared handlers are shut down by the workflow, when all the groups have been shut down.
+         */
+        void shutdown() {
+            dispatcher.shutdown();
+            preservationHandler.shutdown();
+        }
     }
 
     /**
@@ -103,13 +208,21 @@ public class Workflow {
     class RequestReceiver extends Thread {
         /** The queue to listen to. */
         final String queue;
+        /** The consumer group handling the requests from the queue. */
+        final ConsumerGroup group;
+        /** The maximum time to wait for a message before checking for shutdown. */
+        final long receiveTimeout;
         
         /**
          * Constructor.
          * @param queue The name of the queue.
+         * @param group The consumer group handling the requests from the queue.
+         * @param receiveTimeout The maximum time to wait for a message before checking for shutdown.
          */
-        protected RequestReceiver(String queue) {
+        protected RequestReceiver(String queue, ConsumerGroup group, long receiveTimeout) {
             this.queue = queue;
+            this.group = group;
+            this.receiveTimeout = receiveTimeout;
         }
         
         @Override
@@ -133,18 +246,52 @@ public class Workflow {
          * @throws RabbitException When message queue connection fails.
          */
         private void handleNextRequest() throws YggdrasilException, RabbitException {
-            MqResponse requestContent = mq.receiveMessageFromQueue(queue);
-            String messageType = (requestContent == null ? null : requestContent.getMessageType());
-            if (requestContent == null || messageType == null) {
-                throw new YggdrasilException("'null' messagetype is not handled. message ignored ");
-            } else if (messageType.equalsIgnoreCase(MQ.SHUTDOWN_MESSAGE_TYPE)) {
-                terminate();
-            } else if (requestHandlers.containsKey(messageType.toUpperCase())) {
-                MessageRequestHandler mrh = requestHandlers.get(messageType.toUpperCase());
-                mrh.handleRequest(mrh.extractRequest(requestContent.getPayload()));
-            } else {
-                throw new YggdrasilException("The message type '"
-                        + messageType + "' is not handled by Yggdrasil.");
+            final MqResponse requestContent = mq.receiveMessageFromQueue(queue, receiveTimeout);
+            if (requestContent == null) {
+                return;
+            }
+            String messageType = requestContent.getMessageType();
+            try {
+                if (messageType == null) {
+                    throw new YggdrasilException("'null' messagetype is not handled. message ignored ");
+                } else if (messageType.equalsIgnoreCase(MQ.SHUTDOWN_MESSAGE_TYPE)) {
+                    acknowledge(requestContent);
+                    terminate();
+                } else if (group.requestHandlers.containsKey(messageType.toUpperCase())) {
+                    MessageRequestHandler mrh = group.requestHandlers.get(messageType.toUpperCase());
+                    group.dispatcher.dispatch(mrh, mrh.extractRequest(requestContent.getPayload()), new Runnable() {
+                        @Override
+                        public void run() {
+                            acknowledge(requestContent);
+                        }
+                    });
+                } else {
+                    throw new YggdrasilException("The message type '"
+                            + messageType + "' is not handled by Yggdrasil.");
+                }
+            } catch (YggdrasilException e) {
+                // The message is skipped, thus it must not be redelivered.
+                acknowledge(requestContent);
+                throw e;
+            }
+        }
+
+        /**
+         * Acknowledges the message, if it was not acknowledged when it was received.
+         * This is called when the handling of the message has finished, thus a message, whose handling was 
+         * interrupted by a crash, is redelivered by the broker. The stored request states are not replayed at 
+         * startup, thus the redelivery is what recovers such a request.
+         * @param message The message to acknowledge. 
+         */
+        private void acknowledge(MqResponse message) {
+            if (message == null || !message.isAcknowledgementRequired()) {
+                return;
+            }
+            try {
+                mq.acknowledgeMessage(message);
+            } catch (YggdrasilException e) {
+                logger.error("Failed to acknowledge the message. It will be redelivered, when the channel is "
+                        + "closed.", e);
             }
         }
         
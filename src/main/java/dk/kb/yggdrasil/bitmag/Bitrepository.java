@@ -2,6 +2,7 @@ package dk.kb.yggdrasil.bitmag;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -19,6 +20,7 @@ import org.bitrepository.access.getchecksums.GetChecksumsClient;
 import org.bitrepository.access.getchecksums.conversation.ChecksumsCompletePillarEvent;
 import org.bitrepository.access.getfile.GetFileClient;
 import org.bitrepository.access.getfileids.GetFileIDsClient;
+import org.bitrepository.bitrepositoryelements.ChecksumDataForChecksumSpecTYPE;
 import org.bitrepository.bitrepositoryelements.ChecksumDataForFileTYPE;
 import org.bitrepository.bitrepositoryelements.ChecksumSpecTYPE;
 import org.bitrepository.bitrepositoryelements.FilePart;
@@ -36,6 +38,7 @@ import org.bitrepository.commandline.outputformatter.GetFileIDsOutputFormatter;
 import org.bitrepository.common.settings.Settings;
 import org.bitrepository.common.settings.SettingsProvider;
 import org.bitrepository.common.settings.XMLFileSettingsLoader;
+import org.bitrepository.common.utils.Base16Utils;
 import org.bitrepository.common.utils.ChecksumUtils;
 import org.bitrepository.common.utils.SettingsUtils;
 import org.bitrepository.modify.ModifyComponentFactory;
@@ -241,6 +244,47 @@ public class Bitrepository {
      */
     public File getFile(final String fileId, final String collectionId, final FilePart filePart) 
             throws YggdrasilException {
+        URL fileUrl = retrieveToFileExchange(fileId, collectionId, filePart);
+        File result = null;
+        try {
+            result = downloadFile(fileUrl);
+        } catch (IOException e) {
+            throw new YggdrasilException(
+                    "Download was successful, but we failed to create result File: ", e);
+        }
+        return result;
+    }
+
+    /**
+     * Get a file with a given fileId from a given collection as a stream from the file exchange, thus it is not
+     * stored locally. 
+     * @param fileId A fileId of a package known to exist in the repository
+     * @param collectionId A given collection in the repository
+     * @param filePart The part of the file to 'get'. Set to null, if retrieving the whole file.
+     * @return The stream with the content of the file. The caller must close it.
+     * @throws YggdrasilException If not found or an error occurred during the fetch process.
+     */
+    public InputStream getFileAsStream(final String fileId, final String collectionId, final FilePart filePart) 
+            throws YggdrasilException {
+        URL fileUrl = retrieveToFileExchange(fileId, collectionId, filePart);
+        try {
+            return getFileExchange(bitmagSettings).downloadFromServer(fileUrl);
+        } catch (IOException e) {
+            throw new YggdrasilException("Retrieval was successful, but we failed to open the stream from the "
+                    + "file exchange: ", e);
+        }
+    }
+
+    /**
+     * Performs the GetFile conversation, where the fastest pillar delivers the file to the file exchange.
+     * @param fileId A fileId of a package known to exist in the repository
+     * @param collectionId A given collection in the repository
+     * @param filePart The part of the file to 'get'. Set to null, if retrieving the whole file.
+     * @return The URL of the file at the file exchange.
+     * @throws YggdrasilException If not found or an error occurred during the fetch process.
+     */
+    private URL retrieveToFileExchange(final String fileId, final String collectionId, final FilePart filePart) 
+            throws YggdrasilException {
         ArgumentCheck.checkNotNullOrEmpty(fileId, "String fileId");
         ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
         // Does collection exists? If not throw exception
@@ -257,19 +301,11 @@ public class Bitrepository {
                 auditTrailInformation);
 
         OperationEvent finalEvent = eventHandler.getFinish();
-        if(finalEvent.getEventType() == OperationEventType.COMPLETE) {
-            File result = null;
-            try {
-                result = downloadFile(fileUrl);
-            } catch (IOException e) {
-                throw new YggdrasilException(
-                        "Download was successful, but we failed to create result File: ", e);
-            }
-            return result;
-        } else {
+        if(finalEvent.getEventType() != OperationEventType.COMPLETE) {
             throw new YggdrasilException("Retrieval of package w/ id '" + fileId + "' from BitRepository failed. "
                     + "Reason: " + finalEvent.getInfo());
         }
+        return fileUrl;
     }
 
     /**
@@ -368,6 +404,42 @@ public class Bitrepository {
         return resultsMap;
     }
 
+    /**
+     * Verifies a local copy of a file against the checksums of the file reported by the pillars of the collection.
+     * The checksum of the local copy is calculated with the default checksum specification of the Bitrepository.
+     * @param file The local copy of the file.
+     * @param fileId The id of the file in the Bitrepository.
+     * @param collectionId The id of the collection.
+     * @return Whether at least one pillar reported a checksum for the file, and all reported checksums match the 
+     * checksum of the local copy.
+     */
+    public boolean verifyChecksum(File file, String fileId, String collectionId) {
+        ArgumentCheck.checkExistsNormalFile(file, "File file");
+        ArgumentCheck.checkNotNullOrEmpty(fileId, "String fileId");
+        ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
+        String checksum = ChecksumUtils.generateChecksum(file, ChecksumUtils.getDefault(bitmagSettings));
+        boolean verified = false;
+        for (ChecksumsCompletePillarEvent event : getChecksums(fileId, collectionId).values()) {
+            if (event.getChecksums() == null) {
+                continue;
+            }
+            for (ChecksumDataForChecksumSpecTYPE checksumData : event.getChecksums().getChecksumDataItems()) {
+                if (!fileId.equals(checksumData.getFileID())) {
+                    continue;
+                }
+                String pillarChecksum = Base16Utils.decodeBase16(checksumData.getChecksumValue());
+                if (!pillarChecksum.equalsIgnoreCase(checksum)) {
+                    logger.warning("The pillar '" + event.getContributorID() + "' reported the checksum '" 
+                            + pillarChecksum + "' for the file '" + fileId + "', but the local copy has the checksum '" 
+                            + checksum + "'.");
+                    return false;
+                }
+                verified = true;
+            }
+        }
+        return verified;
+    }
+
     /**
      * Initialize the BITMAG security manager.
      */
@@ -0,0 +1,80 @@
+package dk.kb.yggdrasil.config;
+
+import java.util.Map;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * The settings for a group of consumers of a dedicated request queue.
+ * Valhal can route the requests for high-volume collections to a dedicated queue, which is consumed by its own
+ * request handler threads and its own preservation packers, thus a bulk ingest does not starve the other
+ * collections.
+ *
+ * Read from an element of the consumer_groups list in rabbitmq.yml:
+ *
+ *   consumer_groups:
+ *     - destination: "preservation-bulk-dev-queue"
+ *       request_handler_threads: 4
+ */
+public final class ConsumerGroupSettings {
+    /** The property for the queue consumed by the group. */
+    public static final String DESTINATION_PROPERTY = "destination";
+    /** The property for the number of threads handling the requests of the group. */
+    public static final String REQUEST_HANDLER_THREADS_PROPERTY = "request_handler_threads";
+    /** Default value for the number of threads handling the requests of the group. */
+    public static final int DEFAULT_REQUEST_HANDLER_THREADS = 1;
+
+    /** The queue consumed by the group. */
+    private final String destination;
+    /** The number of threads handling the requests of the group. */
+    private final int requestHandlerThreads;
+
+    /**
+     * Constructor.
+     * @param destination The queue consumed by the group.
+     * @param requestHandlerThreads The number of threads handling the requests of the group.
+     */
+    public ConsumerGroupSettings(String destination, int requestHandlerThreads) {
+        ArgumentCheck.checkNotNullOrEmpty(destination, "String destination");
+        ArgumentCheck.checkPositiveInt(requestHandlerThreads, "int requestHandlerThreads");
+        this.destination = destination;
+        this.requestHandlerThreads = requestHandlerThreads;
+    }
+
+    /**
+     * Reads the settings of a consumer group from YAML.
+     * @param groupMap The map with the settings of the consumer group.
+     * @return The settings of the consumer group.
+     * @throws YggdrasilException If the destination is missing, or the number of threads is not positive.
+     */
+    public static ConsumerGroupSettings fromMap(Map groupMap) throws YggdrasilException {
+        if (groupMap == null || !(groupMap.get(DESTINATION_PROPERTY) instanceof String)) {
+            throw new YggdrasilException("A consumer group is missing the property '" + DESTINATION_PROPERTY + "'");
+        }
+        String destination = (String) groupMap.get(DESTINATION_PROPERTY);
+        int threads = DEFAULT_REQUEST_HANDLER_THREADS;
+        if (groupMap.containsKey(REQUEST_HANDLER_THREADS_PROPERTY)) {
+            threads = (Integer) groupMap.get(REQUEST_HANDLER_THREADS_PROPERTY);
+        }
+        if (threads <= 0) {
+            throw new YggdrasilException("The number of request handler threads for the consumer group '"
+                    + destination + "' must be positive");
+        }
+        return new ConsumerGroupSettings(destination, threads);
+    }
+
+    /**
+     * @return The queue consumed by the group.
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return The number of threads handling the requests of the group.
+     */
+    public int getRequestHandlerThreads() {
+        return requestHandlerThreads;
+    }
+}
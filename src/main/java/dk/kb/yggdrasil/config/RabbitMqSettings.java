@@ -2,6 +2,8 @@ package dk.kb.yggdrasil.config;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
@@ -14,9 +16,20 @@ import dk.kb.yggdrasil.utils.YamlTools;
  * development:
  *   mq_uri: "amqp://localhost:5672"
  *   shutdown: "dev-shutdown"
+ *   prefetch_count: 10
+ *   acknowledge_after_handling: true
+ *   publisher_channels: 2
  *   preservation:
  *       destination: "dev-queue"
  *       response: "dev-response-queue"
+ *   consumer_groups:
+ *       - destination: "dev-bulk-queue"
+ *         request_handler_threads: 4
+ *   response_publisher:
+ *       queue_capacity: 1000
+ *       batch_size: 50
+ *       publisher_confirms: true
+ *       coalesce_intermediate_states: false
  */
 public final class RabbitMqSettings {
 
@@ -44,6 +57,35 @@ public final class RabbitMqSettings {
     /** Default value for the shutdown destination name.*/
     public static final String RABBIT_MQ_DEFAULT_SHUTDOWN_DESTINATION = "default-shutdown-queue";
 
+    /** The property for the maximum number of unacknowledged messages delivered to each consumer. */
+    public static final String RABBIT_MQ_PREFETCH_COUNT_PROPERTY = "prefetch_count";
+    /** Default value for the prefetch count: 0, which means unlimited. */
+    public static final int RABBIT_MQ_DEFAULT_PREFETCH_COUNT = 0;
+    /** The property for whether to acknowledge the messages after they have been handled. */
+    public static final String RABBIT_MQ_ACKNOWLEDGE_AFTER_HANDLING_PROPERTY = "acknowledge_after_handling";
+    /** The property for the number of channels used for publishing messages. */
+    public static final String RABBIT_MQ_PUBLISHER_CHANNELS_PROPERTY = "publisher_channels";
+    /** Default value for the number of channels used for publishing messages. */
+    public static final int RABBIT_MQ_DEFAULT_PUBLISHER_CHANNELS = 1;
+
+    /** The property for the list of consumer groups, each consuming a dedicated request queue. */
+    public static final String RABBIT_MQ_CONSUMER_GROUPS_PROPERTY = "consumer_groups";
+
+    /** The property for the settings of the asynchronous response publisher. Publishing is synchronous without. */
+    public static final String RABBIT_MQ_RESPONSE_PUBLISHER_PROPERTY = "response_publisher";
+    /** The property for the capacity of the outbound queue of the response publisher. */
+    public static final String RABBIT_MQ_PUBLISHER_QUEUE_CAPACITY_PROPERTY = "queue_capacity";
+    /** Default value for the capacity of the outbound queue. */
+    public static final int RABBIT_MQ_DEFAULT_PUBLISHER_QUEUE_CAPACITY = 1000;
+    /** The property for the maximum number of responses published in one batch. */
+    public static final String RABBIT_MQ_PUBLISHER_BATCH_SIZE_PROPERTY = "batch_size";
+    /** Default value for the maximum number of responses published in one batch. */
+    public static final int RABBIT_MQ_DEFAULT_PUBLISHER_BATCH_SIZE = 50;
+    /** The property for whether to wait for the broker to confirm each published batch. */
+    public static final String RABBIT_MQ_PUBLISHER_CONFIRMS_PROPERTY = "publisher_confirms";
+    /** The property for whether to only send the latest of the intermediate states for the same object. */
+    public static final String RABBIT_MQ_COALESCE_INTERMEDIATE_STATES_PROPERTY = "coalesce_intermediate_states";
+
     /** The broker address as a URI. */
     private String brokerUri;
     
@@ -59,6 +101,29 @@ public final class RabbitMqSettings {
     /** The interval for polling the MQ in minutes. **/
     private int pollingIntervalInMinutes;
 
+    /** The maximum number of unacknowledged messages delivered to each consumer. 0 means unlimited. */
+    private int prefetchCount = RABBIT_MQ_DEFAULT_PREFETCH_COUNT;
+
+    /** Whether the messages are acknowledged after they have been handled, instead of when they are received. */
+    private boolean acknowledgeAfterHandling = false;
+
+    /** The number of channels used for publishing messages. */
+    private int publisherChannels = RABBIT_MQ_DEFAULT_PUBLISHER_CHANNELS;
+
+    /** The consumer groups, each consuming a dedicated request queue besides the preservation destination. */
+    private List<ConsumerGroupSettings> consumerGroups = new ArrayList<ConsumerGroupSettings>();
+
+    /** Whether the responses are published asynchronously. */
+    private boolean asynchronousPublishing = false;
+    /** The capacity of the outbound queue of the asynchronous response publisher. */
+    private int publisherQueueCapacity = RABBIT_MQ_DEFAULT_PUBLISHER_QUEUE_CAPACITY;
+    /** The maximum number of responses published in one batch. */
+    private int publisherBatchSize = RABBIT_MQ_DEFAULT_PUBLISHER_BATCH_SIZE;
+    /** Whether to wait for the broker to confirm each published batch. */
+    private boolean publisherConfirms = false;
+    /** Whether to only send the latest of the intermediate states for the same object within a batch. */
+    private boolean coalesceIntermediateStates = false;
+
     /**
      * Constructor. Reads RabbitMQ settings from a YAML file.
      * @param ymlFile A YAML file containing RabbitMQ settings.
@@ -102,6 +167,30 @@ public final class RabbitMqSettings {
             this.shutdownDestination = RABBIT_MQ_DEFAULT_SHUTDOWN_DESTINATION;            
         }
 
+        if(settings.containsKey(RABBIT_MQ_PREFETCH_COUNT_PROPERTY)) {
+            this.prefetchCount = (Integer) settings.get(RABBIT_MQ_PREFETCH_COUNT_PROPERTY);
+            if (prefetchCount < 0) {
+                throw new YggdrasilException("The prefetch count must not be negative");
+            }
+        }
+        if(settings.containsKey(RABBIT_MQ_ACKNOWLEDGE_AFTER_HANDLING_PROPERTY)) {
+            this.acknowledgeAfterHandling = (Boolean) settings.get(RABBIT_MQ_ACKNOWLEDGE_AFTER_HANDLING_PROPERTY);
+        }
+        if(settings.containsKey(RABBIT_MQ_PUBLISHER_CHANNELS_PROPERTY)) {
+            this.publisherChannels = (Integer) settings.get(RABBIT_MQ_PUBLISHER_CHANNELS_PROPERTY);
+            if (publisherChannels <= 0) {
+                throw new YggdrasilException("The number of publisher channels must be positive");
+            }
+        }
+        if(settings.containsKey(RABBIT_MQ_CONSUMER_GROUPS_PROPERTY)) {
+            for (Object groupMap : (List) settings.get(RABBIT_MQ_CONSUMER_GROUPS_PROPERTY)) {
+                consumerGroups.add(ConsumerGroupSettings.fromMap((Map) groupMap));
+            }
+        }
+        if(settings.containsKey(RABBIT_MQ_RESPONSE_PUBLISHER_PROPERTY)) {
+            readResponsePublisherSettings((Map) settings.get(RABBIT_MQ_RESPONSE_PUBLISHER_PROPERTY));
+        }
+
         // Check if rabbitmq-port or rabbitmq-hostname is overridden by defined properties
         // If either is overriden, set the BrokerURI to the overridden values and use the default value if only
         // partially overriden.
@@ -114,6 +203,34 @@ public final class RabbitMqSettings {
         }
     }
 
+    /**
+     * Reads the settings for the asynchronous response publisher.
+     * @param publisherMap The map with the response publisher settings.
+     * @throws YggdrasilException If the settings are invalid.
+     */
+    private void readResponsePublisherSettings(Map publisherMap) throws YggdrasilException {
+        asynchronousPublishing = true;
+        if (publisherMap == null) {
+            return;
+        }
+        if (publisherMap.containsKey(RABBIT_MQ_PUBLISHER_QUEUE_CAPACITY_PROPERTY)) {
+            publisherQueueCapacity = (Integer) publisherMap.get(RABBIT_MQ_PUBLISHER_QUEUE_CAPACITY_PROPERTY);
+        }
+        if (publisherMap.containsKey(RABBIT_MQ_PUBLISHER_BATCH_SIZE_PROPERTY)) {
+            publisherBatchSize = (Integer) publisherMap.get(RABBIT_MQ_PUBLISHER_BATCH_SIZE_PROPERTY);
+        }
+        if (publisherQueueCapacity <= 0 || publisherBatchSize <= 0) {
+            throw new YggdrasilException("The queue capacity and batch size of the response publisher must be "
+                    + "positive");
+        }
+        if (publisherMap.containsKey(RABBIT_MQ_PUBLISHER_CONFIRMS_PROPERTY)) {
+            publisherConfirms = (Boolean) publisherMap.get(RABBIT_MQ_PUBLISHER_CONFIRMS_PROPERTY);
+        }
+        if (publisherMap.containsKey(RABBIT_MQ_COALESCE_INTERMEDIATE_STATES_PROPERTY)) {
+            coalesceIntermediateStates = (Boolean) publisherMap.get(RABBIT_MQ_COALESCE_INTERMEDIATE_STATES_PROPERTY);
+        }
+    }
+
     /**
      * Alternate constructor.
      * @param brokerUri The URI to connect to the broker.
@@ -187,4 +304,91 @@ public final class RabbitMqSettings {
         this.brokerUri = newBrokerUri;
     }
 
+    /**
+     * @return The maximum number of unacknowledged messages delivered to each consumer. 0 means unlimited.
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Set the maximum number of unacknowledged messages delivered to each consumer.
+     * @param prefetchCount The new prefetch count. 0 means unlimited.
+     */
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    /**
+     * @return Whether the messages are acknowledged after they have been handled, instead of when they are 
+     * received.
+     */
+    public boolean isAcknowledgeAfterHandling() {
+        return acknowledgeAfterHandling;
+    }
+
+    /**
+     * Set whether the messages are acknowledged after they have been handled, instead of when they are received.
+     * @param acknowledgeAfterHandling Whether to acknowledge the messages after they have been handled.
+     */
+    public void setAcknowledgeAfterHandling(boolean acknowledgeAfterHandling) {
+        this.acknowledgeAfterHandling = acknowledgeAfterHandling;
+    }
+
+    /**
+     * @return The number of channels used for publishing messages.
+     */
+    public int getPublisherChannels() {
+        return publisherChannels;
+    }
+
+    /**
+     * Set the number of channels used for publishing messages.
+     * @param publisherChannels The new number of publisher channels.
+     */
+    public void setPublisherChannels(int publisherChannels) {
+        this.publisherChannels = publisherChannels;
+    }
+
+    /**
+     * @return The consumer groups, each consuming a dedicated request queue besides the preservation destination.
+     */
+    public List<ConsumerGroupSettings> getConsumerGroups() {
+        return consumerGroups;
+    }
+
+    /**
+     * @return Whether the responses are published asynchronously.
+     */
+    public boolean isAsynchronousPublishing() {
+        return asynchronousPublishing;
+    }
+
+    /**
+     * @return The capacity of the outbound queue of the asynchronous response publisher.
+     */
+    public int getPublisherQueueCapacity() {
+        return publisherQueueCapacity;
+    }
+
+    /**
+     * @return The maximum number of responses published in one batch.
+     */
+    public int getPublisherBatchSize() {
+        return publisherBatchSize;
+    }
+
+    /**
+     * @return Whether to wait for the broker to confirm each published batch.
+     */
+    public boolean isPublisherConfirms() {
+        return publisherConfirms;
+    }
+
+    /**
+     * @return Whether to only send the latest of the intermediate states for the same object within a batch.
+     */
+    public boolean isCoalesceIntermediateStates() {
+        return coalesceIntermediateStates;
+    }
 }
@@ -1,11 +1,18 @@
 package dk.kb.yggdrasil.config;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.preservation.PackerAssignment;
+import dk.kb.yggdrasil.utils.ThreadMode;
 import dk.kb.yggdrasil.utils.YamlTools;
 
 /** The class reading the yggdrasil.yml file. */
@@ -52,6 +59,211 @@ public class YggdrasilConfig {
     /** The interval for checking WARC conditions. */
     private final Long checkWarcConditionInterval;
 
+    /** The property for the number of threads handling the requests concurrently. */
+    private static final String REQUEST_HANDLER_THREADS_PROPERTY = "request_handler_threads";
+    /** The default number of request handler threads: one, thus handling the requests sequentially. */
+    private static final Integer DEFAULT_REQUEST_HANDLER_THREADS = 1;
+    /** The number of threads handling the requests concurrently. */
+    private final int requestHandlerThreads;
+
+    /** The property for the kind of threads used for the blocking work: 'platform' or 'virtual'. */
+    private static final String THREAD_MODE_PROPERTY = "thread_mode";
+    /** The default thread mode. */
+    private static final String DEFAULT_THREAD_MODE = "platform";
+    /** The kind of threads used for the blocking work. */
+    private final ThreadMode threadMode;
+
+    /** The property for the maximum number of requests handled concurrently on virtual threads. */
+    private static final String VIRTUAL_THREAD_REQUEST_LIMIT_PROPERTY = "virtual_thread_request_limit";
+    /** The default maximum number of requests handled concurrently on virtual threads. */
+    private static final Integer DEFAULT_VIRTUAL_THREAD_REQUEST_LIMIT = 1000;
+    /** The maximum number of requests handled concurrently on virtual threads. */
+    private final int virtualThreadRequestLimit;
+
+    /** The property for whether to perform the preservation in a pipeline of stages. */
+    private static final String PIPELINE_ENABLED_PROPERTY = "pipeline_enabled";
+    /** The default value for whether to use the preservation pipeline. */
+    private static final Boolean DEFAULT_PIPELINE_ENABLED = Boolean.FALSE;
+    /** Whether to perform the preservation in a pipeline of stages. */
+    private final boolean pipelineEnabled;
+
+    /** The property for the number of threads in the download stage of the preservation pipeline. */
+    private static final String PIPELINE_DOWNLOAD_THREADS_PROPERTY = "pipeline_download_threads";
+    /** The default number of threads in the download stage. */
+    private static final Integer DEFAULT_PIPELINE_DOWNLOAD_THREADS = 4;
+    /** The number of threads in the download stage. */
+    private final int pipelineDownloadThreads;
+
+    /** The property for the number of threads in the transformation stage of the preservation pipeline. */
+    private static final String PIPELINE_TRANSFORMATION_THREADS_PROPERTY = "pipeline_transformation_threads";
+    /** The default number of threads in the transformation stage. */
+    private static final Integer DEFAULT_PIPELINE_TRANSFORMATION_THREADS = 2;
+    /** The number of threads in the transformation stage. */
+    private final int pipelineTransformationThreads;
+
+    /** The property for the number of threads in the packaging stage of the preservation pipeline. */
+    private static final String PIPELINE_PACKAGING_THREADS_PROPERTY = "pipeline_packaging_threads";
+    /** The default number of threads in the packaging stage. */
+    private static final Integer DEFAULT_PIPELINE_PACKAGING_THREADS = 1;
+    /** The number of threads in the packaging stage. */
+    private final int pipelinePackagingThreads;
+
+    /** The property for the capacity of the queue in front of each stage of the preservation pipeline. */
+    private static final String PIPELINE_QUEUE_CAPACITY_PROPERTY = "pipeline_queue_capacity";
+    /** The default capacity of the queue in front of each stage. */
+    private static final Integer DEFAULT_PIPELINE_QUEUE_CAPACITY = 16;
+    /** The capacity of the queue in front of each stage. */
+    private final int pipelineQueueCapacity;
+
+    /** The property for the number of WARC files, which can be written concurrently for each collection. */
+    private static final String PACKERS_PER_COLLECTION_PROPERTY = "packers_per_collection";
+    /** The default number of concurrent WARC files for each collection. */
+    private static final Integer DEFAULT_PACKERS_PER_COLLECTION = 1;
+    /** The number of concurrent WARC files for each collection. */
+    private final int packersPerCollection;
+
+    /** The property for how the requests of a collection are assigned to the packers of the collection. */
+    private static final String PACKER_ASSIGNMENT_PROPERTY = "packer_assignment";
+    /** The default assignment of the requests to the packers. */
+    private static final String DEFAULT_PACKER_ASSIGNMENT = "round_robin";
+    /** The assignment of the requests to the packers. */
+    private final PackerAssignment packerAssignment;
+
+    /** The property for the list of directories for the WARC files. Defaults to the temporary directory. */
+    private static final String WARC_DIRS_PROPERTY = "warc_dirs";
+    /** The directories for the WARC files. The packers of a collection are spread over the directories. */
+    private final List<File> warcDirs;
+
+    /** The property for the number of threads uploading the sealed WARC files in the background. */
+    private static final String UPLOAD_THREADS_PROPERTY = "upload_threads";
+    /** The default number of upload threads: none, thus the WARC file is uploaded by the thread sealing it. */
+    private static final Integer DEFAULT_UPLOAD_THREADS = 0;
+    /** The number of threads uploading the sealed WARC files in the background. */
+    private final int uploadThreads;
+
+    /** The property for the number of attempts to upload a WARC file, before its requests are reported failed. */
+    private static final String UPLOAD_ATTEMPTS_PROPERTY = "upload_attempts";
+    /** The default number of upload attempts: a single attempt. */
+    private static final Integer DEFAULT_UPLOAD_ATTEMPTS = 1;
+    /** The number of attempts to upload a WARC file. */
+    private final int uploadAttempts;
+
+    /** The property for the delay in milliseconds before retrying a failed upload. */
+    private static final String UPLOAD_RETRY_DELAY_PROPERTY = "upload_retry_delay";
+    /** The default delay before retrying a failed upload: 1 minute. */
+    private static final Long DEFAULT_UPLOAD_RETRY_DELAY = 60000L;
+    /** The delay in milliseconds before retrying a failed upload. */
+    private final long uploadRetryDelay;
+
+    /** The property for the list of collections, which have their WARC files written gzip compressed. */
+    private static final String COMPRESSED_COLLECTIONS_PROPERTY = "compressed_collections";
+    /** The collections, which have their WARC files written with each record as its own gzip member. */
+    private final Set<String> compressedCollections;
+
+    /** The property for the maximum size in bytes of the cache of WARC files retrieved for imports. */
+    private static final String IMPORT_CACHE_SIZE_PROPERTY = "import_cache_size";
+    /** The default size of the import cache: 0, thus the retrieved WARC files are not cached. */
+    private static final Long DEFAULT_IMPORT_CACHE_SIZE = 0L;
+    /** The maximum size in bytes of the cache of WARC files retrieved for imports. */
+    private final long importCacheSize;
+
+    /** 
+     * The property for whether the imports are streamed from the Bitrepository to the delivery URL.
+     * This is a weaker integrity mode: the checksums are only validated, when the whole record has been sent, thus 
+     * an invalid record aborts the delivery, but the receiver may already have received the invalid bytes.
+     */
+    private static final String IMPORT_STREAMING_PROPERTY = "import_streaming";
+    /** The default for streaming the imports: false, thus the record is extracted to a file before delivery. */
+    private static final Boolean DEFAULT_IMPORT_STREAMING = Boolean.FALSE;
+    /** Whether the imports are streamed from the Bitrepository to the delivery URL. */
+    private final boolean importStreaming;
+
+    /** The property for the maximum number of pooled HTTP connections in total. */
+    private static final String HTTP_MAX_CONNECTIONS_PROPERTY = "http_max_connections";
+    /** The default maximum number of pooled HTTP connections in total. */
+    private static final Integer DEFAULT_HTTP_MAX_CONNECTIONS = 20;
+    /** The maximum number of pooled HTTP connections in total. */
+    private final int httpMaxConnections;
+
+    /** The property for the maximum number of pooled HTTP connections to the same host. */
+    private static final String HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "http_max_connections_per_route";
+    /** The default maximum number of pooled HTTP connections to the same host. */
+    private static final Integer DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE = 10;
+    /** The maximum number of pooled HTTP connections to the same host. */
+    private final int httpMaxConnectionsPerRoute;
+
+    /** The property for the timeout in milliseconds for establishing a HTTP connection. */
+    private static final String HTTP_CONNECT_TIMEOUT_PROPERTY = "http_connect_timeout";
+    /** The default timeout for establishing a HTTP connection: 30 seconds. */
+    private static final Integer DEFAULT_HTTP_CONNECT_TIMEOUT = 30000;
+    /** The timeout in milliseconds for establishing a HTTP connection. 0 means no timeout. */
+    private final int httpConnectTimeout;
+
+    /** The property for the timeout in milliseconds for waiting for a pooled HTTP connection. */
+    private static final String HTTP_CONNECTION_REQUEST_TIMEOUT_PROPERTY = "http_connection_request_timeout";
+    /** The default timeout for waiting for a pooled HTTP connection: no timeout. */
+    private static final Integer DEFAULT_HTTP_CONNECTION_REQUEST_TIMEOUT = 0;
+    /** The timeout in milliseconds for waiting for a pooled HTTP connection. 0 means no timeout. */
+    private final int httpConnectionRequestTimeout;
+
+    /** The property for the timeout in milliseconds for waiting for data on a HTTP connection. */
+    private static final String HTTP_SOCKET_TIMEOUT_PROPERTY = "http_socket_timeout";
+    /** The default timeout for waiting for data on a HTTP connection: 10 minutes. */
+    private static final Integer DEFAULT_HTTP_SOCKET_TIMEOUT = 600000;
+    /** The timeout in milliseconds for waiting for data on a HTTP connection. 0 means no timeout. */
+    private final int httpSocketTimeout;
+
+    /** The property for how long in milliseconds an idle HTTP connection is kept alive for reuse. */
+    private static final String HTTP_KEEP_ALIVE_PROPERTY = "http_keep_alive";
+    /** The default keep-alive of an idle HTTP connection, when the server does not tell: 1 minute. */
+    private static final Long DEFAULT_HTTP_KEEP_ALIVE = 60000L;
+    /** How long in milliseconds an idle HTTP connection is kept alive, when the server does not tell. */
+    private final long httpKeepAlive;
+
+    /** 
+     * The property for the maximum number of segments, which a content download is split into and retrieved in 
+     * parallel. It should not exceed the maximum number of pooled HTTP connections to the same host.
+     * Since the segments are written out of order, the bytes of a segment, which are written before the bytes in 
+     * front of it, are read back from the file for the checksum, e.g. up to half of the content for two segments.
+     */
+    private static final String DOWNLOAD_SEGMENTS_PROPERTY = "download_segments";
+    /** The default number of download segments: 1, thus the content is downloaded with a single request. */
+    private static final Integer DEFAULT_DOWNLOAD_SEGMENTS = 1;
+    /** The maximum number of segments, which a content download is split into. */
+    private final int downloadSegments;
+
+    /** The property for the minimum size in bytes of a download segment. */
+    private static final String DOWNLOAD_SEGMENT_MIN_SIZE_PROPERTY = "download_segment_min_size";
+    /** The default minimum size of a download segment: 64 MB. */
+    private static final Long DEFAULT_DOWNLOAD_SEGMENT_MIN_SIZE = 64L*1024L*1024L;
+    /** The minimum size in bytes of a download segment. */
+    private final long downloadSegmentMinSize;
+
+    /** The property for the number of attempts to retrieve a download segment, before the download fails. */
+    private static final String DOWNLOAD_ATTEMPTS_PROPERTY = "download_attempts";
+    /** The default number of attempts to retrieve a download segment. */
+    private static final Integer DEFAULT_DOWNLOAD_ATTEMPTS = 3;
+    /** The number of attempts to retrieve a download segment. */
+    private final int downloadAttempts;
+
+    /** 
+     * The property for whether the progress of content downloads is stored, thus they can resume after a restart.
+     * The checksum cannot be stored with the progress, thus the part downloaded before a restart is read back from 
+     * the file for the checksum.
+     */
+    private static final String DOWNLOAD_RESUMABLE_PROPERTY = "download_resumable";
+    /** The default for resumable downloads: false, thus an interrupted download starts over. */
+    private static final Boolean DEFAULT_DOWNLOAD_RESUMABLE = Boolean.FALSE;
+    /** Whether the progress of content downloads is stored, thus they can resume after a restart. */
+    private final boolean downloadResumable;
+
+    /** The property for the maximum size in bytes of transformed metadata, which is kept in memory. */
+    private static final String METADATA_MEMORY_LIMIT_PROPERTY = "metadata_memory_limit";
+    /** The default limit for keeping transformed metadata in memory: 0, thus it is always written to a file. */
+    private static final Long DEFAULT_METADATA_MEMORY_LIMIT = 0L;
+    /** The maximum size in bytes of transformed metadata, which is kept in memory. */
+    private final long metadataMemoryLimit;
+
     /**
      * Constructor for class reading the general Yggdrasil config file.
      * @param yggrasilConfigFile the config file.
@@ -71,6 +283,73 @@ public class YggdrasilConfig {
         uploadWaitLimit = extractConfigLongValue(valuesMap, UPLOAD_WAIT_LIMIT_PROPERTY, DEFAULT_UPLOAD_WAIT_LIMIT);
         checkWarcConditionInterval = extractConfigLongValue(valuesMap, CHECK_WARC_CONDITION_INTERVAL_PROPERTY, 
                 DEFAULT_CHECK_WARC_CONDITION_INTERVAL);
+        requestHandlerThreads = (Integer) extractConfigValue(valuesMap, REQUEST_HANDLER_THREADS_PROPERTY, 
+                DEFAULT_REQUEST_HANDLER_THREADS);
+        ArgumentCheck.checkPositiveInt(requestHandlerThreads, REQUEST_HANDLER_THREADS_PROPERTY);
+        threadMode = ThreadMode.fromName(extractConfigStringValue(valuesMap, THREAD_MODE_PROPERTY, 
+                DEFAULT_THREAD_MODE));
+        virtualThreadRequestLimit = (Integer) extractConfigValue(valuesMap, VIRTUAL_THREAD_REQUEST_LIMIT_PROPERTY, 
+                DEFAULT_VIRTUAL_THREAD_REQUEST_LIMIT);
+        ArgumentCheck.checkPositiveInt(virtualThreadRequestLimit, VIRTUAL_THREAD_REQUEST_LIMIT_PROPERTY);
+        pipelineEnabled = (Boolean) extractConfigValue(valuesMap, PIPELINE_ENABLED_PROPERTY, DEFAULT_PIPELINE_ENABLED);
+        pipelineDownloadThreads = (Integer) extractConfigValue(valuesMap, PIPELINE_DOWNLOAD_THREADS_PROPERTY, 
+                DEFAULT_PIPELINE_DOWNLOAD_THREADS);
+        ArgumentCheck.checkPositiveInt(pipelineDownloadThreads, PIPELINE_DOWNLOAD_THREADS_PROPERTY);
+        pipelineTransformationThreads = (Integer) extractConfigValue(valuesMap, 
+                PIPELINE_TRANSFORMATION_THREADS_PROPERTY, DEFAULT_PIPELINE_TRANSFORMATION_THREADS);
+        ArgumentCheck.checkPositiveInt(pipelineTransformationThreads, PIPELINE_TRANSFORMATION_THREADS_PROPERTY);
+        pipelinePackagingThreads = (Integer) extractConfigValue(valuesMap, PIPELINE_PACKAGING_THREADS_PROPERTY, 
+                DEFAULT_PIPELINE_PACKAGING_THREADS);
+        ArgumentCheck.checkPositiveInt(pipelinePackagingThreads, PIPELINE_PACKAGING_THREADS_PROPERTY);
+        pipelineQueueCapacity = (Integer) extractConfigValue(valuesMap, PIPELINE_QUEUE_CAPACITY_PROPERTY, 
+                DEFAULT_PIPELINE_QUEUE_CAPACITY);
+        ArgumentCheck.checkPositiveInt(pipelineQueueCapacity, PIPELINE_QUEUE_CAPACITY_PROPERTY);
+        packersPerCollection = (Integer) extractConfigValue(valuesMap, PACKERS_PER_COLLECTION_PROPERTY, 
+                DEFAULT_PACKERS_PER_COLLECTION);
+        ArgumentCheck.checkPositiveInt(packersPerCollection, PACKERS_PER_COLLECTION_PROPERTY);
+        packerAssignment = PackerAssignment.fromName(extractConfigStringValue(valuesMap, PACKER_ASSIGNMENT_PROPERTY, 
+                DEFAULT_PACKER_ASSIGNMENT));
+        warcDirs = extractConfigValueAsDirectories(valuesMap, WARC_DIRS_PROPERTY, tmpDir);
+        uploadThreads = (Integer) extractConfigValue(valuesMap, UPLOAD_THREADS_PROPERTY, DEFAULT_UPLOAD_THREADS);
+        ArgumentCheck.checkNotNegativeInt(uploadThreads, UPLOAD_THREADS_PROPERTY);
+        uploadAttempts = (Integer) extractConfigValue(valuesMap, UPLOAD_ATTEMPTS_PROPERTY, DEFAULT_UPLOAD_ATTEMPTS);
+        ArgumentCheck.checkPositiveInt(uploadAttempts, UPLOAD_ATTEMPTS_PROPERTY);
+        uploadRetryDelay = extractConfigLongValue(valuesMap, UPLOAD_RETRY_DELAY_PROPERTY, DEFAULT_UPLOAD_RETRY_DELAY);
+        compressedCollections = extractConfigValueAsStrings(valuesMap, COMPRESSED_COLLECTIONS_PROPERTY);
+        importCacheSize = extractConfigLongValue(valuesMap, IMPORT_CACHE_SIZE_PROPERTY, DEFAULT_IMPORT_CACHE_SIZE);
+        ArgumentCheck.checkNotNegativeLong(importCacheSize, IMPORT_CACHE_SIZE_PROPERTY);
+        importStreaming = (Boolean) extractConfigValue(valuesMap, IMPORT_STREAMING_PROPERTY, DEFAULT_IMPORT_STREAMING);
+        httpMaxConnections = (Integer) extractConfigValue(valuesMap, HTTP_MAX_CONNECTIONS_PROPERTY, 
+                DEFAULT_HTTP_MAX_CONNECTIONS);
+        ArgumentCheck.checkPositiveInt(httpMaxConnections, HTTP_MAX_CONNECTIONS_PROPERTY);
+        httpMaxConnectionsPerRoute = (Integer) extractConfigValue(valuesMap, HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY, 
+                DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE);
+        ArgumentCheck.checkPositiveInt(httpMaxConnectionsPerRoute, HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY);
+        httpConnectTimeout = (Integer) extractConfigValue(valuesMap, HTTP_CONNECT_TIMEOUT_PROPERTY, 
+                DEFAULT_HTTP_CONNECT_TIMEOUT);
+        ArgumentCheck.checkNotNegativeInt(httpConnectTimeout, HTTP_CONNECT_TIMEOUT_PROPERTY);
+        httpConnectionRequestTimeout = (Integer) extractConfigValue(valuesMap, 
+                HTTP_CONNECTION_REQUEST_TIMEOUT_PROPERTY, DEFAULT_HTTP_CONNECTION_REQUEST_TIMEOUT);
+        ArgumentCheck.checkNotNegativeInt(httpConnectionRequestTimeout, HTTP_CONNECTION_REQUEST_TIMEOUT_PROPERTY);
+        httpSocketTimeout = (Integer) extractConfigValue(valuesMap, HTTP_SOCKET_TIMEOUT_PROPERTY, 
+                DEFAULT_HTTP_SOCKET_TIMEOUT);
+        ArgumentCheck.checkNotNegativeInt(httpSocketTimeout, HTTP_SOCKET_TIMEOUT_PROPERTY);
+        httpKeepAlive = extractConfigLongValue(valuesMap, HTTP_KEEP_ALIVE_PROPERTY, DEFAULT_HTTP_KEEP_ALIVE);
+        ArgumentCheck.checkPositiveLong(httpKeepAlive, HTTP_KEEP_ALIVE_PROPERTY);
+        downloadSegments = (Integer) extractConfigValue(valuesMap, DOWNLOAD_SEGMENTS_PROPERTY, 
+                DEFAULT_DOWNLOAD_SEGMENTS);
+        ArgumentCheck.checkPositiveInt(downloadSegments, DOWNLOAD_SEGMENTS_PROPERTY);
+        downloadSegmentMinSize = extractConfigLongValue(valuesMap, DOWNLOAD_SEGMENT_MIN_SIZE_PROPERTY, 
+                DEFAULT_DOWNLOAD_SEGMENT_MIN_SIZE);
+        ArgumentCheck.checkPositiveLong(downloadSegmentMinSize, DOWNLOAD_SEGMENT_MIN_SIZE_PROPERTY);
+        downloadAttempts = (Integer) extractConfigValue(valuesMap, DOWNLOAD_ATTEMPTS_PROPERTY, 
+                DEFAULT_DOWNLOAD_ATTEMPTS);
+        ArgumentCheck.checkPositiveInt(downloadAttempts, DOWNLOAD_ATTEMPTS_PROPERTY);
+        downloadResumable = (Boolean) extractConfigValue(valuesMap, DOWNLOAD_RESUMABLE_PROPERTY, 
+                DEFAULT_DOWNLOAD_RESUMABLE);
+        metadataMemoryLimit = extractConfigLongValue(valuesMap, METADATA_MEMORY_LIMIT_PROPERTY, 
+                DEFAULT_METADATA_MEMORY_LIMIT);
+        ArgumentCheck.checkNotNegativeLong(metadataMemoryLimit, METADATA_MEMORY_LIMIT_PROPERTY);
     }
 
     /**
@@ -161,6 +440,55 @@ public class YggdrasilConfig {
         return res;
     }
 
+    /**
+     * Instantiates a configuration property with a list of directory paths as directories.
+     * @param configs The configuration map to extract the given configuration from.
+     * @param property The name of the configuration property.
+     * @param defaultValue The directory to use, if no directories were defined in the configuration.
+     * @return The directories.
+     * @throws YggdrasilException If a directory path could not be instantiated as a directory.
+     */
+    private List<File> extractConfigValueAsDirectories(Map<String, Object> configs, String property, 
+            File defaultValue) throws YggdrasilException {
+        Object paths = configs.get(property);
+        if (paths == null) {
+            return Collections.singletonList(defaultValue);
+        }
+        if (!(paths instanceof List) || ((List) paths).isEmpty()) {
+            throw new YggdrasilException("The configuration '" + property + "' must be a list of directories.");
+        }
+        List<File> res = new ArrayList<File>();
+        for (Object path : (List) paths) {
+            Map<String, Object> pathConfig = new LinkedHashMap<String, Object>();
+            pathConfig.put(property, String.valueOf(path));
+            res.add(extractConfigValueAsDirectory(pathConfig, property, null));
+        }
+        return Collections.unmodifiableList(res);
+    }
+
+    /**
+     * Extracts a configuration property with a list of strings. 
+     * @param configs The configuration map to extract the given configuration from.
+     * @param property The name of the configuration property.
+     * @return The strings, or an empty set if the property has not been defined in the configuration.
+     * @throws YggdrasilException If the property is not a list.
+     */
+    private Set<String> extractConfigValueAsStrings(Map<String, Object> configs, String property) 
+            throws YggdrasilException {
+        Object values = configs.get(property);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        if (!(values instanceof List)) {
+            throw new YggdrasilException("The configuration '" + property + "' must be a list.");
+        }
+        Set<String> res = new HashSet<String>();
+        for (Object value : (List) values) {
+            res.add(String.valueOf(value));
+        }
+        return Collections.unmodifiableSet(res);
+    }
+
     /** 
      * @return the database dir
      */
@@ -209,4 +537,207 @@ public class YggdrasilConfig {
     public long getCheckWarcConditionInterval() {
         return checkWarcConditionInterval;
     }
+
+    /**
+     * @return The number of threads handling the requests concurrently.
+     */
+    public int getRequestHandlerThreads() {
+        return requestHandlerThreads;
+    }
+
+    /**
+     * @return The kind of threads used for the blocking work.
+     */
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * @return The maximum number of requests handled concurrently, when using virtual threads.
+     */
+    public int getVirtualThreadRequestLimit() {
+        return virtualThreadRequestLimit;
+    }
+
+    /**
+     * @return Whether to perform the preservation in a pipeline of stages.
+     */
+    public boolean isPipelineEnabled() {
+        return pipelineEnabled;
+    }
+
+    /**
+     * @return The number of threads in the download stage of the preservation pipeline.
+     */
+    public int getPipelineDownloadThreads() {
+        return pipelineDownloadThreads;
+    }
+
+    /**
+     * @return The number of threads in the transformation stage of the preservation pipeline.
+     */
+    public int getPipelineTransformationThreads() {
+        return pipelineTransformationThreads;
+    }
+
+    /**
+     * @return The number of threads in the packaging stage of the preservation pipeline.
+     */
+    public int getPipelinePackagingThreads() {
+        return pipelinePackagingThreads;
+    }
+
+    /**
+     * @return The capacity of the queue in front of each stage of the preservation pipeline.
+     */
+    public int getPipelineQueueCapacity() {
+        return pipelineQueueCapacity;
+    }
+
+    /**
+     * @return The number of WARC files, which can be written concurrently for each collection.
+     */
+    public int getPackersPerCollection() {
+        return packersPerCollection;
+    }
+
+    /**
+     * @return How the requests of a collection are assigned to the packers of the collection.
+     */
+    public PackerAssignment getPackerAssignment() {
+        return packerAssignment;
+    }
+
+    /**
+     * @return The directories for the WARC files.
+     */
+    public List<File> getWarcDirs() {
+        return warcDirs;
+    }
+
+    /**
+     * @return The number of threads uploading the sealed WARC files in the background. 0 if none.
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    /**
+     * @return The number of attempts to upload a WARC file, before its requests are reported failed.
+     */
+    public int getUploadAttempts() {
+        return uploadAttempts;
+    }
+
+    /**
+     * @return The delay in milliseconds before retrying a failed upload.
+     */
+    public long getUploadRetryDelay() {
+        return uploadRetryDelay;
+    }
+
+    /**
+     * @param collectionId The id of the collection.
+     * @return Whether the WARC files of the collection are written gzip compressed.
+     */
+    public boolean isCompressedCollection(String collectionId) {
+        return compressedCollections.contains(collectionId);
+    }
+
+    /**
+     * @return The maximum size in bytes of the cache of WARC files and file parts retrieved for imports. 
+     * 0 if they are not cached.
+     */
+    public long getImportCacheSize() {
+        return importCacheSize;
+    }
+
+    /**
+     * @return Whether the imports are streamed from the Bitrepository to the delivery URL in a single pass, without
+     * storing the WARC file or the record locally, and with the checksums validated at the end of the delivery.
+     */
+    public boolean isImportStreaming() {
+        return importStreaming;
+    }
+
+    /**
+     * @return The maximum number of pooled HTTP connections in total.
+     */
+    public int getHttpMaxConnections() {
+        return httpMaxConnections;
+    }
+
+    /**
+     * @return The maximum number of pooled HTTP connections to the same host.
+     */
+    public int getHttpMaxConnectionsPerRoute() {
+        return httpMaxConnectionsPerRoute;
+    }
+
+    /**
+     * @return The timeout in milliseconds for establishing a HTTP connection. 0 means no timeout.
+     */
+    public int getHttpConnectTimeout() {
+        return httpConnectTimeout;
+    }
+
+    /**
+     * @return The timeout in milliseconds for waiting for a pooled HTTP connection, when all the connections to the
+     * host are in use. 0 means no timeout.
+     */
+    public int getHttpConnectionRequestTimeout() {
+        return httpConnectionRequestTimeout;
+    }
+
+    /**
+     * @return The timeout in milliseconds for waiting for data on a HTTP connection. 0 means no timeout.
+     */
+    public int getHttpSocketTimeout() {
+        return httpSocketTimeout;
+    }
+
+    /**
+     * @return How long in milliseconds an idle HTTP connection is kept alive for reuse, when the server does not 
+     * tell with a Keep-Alive header.
+     */
+    public long getHttpKeepAlive() {
+        return httpKeepAlive;
+    }
+
+    /**
+     * @return The maximum number of segments, which a content download is split into and retrieved in parallel.
+     */
+    public int getDownloadSegments() {
+        return downloadSegments;
+    }
+
+    /**
+     * @return The minimum size in bytes of a download segment.
+     */
+    public long getDownloadSegmentMinSize() {
+        return downloadSegmentMinSize;
+    }
+
+    /**
+     * @return The number of attempts to retrieve a download segment, before the download fails.
+     */
+    public int getDownloadAttempts() {
+        return downloadAttempts;
+    }
+
+    /**
+     * @return Whether the progress of content downloads is stored with the request state, thus an interrupted 
+     * download is resumed with range requests, when the request is received again after a restart.
+     */
+    public boolean isDownloadResumable() {
+        return downloadResumable;
+    }
+
+    /**
+     * @return The maximum size in bytes of the transformed metadata of a request, which is validated and packaged 
+     * from memory. Larger metadata is written to a file in the temporary directory.
+     */
+    public long getMetadataMemoryLimit() {
+        return metadataMemoryLimit;
+    }
 }
@@ -2,6 +2,11 @@ package dk.kb.yggdrasil.db;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bitrepository.bitrepositoryelements.ChecksumType;
 
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
@@ -22,6 +27,8 @@ public class PreservationImportRequestState implements Serializable {
     
     /** The data to be imported into Valhal. */
     private File importData = null;
+    /** The checksums of the import data calculated while it was extracted, mapped by their checksum type. */
+    private HashMap<ChecksumType, String> importDataChecksums = new HashMap<ChecksumType, String>();
 
     /**
      * The constructor of the PreservationImportRequestState.
@@ -76,6 +83,21 @@ public class PreservationImportRequestState implements Serializable {
         return importData;
     }
     
+    /**
+     * @param checksums The checksums of the import data calculated while it was extracted.
+     */
+    public void setImportDataChecksums(Map<ChecksumType, String> checksums) {
+        ArgumentCheck.checkNotNull(checksums, "Map<ChecksumType, String> checksums");
+        importDataChecksums = new HashMap<ChecksumType, String>(checksums);
+    }
+
+    /**
+     * @return The checksums of the import data calculated while it was extracted (empty if none were calculated).
+     */
+    public Map<ChecksumType, String> getImportDataChecksums() {
+        return Collections.unmodifiableMap(importDataChecksums);
+    }
+
     /**
      * @param checksum The value for the warc header checksum variable.
      */
@@ -1,11 +1,17 @@
 package dk.kb.yggdrasil.db;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 
+import org.jwat.warc.WarcDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.kb.yggdrasil.SegmentedDownload;
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
 import dk.kb.yggdrasil.json.preservation.PreservationRequest;
@@ -17,6 +23,8 @@ import dk.kb.yggdrasil.preservation.PreservationState;
  * temporary files built during the workflow.
  */
 public class PreservationRequestState implements Serializable {
+    /** The serial version of the states stored before the content payload digest was added. */
+    private static final long serialVersionUID = -3277306195739208982L;
 
     /** Logging mechanism. */
     private static final Logger logger = LoggerFactory.getLogger(
@@ -31,9 +39,13 @@ public class PreservationRequestState implements Serializable {
     private String uuid;
     /** The content payload. This is downloaded using REST from Valhal. */
     private File contentPayload;
+    /** The WARC block digest of the content payload, calculated while downloading it. Null if not calculated. */
+    private String contentPayloadDigest;
     /** The metadata payload. This is the result of the transformation of the metadata
      * included in the request. */
     private File metadataPayload;
+    /** The metadata payload, when the result of the transformation is small enough to be kept in memory. */
+    private byte[] metadataPayloadData = null;
     /** The id of the warc file. */
     private String warcId;
     /** The id of the warc file containing the resource.*/
@@ -44,6 +56,8 @@ public class PreservationRequestState implements Serializable {
     private String fileOffset; 
     /** The preservation update data. Default null, since it is only used for preservation updates.*/
     private Update preservationUpdate = null;
+    /** The partial download of the content payload, which can be resumed. Null if no download is in progress. */
+    private SegmentedDownload partialDownload = null;
 
     /**
      * The constructor of the PreservationRequestState.
@@ -103,6 +117,45 @@ public class PreservationRequestState implements Serializable {
     public void setContentPayload(File contentPayload) {
         ArgumentCheck.checkExistsNormalFile(contentPayload, "File contentPayload");
         this.contentPayload = contentPayload;
+        this.contentPayloadDigest = null;
+    }
+
+    /**
+     * Set the content payload together with its digest, thus the digest does not have to be calculated again.
+     * @param contentPayload the content payload as a File
+     * @param digest The WARC block digest of the content payload.
+     */
+    public void setContentPayload(File contentPayload, WarcDigest digest) {
+        ArgumentCheck.checkNotNull(digest, "WarcDigest digest");
+        setContentPayload(contentPayload);
+        this.contentPayloadDigest = digest.toString();
+    }
+
+    /**
+     * @return The WARC block digest of the content payload, or null if it was not calculated along with the
+     * content payload.
+     */
+    public WarcDigest getContentPayloadDigest() {
+        if (contentPayloadDigest == null) {
+            return null;
+        }
+        return WarcDigest.parseWarcDigest(contentPayloadDigest);
+    }
+
+    /**
+     * @return The partial download of the content payload, which can be resumed, or null if no download is in 
+     * progress.
+     */
+    public SegmentedDownload getPartialDownload() {
+        return partialDownload;
+    }
+
+    /**
+     * @param partialDownload The partial download of the content payload, or null when the download is no longer
+     * in progress.
+     */
+    public void setPartialDownload(SegmentedDownload partialDownload) {
+        this.partialDownload = partialDownload;
     }
 
     /**
@@ -122,6 +175,52 @@ public class PreservationRequestState implements Serializable {
         this.metadataPayload = metadataPayload;
     }
 
+    /**
+     * @return The metadata payload kept in memory, or null if it is not kept in memory.
+     */
+    public byte[] getMetadataPayloadData() {
+        return metadataPayloadData;
+    }
+
+    /**
+     * Set the metadata payload, which is kept in memory instead of in a file.
+     * @param metadataPayloadData The metadata payload.
+     */
+    public void setMetadataPayloadData(byte[] metadataPayloadData) {
+        ArgumentCheck.checkNotNullOrEmpty(metadataPayloadData, "byte[] metadataPayloadData");
+        this.metadataPayloadData = metadataPayloadData;
+    }
+
+    /**
+     * @return Whether there is a metadata payload, either in memory or in a file.
+     */
+    public boolean hasMetadataPayload() {
+        return metadataPayloadData != null || metadataPayload != null;
+    }
+
+    /**
+     * @return The length of the metadata payload.
+     */
+    public long getMetadataPayloadLength() {
+        ArgumentCheck.checkTrue(hasMetadataPayload(), "There must be a metadata payload");
+        if (metadataPayloadData != null) {
+            return metadataPayloadData.length;
+        }
+        return metadataPayload.length();
+    }
+
+    /**
+     * @return A stream of the metadata payload, from memory if it is kept in memory, otherwise from its file.
+     * @throws IOException If the file of the metadata payload cannot be opened.
+     */
+    public InputStream getMetadataPayloadStream() throws IOException {
+        ArgumentCheck.checkTrue(hasMetadataPayload(), "There must be a metadata payload");
+        if (metadataPayloadData != null) {
+            return new ByteArrayInputStream(metadataPayloadData);
+        }
+        return new FileInputStream(metadataPayload);
+    }
+
     /**
      * @return the warc file containing the metadata.
      */
@@ -207,9 +306,17 @@ public class PreservationRequestState implements Serializable {
     }
     
     /**
-     * Remove the temporary files for the records referred to in this object, if they still exist.
+     * Remove the temporary files for the records referred to in this object, including a partial download, if they 
+     * still exist.
      */
     public void cleanup() {
+        if (partialDownload != null) {
+            File partialFile = partialDownload.getFile();
+            if (partialFile.exists() && !partialFile.equals(contentPayload) && !partialFile.delete()) {
+                logger.warn("Unable to delete the partial download '" + partialFile.getAbsolutePath() + "'");
+            }
+            partialDownload = null;
+        }
         if (contentPayload != null && contentPayload.exists()) {
             if (!contentPayload.delete()) {
                 logger.warn("Unable to delete temporary file for contentPayload '" 
@@ -225,5 +332,6 @@ public class PreservationRequestState implements Serializable {
             }
             metadataPayload = null;
         }
+        metadataPayloadData = null;
     }
 }
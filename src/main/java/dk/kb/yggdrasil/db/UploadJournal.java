@@ -0,0 +1,285 @@
+package dk.kb.yggdrasil.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * The journal of the WARC files, which have not yet been uploaded to the Bitrepository.
+ *
+ * Each WARC file has an append-only journal file, where an entry is appended for each request after its records
+ * have been written to the WARC file. The entry contains the state of the request and the size of the WARC file
+ * after its records. The journal file is removed, when the upload of the WARC file has been reported.
+ * After a restart the journal tells which WARC files still need to be uploaded, including the WARC files which were
+ * still being written, and which requests they contain. Any partially written record after the last entry can be
+ * cut off, since its request has not been journaled.
+ * An entry is forced to the disk before it is appended, and the records of the request must have been forced to
+ * the disk before that, thus a request, which has been journaled (and e.g. acknowledged), survives a power loss.
+ */
+public class UploadJournal {
+    /** Logging mechanism. */
+    private static final Logger logger = LoggerFactory.getLogger(UploadJournal.class.getName());
+    /** The subdirectory to the database directory, where the journal files are located. */
+    private static final String JOURNAL_SUBDIR = "UPLOAD_JOURNAL";
+    /** The suffix of the journal files. */
+    private static final String JOURNAL_SUFFIX = ".journal";
+    /** The maximum size of a serialized request state, larger lengths are regarded as garbage. */
+    private static final int MAX_ENTRY_SIZE = 16 * 1024 * 1024;
+
+    /** The directory with the journal files. */
+    private final File journalDir;
+
+    /**
+     * Constructor.
+     * @param databaseDir The database directory, where the journal is placed in a subdirectory.
+     */
+    public UploadJournal(File databaseDir) {
+        ArgumentCheck.checkNotNull(databaseDir, "File databaseDir");
+        journalDir = new File(databaseDir, JOURNAL_SUBDIR);
+        if (!journalDir.isDirectory()) {
+            boolean success = journalDir.mkdirs();
+            logger.info("Created the upload journal directory '" + journalDir.getAbsolutePath() + "': " + success);
+        }
+        ArgumentCheck.checkExistsDirectory(journalDir, "File journalDir");
+    }
+
+    /**
+     * Appends the entry for a request, after its records have been written to the WARC file and forced to the disk.
+     * The entry is forced to the disk before returning. The journal file of the WARC file is created with the first
+     * entry.
+     * @param warcFile The WARC file.
+     * @param collectionId The id of the collection the WARC file is uploaded to.
+     * @param prs The state of the request.
+     * @param warcFileSize The size of the WARC file after the records of the request.
+     * @throws YggdrasilException If the entry cannot be written.
+     */
+    public void append(File warcFile, String collectionId, PreservationRequestState prs, long warcFileSize)
+            throws YggdrasilException {
+        ArgumentCheck.checkNotNull(warcFile, "File warcFile");
+        ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
+        ArgumentCheck.checkNotNull(prs, "PreservationRequestState prs");
+        File journalFile = getJournalFile(warcFile);
+        boolean newJournalFile = !journalFile.exists();
+        byte[] serializedState = serialize(prs);
+        try (FileOutputStream file = new FileOutputStream(journalFile, true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            if (newJournalFile) {
+                out.writeUTF(collectionId);
+                out.writeUTF(warcFile.getAbsolutePath());
+            }
+            out.writeLong(warcFileSize);
+            out.writeInt(serializedState.length);
+            out.write(serializedState);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not journal the request '" + prs.getUUID() + "' of the WARC file '"
+                    + warcFile.getName() + "'.", e);
+        }
+        if (newJournalFile) {
+            syncJournalDir();
+        }
+    }
+
+    /**
+     * Forces the directory of the journal files to the disk, thus a new journal file is not lost with a power loss.
+     * Not all platforms support this, thus a failure is only logged.
+     */
+    private void syncJournalDir() {
+        try (FileChannel dir = FileChannel.open(journalDir.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            logger.debug("Could not force the upload journal directory '" + journalDir.getAbsolutePath() 
+                    + "' to the disk.", e);
+        }
+    }
+
+    /**
+     * Removes the journal file of a WARC file, when it no longer needs to be uploaded.
+     * @param warcFile The WARC file.
+     */
+    public void remove(File warcFile) {
+        ArgumentCheck.checkNotNull(warcFile, "File warcFile");
+        File journalFile = getJournalFile(warcFile);
+        if (journalFile.exists() && !journalFile.delete()) {
+            logger.warn("Could not remove the upload journal file '" + journalFile.getAbsolutePath() + "'.");
+        }
+    }
+
+    /**
+     * Reads the journal files. A journal file, which cannot be read, is skipped.
+     * @return The entries of the WARC files, which have not yet been uploaded.
+     */
+    public List<WarcFileEntry> getWarcFileEntries() {
+        List<WarcFileEntry> res = new ArrayList<WarcFileEntry>();
+        File[] journalFiles = journalDir.listFiles();
+        if (journalFiles == null) {
+            return res;
+        }
+        for (File journalFile : journalFiles) {
+            if (!journalFile.getName().endsWith(JOURNAL_SUFFIX)) {
+                continue;
+            }
+            try {
+                res.add(readJournalFile(journalFile));
+            } catch (IOException e) {
+                logger.warn("Could not read the upload journal file '" + journalFile.getAbsolutePath()
+                        + "'. Skipping it.", e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Reads a journal file. The entries are read until the first entry, which is cut off or garbled by a crash,
+     * e.g. a zero-filled or garbage tail; that entry and anything after it are ignored.
+     * @param journalFile The journal file.
+     * @return The entry for the WARC file.
+     * @throws IOException If the header of the journal file cannot be read.
+     */
+    private WarcFileEntry readJournalFile(File journalFile) throws IOException {
+        long journalFileSize = journalFile.length();
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+                new FileInputStream(journalFile)));
+                DataInputStream in = new DataInputStream(counter)) {
+            String collectionId = in.readUTF();
+            File warcFile = new File(in.readUTF());
+            List<PreservationRequestState> requests = new ArrayList<PreservationRequestState>();
+            List<Long> warcFileSizes = new ArrayList<Long>();
+            while (counter.getByteCount() < journalFileSize) {
+                try {
+                    long warcFileSize = in.readLong();
+                    int length = in.readInt();
+                    long remaining = journalFileSize - counter.getByteCount();
+                    if (length <= 0 || length > remaining || length > MAX_ENTRY_SIZE) {
+                        throw new IOException("Invalid entry length " + length + " with " + remaining 
+                                + " bytes left.");
+                    }
+                    byte[] serializedState = new byte[length];
+                    in.readFully(serializedState);
+                    requests.add(deserialize(serializedState));
+                    warcFileSizes.add(warcFileSize);
+                } catch (IOException | ClassNotFoundException e) {
+                    logger.warn("Ignoring the tail of the upload journal file '" + journalFile.getAbsolutePath() 
+                            + "' after " + requests.size() + " entries.", e);
+                    break;
+                }
+            }
+            return new WarcFileEntry(warcFile, collectionId, requests, warcFileSizes);
+        }
+    }
+
+    /**
+     * @param warcFile The WARC file.
+     * @return The journal file for the WARC file.
+     */
+    private File getJournalFile(File warcFile) {
+        return new File(journalDir, warcFile.getName() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @param prs The request state.
+     * @return The serialized request state.
+     * @throws YggdrasilException If the request state cannot be serialized.
+     */
+    private static byte[] serialize(PreservationRequestState prs) throws YggdrasilException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(prs);
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not serialize the request '" + prs.getUUID() + "'.", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param serializedState The serialized request state.
+     * @return The request state.
+     * @throws IOException If the request state cannot be read.
+     * @throws ClassNotFoundException If the class of the request state cannot be found.
+     */
+    private static PreservationRequestState deserialize(byte[] serializedState) throws IOException,
+            ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedState))) {
+            return (PreservationRequestState) in.readObject();
+        }
+    }
+
+    /**
+     * The journaled requests of a WARC file.
+     */
+    public static class WarcFileEntry {
+        /** The WARC file. */
+        private final File warcFile;
+        /** The id of the collection the WARC file is uploaded to. */
+        private final String collectionId;
+        /** The journaled requests, in the order of their records in the WARC file. */
+        private final List<PreservationRequestState> requests;
+        /** The size of the WARC file after the records of each request. */
+        private final List<Long> warcFileSizes;
+
+        /**
+         * Constructor.
+         * @param warcFile The WARC file.
+         * @param collectionId The id of the collection the WARC file is uploaded to.
+         * @param requests The journaled requests, in the order of their records in the WARC file.
+         * @param warcFileSizes The size of the WARC file after the records of each request.
+         */
+        WarcFileEntry(File warcFile, String collectionId, List<PreservationRequestState> requests,
+                List<Long> warcFileSizes) {
+            this.warcFile = warcFile;
+            this.collectionId = collectionId;
+            this.requests = Collections.unmodifiableList(requests);
+            this.warcFileSizes = Collections.unmodifiableList(warcFileSizes);
+        }
+
+        /**
+         * @return The WARC file.
+         */
+        public File getWarcFile() {
+            return warcFile;
+        }
+
+        /**
+         * @return The id of the collection the WARC file is uploaded to.
+         */
+        public String getCollectionId() {
+            return collectionId;
+        }
+
+        /**
+         * @return The journaled requests, in the order of their records in the WARC file.
+         */
+        public List<PreservationRequestState> getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return The size of the WARC file after the records of each request.
+         */
+        public List<Long> getWarcFileSizes() {
+            return warcFileSizes;
+        }
+    }
+}
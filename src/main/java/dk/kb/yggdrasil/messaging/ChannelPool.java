@@ -0,0 +1,235 @@
+package dk.kb.yggdrasil.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * Pool of channels on a connection to the broker, used for publishing messages.
+ *
+ * A channel must not be used for publishing by more than one thread at a time, thus a thread borrows a channel
+ * from the pool, publishes on it, and releases it back to the pool afterwards. A thread waits while the channel it
+ * borrows is borrowed by another thread.
+ *
+ * Messages, which must arrive in the order they were published, e.g. the responses for the same object, are
+ * published with the same ordering key. The ordering key always selects the same channel, since the broker only
+ * keeps the order of the messages published on the same channel.
+ *
+ * In publisher confirm mode the confirm of each published message is tracked, so the publisher can wait for the
+ * confirms of its own messages and republish only the messages, which were not confirmed.
+ */
+public class ChannelPool {
+    /** Logging mechanism. */
+    private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** The connection the channels are created on. */
+    private final Connection connection;
+    /** Whether the channels are in publisher confirm mode. */
+    private final boolean publisherConfirms;
+    /** The channels of the pool. */
+    private final Channel[] channels;
+    /** The trackers of the confirms on each of the channels, when in publisher confirm mode. */
+    private final ConfirmTracker[] trackers;
+    /** The permit for borrowing each of the channels. */
+    private final Semaphore[] permits;
+    /** The index of the channel to try first, when borrowing a channel without an ordering key. */
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    /**
+     * Constructor. Creates the channels of the pool.
+     * @param connection The connection to create the channels on.
+     * @param size The number of channels in the pool.
+     * @param publisherConfirms Whether to put the channels in publisher confirm mode.
+     * @throws IOException If a channel could not be created.
+     */
+    public ChannelPool(Connection connection, int size, boolean publisherConfirms) throws IOException {
+        ArgumentCheck.checkNotNull(connection, "Connection connection");
+        ArgumentCheck.checkPositiveInt(size, "int size");
+        this.connection = connection;
+        this.publisherConfirms = publisherConfirms;
+        this.channels = new Channel[size];
+        this.trackers = new ConfirmTracker[size];
+        this.permits = new Semaphore[size];
+        for (int i = 0; i < size; i++) {
+            createChannel(i);
+            permits[i] = new Semaphore(1);
+        }
+    }
+
+    /**
+     * Creates a new channel on the connection at the given index of the pool, in publisher confirm mode if enabled.
+     * @param index The index of the channel in the pool.
+     * @throws IOException If the channel could not be created.
+     */
+    private void createChannel(int index) throws IOException {
+        Channel channel = connection.createChannel();
+        if (publisherConfirms) {
+            channel.confirmSelect();
+            trackers[index] = new ConfirmTracker(channel);
+        }
+        channels[index] = channel;
+    }
+
+    /**
+     * Publishes a message on the channel for the ordering key, or on any channel if there is no ordering key.
+     * @param orderingKey The ordering key, e.g. the id of the object the message is about, or null.
+     * @param exchange The exchange to publish the message to.
+     * @param routingKey The routing key of the message.
+     * @param properties The properties of the message.
+     * @param message The message.
+     * @return The confirm of the message, or null if publisher confirms are not enabled.
+     * @throws IOException If the message could not be published.
+     * @throws YggdrasilException If interrupted while waiting for the channel.
+     */
+    public PublishConfirmation publish(String orderingKey, String exchange, String routingKey, 
+            AMQP.BasicProperties properties, byte[] message) throws IOException, YggdrasilException {
+        Channel channel = orderingKey == null ? borrow() : borrow(orderingKey);
+        try {
+            ConfirmTracker tracker = publisherConfirms ? trackers[indexOf(channel)] : null;
+            PublishConfirmation res = tracker == null ? null : tracker.track();
+            try {
+                channel.basicPublish(exchange, routingKey, properties, message);
+            } catch (IOException e) {
+                if (tracker != null) {
+                    tracker.untrack(res);
+                }
+                throw e;
+            }
+            return res;
+        } finally {
+            release(channel);
+        }
+    }
+
+    /**
+     * Borrows any channel from the pool. Takes the first channel, which is not borrowed, or waits for a channel to
+     * be released, if they are all borrowed.
+     * The channel must be released afterwards through {@link #release(Channel)}.
+     * @return The channel.
+     * @throws YggdrasilException If interrupted while waiting for a channel.
+     */
+    public Channel borrow() throws YggdrasilException {
+        int first = Math.floorMod(nextIndex.getAndIncrement(), channels.length);
+        for (int i = 0; i < channels.length; i++) {
+            int index = (first + i) % channels.length;
+            if (permits[index].tryAcquire()) {
+                return channels[index];
+            }
+        }
+        return borrowChannel(first);
+    }
+
+    /**
+     * Borrows the channel for the ordering key. Waits until the channel is released, if it is borrowed.
+     * The channel must be released afterwards through {@link #release(Channel)}.
+     * @param orderingKey The ordering key, e.g. the id of the object the message is about.
+     * @return The channel.
+     * @throws YggdrasilException If interrupted while waiting for the channel.
+     */
+    public Channel borrow(String orderingKey) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(orderingKey, "String orderingKey");
+        return borrowChannel(Math.floorMod(orderingKey.hashCode(), channels.length));
+    }
+
+    /**
+     * Borrows the channel at the given index. Waits until the channel is released, if it is borrowed.
+     * @param index The index of the channel.
+     * @return The channel.
+     * @throws YggdrasilException If interrupted while waiting for the channel.
+     */
+    private Channel borrowChannel(int index) throws YggdrasilException {
+        try {
+            permits[index].acquire();
+        } catch (InterruptedException e) {
+            throw new YggdrasilException("Interrupted while waiting for a channel to publish on.", e);
+        }
+        return channels[index];
+    }
+
+    /**
+     * Releases a borrowed channel back to the pool.
+     * If the channel has been closed, e.g. due to a channel error, then it is replaced by a new channel.
+     * @param channel The borrowed channel.
+     */
+    public void release(Channel channel) {
+        ArgumentCheck.checkNotNull(channel, "Channel channel");
+        int index = indexOf(channel);
+        if (!channel.isOpen() && connection.isOpen()) {
+            try {
+                createChannel(index);
+            } catch (IOException e) {
+                logger.warn("Could not replace a closed channel. Keeping the closed channel in the pool.", e);
+            }
+        }
+        permits[index].release();
+    }
+
+    /**
+     * @param channel A channel of the pool.
+     * @return The index of the channel in the pool.
+     */
+    private int indexOf(Channel channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("The channel does not belong to the pool.");
+    }
+
+    /**
+     * Waits for the broker to confirm all the messages published so far on the channels of the pool.
+     * Each channel is borrowed in turn while waiting for its confirms.
+     * @param timeoutInMillis The maximum time to wait for the confirms of each channel.
+     * @throws YggdrasilException If the broker rejected any of the messages, or did not confirm them in time.
+     */
+    public void waitForConfirms(long timeoutInMillis) throws YggdrasilException {
+        if (!publisherConfirms) {
+            throw new YggdrasilException("Publisher confirms have not been enabled.");
+        }
+        for (int i = 0; i < channels.length; i++) {
+            Channel channel = borrowChannel(i);
+            try {
+                if (!channel.waitForConfirms(timeoutInMillis)) {
+                    throw new YggdrasilException("The broker rejected some of the published messages");
+                }
+            } catch (InterruptedException e) {
+                throw new YggdrasilException("Interrupted while waiting for the broker to confirm the messages", e);
+            } catch (TimeoutException e) {
+                throw new YggdrasilException("The broker did not confirm the published messages within "
+                        + timeoutInMillis + " ms", e);
+            } finally {
+                release(channel);
+            }
+        }
+    }
+
+    /**
+     * Closes the channels, which are not currently borrowed.
+     */
+    public void close() {
+        for (int i = 0; i < channels.length; i++) {
+            if (!permits[i].tryAcquire()) {
+                continue;
+            }
+            try {
+                if (channels[i].isOpen()) {
+                    channels[i].close();
+                }
+            } catch (IOException e) {
+                logger.debug("Ignoring exception while closing a publisher channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package dk.kb.yggdrasil.messaging;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * Keeps track of the publisher confirms of the messages published on a channel in publisher confirm mode, so the
+ * confirm of each message can be awaited on its own.
+ * The messages are identified by their publish sequence numbers on the channel.
+ */
+class ConfirmTracker implements ConfirmListener, ShutdownListener {
+    /** The channel, whose confirms are tracked. */
+    private final Channel channel;
+    /** The sequence numbers of the messages, which the broker has not yet confirmed or rejected. */
+    private final SortedSet<Long> outstanding = new TreeSet<Long>();
+    /** The sequence numbers of the messages, which the broker has rejected. */
+    private final Set<Long> rejected = new HashSet<Long>();
+
+    /**
+     * Constructor. Registers the tracker as listener on the channel.
+     * @param channel The channel in publisher confirm mode.
+     */
+    ConfirmTracker(Channel channel) {
+        ArgumentCheck.checkNotNull(channel, "Channel channel");
+        this.channel = channel;
+        channel.addConfirmListener(this);
+        channel.addShutdownListener(this);
+    }
+
+    /**
+     * Starts tracking the next message published on the channel.
+     * Must be called by the thread, which has borrowed the channel, right before it publishes the message.
+     * @return The confirm of the message.
+     */
+    PublishConfirmation track() {
+        long sequenceNumber = channel.getNextPublishSeqNo();
+        synchronized (this) {
+            outstanding.add(sequenceNumber);
+        }
+        return new PublishConfirmation(this, sequenceNumber);
+    }
+
+    /**
+     * Stops tracking a message, which could not be published.
+     * @param confirmation The confirm of the message.
+     */
+    synchronized void untrack(PublishConfirmation confirmation) {
+        outstanding.remove(confirmation.getSequenceNumber());
+    }
+
+    /**
+     * Waits for the broker to confirm the message with the given sequence number.
+     * @param sequenceNumber The sequence number of the message.
+     * @param timeoutInMillis The maximum time to wait.
+     * @return Whether the broker confirmed the message. False, if the broker rejected the message, if it was not
+     * confirmed in time, or if the channel was closed before the message was confirmed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized boolean await(long sequenceNumber, long timeoutInMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        while (outstanding.contains(sequenceNumber)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !channel.isOpen()) {
+                outstanding.remove(sequenceNumber);
+                return false;
+            }
+            wait(remaining);
+        }
+        return !rejected.remove(sequenceNumber);
+    }
+
+    @Override
+    public synchronized void handleAck(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, false);
+    }
+
+    @Override
+    public synchronized void handleNack(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, true);
+    }
+
+    @Override
+    public synchronized void shutdownCompleted(ShutdownSignalException cause) {
+        notifyAll();
+    }
+
+    /**
+     * Marks the messages as confirmed or rejected by the broker, and wakes up the threads waiting for them.
+     * @param deliveryTag The sequence number of the message.
+     * @param multiple Whether all the messages up to and including the sequence number are confirmed.
+     * @param isRejected Whether the broker rejected the messages.
+     */
+    private void confirm(long deliveryTag, boolean multiple, boolean isRejected) {
+        if (multiple) {
+            SortedSet<Long> confirmed = outstanding.headSet(deliveryTag + 1);
+            if (isRejected) {
+                rejected.addAll(confirmed);
+            }
+            confirmed.clear();
+        } else if (outstanding.remove(deliveryTag) && isRejected) {
+            rejected.add(deliveryTag);
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,62 @@
+package dk.kb.yggdrasil.messaging;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.rabbitmq.client.Channel;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * Keeps track of the messages delivered on a channel, which have not yet been acknowledged.
+ *
+ * The messages may be handled in a different order than they were delivered. Each message is acknowledged on its
+ * own as soon as it has been handled, thus a slow request does not hold back the acknowledgements of the requests
+ * delivered after it, which would otherwise keep the broker from delivering more messages within the prefetch.
+ */
+public class DeliveryAcknowledger {
+    /** The channel, which the messages were delivered on. */
+    private final Channel channel;
+    /** The delivery tags of the messages, which have been delivered but not yet handled. */
+    private final Set<Long> pending = new HashSet<Long>();
+
+    /**
+     * Constructor.
+     * @param channel The channel, which the messages are delivered on.
+     */
+    public DeliveryAcknowledger(Channel channel) {
+        ArgumentCheck.checkNotNull(channel, "Channel channel");
+        this.channel = channel;
+    }
+
+    /**
+     * Registers that a message has been delivered.
+     * @param deliveryTag The delivery tag of the message.
+     */
+    public synchronized void delivered(long deliveryTag) {
+        pending.add(deliveryTag);
+    }
+
+    /**
+     * Registers that a message has been handled, and acknowledges it.
+     * @param deliveryTag The delivery tag of the handled message.
+     * @throws IOException If the acknowledgement could not be sent to the broker.
+     */
+    public synchronized void handled(long deliveryTag) throws IOException {
+        if (!pending.remove(deliveryTag)) {
+            return;
+        }
+        boolean acknowledgeMultipleMessages = false;
+        synchronized (channel) {
+            channel.basicAck(deliveryTag, acknowledgeMultipleMessages);
+        }
+    }
+
+    /**
+     * @return The number of messages, which have been delivered but not yet acknowledged.
+     */
+    public synchronized int getUnacknowledgedCount() {
+        return pending.size();
+    }
+}
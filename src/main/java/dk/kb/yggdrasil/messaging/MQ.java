@@ -5,11 +5,12 @@ import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,7 @@ import com.rabbitmq.client.ConsumerCancelledException;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 
+import dk.kb.yggdrasil.config.ConsumerGroupSettings;
 import dk.kb.yggdrasil.config.RabbitMqSettings;
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.RabbitException;
@@ -47,10 +49,20 @@ public class MQ implements AutoCloseable {
     /** List of existing consumers in use by this class identified by consumertags. */
     protected Set<String> existingConsumerTags;
 
-    /** channel to the broker. Is one channel enough? */
+    /** The connection to the broker. */
+    protected Connection connection;
+    /** Channel to the broker for configuring and purging the queues. 
+     * The consumers and publishers have their own channels, since channels must not be shared between threads. */
     protected Channel theChannel;
+    /** The channels for consuming messages, one for each queue. The key is the queueName. */
+    protected Map<String, Channel> consumerChannels;
+    /** The pool of channels for publishing messages. */
+    protected ChannelPool publisherChannels;
     /** The settings used to create the broker configurations. */
     protected RabbitMqSettings settings;
+    /** Keeps track of the messages, which must be acknowledged after they have been handled. 
+     * The key is the queueName, since the delivery tags are specific to the channel of the queue. */
+    protected Map<String, DeliveryAcknowledger> acknowledgers;
 
     /** Default exchangename to be used by all queues. */
     protected String exchangeName = "exchange"; //TODO should this be a parameter in the settings?
@@ -82,19 +94,25 @@ public class MQ implements AutoCloseable {
      * @throws RabbitException When message queue connection fails.
      */
     public MQ(RabbitMqSettings settings) throws YggdrasilException, RabbitException {
-        this.existingConsumerTags = new HashSet<String>();
-        this.existingConsumers = new HashMap<String, QueueingConsumer>();
+        this.existingConsumerTags = Collections.synchronizedSet(new HashSet<String>());
+        this.existingConsumers = new ConcurrentHashMap<String, QueueingConsumer>();
+        this.consumerChannels = new ConcurrentHashMap<String, Channel>();
+        this.acknowledgers = new ConcurrentHashMap<String, DeliveryAcknowledger>();
         this.settings = settings;
         ConnectionFactory factory = new ConnectionFactory();
-        Connection conn = null;
         try {
             factory.setUri(settings.getBrokerUri());
-            conn = factory.newConnection();
-            logger.info("Connecting to RabbitMQ on server: " + conn.getAddress().getCanonicalHostName());
-            theChannel = conn.createChannel();
+            connection = factory.newConnection();
+            logger.info("Connecting to RabbitMQ on server: " + connection.getAddress().getCanonicalHostName());
+            theChannel = connection.createChannel();
+            publisherChannels = new ChannelPool(connection, settings.getPublisherChannels(), 
+                    settings.isPublisherConfirms());
             configureChannel(settings.getPreservationDestination());
             configureChannel(settings.getPreservationResponseDestination());
             configureChannel(settings.getShutdownDestination());
+            for (ConsumerGroupSettings consumerGroup : settings.getConsumerGroups()) {
+                configureChannel(consumerGroup.getDestination());
+            }
         } catch (KeyManagementException e1) {
             throw new YggdrasilException("Error connecting to Broker at '"
                     + settings.getBrokerUri() + "' : ", e1);
@@ -111,18 +129,23 @@ public class MQ implements AutoCloseable {
     }
 
     /**
-     * Close channel to broker, and cancel the associated consumers.
+     * Close the channels and the connection to broker, and cancel the associated consumers.
      * @throws IOException If it fails to close the connection.
      */
     public void close() throws IOException {
-        if (theChannel != null && theChannel.isOpen()) {
-            // close existing consumers before closing the channel its connection.
-            for (String tag: existingConsumerTags) {
-                theChannel.basicCancel(tag);
+        if (connection != null && connection.isOpen()) {
+            // close existing consumers before closing the channels and their connection.
+            for (Map.Entry<String, QueueingConsumer> consumer : existingConsumers.entrySet()) {
+                Channel channel = consumerChannels.get(consumer.getKey());
+                if (channel.isOpen()) {
+                    channel.basicCancel(consumer.getValue().getConsumerTag());
+                }
+            }
+            publisherChannels.close();
+            if (theChannel.isOpen()) {
+                theChannel.close();
             }
-            Connection conn = theChannel.getConnection();
-            theChannel.close();
-            conn.close();
+            connection.close();
         }
     }
 
@@ -167,6 +190,22 @@ public class MQ implements AutoCloseable {
      * @throws YggdrasilException If Unable to publish message to the queue.
      */
     public void publishOnQueue(String queueName, byte[] message, String messageType) throws YggdrasilException {
+        publishOnQueue(queueName, message, messageType, null);
+    }
+
+    /**
+     * Publish a message on the given queue, in order with the other messages published with the same ordering key.
+     * @param queueName A given MQ queue.
+     * @param message The message to be published on the queue.
+     * @param messageType The Type of the message
+     * @param orderingKey The ordering key, e.g. the id of the object the message is about. If null, then the
+     * message is not ordered with any other messages.
+     * @return The confirm of the message, or null if publisher confirms are not enabled.
+     * @throws YggdrasilException If Unable to publish message to the queue.
+     */
+    public PublishConfirmation publishOnQueue(String queueName, byte[] message, String messageType, 
+            String orderingKey) 
+            throws YggdrasilException {
         try {
             String routingKey = queueName;
             AMQP.BasicProperties messageProps = MQ.getMQProperties();
@@ -174,50 +213,93 @@ public class MQ implements AutoCloseable {
             messageProps.setTimestamp(new Date());
             logger.debug("Publishing message on a queue: {} at {}\n {}", queueName, settings.getBrokerUri(), 
                     new String(message, Charset.defaultCharset()));
-            theChannel.basicPublish(exchangeName, routingKey, messageProps, message);
+            // Channels must not be shared between threads, when publishing.
+            return publisherChannels.publish(orderingKey, exchangeName, routingKey, messageProps, message);
         } catch (IOException e) {
             throw new YggdrasilException("Unable to publish message to queue '"
                     + queueName + "'", e);
         }
     }
 
+    /**
+     * Waits for the broker to confirm all the messages published so far.
+     * Requires that publisher confirms have been enabled in the settings.
+     * @param timeoutInMillis The maximum time to wait for the confirms.
+     * @throws YggdrasilException If the broker rejected any of the messages, or did not confirm them in time.
+     */
+    public void waitForConfirms(long timeoutInMillis) throws YggdrasilException {
+        if (!settings.isPublisherConfirms()) {
+            throw new YggdrasilException("Publisher confirms have not been enabled.");
+        }
+        publisherChannels.waitForConfirms(timeoutInMillis);
+    }
+
     /**
      * Receive message from a given queue. If no message is waiting on the queue, this message will
      * wait until a message arrives on the queue.
+     * If the messages are to be acknowledged after they have been handled, then the message is not acknowledged
+     * here, but must be acknowledged through {@link #acknowledgeMessage(MqResponse)} afterwards.
      * @param queueName The name of the queue.
      * @return the messageType and bytes delivered in the message when a message is received.
      * @throws YggdrasilException If it fails.
      * @throws RabbitException When message queue connection fails.
      */
     public MqResponse receiveMessageFromQueue(String queueName) throws YggdrasilException, RabbitException {
+        return receiveMessageFromQueue(queueName, null);
+    }
+
+    /**
+     * Receive message from a given queue, waiting at most the given time for a message to arrive on the queue.
+     * @param queueName The name of the queue.
+     * @param timeoutInMillis The maximum time to wait for a message.
+     * @return the messageType and bytes delivered in the message, or null if no message arrived in time.
+     * @throws YggdrasilException If it fails.
+     * @throws RabbitException When message queue connection fails.
+     * @see #receiveMessageFromQueue(String)
+     */
+    public MqResponse receiveMessageFromQueue(String queueName, long timeoutInMillis) throws YggdrasilException, 
+            RabbitException {
+        return receiveMessageFromQueue(queueName, Long.valueOf(timeoutInMillis));
+    }
+
+    /**
+     * Receive message from a given queue.
+     * @param queueName The name of the queue.
+     * @param timeoutInMillis The maximum time to wait for a message, or null to wait until a message arrives.
+     * @return the messageType and bytes delivered in the message, or null if no message arrived in time.
+     * @throws YggdrasilException If it fails.
+     * @throws RabbitException When message queue connection fails.
+     */
+    private MqResponse receiveMessageFromQueue(String queueName, Long timeoutInMillis) throws YggdrasilException, 
+            RabbitException {
         ArgumentCheck.checkNotNullOrEmpty(queueName, "String queueName");
-        QueueingConsumer consumer = null;
-        String consumerTag = null;
-        if (existingConsumers.containsKey(queueName)) {
-            consumer = existingConsumers.get(queueName);
-        } else {
-            consumer = new QueueingConsumer(theChannel);
-            try {
-                consumerTag = theChannel.basicConsume(queueName, consumer);
-                existingConsumers.put(queueName, consumer);
-                existingConsumerTags.add(consumerTag);
-            } catch (IOException e) {
-                throw new YggdrasilException("Unable to attach to queue '"
-                        + queueName + "'", e);
-            }
-        }
+        QueueingConsumer consumer = getConsumer(queueName);
         byte[] payload = null;
         String messageType = null;
+        Long deliveryTag = null;
         try {
-            QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+            QueueingConsumer.Delivery delivery;
+            if (timeoutInMillis == null) {
+                delivery = consumer.nextDelivery();
+            } else {
+                delivery = consumer.nextDelivery(timeoutInMillis);
+                if (delivery == null) {
+                    return null;
+                }
+            }
             messageType = delivery.getProperties().getType();
             Date sentDate = delivery.getProperties().getTimestamp();
             logger.info("received message of type '" + messageType 
                     + "' with timestamp '" + sentDate + "'");
             payload = delivery.getBody();
-            boolean acknowledgeMultipleMessages = false;
-            theChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), 
-                    acknowledgeMultipleMessages);
+            if (settings.isAcknowledgeAfterHandling()) {
+                deliveryTag = delivery.getEnvelope().getDeliveryTag();
+                acknowledgers.get(queueName).delivered(deliveryTag);
+            } else {
+                boolean acknowledgeMultipleMessages = false;
+                consumer.getChannel().basicAck(delivery.getEnvelope().getDeliveryTag(), 
+                        acknowledgeMultipleMessages);
+            }
         } catch (IOException e) {
             throw new YggdrasilException("Unable to receive message from queue '"
                     + queueName + "'", e);
@@ -232,7 +314,62 @@ public class MQ implements AutoCloseable {
                     + queueName + "'", e);
         }
 
-        return new MqResponse(messageType, payload);
+        return new MqResponse(messageType, payload, deliveryTag == null ? null : queueName, deliveryTag);
+    }
+
+    /**
+     * Retrieves the consumer for the given queue. If the queue has no consumer yet, then a new channel is created 
+     * for the queue and a consumer is attached to the queue on that channel.
+     * @param queueName The name of the queue.
+     * @return The consumer of the queue.
+     * @throws YggdrasilException If unable to attach to the queue.
+     */
+    private synchronized QueueingConsumer getConsumer(String queueName) throws YggdrasilException {
+        QueueingConsumer consumer = existingConsumers.get(queueName);
+        if (consumer != null) {
+            return consumer;
+        }
+        try {
+            Channel channel = connection.createChannel();
+            if (settings.getPrefetchCount() > 0) {
+                channel.basicQos(settings.getPrefetchCount());
+            }
+            consumer = new QueueingConsumer(channel);
+            String consumerTag = channel.basicConsume(queueName, consumer);
+            consumerChannels.put(queueName, channel);
+            acknowledgers.put(queueName, new DeliveryAcknowledger(channel));
+            existingConsumers.put(queueName, consumer);
+            existingConsumerTags.add(consumerTag);
+        } catch (IOException e) {
+            throw new YggdrasilException("Unable to attach to queue '"
+                    + queueName + "'", e);
+        }
+        return consumer;
+    }
+
+    /**
+     * Acknowledges a received message, which has been handled.
+     * Messages, which were acknowledged when they were received, are ignored.
+     * @param message The handled message.
+     * @throws YggdrasilException If unable to send the acknowledgement to the broker.
+     */
+    public void acknowledgeMessage(MqResponse message) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(message, "MqResponse message");
+        if (!message.isAcknowledgementRequired()) {
+            return;
+        }
+        DeliveryAcknowledger acknowledger = acknowledgers.get(message.getQueueName());
+        if (acknowledger == null) {
+            throw new YggdrasilException("Unable to acknowledge message with delivery tag '" 
+                    + message.getDeliveryTag() + "', since no consumer exists for the queue '" 
+                    + message.getQueueName() + "'");
+        }
+        try {
+            acknowledger.handled(message.getDeliveryTag());
+        } catch (IOException e) {
+            throw new YggdrasilException("Unable to acknowledge message with delivery tag '" 
+                    + message.getDeliveryTag() + "'", e);
+        }
     }
     
     /**
@@ -250,24 +387,29 @@ public class MQ implements AutoCloseable {
     
     /**
      * Publishes a preservation response message.
+     * The responses for the same object are published in order, on the same channel.
      * @param response The preservation response message.
+     * @return The confirm of the message, or null if publisher confirms are not enabled.
      * @throws YggdrasilException If unable to publish the preservation response on the message queue.
      */
-    public void publishPreservationResponse(PreservationResponse response) throws YggdrasilException {
+    public PublishConfirmation publishPreservationResponse(PreservationResponse response) throws YggdrasilException {
         byte[] responseBytes = JSONMessaging.getPreservationResponse(response);
-        publishOnQueue(settings.getPreservationResponseDestination(), responseBytes, 
-                MQ.PRESERVATIONRESPONSE_MESSAGE_TYPE);
+        return publishOnQueue(settings.getPreservationResponseDestination(), responseBytes, 
+                MQ.PRESERVATIONRESPONSE_MESSAGE_TYPE, response.id);
     }
 
     /**
      * Publishes a preservation response message.
+     * The responses for the same import are published in order, on the same channel.
      * @param response The preservation response message.
+     * @return The confirm of the message, or null if publisher confirms are not enabled.
      * @throws YggdrasilException If unable to publish the preservation response on the message queue.
      */
-    public void publishPreservationImportResponse(PreservationImportResponse response) throws YggdrasilException {
+    public PublishConfirmation publishPreservationImportResponse(PreservationImportResponse response) 
+            throws YggdrasilException {
         byte[] responseBytes = JSONMessaging.getPreservationImportResponse(response);
-        publishOnQueue(settings.getPreservationResponseDestination(), responseBytes, 
-                MQ.IMPORTRESPONSE_MESSAGE_TYPE);
+        return publishOnQueue(settings.getPreservationResponseDestination(), responseBytes, 
+                MQ.IMPORTRESPONSE_MESSAGE_TYPE, response.uuid);
     }
     
     /**
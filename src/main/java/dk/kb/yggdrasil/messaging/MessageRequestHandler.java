@@ -16,6 +16,24 @@ public abstract class MessageRequestHandler<T> {
      * @throws YggdrasilException If something goes wrong.
      */
     public abstract void handleRequest(T request) throws YggdrasilException;
+
+    /**
+     * Handles the request, and runs the given callback when the handling has finished, whether or not it 
+     * succeeded. The callback is run exactly once. By default the request is handled before returning, but a 
+     * handler may finish the handling in the background, and run the callback after returning.
+     * @param request The request of the type for this message request handler.
+     * @param onCompletion The callback to run, when the handling has finished. May be null.
+     * @throws YggdrasilException If something goes wrong.
+     */
+    public void handleRequest(T request, Runnable onCompletion) throws YggdrasilException {
+        try {
+            handleRequest(request);
+        } finally {
+            if (onCompletion != null) {
+                onCompletion.run();
+            }
+        }
+    }
     
     /**
      * Extract the request from a byte array.
@@ -23,5 +41,21 @@ public abstract class MessageRequestHandler<T> {
      * @return The request.
      * @throws YggdrasilException If the request cannot be extracted.
      */
-    public abstract T extractRequest(byte[] b) throws YggdrasilException; 
+    public abstract T extractRequest(byte[] b) throws YggdrasilException;
+
+    /**
+     * Requests with the same ordering key are handled one at a time, in the order they were received.
+     * Requests without an ordering key can be handled in parallel with any other request.
+     * @param request The request.
+     * @return The ordering key for the request, or null if the request has no ordering requirements.
+     */
+    public String getOrderingKey(T request) {
+        return null;
+    }
+
+    /**
+     * Shuts down the handler, and waits for any requests still being handled in the background to finish.
+     */
+    public void shutdown() {
+    }
 }
@@ -6,28 +6,68 @@ public class MqResponse {
     private String messageType;
     /** The payload of the message. */
     private byte[] payload;
+    /** The queue the message was received from, if it must be acknowledged after it has been handled. */
+    private String queueName;
+    /** The delivery tag of the message, if it must be acknowledged after it has been handled. Otherwise null. */
+    private Long deliveryTag;
 
     /**
-     * Constructor.
+     * Constructor for a message, which has already been acknowledged.
      * @param messageType The type of the message (can be null)
      * @param payload The payload of the message (can be null)
      */
     public MqResponse(String messageType, byte[] payload) {
+        this(messageType, payload, null, null);
+    }
+
+    /**
+     * Constructor.
+     * @param messageType The type of the message (can be null)
+     * @param payload The payload of the message (can be null)
+     * @param queueName The queue the message was received from. The delivery tags are only unique per queue, 
+     * since each queue is consumed on its own channel.
+     * @param deliveryTag The delivery tag of the message, if it must be acknowledged after it has been handled.
+     * Otherwise null.
+     */
+    public MqResponse(String messageType, byte[] payload, String queueName, Long deliveryTag) {
         this.messageType = messageType;
         this.payload = payload.clone();
+        this.queueName = queueName;
+        this.deliveryTag = deliveryTag;
     }
-    
-    /** 
+
+    /**
      * @return the payload
      */
     public byte[] getPayload() {
         return payload.clone();
     }
-    
+
     /**
      * @return the messageType.
      */
     public String getMessageType(){
         return messageType;
     }
+
+    /**
+     * @return The queue the message was received from, or null if the message has already been acknowledged.
+     */
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * @return The delivery tag of the message, or null if the message has already been acknowledged.
+     */
+    public Long getDeliveryTag() {
+        return deliveryTag;
+    }
+
+    /**
+     * @return Whether the message must be acknowledged, when it has been handled.
+     */
+    public boolean isAcknowledgementRequired() {
+        return deliveryTag != null;
+    }
 }
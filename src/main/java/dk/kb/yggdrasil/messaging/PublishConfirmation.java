@@ -0,0 +1,40 @@
+package dk.kb.yggdrasil.messaging;
+
+/**
+ * The publisher confirm of a single published message, which can be awaited independently of the confirms of the
+ * other messages published on the same channel.
+ */
+public class PublishConfirmation {
+    /** The tracker of the confirms on the channel, the message was published on. */
+    private final ConfirmTracker tracker;
+    /** The publish sequence number of the message on the channel. */
+    private final long sequenceNumber;
+
+    /**
+     * Constructor.
+     * @param tracker The tracker of the confirms on the channel, the message was published on.
+     * @param sequenceNumber The publish sequence number of the message on the channel.
+     */
+    PublishConfirmation(ConfirmTracker tracker, long sequenceNumber) {
+        this.tracker = tracker;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * @return The publish sequence number of the message on the channel.
+     */
+    long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Waits for the broker to confirm the message.
+     * @param timeoutInMillis The maximum time to wait.
+     * @return Whether the broker confirmed the message. False, if the broker rejected the message, if it was not
+     * confirmed in time, or if the channel was closed before the message was confirmed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean await(long timeoutInMillis) throws InterruptedException {
+        return tracker.await(sequenceNumber, timeoutInMillis);
+    }
+}
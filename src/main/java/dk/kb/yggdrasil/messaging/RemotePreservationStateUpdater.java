@@ -25,13 +25,26 @@ public class RemotePreservationStateUpdater {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     /** The RabbitMQ connection used by this workflow. */
     private final MQ mq;
+    /** The publisher for sending the updates asynchronously. If null, then the updates are sent directly. */
+    private final ResponsePublisher publisher;
 
     /**
-     * Constructor.
+     * Constructor, for sending the updates directly.
      * @param mq The MQ for sending updates.
      */
     public RemotePreservationStateUpdater(MQ mq) {
+        this(mq, null);
+    }
+
+    /**
+     * Constructor.
+     * @param mq The MQ for sending updates.
+     * @param publisher The publisher for sending the updates asynchronously. If null, then the updates are sent
+     * directly on the MQ.
+     */
+    public RemotePreservationStateUpdater(MQ mq, ResponsePublisher publisher) {
         this.mq = mq;
+        this.publisher = publisher;
     }
 
     /**
@@ -105,7 +118,11 @@ public class RemotePreservationStateUpdater {
             response.update = prs.getUpdatePreservation();
         }
         
-        mq.publishPreservationResponse(response);
+        if (publisher != null) {
+            publisher.publishPreservationResponse(response);
+        } else {
+            mq.publishPreservationResponse(response);
+        }
     }
     
     /**
@@ -138,6 +155,10 @@ public class RemotePreservationStateUpdater {
         response.type = prs.getRequest().type;
         response.response = preservationImportResponse;
         
-        mq.publishPreservationImportResponse(response);
+        if (publisher != null) {
+            publisher.publishPreservationImportResponse(response);
+        } else {
+            mq.publishPreservationImportResponse(response);
+        }
     }
 }
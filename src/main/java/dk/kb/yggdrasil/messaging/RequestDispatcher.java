@@ -0,0 +1,171 @@
+package dk.kb.yggdrasil.messaging;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.utils.ThreadMode;
+
+/**
+ * Dispatches received requests to their message request handlers on a pool of worker threads.
+ *
+ * Requests with the same ordering key (e.g. the object of a preservation request) are handled one at a time
+ * in the order they were dispatched, whereas requests with different ordering keys, or no ordering key at all,
+ * are handled in parallel.
+ *
+ * The number of dispatched requests, which have not yet been handled, is bounded. When the bound is reached,
+ * {@link #dispatch(MessageRequestHandler, Object)} blocks until a request has been handled, thus no more messages
+ * are taken from the queue than the workers are able to handle.
+ */
+public class RequestDispatcher {
+    /** Logging mechanism. */
+    private static Logger logger = LoggerFactory.getLogger(RequestDispatcher.class.getName());
+
+    /** The maximum time to wait for the outstanding requests during shutdown: 1 hour. */
+    private static final long SHUTDOWN_TIMEOUT_IN_MINUTES = 60L;
+
+    /** The worker threads handling the requests. */
+    private final ExecutorService workers;
+    /** Bounds the number of dispatched requests, which have not yet been handled. */
+    private final Semaphore capacity;
+    /** The queues of requests waiting for an earlier request with the same ordering key. */
+    private final Map<String, Queue<Runnable>> orderedRequests = new HashMap<String, Queue<Runnable>>();
+
+    /**
+     * Constructor.
+     * @param name The name of the dispatcher, used for naming the worker threads.
+     * @param numberOfThreads The number of worker threads.
+     * @param maxOutstandingRequests The maximum number of dispatched requests, which have not yet been handled.
+     */
+    public RequestDispatcher(String name, int numberOfThreads, int maxOutstandingRequests) {
+        this(ThreadMode.PLATFORM.newWorkerPool(name, numberOfThreads), maxOutstandingRequests);
+    }
+
+    /**
+     * Constructor.
+     * @param workers The worker threads, which will handle the requests.
+     * @param maxOutstandingRequests The maximum number of dispatched requests, which have not yet been handled.
+     */
+    public RequestDispatcher(ExecutorService workers, int maxOutstandingRequests) {
+        ArgumentCheck.checkNotNull(workers, "ExecutorService workers");
+        ArgumentCheck.checkPositiveInt(maxOutstandingRequests, "int maxOutstandingRequests");
+        this.workers = workers;
+        this.capacity = new Semaphore(maxOutstandingRequests);
+    }
+
+    /**
+     * Dispatches the request to the given handler.
+     * Blocks while the maximum number of outstanding requests has been reached.
+     * @param <T> The class of the request.
+     * @param handler The handler for the request.
+     * @param request The request.
+     * @throws YggdrasilException If interrupted while waiting for an outstanding request to be handled.
+     */
+    public <T> void dispatch(MessageRequestHandler<T> handler, T request) throws YggdrasilException {
+        dispatch(handler, request, null);
+    }
+
+    /**
+     * Dispatches the request to the given handler, and runs the given callback when the request has been handled, 
+     * whether or not the handling succeeded.
+     * The callback is handed to the handler, thus a handler finishing the handling in the background runs the 
+     * callback when it has finished, which may be after the worker thread has been released.
+     * Blocks while the maximum number of outstanding requests has been reached.
+     * @param <T> The class of the request.
+     * @param handler The handler for the request.
+     * @param request The request.
+     * @param onCompletion The callback to run after the request has been handled. May be null.
+     * @throws YggdrasilException If interrupted while waiting for an outstanding request to be handled.
+     */
+    public <T> void dispatch(final MessageRequestHandler<T> handler, final T request, final Runnable onCompletion) 
+            throws YggdrasilException {
+        ArgumentCheck.checkNotNull(handler, "MessageRequestHandler<T> handler");
+        ArgumentCheck.checkNotNull(request, "T request");
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            throw new YggdrasilException("Interrupted while waiting for dispatching the request.", e);
+        }
+
+        final String orderingKey = handler.getOrderingKey(request);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.handleRequest(request, onCompletion);
+                } catch (YggdrasilException e) {
+                    logger.error("Caught exception while handling request. Skipping request.", e);
+                } catch (RuntimeException e) {
+                    logger.error("Caught unexpected exception while handling request. Skipping request.", e);
+                } finally {
+                    capacity.release();
+                    if (orderingKey != null) {
+                        submitNext(orderingKey);
+                    }
+                }
+            }
+        };
+
+        if (orderingKey == null) {
+            workers.execute(task);
+            return;
+        }
+        synchronized (orderedRequests) {
+            Queue<Runnable> queue = orderedRequests.get(orderingKey);
+            if (queue != null) {
+                queue.add(task);
+                return;
+            }
+            orderedRequests.put(orderingKey, new ArrayDeque<Runnable>());
+        }
+        workers.execute(task);
+    }
+
+    /**
+     * Submits the next waiting request for the given ordering key, if any.
+     * @param orderingKey The ordering key of the request, which has just been handled.
+     */
+    private void submitNext(String orderingKey) {
+        Runnable next;
+        synchronized (orderedRequests) {
+            Queue<Runnable> queue = orderedRequests.get(orderingKey);
+            next = queue.poll();
+            if (next == null) {
+                orderedRequests.remove(orderingKey);
+                orderedRequests.notifyAll();
+                return;
+            }
+        }
+        workers.execute(next);
+    }
+
+    /**
+     * Shuts down the dispatcher, and waits for the outstanding requests to be handled.
+     */
+    public void shutdown() {
+        try {
+            // Wait for all the outstanding requests, including those waiting for their ordering key, to finish.
+            synchronized (orderedRequests) {
+                while (!orderedRequests.isEmpty()) {
+                    orderedRequests.wait(TimeUnit.SECONDS.toMillis(1));
+                }
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_IN_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn("Outstanding requests were not handled within " + SHUTDOWN_TIMEOUT_IN_MINUTES
+                        + " minutes.");
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the outstanding requests to be handled.", e);
+        }
+    }
+}
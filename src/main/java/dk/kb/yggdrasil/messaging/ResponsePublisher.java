@@ -0,0 +1,365 @@
+package dk.kb.yggdrasil.messaging;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.json.preservation.PreservationResponse;
+import dk.kb.yggdrasil.json.preservationimport.PreservationImportResponse;
+import dk.kb.yggdrasil.preservation.PreservationState;
+
+/**
+ * Publishes the responses asynchronously, so the handling of the requests does not wait for the broker.
+ *
+ * The responses are put on a bounded outbound queue, and a background thread publishes them in batches, in the
+ * order they were queued. If publisher confirms are enabled, then the thread waits for the broker to confirm each
+ * response of the batch.
+ *
+ * The responses, which could not be published or were not confirmed, are published again after a delay, along
+ * with the later responses of the batch for the same object, even if these were confirmed. Thus the latest state
+ * of an object is always the last one sent. The responses for other objects, which were confirmed, are not sent
+ * again. A response confirmed by the broker only after the timeout is still sent twice.
+ * Meanwhile the outbound queue fills up and blocks the handlers of the requests. The responses are given up after
+ * a limited number of attempts, or when the publisher is closed and the remaining responses cannot be published
+ * within the close timeout.
+ *
+ * Optionally the intermediate states for the same Valhal object within a batch are coalesced, so only the latest
+ * state is sent. Failure states and the final state are always sent.
+ */
+public class ResponsePublisher implements AutoCloseable {
+    /** Logging mechanism. */
+    private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** The maximum time to wait for the broker to confirm a batch: 1 minute. */
+    private static final long CONFIRM_TIMEOUT_IN_MILLIS = 60000L;
+    /** The time to wait before publishing the responses again, which were not published: 10 seconds. */
+    private static final long RETRY_DELAY_IN_MILLIS = 10000L;
+    /** The time to wait for a response on the outbound queue, before checking whether the publisher is closed. */
+    private static final long POLL_INTERVAL_IN_MILLIS = 500L;
+    /** The maximum number of attempts to publish a response, before it is given up. */
+    private static final int MAX_PUBLISH_ATTEMPTS = 30;
+    /** The maximum time to wait for the queued responses to be published, when closing: 1 minute. */
+    private static final long CLOSE_TIMEOUT_IN_MILLIS = 60000L;
+
+    /** The MQ to publish the responses on. */
+    private final MQ mq;
+    /** The outbound queue. */
+    private final BlockingQueue<Object> outbound;
+    /** The maximum number of responses published in one batch. */
+    private final int batchSize;
+    /** Whether to wait for the broker to confirm each batch. */
+    private final boolean publisherConfirms;
+    /** Whether to only send the latest of the intermediate states for the same object within a batch. */
+    private final boolean coalesceIntermediateStates;
+    /** The time to wait before publishing the responses again, which were not published. */
+    private final long retryDelay;
+    /** The maximum time to wait for the queued responses to be published, when closing. */
+    private final long closeTimeout;
+    /** The thread publishing the responses. */
+    private final Thread publisherThread;
+    /** Whether the publisher has been closed. */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor. Starts the thread publishing the responses.
+     * @param mq The MQ to publish the responses on.
+     * @param queueCapacity The capacity of the outbound queue.
+     * @param batchSize The maximum number of responses published in one batch.
+     * @param publisherConfirms Whether to wait for the broker to confirm each batch.
+     * @param coalesceIntermediateStates Whether to only send the latest of the intermediate states for the same
+     * object within a batch.
+     */
+    public ResponsePublisher(MQ mq, int queueCapacity, int batchSize, boolean publisherConfirms,
+            boolean coalesceIntermediateStates) {
+        this(mq, queueCapacity, batchSize, publisherConfirms, coalesceIntermediateStates, RETRY_DELAY_IN_MILLIS,
+                CLOSE_TIMEOUT_IN_MILLIS);
+    }
+
+    /**
+     * Constructor with the delays. Starts the thread publishing the responses.
+     * @param mq The MQ to publish the responses on.
+     * @param queueCapacity The capacity of the outbound queue.
+     * @param batchSize The maximum number of responses published in one batch.
+     * @param publisherConfirms Whether to wait for the broker to confirm each batch.
+     * @param coalesceIntermediateStates Whether to only send the latest of the intermediate states for the same
+     * object within a batch.
+     * @param retryDelay The time in milliseconds to wait before publishing the responses again.
+     * @param closeTimeout The maximum time in milliseconds to wait for the queued responses, when closing.
+     */
+    ResponsePublisher(MQ mq, int queueCapacity, int batchSize, boolean publisherConfirms,
+            boolean coalesceIntermediateStates, long retryDelay, long closeTimeout) {
+        ArgumentCheck.checkNotNull(mq, "MQ mq");
+        ArgumentCheck.checkPositiveInt(queueCapacity, "int queueCapacity");
+        ArgumentCheck.checkPositiveInt(batchSize, "int batchSize");
+        ArgumentCheck.checkNotNegativeLong(retryDelay, "long retryDelay");
+        ArgumentCheck.checkPositiveLong(closeTimeout, "long closeTimeout");
+        this.mq = mq;
+        this.outbound = new ArrayBlockingQueue<Object>(queueCapacity);
+        this.batchSize = batchSize;
+        this.publisherConfirms = publisherConfirms;
+        this.coalesceIntermediateStates = coalesceIntermediateStates;
+        this.retryDelay = retryDelay;
+        this.closeTimeout = closeTimeout;
+        this.publisherThread = new Thread(new PublisherTask(), "ResponsePublisher");
+        this.publisherThread.setDaemon(true);
+        this.publisherThread.start();
+    }
+
+    /**
+     * Queues a preservation response for publishing. Blocks while the outbound queue is full.
+     * @param response The preservation response.
+     * @throws YggdrasilException If the publisher has been closed, or if interrupted while waiting.
+     */
+    public void publishPreservationResponse(PreservationResponse response) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(response, "PreservationResponse response");
+        enqueue(response);
+    }
+
+    /**
+     * Queues a preservation import response for publishing. Blocks while the outbound queue is full.
+     * @param response The preservation import response.
+     * @throws YggdrasilException If the publisher has been closed, or if interrupted while waiting.
+     */
+    public void publishPreservationImportResponse(PreservationImportResponse response) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(response, "PreservationImportResponse response");
+        enqueue(response);
+    }
+
+    /**
+     * Puts a response on the outbound queue.
+     * @param response The response.
+     * @throws YggdrasilException If the publisher has been closed, or if interrupted while waiting.
+     */
+    private void enqueue(Object response) throws YggdrasilException {
+        if (closed) {
+            throw new YggdrasilException("The response publisher has been closed.");
+        }
+        try {
+            outbound.put(response);
+        } catch (InterruptedException e) {
+            throw new YggdrasilException("Interrupted while waiting for room in the outbound queue.", e);
+        }
+    }
+
+    /**
+     * Closes the publisher, and waits for the queued responses to be published, until the close timeout.
+     * The responses, which are not published by then, are given up.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            publisherThread.join(closeTimeout);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the queued responses to be published.", e);
+            Thread.currentThread().interrupt();
+        }
+        if (publisherThread.isAlive()) {
+            logger.error("Could not publish the queued responses within " + closeTimeout + " ms. Giving up the "
+                    + "current batch and the " + outbound.size() + " responses left on the outbound queue.");
+            publisherThread.interrupt();
+        }
+    }
+
+    /**
+     * Removes the intermediate preservation states, which are followed by a later state for the same object
+     * within the batch.
+     * @param batch The batch of responses.
+     */
+    void coalesce(List<Object> batch) {
+        Set<String> laterStateSent = new HashSet<String>();
+        ListIterator<Object> it = batch.listIterator(batch.size());
+        while (it.hasPrevious()) {
+            Object response = it.previous();
+            if (!(response instanceof PreservationResponse)) {
+                continue;
+            }
+            PreservationResponse preservationResponse = (PreservationResponse) response;
+            if (!laterStateSent.add(preservationResponse.id) && isIntermediate(preservationResponse)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param response The preservation response.
+     * @return Whether the state of the response is an intermediate state.
+     */
+    private boolean isIntermediate(PreservationResponse response) {
+        try {
+            return PreservationState.valueOf(response.preservation.preservation_state).isIntermediateState();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param response The response.
+     * @return The key of the object of the response, which its responses are published in order for.
+     */
+    private String getOrderingKey(Object response) {
+        if (response instanceof PreservationResponse) {
+            return ((PreservationResponse) response).id;
+        }
+        return ((PreservationImportResponse) response).uuid;
+    }
+
+    /**
+     * @param responses The responses.
+     * @return The keys of the objects of the responses, in the order of the responses.
+     */
+    private Set<String> getOrderingKeys(List<Object> responses) {
+        Set<String> res = new LinkedHashSet<String>();
+        for (Object response : responses) {
+            res.add(getOrderingKey(response));
+        }
+        return res;
+    }
+
+    /**
+     * Publishes a batch of responses, and waits for the confirms if enabled.
+     * @param batch The batch of responses.
+     * @return The responses of the batch, which could not be published or were not confirmed, along with the later
+     * responses of the batch for the same objects, in the order of the batch. Empty if every response was published.
+     */
+    List<Object> publishBatch(List<Object> batch) {
+        List<PublishConfirmation> confirmations = new ArrayList<PublishConfirmation>(batch.size());
+        try {
+            for (Object response : batch) {
+                confirmations.add(publish(response));
+            }
+        } catch (YggdrasilException | RuntimeException e) {
+            logger.warn("Could not publish " + (batch.size() - confirmations.size()) + " of a batch of "
+                    + batch.size() + " responses.", e);
+        }
+        List<Object> res = new ArrayList<Object>();
+        Set<String> failedKeys = new HashSet<String>();
+        int unconfirmed = 0;
+        long deadline = System.currentTimeMillis() + CONFIRM_TIMEOUT_IN_MILLIS;
+        for (int i = 0; i < batch.size(); i++) {
+            Object response = batch.get(i);
+            if (failedKeys.contains(getOrderingKey(response))) {
+                // Sent again after the earlier response for the same object, even if it was confirmed.
+                res.add(response);
+            } else if (i >= confirmations.size()) {
+                failedKeys.add(getOrderingKey(response));
+                res.add(response);
+            } else if (publisherConfirms && !isConfirmed(confirmations.get(i), deadline)) {
+                unconfirmed++;
+                failedKeys.add(getOrderingKey(response));
+                res.add(response);
+            }
+        }
+        if (unconfirmed > 0) {
+            logger.warn("The broker did not confirm " + unconfirmed + " of a batch of " + batch.size() 
+                    + " responses.");
+        }
+        return res;
+    }
+
+    /**
+     * Publishes a response.
+     * @param response The response.
+     * @return The confirm of the response, or null if publisher confirms are not enabled.
+     * @throws YggdrasilException If the response could not be published.
+     */
+    private PublishConfirmation publish(Object response) throws YggdrasilException {
+        if (response instanceof PreservationResponse) {
+            return mq.publishPreservationResponse((PreservationResponse) response);
+        } else {
+            return mq.publishPreservationImportResponse((PreservationImportResponse) response);
+        }
+    }
+
+    /**
+     * Waits for the broker to confirm a published response.
+     * @param confirmation The confirm of the response, or null if the MQ does not track the confirms.
+     * @param deadline The time, when to stop waiting.
+     * @return Whether the broker confirmed the response in time.
+     */
+    private boolean isConfirmed(PublishConfirmation confirmation, long deadline) {
+        if (confirmation == null) {
+            return true;
+        }
+        try {
+            return confirmation.await(Math.max(0L, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the broker to confirm a response.", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The task of the publisher thread: Takes batches of responses from the outbound queue and publishes them,
+     * until the publisher is closed and the outbound queue is empty, or until the thread is interrupted.
+     */
+    private class PublisherTask implements Runnable {
+        @Override
+        public void run() {
+            List<Object> batch = new ArrayList<Object>(batchSize);
+            while ((!closed || !outbound.isEmpty()) && !Thread.currentThread().isInterrupted()) {
+                try {
+                    Object first = outbound.poll(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    outbound.drainTo(batch, batchSize - 1);
+                    if (coalesceIntermediateStates) {
+                        coalesce(batch);
+                    }
+                    publishWithRetries(batch);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting for responses to publish.", e);
+                    Thread.currentThread().interrupt();
+                } finally {
+                    batch.clear();
+                }
+            }
+            if (!outbound.isEmpty()) {
+                logger.error("Stopped publishing with " + outbound.size() + " responses left on the outbound "
+                        + "queue.");
+            }
+        }
+
+        /**
+         * Publishes the batch, and publishes the responses again, which were not published, until every response
+         * of the batch has been published, the responses have been attempted the maximum number of times, or the 
+         * thread is interrupted.
+         * @param batch The batch of responses.
+         */
+        private void publishWithRetries(List<Object> batch) {
+            List<Object> remaining = publishBatch(batch);
+            for (int attempt = 2; !remaining.isEmpty(); attempt++) {
+                if (attempt > MAX_PUBLISH_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    logger.error("Giving up publishing " + remaining.size() + " of a batch of " + batch.size() 
+                            + " responses after " + (attempt - 1) + " attempts, for the objects " 
+                            + getOrderingKeys(remaining) + ".");
+                    return;
+                }
+                logger.warn("Publishing " + remaining.size() + " of a batch of " + batch.size() 
+                        + " responses again in " + retryDelay + " ms (attempt " + attempt + ").");
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting for publishing the responses again.", e);
+                    Thread.currentThread().interrupt();
+                    continue;
+                }
+                remaining = publishBatch(remaining);
+            }
+        }
+    }
+}
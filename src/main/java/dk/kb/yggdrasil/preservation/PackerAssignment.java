@@ -0,0 +1,32 @@
+package dk.kb.yggdrasil.preservation;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * The way the preservation requests of a collection are assigned to the packers of the collection, when the
+ * collection has more than one packer.
+ */
+public enum PackerAssignment {
+    /** The packers are assigned in turn. */
+    ROUND_ROBIN,
+    /** The packer with the smallest current WARC file is assigned. */
+    LEAST_SIZE;
+
+    /**
+     * Finds the packer assignment with the given name, ignoring case.
+     * @param name The name of the packer assignment.
+     * @return The packer assignment.
+     * @throws YggdrasilException If no packer assignment has the given name.
+     */
+    public static PackerAssignment fromName(String name) throws YggdrasilException {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        for (PackerAssignment assignment : values()) {
+            if (assignment.name().equalsIgnoreCase(name)) {
+                return assignment;
+            }
+        }
+        throw new YggdrasilException("Unknown packer assignment '" + name
+                + "'. Expected 'round_robin' or 'least_size'.");
+    }
+}
@@ -1,15 +1,16 @@
 package dk.kb.yggdrasil.preservation;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.yggdrasil.config.RequestHandlerContext;
 import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.PreservationException;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
 
@@ -22,18 +23,46 @@ public class PreservationPackagingManager {
     private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
     /** The context for preserving warc files. */
     private final RequestHandlerContext context;
-    /** Map of warc creators for each collection. */
-    private Map<String, PreservationPacker> creators;
+    /** Map of the warc creators for each collection. */
+    private Map<String, PreservationPackerPool> creators;
     /** The timer to schedule the preservation task. */
     private Timer timer;
+    /** The uploader of the WARC files sealed by the packers. */
+    private final WarcUploader uploader;
+    /** Whether the uploader belongs to this manager, and is shut down along with it. */
+    private final boolean ownsUploader;
     
     /**
-     * Constructor.
+     * Constructor, with its own uploader.
      * @param wpc The context for the preservation of warc files.
      */
     public PreservationPackagingManager(RequestHandlerContext wpc) {
+        this(wpc, new WarcUploader(wpc), true);
+    }
+
+    /**
+     * Constructor, with an uploader shared with other managers. The shared uploader is not shut down along with
+     * this manager.
+     * @param wpc The context for the preservation of warc files.
+     * @param uploader The shared uploader of the sealed WARC files.
+     */
+    public PreservationPackagingManager(RequestHandlerContext wpc, WarcUploader uploader) {
+        this(wpc, uploader, false);
+    }
+
+    /**
+     * Constructor.
+     * @param wpc The context for the preservation of warc files.
+     * @param uploader The uploader of the sealed WARC files.
+     * @param ownsUploader Whether the uploader belongs to this manager.
+     */
+    private PreservationPackagingManager(RequestHandlerContext wpc, WarcUploader uploader, boolean ownsUploader) {
+        ArgumentCheck.checkNotNull(wpc, "RequestHandlerContext wpc");
+        ArgumentCheck.checkNotNull(uploader, "WarcUploader uploader");
         this.context = wpc;
-        this.creators = new HashMap<String, PreservationPacker>();
+        this.creators = new ConcurrentHashMap<String, PreservationPackerPool>();
+        this.uploader = uploader;
+        this.ownsUploader = ownsUploader;
         
         // Add the timer task.
         timer = new Timer("WarcPreservationManager");
@@ -43,7 +72,8 @@ public class PreservationPackagingManager {
     }
     
     /**
-     * Adds the preservation request state to the warc file for the given collection.
+     * Adds the preservation request state to a warc file for the given collection.
+     * If the collection has several WarcCreators, then the request is assigned to one of them.
      * @param collectionId The id of the collection.
      * @param prs The preservation request to handle.
      * @throws YggdrasilException If it cannot communicate with other components.
@@ -51,27 +81,52 @@ public class PreservationPackagingManager {
      */
     public void addToWarcFile(String collectionId, PreservationRequestState prs) throws YggdrasilException, 
             PreservationException {
-        if(prs.getWarcId() == null || prs.getWarcId().isEmpty()) {
-            getCreator(collectionId).writePreservationRecord(prs);
-        } else {
-            getCreator(collectionId).writeUpdateRecord(prs);
+        PreservationPackerPool pool = getCreators(collectionId);
+        PreservationPacker creator = pool.nextPacker();
+        try {
+            if(prs.getWarcId() == null || prs.getWarcId().isEmpty()) {
+                creator.writePreservationRecord(prs);
+            } else {
+                creator.writeUpdateRecord(prs);
+            }
+            creator.verifyConditions();
+        } finally {
+            pool.release(creator);
         }
-        getCreator(collectionId).verifyConditions();
     }
 
     /**
-     * Gets a WarcCreator for the given collection.
-     * If no WarcCreator exists for the collection, then a new one is instantiated.
+     * Gets the WarcCreators for the given collection.
+     * If no WarcCreators exist for the collection, then new ones are instantiated.
      * @param collectionId The id of the collection.
-     * @return The WarcCreator for the collectionId.
+     * @return The WarcCreators for the collectionId.
      */
-    private PreservationPacker getCreator(String collectionId) {
+    private synchronized PreservationPackerPool getCreators(String collectionId) {
         if(!creators.containsKey(collectionId)) {
-            creators.put(collectionId, new PreservationPacker(context, collectionId));
+            creators.put(collectionId, PreservationPackerPool.createPool(context, collectionId, uploader));
         }
         return creators.get(collectionId);
     }
     
+    /**
+     * Uploads the WARC files left in the upload journal by a previous run.
+     * Must only be called at startup, before any requests are handled.
+     */
+    public void recoverUploads() {
+        uploader.recoverUploads();
+    }
+
+    /**
+     * Stops checking the conditions of the packers, and waits for the sealed WARC files to be uploaded, unless the
+     * uploader is shared with other managers.
+     */
+    public void shutdown() {
+        timer.cancel();
+        if (ownsUploader) {
+            uploader.shutdown();
+        }
+    }
+
     /**
      * The timer task for checking the conditions for each WarcCreator.
      * It is especially meant for testing the time condition.
@@ -79,9 +134,11 @@ public class PreservationPackagingManager {
     private class WarcPreservationTimerTask extends TimerTask {
         @Override
         public void run() {
-            for(PreservationPacker creator : creators.values()) {
-                logger.trace("Checking conditions");
-                creator.verifyConditions();
+            for(PreservationPackerPool pool : creators.values()) {
+                for(PreservationPacker creator : pool.getPackers()) {
+                    logger.trace("Checking conditions");
+                    creator.verifyConditions();
+                }
             }
         }
     }
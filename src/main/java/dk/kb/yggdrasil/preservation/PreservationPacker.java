@@ -1,7 +1,6 @@
 package dk.kb.yggdrasil.preservation;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -19,6 +18,7 @@ import org.slf4j.LoggerFactory;
 
 import dk.kb.yggdrasil.config.RequestHandlerContext;
 import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.db.UploadJournal;
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.PreservationException;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
@@ -45,21 +45,53 @@ public class PreservationPacker {
     private final RequestHandlerContext context;
     /** The collection id for this manager.*/
     private final String collectionId;
-    /** The writer of the WARC file.*/
-    private WarcWriterWrapper writer;
+    /** The directory for the WARC files of this packer.*/
+    private final File writeDirectory;
+    /** The uploader of the sealed WARC files.*/
+    private final WarcUploader uploader;
+    /** The writer of the WARC file. Volatile, since the size of the current WARC file is read without locking.*/
+    private volatile WarcWriterWrapper writer;
     /** The preservationRequests where the metadata are stored in the warc file.*/
     private List<PreservationRequestState> metadataRequests;
     /** The date for the current timeout. 0 until the writer is initialized. */
     private Long currentTimeout = 0L;
 
     /**
-     * Constructor.
+     * Constructor, for writing the WARC files in the temporary directory and uploading them in the thread
+     * sealing them, with a single attempt and without journaling.
      * @param context The context for the preservation
      * @param collectionId The id of the collection.
      */
     public PreservationPacker(RequestHandlerContext context, String collectionId) {
+        this(context, collectionId, context.getConfig().getTemporaryDir(),
+                new WarcUploader(context, context.getConfig().getThreadMode(), 0, 1, 0L, null));
+    }
+
+    /**
+     * Constructor.
+     * @param context The context for the preservation
+     * @param collectionId The id of the collection.
+     * @param writeDirectory The directory for the WARC files.
+     * @param uploader The uploader of the sealed WARC files.
+     */
+    public PreservationPacker(RequestHandlerContext context, String collectionId, File writeDirectory,
+            WarcUploader uploader) {
         this.context = context;
         this.collectionId = collectionId;
+        this.writeDirectory = writeDirectory;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Does not wait for a record being written, thus the size may be slightly outdated.
+     * @return The size of the current WARC file, or 0 if no WARC file is being written.
+     */
+    public long getCurrentWarcFileSize() {
+        WarcWriterWrapper currentWriter = writer;
+        if (currentWriter == null) {
+            return 0L;
+        }
+        return currentWriter.getWarcFileSize();
     }
 
     /**
@@ -78,9 +110,8 @@ public class PreservationPacker {
             }
 
             if(conditionsMet) {
-                logger.info("Finished packaging WARC file. Uploading and cleaning up.");
-                uploadWarcFile();
-                cleanUp();
+                logger.info("Finished packaging WARC file. Sealing it for upload.");
+                sealWarcFile();
             }
         }
     }
@@ -101,32 +132,20 @@ public class PreservationPacker {
             InputStream in = null;
             if (prs.getContentPayload() != null) {
                 File resource = prs.getContentPayload();
-                Long offsetStart = writer.getWarcFileSize();
-                try {
-                    in = new FileInputStream(resource);
-                    WarcDigest blockDigest = digestor.getDigestOfFile(resource);
-                    resourceId = writer.writeResourceRecord(in, resource.length(),
-                            ContentType.parseContentType("application/binary"), blockDigest, 
-                            prs.getRequest().File_UUID);
-                } finally {
-                    if(in != null) {
-                        in.close();
-                        in = null;
-                    }
-                }
+                WarcDigest blockDigest = getContentDigest(prs, digestor);
+                resourceId = writer.writeResourceRecord(resource, 
+                        ContentType.parseContentType("application/binary"), blockDigest, 
+                        prs.getRequest().File_UUID);
                 prs.setResourceWarcFile(writer.getWarcFile());
-                Long offsetEnd = writer.getWarcFileSize();
-                prs.setFileOffset(offsetStart, offsetEnd);
+                prs.setFileOffset(writer.getLastRecordStartOffset(), writer.getLastRecordEndOffset());
                 context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                         PreservationState.PRESERVATION_RESOURCES_PACKAGE_SUCCESS);
             }
-            if (prs.getMetadataPayload() != null) {
-                File metadata = prs.getMetadataPayload();
-                Long offsetStart = writer.getWarcFileSize();
+            if (prs.hasMetadataPayload()) {
                 try {
-                    in = new FileInputStream(metadata);
-                    WarcDigest blockDigest = digestor.getDigestOfFile(metadata);
-                    writer.writeMetadataRecord(in, metadata.length(),
+                    in = prs.getMetadataPayloadStream();
+                    WarcDigest blockDigest = getMetadataDigest(prs, digestor);
+                    writer.writeMetadataRecord(in, prs.getMetadataPayloadLength(),
                             ContentType.parseContentType("text/xml"), resourceId, blockDigest,
                             prs.getRequest().UUID, prs.getRequest().UUID);
                     in.close();
@@ -137,14 +156,14 @@ public class PreservationPacker {
                     }
                 }
                 prs.setMetadataWarcFile(writer.getWarcFile());
-                Long offsetEnd = writer.getWarcFileSize();
-                prs.setOffset(offsetStart, offsetEnd);
+                prs.setOffset(writer.getLastRecordStartOffset(), writer.getLastRecordEndOffset());
             }
             context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                     PreservationState.PRESERVATION_PACKAGE_COMPLETE);
             prs.setMetadataWarcFile(writer.getWarcFile());
             context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                     PreservationState.PRESERVATION_PACKAGE_WAITING_FOR_MORE_DATA);
+            journalRequest(prs);
         } catch (IOException e) {
             throw new PreservationException(PreservationState.PRESERVATION_METADATA_PACKAGED_FAILURE, 
                     "Error while writing WARC record!", e);
@@ -169,38 +188,25 @@ public class PreservationPacker {
             InputStream in = null;
             if (prs.getContentPayload() != null) {
                 File resource = prs.getContentPayload();
-                Long offsetStart = writer.getWarcFileSize();
-                try {
-                    WarcConcurrentTo concurrentTo = new WarcConcurrentTo();
-                    concurrentTo.warcConcurrentToStr = prs.getRequest().File_UUID;
-                    in = new FileInputStream(resource);
-                    WarcDigest blockDigest = digestor.getDigestOfFile(resource);
-                    resourceId = writer.writeUpdateRecord(in, resource.length(), 
-                            ContentType.parseContentType("application/binary"), null, 
-                            Arrays.asList(concurrentTo), blockDigest, update.file_uuid);
-                } finally {
-                    if(in != null) {
-                        in.close();
-                        in = null;
-                    }
-                }
-                Long offsetEnd = writer.getWarcFileSize();
-                prs.setFileOffset(offsetStart, offsetEnd);
+                WarcConcurrentTo concurrentTo = new WarcConcurrentTo();
+                concurrentTo.warcConcurrentToStr = prs.getRequest().File_UUID;
+                WarcDigest blockDigest = getContentDigest(prs, digestor);
+                resourceId = writer.writeUpdateRecord(resource, 
+                        ContentType.parseContentType("application/binary"), null, 
+                        Arrays.asList(concurrentTo), blockDigest, update.file_uuid);
+                prs.setFileOffset(writer.getLastRecordStartOffset(), writer.getLastRecordEndOffset());
                 context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                         PreservationState.PRESERVATION_RESOURCES_PACKAGE_SUCCESS);
             }
-            if (prs.getMetadataPayload() != null) {
-                File metadata = prs.getMetadataPayload();
-                Long offsetStart = writer.getWarcFileSize();
+            if (prs.hasMetadataPayload()) {
                 try {
                     WarcConcurrentTo concurrentTo = new WarcConcurrentTo();
                     concurrentTo.warcConcurrentToStr = prs.getRequest().UUID;
-                    in = new FileInputStream(metadata);
-                    WarcDigest blockDigest = digestor.getDigestOfFile(metadata);
-                    resourceId = writer.writeUpdateRecord(in, metadata.length(), 
+                    in = prs.getMetadataPayloadStream();
+                    WarcDigest blockDigest = getMetadataDigest(prs, digestor);
+                    resourceId = writer.writeUpdateRecord(in, prs.getMetadataPayloadLength(), 
                             ContentType.parseContentType("text/xml"), resourceId, 
                             Arrays.asList(concurrentTo), blockDigest, update.uuid);
-                    in = new FileInputStream(metadata);
                     in.close();
                 } finally {
                     if(in != null) {
@@ -208,19 +214,49 @@ public class PreservationPacker {
                         in = null;
                     }
                 }
-                Long offsetEnd = writer.getWarcFileSize();
-                prs.setOffset(offsetStart, offsetEnd);
+                prs.setOffset(writer.getLastRecordStartOffset(), writer.getLastRecordEndOffset());
             }
             context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                     PreservationState.PRESERVATION_PACKAGE_COMPLETE);
             context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                     PreservationState.PRESERVATION_PACKAGE_WAITING_FOR_MORE_DATA);
+            journalRequest(prs);
         } catch (IOException e) {
             throw new PreservationException(PreservationState.PRESERVATION_METADATA_PACKAGED_FAILURE, 
                     "Error while writing WARC record!", e);
         }
     }
 
+    /**
+     * The digest of the content payload is calculated while downloading it, thus the content payload is only read
+     * once more, when it is written to the WARC file. It is only calculated here, if it was not downloaded with a
+     * digest, e.g. for a request stored before the digest was carried with the request.
+     * @param prs The record of the request.
+     * @param digestor The digestor for calculating the digest, if necessary.
+     * @return The WARC block digest of the content payload.
+     * @throws YggdrasilException If the digest cannot be calculated.
+     */
+    private WarcDigest getContentDigest(PreservationRequestState prs, Digest digestor) throws YggdrasilException {
+        WarcDigest res = prs.getContentPayloadDigest();
+        if (res == null) {
+            res = digestor.getDigestOfFile(prs.getContentPayload());
+        }
+        return res;
+    }
+
+    /**
+     * @param prs The record of the request.
+     * @param digestor The digestor for calculating the digest.
+     * @return The WARC block digest of the metadata payload, calculated from memory if it is kept in memory.
+     * @throws YggdrasilException If the digest cannot be calculated.
+     */
+    private WarcDigest getMetadataDigest(PreservationRequestState prs, Digest digestor) throws YggdrasilException {
+        if (prs.getMetadataPayloadData() != null) {
+            return digestor.getDigestOfBytes(prs.getMetadataPayloadData());
+        }
+        return digestor.getDigestOfFile(prs.getMetadataPayload());
+    }
+
     /**
      * Initializes the WARC file in necessary.
      * Also performs the condition check.
@@ -238,43 +274,36 @@ public class PreservationPacker {
     }
 
     /**
-     * Uploads the Warc file to the Bitrepository.
-     * @throws YggdrasilException
+     * Journals the request, after its records have been written to the current WARC file, thus the WARC file can
+     * be uploaded after a restart. The records are forced to the disk before the request is journaled.
+     * @param prs The record of the request.
+     * @throws YggdrasilException If the request cannot be journaled.
      */
-    private void uploadWarcFile() {
-        boolean success = context.getBitrepository().uploadFile(writer.getWarcFile(), collectionId);
-
-        try {
-            for(PreservationRequestState prs : metadataRequests) {
-                if(success) {
-                    updateRequestState(PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS, prs);
-                    logger.info("Upload to bitrepository for UUID '" + prs.getUUID()
-                            + "' of package '" + writer.getWarcFileId() + "' was successful.");
-                } else {
-                    prs.resetUploadPackage(); // reset warcId to null
-                    updateRequestState(PreservationState.PRESERVATION_PACKAGE_UPLOAD_FAILURE, prs);
-                    logger.warn("Upload to bitrepository for UUID '" + prs.getUUID() + "' of package '" 
-                            + writer.getWarcFileId() + "' failed.");
-                }
-                prs.cleanup();
-                context.getStateDatabase().delete(prs.getUUID());
-            } 
-        } catch (YggdrasilException e) {
-            logger.error("A error occured when reporting about bitrepository upload of the file '"
-                    + writer.getWarcFileId() + "' to the collection '" + collectionId + "'. Trying to continue.", e);
+    private void journalRequest(PreservationRequestState prs) throws YggdrasilException {
+        UploadJournal journal = uploader.getJournal();
+        if (journal != null) {
+            writer.sync();
+            journal.append(writer.getWarcFile(), collectionId, prs, writer.getWarcFileSize());
         }
     }
 
     /**
-     * Update the preservation state of the request, both locally and remote.
-     * @param preservationState The new state.
-     * @param prs The request to update.
-     * @throws YggdrasilException If something goes wrong.
+     * Seals the current WARC file, and hands it over to the uploader together with its requests.
+     * The next request will be written to a new WARC file, thus packaging can continue while the sealed WARC
+     * file is being uploaded, if the uploader has its own threads.
+     * The index of the records is written next to the WARC file, thus they can be found without scanning it.
      */
-    private void updateRequestState(PreservationState preservationState, PreservationRequestState prs) 
-            throws YggdrasilException {
-        context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, preservationState);
-        context.getStateDatabase().putPreservationRecord(prs.getUUID(), prs);
+    private void sealWarcFile() {
+        File warcFile = writer.getWarcFile();
+        try {
+            writer.getIndex().write(warcFile);
+        } catch (YggdrasilException e) {
+            logger.warn("Could not write the index of the WARC file '" + warcFile.getName() + "'.", e);
+        }
+        List<PreservationRequestState> sealedRequests = metadataRequests;
+        metadataRequests = new ArrayList<PreservationRequestState>();
+        cleanUp();
+        uploader.upload(warcFile, collectionId, sealedRequests);
     }
 
     /**
@@ -299,8 +328,8 @@ public class PreservationPacker {
      */
     private void initializeNewWarcFile()  throws YggdrasilException {
         UUID packageId = UUID.randomUUID();
-        File writeDirectory = context.getConfig().getTemporaryDir();
-        writer = WarcWriterWrapper.getWriter(writeDirectory, packageId.toString());
+        writer = WarcWriterWrapper.getWriter(writeDirectory, packageId.toString(),
+                context.getConfig().isCompressedCollection(collectionId));
 
         try {
             Digest digestor = new Digest("SHA-1");
@@ -318,7 +347,7 @@ public class PreservationPacker {
      * @return The Update element for the preservation request state.
      */
     private Update createUpdateElement(PreservationRequestState prs, String warcId) {
-        ArgumentCheck.checkTrue(prs.getContentPayload() != null || prs.getMetadataPayload() != null, 
+        ArgumentCheck.checkTrue(prs.getContentPayload() != null || prs.hasMetadataPayload(), 
                 "Cannot create an update element with neither content nor metadata.");
         Update res = new Update();
         res.date = new Date().toString();
@@ -330,7 +359,7 @@ public class PreservationPacker {
                 res.file_warc_offset = prs.getFileOffset();
             }
         }
-        if(prs.getMetadataPayload() != null) {
+        if(prs.hasMetadataPayload()) {
             res.uuid = UUID.randomUUID().toString();
             res.warc_id = warcId;
             if(prs.getOffset() != null) {
@@ -0,0 +1,111 @@
+package dk.kb.yggdrasil.preservation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.kb.yggdrasil.config.RequestHandlerContext;
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * The packers of a collection, each writing its own WARC file.
+ * Several packers allow the requests of a heavy collection to be written to several WARC files in parallel,
+ * since each packer only writes one record at a time. The packers are spread over the WARC directories, thus
+ * they can be placed on separate disks.
+ * The pool counts the requests assigned to each packer, until they are released after being written, thus the
+ * requests arriving together are spread over the packers, instead of all being assigned to the same smallest one.
+ */
+public class PreservationPackerPool {
+    /** The packers of the collection. */
+    private final List<PreservationPacker> packers;
+    /** How the requests are assigned to the packers. */
+    private final PackerAssignment assignment;
+    /** The counter for the round-robin assignment. */
+    private final AtomicInteger nextPacker = new AtomicInteger();
+    /** The number of requests assigned to each packer, which have not been released. */
+    private final int[] pending;
+
+    /**
+     * Constructor.
+     * @param packers The packers of the collection.
+     * @param assignment How the requests are assigned to the packers.
+     */
+    public PreservationPackerPool(List<PreservationPacker> packers, PackerAssignment assignment) {
+        ArgumentCheck.checkNotNullOrEmptyCollection(packers, "List<PreservationPacker> packers");
+        ArgumentCheck.checkNotNull(assignment, "PackerAssignment assignment");
+        this.packers = Collections.unmodifiableList(new ArrayList<PreservationPacker>(packers));
+        this.assignment = assignment;
+        this.pending = new int[packers.size()];
+    }
+
+    /**
+     * Creates the packers for a collection as configured.
+     * @param context The context for the preservation.
+     * @param collectionId The id of the collection.
+     * @param uploader The uploader of the sealed WARC files.
+     * @return The packers of the collection.
+     */
+    public static PreservationPackerPool createPool(RequestHandlerContext context, String collectionId,
+            WarcUploader uploader) {
+        List<File> warcDirs = context.getConfig().getWarcDirs();
+        List<PreservationPacker> packers = new ArrayList<PreservationPacker>();
+        for (int i = 0; i < context.getConfig().getPackersPerCollection(); i++) {
+            packers.add(new PreservationPacker(context, collectionId, warcDirs.get(i % warcDirs.size()), uploader));
+        }
+        return new PreservationPackerPool(packers, context.getConfig().getPackerAssignment());
+    }
+
+    /**
+     * Assigns the next request of the collection to a packer. The packer must be given to release, when the request
+     * has been written.
+     * @return The packer for the next request of the collection.
+     */
+    public synchronized PreservationPacker nextPacker() {
+        int index = (nextPacker.getAndIncrement() & Integer.MAX_VALUE) % packers.size();
+        if (assignment == PackerAssignment.LEAST_SIZE) {
+            index = getLeastLoadedPacker(index);
+        }
+        pending[index]++;
+        return packers.get(index);
+    }
+
+    /**
+     * Releases a request assigned by nextPacker, when it has been written.
+     * @param packer The packer, which the request was assigned to.
+     */
+    public synchronized void release(PreservationPacker packer) {
+        int index = packers.indexOf(packer);
+        if (index >= 0 && pending[index] > 0) {
+            pending[index]--;
+        }
+    }
+
+    /**
+     * Finds the packer with the fewest pending requests, and amongst those the packer with the smallest WARC file.
+     * Ties are resolved in round-robin order from the given packer.
+     * @param start The index of the packer, which is next in round-robin order.
+     * @return The index of the least loaded packer.
+     */
+    private int getLeastLoadedPacker(int start) {
+        int res = start;
+        long smallestSize = packers.get(start).getCurrentWarcFileSize();
+        for (int i = 1; i < packers.size(); i++) {
+            int index = (start + i) % packers.size();
+            long size = packers.get(index).getCurrentWarcFileSize();
+            if (pending[index] < pending[res] || (pending[index] == pending[res] && size < smallestSize)) {
+                res = index;
+                smallestSize = size;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return The packers of the collection.
+     */
+    public List<PreservationPacker> getPackers() {
+        return packers;
+    }
+}
@@ -0,0 +1,433 @@
+package dk.kb.yggdrasil.preservation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.PreservationException;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.utils.NamedThreadFactory;
+import dk.kb.yggdrasil.utils.ThreadMode;
+
+/**
+ * Pipeline for performing the preservation in three stages, each with its own threads:
+ * <ol>
+ *   <li>The download stage, which retrieves the content file (network-bound).</li>
+ *   <li>The transformation stage, which transforms and validates the metadata (CPU-bound).</li>
+ *   <li>The packaging stage, which appends the records to the WARC file (disk-bound).</li>
+ * </ol>
+ * The stages are connected by bounded queues. When the queue of a stage is full, the previous stage waits until
+ * there is room, thus a slow stage throttles the stages before it instead of filling up the memory.
+ *
+ * The requests with the same ordering key (see PreservationRequestHandler.getOrderingKey) are packaged one at a
+ * time in the order they were submitted, e.g. thus the record of an update is never written before the record it
+ * updates. Their downloads and transformations are still performed concurrently, and a request, which has been
+ * transformed, waits for the earlier requests with the same key to be packaged or to fail. The next waiting request
+ * is packaged by the packaging thread, which packaged the request before it.
+ *
+ * With virtual threads the download stage starts a new thread for each download instead of using a queue and a
+ * fixed number of threads. The number of concurrent downloads is then limited by a semaphore, and submitting a
+ * request waits while the limit is reached.
+ */
+public class PreservationPipeline {
+    /** Logging mechanism. */
+    private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** The maximum time to wait for each stage to finish during shutdown: 1 hour. */
+    private static final long SHUTDOWN_TIMEOUT_IN_MINUTES = 60L;
+
+    /** The handler performing the work of the stages. */
+    private final PreservationRequestHandler handler;
+    /** The stage for downloading the content. */
+    private final ExecutorService downloadStage;
+    /** The permits for the concurrent downloads, when the download stage uses virtual threads, otherwise null. */
+    private final Semaphore downloadPermits;
+    /** The stage for transforming and validating the metadata. */
+    private final ThreadPoolExecutor transformationStage;
+    /** The stage for appending the records to the WARC file. */
+    private final ThreadPoolExecutor packagingStage;
+    /** The requests in the pipeline for each ordering key, in the order they were submitted. */
+    private final Map<String, Deque<PackagingSlot>> packagingOrder = new HashMap<String, Deque<PackagingSlot>>();
+
+    /**
+     * Constructor.
+     * @param handler The handler performing the work of the stages.
+     * @param threadMode The kind of threads for the download stage. The other stages always use platform threads,
+     * since they are CPU-bound or disk-bound.
+     * @param downloadThreads The number of threads for the download stage, or the maximum number of concurrent
+     * downloads when using virtual threads.
+     * @param transformationThreads The number of threads for the transformation stage.
+     * @param packagingThreads The number of threads for the packaging stage.
+     * @param queueCapacity The capacity of the queue in front of each stage.
+     */
+    public PreservationPipeline(PreservationRequestHandler handler, ThreadMode threadMode, int downloadThreads, 
+            int transformationThreads, int packagingThreads, int queueCapacity) {
+        ArgumentCheck.checkNotNull(handler, "PreservationRequestHandler handler");
+        ArgumentCheck.checkNotNull(threadMode, "ThreadMode threadMode");
+        ArgumentCheck.checkPositiveInt(downloadThreads, "int downloadThreads");
+        ArgumentCheck.checkPositiveInt(transformationThreads, "int transformationThreads");
+        ArgumentCheck.checkPositiveInt(packagingThreads, "int packagingThreads");
+        ArgumentCheck.checkPositiveInt(queueCapacity, "int queueCapacity");
+        this.handler = handler;
+        if (threadMode == ThreadMode.VIRTUAL && threadMode.isSupported()) {
+            this.downloadStage = threadMode.newWorkerPool("PreservationDownload", downloadThreads);
+            this.downloadPermits = new Semaphore(downloadThreads);
+        } else {
+            this.downloadStage = createStage(new NamedThreadFactory("PreservationDownload"), downloadThreads, 
+                    queueCapacity);
+            this.downloadPermits = null;
+        }
+        this.transformationStage = createStage(new NamedThreadFactory("PreservationTransformation"), 
+                transformationThreads, queueCapacity);
+        this.packagingStage = createStage(new NamedThreadFactory("PreservationPackaging"), packagingThreads, 
+                queueCapacity);
+    }
+
+    /**
+     * Creates a stage of the pipeline.
+     * @param threadFactory The factory for the threads of the stage.
+     * @param threads The number of threads for the stage.
+     * @param queueCapacity The capacity of the queue in front of the stage.
+     * @return The stage.
+     */
+    private static ThreadPoolExecutor createStage(ThreadFactory threadFactory, int threads, int queueCapacity) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, new WaitForRoomPolicy());
+    }
+
+    /**
+     * Submits a validated preservation request to the pipeline.
+     * Blocks while the queue of the download stage is full, or while the limit of concurrent downloads is reached.
+     * @param prs The preservation request state.
+     */
+    public void submit(PreservationRequestState prs) {
+        submit(prs, null);
+    }
+
+    /**
+     * Submits a validated preservation request to the pipeline, and runs the given callback when the request 
+     * leaves the pipeline, i.e. when it has been packaged and journaled, or when its preservation has failed.
+     * Blocks while the queue of the download stage is full, or while the limit of concurrent downloads is reached.
+     * @param prs The preservation request state.
+     * @param onCompletion The callback to run when the request leaves the pipeline, e.g. for acknowledging the 
+     * message of the request. May be null.
+     */
+    public void submit(final PreservationRequestState prs, final Runnable onCompletion) {
+        ArgumentCheck.checkNotNull(prs, "PreservationRequestState prs");
+        acquireDownloadPermit();
+        final PackagingSlot slot = enterPackagingOrder(handler.getOrderingKey(prs.getRequest()));
+        try {
+            downloadStage.execute(new StageTask(prs, onCompletion, slot) {
+                @Override
+                boolean perform() throws PreservationException, YggdrasilException {
+                    try {
+                        handler.performDownloadStage(prs);
+                    } finally {
+                        releaseDownloadPermit();
+                    }
+                    submitToTransformation(prs, onCompletion, slot);
+                    return true;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseDownloadPermit();
+            leavePackagingOrder(slot);
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the request over to the transformation stage, which hands it over to the packaging stage, when the 
+     * earlier requests with the same ordering key have left the pipeline.
+     * @param prs The preservation request state.
+     * @param onCompletion The callback to run when the request leaves the pipeline, or null.
+     * @param slot The place of the request in the packaging order.
+     */
+    private void submitToTransformation(final PreservationRequestState prs, final Runnable onCompletion, 
+            final PackagingSlot slot) {
+        transformationStage.execute(new StageTask(prs, onCompletion, slot) {
+            @Override
+            boolean perform() throws PreservationException, YggdrasilException {
+                handler.performTransformationStage(prs);
+                startPackaging(readyForPackaging(slot, new StageTask(prs, onCompletion, slot) {
+                    @Override
+                    boolean perform() throws PreservationException, YggdrasilException {
+                        handler.performPackagingStage(prs);
+                        return false;
+                    }
+                }));
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Gives a submitted request its place in the packaging order of its ordering key.
+     * @param orderingKey The ordering key of the request, or null if it is not ordered.
+     * @return The place of the request in the packaging order.
+     */
+    private PackagingSlot enterPackagingOrder(String orderingKey) {
+        PackagingSlot slot = new PackagingSlot(orderingKey);
+        if (orderingKey != null) {
+            synchronized (packagingOrder) {
+                Deque<PackagingSlot> slots = packagingOrder.get(orderingKey);
+                if (slots == null) {
+                    slots = new ArrayDeque<PackagingSlot>();
+                    packagingOrder.put(orderingKey, slots);
+                }
+                slots.add(slot);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Registers the packaging of a transformed request, which is performed when the earlier requests with the same
+     * ordering key have left the pipeline.
+     * @param slot The place of the request in the packaging order.
+     * @param packaging The packaging of the request.
+     * @return The request to package now, which is this request if it is the first with its ordering key, or null.
+     */
+    private PackagingSlot readyForPackaging(PackagingSlot slot, StageTask packaging) {
+        synchronized (packagingOrder) {
+            slot.packaging = packaging;
+            return nextForPackaging(slot.orderingKey, slot);
+        }
+    }
+
+    /**
+     * Removes a request, which leaves the pipeline, from the packaging order.
+     * @param slot The place of the request in the packaging order.
+     * @return The next request with the same ordering key to package now, or null.
+     */
+    private PackagingSlot leavePackagingOrder(PackagingSlot slot) {
+        synchronized (packagingOrder) {
+            Deque<PackagingSlot> slots = packagingOrder.get(slot.orderingKey);
+            if (slots != null) {
+                slots.remove(slot);
+            }
+            return nextForPackaging(slot.orderingKey, null);
+        }
+    }
+
+    /**
+     * Finds the request to package now for an ordering key, which is the first request with the key, if it has 
+     * been transformed and is not being packaged already. Must be called while holding the packaging order.
+     * @param orderingKey The ordering key, or null if the request is not ordered.
+     * @param unordered The request, which is not ordered, or null.
+     * @return The request to package now, or null.
+     */
+    private PackagingSlot nextForPackaging(String orderingKey, PackagingSlot unordered) {
+        PackagingSlot next = unordered;
+        if (orderingKey != null) {
+            Deque<PackagingSlot> slots = packagingOrder.get(orderingKey);
+            if (slots == null || slots.isEmpty()) {
+                packagingOrder.remove(orderingKey);
+                return null;
+            }
+            next = slots.peek();
+        }
+        if (next == null || next.packaging == null || next.packagingStarted) {
+            return null;
+        }
+        next.packagingStarted = true;
+        return next;
+    }
+
+    /**
+     * Packages the request on the packaging stage, followed by the later requests with the same ordering key, 
+     * which are ready for packaging by then. If the packaging stage rejects the packaging, e.g. since it has been 
+     * shut down, then it is performed by the calling thread.
+     * @param slot The request to package, or null if there is none.
+     */
+    private void startPackaging(final PackagingSlot slot) {
+        if (slot == null) {
+            return;
+        }
+        Runnable packaging = new Runnable() {
+            @Override
+            public void run() {
+                PackagingSlot next = slot;
+                while (next != null) {
+                    next = next.packaging.performStage();
+                }
+            }
+        };
+        try {
+            packagingStage.execute(packaging);
+        } catch (RejectedExecutionException e) {
+            logger.warn("The packaging stage rejected the request. Packaging it in the current thread.", e);
+            packaging.run();
+        }
+    }
+
+    /**
+     * Waits for a permit for a download, when the download stage uses virtual threads.
+     * @throws RejectedExecutionException If interrupted while waiting.
+     */
+    private void acquireDownloadPermit() {
+        if (downloadPermits == null) {
+            return;
+        }
+        try {
+            downloadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in the download stage.", e);
+        }
+    }
+
+    /**
+     * Releases the permit of a download, when the download stage uses virtual threads.
+     */
+    private void releaseDownloadPermit() {
+        if (downloadPermits != null) {
+            downloadPermits.release();
+        }
+    }
+
+    /**
+     * Shuts down the pipeline, and waits for the requests in the pipeline to be preserved.
+     * The stages are shut down one at a time, from the first to the last, since each stage submits work to the
+     * next stage.
+     */
+    public void shutdown() {
+        for (ExecutorService stage : new ExecutorService[]{downloadStage, transformationStage, packagingStage}) {
+            stage.shutdown();
+            try {
+                if (!stage.awaitTermination(SHUTDOWN_TIMEOUT_IN_MINUTES, TimeUnit.MINUTES)) {
+                    logger.warn("A stage of the preservation pipeline did not finish within "
+                            + SHUTDOWN_TIMEOUT_IN_MINUTES + " minutes.");
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for the preservation pipeline to finish.", e);
+            }
+        }
+    }
+
+    /**
+     * The place of a request in the packaging order of its ordering key.
+     */
+    private static class PackagingSlot {
+        /** The ordering key of the request, or null if it is not ordered. */
+        private final String orderingKey;
+        /** The packaging of the request, when it has been transformed, otherwise null. */
+        private StageTask packaging = null;
+        /** Whether the packaging of the request has been started. */
+        private boolean packagingStarted = false;
+
+        /**
+         * Constructor.
+         * @param orderingKey The ordering key of the request, or null if it is not ordered.
+         */
+        PackagingSlot(String orderingKey) {
+            this.orderingKey = orderingKey;
+        }
+    }
+
+    /**
+     * The work of a stage for a given preservation request, with a fault barrier ensuring that failures are
+     * reported and the request state is removed.
+     * The completion callback of the request is run by the last stage performed for the request, whether it 
+     * succeeded or failed, and the request then leaves the packaging order.
+     */
+    private abstract class StageTask implements Runnable {
+        /** The preservation request state. */
+        private final PreservationRequestState prs;
+        /** The callback to run when the request leaves the pipeline, or null. */
+        private final Runnable onCompletion;
+        /** The place of the request in the packaging order. */
+        private final PackagingSlot slot;
+
+        /**
+         * Constructor.
+         * @param prs The preservation request state.
+         * @param onCompletion The callback to run when the request leaves the pipeline, or null.
+         * @param slot The place of the request in the packaging order.
+         */
+        StageTask(PreservationRequestState prs, Runnable onCompletion, PackagingSlot slot) {
+            this.prs = prs;
+            this.onCompletion = onCompletion;
+            this.slot = slot;
+        }
+
+        /**
+         * Performs the work of the stage.
+         * @return Whether the request was handed over to the next stage.
+         * @throws PreservationException If the preservation fails.
+         * @throws YggdrasilException If it cannot communicate with other components.
+         */
+        abstract boolean perform() throws PreservationException, YggdrasilException;
+
+        @Override
+        public void run() {
+            startPackaging(performStage());
+        }
+
+        /**
+         * Performs the work of the stage, and removes the request from the packaging order, if it leaves the 
+         * pipeline.
+         * @return The next request with the same ordering key to package now, or null.
+         */
+        PackagingSlot performStage() {
+            boolean handedOver = false;
+            try {
+                try {
+                    handedOver = perform();
+                } catch (PreservationException e) {
+                    logger.warn("Preservation pipeline fault barrier caught exception.", e);
+                    handler.handlePreservationFailure(prs, e);
+                } catch (RuntimeException e) {
+                    logger.error("Unexpected failure while preserving the request with UUID '" + prs.getUUID() 
+                            + "'", e);
+                    handler.handlePreservationFailure(prs, new PreservationException(
+                            PreservationState.PRESERVATION_REQUEST_FAILED, "Unexpected failure: " + e, e));
+                }
+            } catch (YggdrasilException e) {
+                logger.error("Failed to preserve the request with UUID '" + prs.getUUID() + "'", e);
+            } catch (RuntimeException e) {
+                logger.error("Could not report the failure of the request with UUID '" + prs.getUUID() + "'", e);
+            } finally {
+                if (!handedOver && onCompletion != null) {
+                    onCompletion.run();
+                }
+            }
+            if (handedOver) {
+                return null;
+            }
+            return leavePackagingOrder(slot);
+        }
+    }
+
+    /**
+     * Policy for a full stage, which waits for room in the queue of the stage, instead of rejecting the work.
+     */
+    private static class WaitForRoomPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The stage has been shut down.");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the stage.", e);
+            }
+        }
+    }
+}
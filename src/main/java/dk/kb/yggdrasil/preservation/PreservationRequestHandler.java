@@ -9,6 +9,8 @@ import java.io.PushbackInputStream;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
@@ -17,24 +19,33 @@ import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.EntityResolver;
 
+import dk.kb.yggdrasil.HttpCommunication;
 import dk.kb.yggdrasil.HttpPayload;
+import dk.kb.yggdrasil.SegmentedDownload;
 import dk.kb.yggdrasil.config.Models;
 import dk.kb.yggdrasil.config.RequestHandlerContext;
+import dk.kb.yggdrasil.config.YggdrasilConfig;
 import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.db.StateDatabase;
 import dk.kb.yggdrasil.exceptions.ArgumentCheck;
 import dk.kb.yggdrasil.exceptions.PreservationException;
 import dk.kb.yggdrasil.exceptions.YggdrasilException;
 import dk.kb.yggdrasil.json.JSONMessaging;
 import dk.kb.yggdrasil.json.preservation.PreservationRequest;
 import dk.kb.yggdrasil.messaging.MessageRequestHandler;
+import dk.kb.yggdrasil.warc.Digest;
+import dk.kb.yggdrasil.utils.ThreadMode;
 import dk.kb.yggdrasil.xslt.XmlErrorHandler;
+import dk.kb.yggdrasil.xslt.XmlSchemaCache;
 import dk.kb.yggdrasil.xslt.XmlValidationResult;
 import dk.kb.yggdrasil.xslt.XmlValidator;
 import dk.kb.yggdrasil.xslt.XslErrorListener;
+import dk.kb.yggdrasil.xslt.XslTemplatesCache;
 import dk.kb.yggdrasil.xslt.XslTransformer;
 import dk.kb.yggdrasil.xslt.XslUriResolver;
 
@@ -44,25 +55,72 @@ import dk.kb.yggdrasil.xslt.XslUriResolver;
 public class PreservationRequestHandler extends MessageRequestHandler<PreservationRequest> {
     /** Logging mechanism. */
     private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+    /** The subdirectory to the temporary directory for the local catalog of the XSDs of the metadata. */
+    private static final String SCHEMA_CATALOG_SUBDIR = "schema_catalog";
+    /** The maximum number of idle validators kept for reuse. The validation is CPU bound, thus one per processor. */
+    private static final int XML_VALIDATOR_POOL_SIZE = Runtime.getRuntime().availableProcessors();
 
     /** The class reading the mapping between models and xslt scripts used for the metadata transformation. */
     private final Models metadataModel;
+    /** The compiled xslt scripts of the metadata models. */
+    private final XslTemplatesCache templatesCache = new XslTemplatesCache();
+    /** The compiled XSDs for validating the transformed metadata. Created when the first metadata is validated. */
+    private XmlSchemaCache schemaCache = null;
+    /** The idle validators of the transformed metadata, with their XSD validators, shared by all the threads. */
+    private final BlockingQueue<XmlValidator> xmlValidators = 
+            new ArrayBlockingQueue<XmlValidator>(XML_VALIDATOR_POOL_SIZE);
     /** Context for this preservation. */
     private final RequestHandlerContext context;
     /** Preservation packaging manager. */
     private final PreservationPackagingManager preservationManager;
+    /** The pipeline performing the preservation in stages, or null if the preservation is performed directly. */
+    private final PreservationPipeline pipeline;
 
     /**
-     * Constructor.
+     * Constructor, with its own uploader of the WARC files.
      * @param context The context for the preservation.
      * @param models The metadatamodel mapper.
      */
     public PreservationRequestHandler(RequestHandlerContext context, Models models) {
+        this(context, models, new PreservationPackagingManager(context));
+    }
+
+    /**
+     * Constructor, with an uploader of the WARC files shared with other handlers.
+     * The handler has its own packers, but the uploader and its upload journal must be shared by all the handlers,
+     * and must be shut down after them.
+     * @param context The context for the preservation.
+     * @param models The metadatamodel mapper.
+     * @param uploader The shared uploader of the sealed WARC files.
+     */
+    public PreservationRequestHandler(RequestHandlerContext context, Models models, WarcUploader uploader) {
+        this(context, models, new PreservationPackagingManager(context, uploader));
+    }
+
+    /**
+     * Constructor.
+     * @param context The context for the preservation.
+     * @param models The metadatamodel mapper.
+     * @param preservationManager The preservation packaging manager.
+     */
+    private PreservationRequestHandler(RequestHandlerContext context, Models models, 
+            PreservationPackagingManager preservationManager) {
         ArgumentCheck.checkNotNull(context, "PreservationContext context");
         ArgumentCheck.checkNotNull(models, "Models models");
         this.metadataModel = models;
         this.context = context;
-        this.preservationManager = new PreservationPackagingManager(context);
+        this.preservationManager = preservationManager;
+        YggdrasilConfig config = context.getConfig();
+        if (config.isPipelineEnabled()) {
+            // With virtual threads the downloads are only limited like the requests, not by the download threads.
+            int downloadLimit = config.getThreadMode() == ThreadMode.VIRTUAL ? config.getVirtualThreadRequestLimit()
+                    : config.getPipelineDownloadThreads();
+            this.pipeline = new PreservationPipeline(this, config.getThreadMode(), downloadLimit, 
+                    config.getPipelineTransformationThreads(), config.getPipelinePackagingThreads(), 
+                    config.getPipelineQueueCapacity());
+        } else {
+            this.pipeline = null;
+        }
     }
     
     @Override
@@ -71,33 +129,110 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
                 PreservationRequest.class);
     }
 
+    /**
+     * Only the requests for the same object must be handled in the order they are received, since an update record 
+     * must follow the record it updates, thus the Valhal ID within the preservation profile (the collection) is 
+     * used as ordering key. The requests for different objects are handled concurrently, also within a collection, 
+     * since the packers of a collection write their records one request at a time.
+     * When the preservation pipeline is enabled, the validation and the packaging are ordered by the key, whereas
+     * the downloads and transformations are performed concurrently.
+     * @param request The preservation request.
+     * @return The preservation profile of the request along with its Valhal ID.
+     */
+    @Override
+    public String getOrderingKey(PreservationRequest request) {
+        return request.Preservation_profile + "/" + request.Valhal_ID;
+    }
+
     /**
      * Handles the PreservationRequest.
+     * If the preservation pipeline is enabled, then the request is handed over to the pipeline after it has been
+     * validated and its state has been stored, otherwise the whole preservation is performed before returning.
      * @param request The preservation request to handle.
      * @throws YggdrasilException if anything goes wrong.
      */
     public void handleRequest(PreservationRequest request) throws YggdrasilException {
-        logger.info("Preservation request received.");
-        if (!request.isMessageValid()) {
-            logger.error("Skipping invalid message");
-            return;
-        }
-        PreservationRequestState prs = new PreservationRequestState(request,
-                PreservationState.PRESERVATION_REQUEST_RECEIVED, request.UUID);
+        handleRequest(request, null);
+    }
 
+    /**
+     * Handles the PreservationRequest, and runs the callback when the request has been preserved or has failed.
+     * If the preservation pipeline is enabled, then the callback is handed over to the pipeline with the request,
+     * thus it is run after the request has been packaged and journaled, which is after this method has returned.
+     * @param request The preservation request to handle.
+     * @param onCompletion The callback to run, when the handling has finished. May be null.
+     * @throws YggdrasilException if anything goes wrong.
+     */
+    @Override
+    public void handleRequest(PreservationRequest request, Runnable onCompletion) throws YggdrasilException {
+        logger.info("Preservation request received.");
+        boolean handedOver = false;
         try {
-            if (validateMessage(prs)) {
-                performPreservation(prs);
+            if (!request.isMessageValid()) {
+                logger.error("Skipping invalid message");
+                return;
             }
-        } catch (PreservationException e) {
-            // Fault barrier to ensure, that failures will send update and remove stuff.
-            logger.warn("Preservation message handling fault barrier caught exception.", e);
-            context.getRemotePreservationStateUpdater().sendPreservationResponseWithSpecificDetails(prs, 
-                    e.getState(), e.getMessage());
-            context.getStateDatabase().delete(prs.getUUID());
-            throw new YggdrasilException(e.getMessage(), e);
+            PreservationRequestState prs = new PreservationRequestState(request,
+                    PreservationState.PRESERVATION_REQUEST_RECEIVED, request.UUID);
+            if (context.getConfig().isDownloadResumable()) {
+                restorePartialDownload(prs);
+            }
+
+            try {
+                if (validateMessage(prs)) {
+                    if (pipeline != null) {
+                        pipeline.submit(prs, onCompletion);
+                        handedOver = true;
+                    } else {
+                        performPreservation(prs);
+                    }
+                }
+            } catch (PreservationException e) {
+                // Fault barrier to ensure, that failures will send update and remove stuff.
+                logger.warn("Preservation message handling fault barrier caught exception.", e);
+                handlePreservationFailure(prs, e);
+                throw new YggdrasilException(e.getMessage(), e);
+            }
+            logger.info("Finished processing the preservation request");
+        } finally {
+            if (!handedOver && onCompletion != null) {
+                onCompletion.run();
+            }
+        }
+    }
+
+    /**
+     * Uploads the WARC files, which were left in the upload journal when the previous run stopped, thus their
+     * requests do not have to be received and packaged again.
+     * Must only be called at startup, before any requests are handled.
+     */
+    public void recoverUploads() {
+        preservationManager.recoverUploads();
+    }
+
+    /**
+     * Waits for the requests in the preservation pipeline, if any, to be preserved, and for the sealed WARC files
+     * to be uploaded.
+     */
+    @Override
+    public void shutdown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
         }
-        logger.info("Finished processing the preservation request");
+        preservationManager.shutdown();
+    }
+
+    /**
+     * Reports the failure of a preservation request, and removes its state.
+     * @param prs The preservation request state.
+     * @param e The cause of the failure.
+     * @throws YggdrasilException If it cannot communicate with other components.
+     */
+    void handlePreservationFailure(PreservationRequestState prs, PreservationException e) 
+            throws YggdrasilException {
+        context.getRemotePreservationStateUpdater().sendPreservationResponseWithSpecificDetails(prs, 
+                e.getState(), e.getMessage());
+        context.getStateDatabase().delete(prs.getUUID());
     }
 
     /**
@@ -133,6 +268,18 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
      * @throws YggdrasilException
      */
     private void performPreservation(PreservationRequestState prs) throws PreservationException, YggdrasilException {
+        performDownloadStage(prs);
+        performTransformationStage(prs);
+        performPackagingStage(prs);
+    }
+
+    /**
+     * Retrieves the content file, if the request has one.
+     * @param prs The preservation request state.
+     * @throws PreservationException If the content could not be retrieved.
+     * @throws YggdrasilException If it cannot communicate with other components.
+     */
+    void performDownloadStage(PreservationRequestState prs) throws PreservationException, YggdrasilException {
         if (prs.getRequest().Content_URI != null) {
             logger.info("Fetching content for preseravtion request with UUID '" + prs.getUUID() + "'");
             try {
@@ -143,9 +290,27 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
                 throw new PreservationException(PreservationState.PRESERVATION_REQUEST_FAILED, reason, e);
             }
         }
-        
+    }
+
+    /**
+     * Transforms and validates the metadata, and stores the state of the request.
+     * @param prs The preservation request state.
+     * @throws PreservationException If the metadata could not be transformed or is invalid.
+     * @throws YggdrasilException If it cannot communicate with other components.
+     */
+    void performTransformationStage(PreservationRequestState prs) throws PreservationException, 
+            YggdrasilException {
         transformMetadata(prs);
         context.getStateDatabase().putPreservationRecord(prs.getUUID(), prs);
+    }
+
+    /**
+     * Appends the records for the request to the WARC file of its collection.
+     * @param prs The preservation request state.
+     * @throws PreservationException If the records could not be packaged.
+     * @throws YggdrasilException If it cannot communicate with other components.
+     */
+    void performPackagingStage(PreservationRequestState prs) throws PreservationException, YggdrasilException {
         preservationManager.addToWarcFile(prs.getRequest().Preservation_profile, prs);
         logger.info("Finished handling the preservation request with UUID '" + prs.getUUID() + "' successfully");
     }
@@ -180,28 +345,48 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
 
         try {
             InputStream metadataInputStream = null;
-            FileInputStream xmlFileStream = null;
+            InputStream xmlStream = null;
             File outputFile = null;
             try {
-                XslTransformer xsltransform = XslTransformer.getTransformer(xslFile);
+                XslTransformer xsltransform = templatesCache.getTransformer(modelToUse, xslFile);
                 XslUriResolver uriResolver = new XslUriResolver();
                 XslErrorListener errorListener = new XslErrorListener();
                 metadataInputStream = new ByteArrayInputStream(theMetadata.getBytes(Charset.defaultCharset()));
                 Source xmlSource = new StreamSource(metadataInputStream);
                 outputFile = new File(context.getConfig().getTemporaryDir(), UUID.randomUUID().toString());
-                Result outputTarget = new StreamResult(outputFile);
-                xsltransform.transform(xmlSource, uriResolver, errorListener, outputTarget);
+                // The output is kept in memory, unless it exceeds the limit, then it is written to the file.
+                DeferredFileOutputStream output = new DeferredFileOutputStream((int) Math.min(
+                        context.getConfig().getMetadataMemoryLimit(), Integer.MAX_VALUE), outputFile);
+                try {
+                    Result outputTarget = new StreamResult(output);
+                    xsltransform.transform(xmlSource, uriResolver, errorListener, outputTarget);
+                } finally {
+                    output.close();
+                }
                 EntityResolver entityResolver = null;
-                xmlFileStream = new FileInputStream(outputFile);
+                if (output.isInMemory()) {
+                    xmlStream = new ByteArrayInputStream(output.getData());
+                } else {
+                    xmlStream = new FileInputStream(outputFile);
+                }
                 XmlErrorHandler errorHandler = new XmlErrorHandler();
                 XmlValidationResult result = new XmlValidationResult();
-                boolean bValid = new XmlValidator().testDefinedValidity(xmlFileStream, entityResolver, 
-                        errorHandler, result);
+                XmlValidator xmlValidator = acquireXmlValidator();
+                boolean bValid;
+                try {
+                    bValid = xmlValidator.testDefinedValidity(xmlStream, entityResolver, errorHandler, result);
+                } finally {
+                    xmlValidators.offer(xmlValidator);
+                }
                 if (!bValid) {
                     StringBuffer errMsg = new StringBuffer();
                     errMsg.append("The output metadata is invalid: ");
                     try {
-                        errMsg.append(FileUtils.readFileToString(outputFile));
+                        if (output.isInMemory()) {
+                            errMsg.append(new String(output.getData(), Charset.defaultCharset()));
+                        } else {
+                            errMsg.append(FileUtils.readFileToString(outputFile));
+                        }
                     } catch (IOException e) {
                         logger.warn("Exception while reading output file:", e);
                     }
@@ -230,13 +415,17 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
                     throw new PreservationException(PreservationState.PRESERVATION_METADATA_PACKAGED_FAILURE, 
                             errMsg.toString());
                 } else {
-                    prs.setMetadataPayload(outputFile);
+                    if (output.isInMemory()) {
+                        prs.setMetadataPayloadData(output.getData());
+                    } else {
+                        prs.setMetadataPayload(outputFile);
+                    }
                     context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                             PreservationState.PRESERVATION_METADATA_PACKAGED_SUCCESSFULLY);
                 }
             } finally {
-                if(xmlFileStream != null) {
-                    xmlFileStream.close();
+                if(xmlStream != null) {
+                    xmlStream.close();
                 }
             } 
         } catch (TransformerException e) {
@@ -262,10 +451,21 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
         PreservationRequest pr = prs.getRequest();
         logger.info("Attempting to download resource from '"
                 + pr.Content_URI + "'");
-        HttpPayload payload = context.getHttpCommunication().get(pr.Content_URI);
-        if (payload != null) {
-            tmpFile = payload.writeToFile();
-            prs.setContentPayload(tmpFile);
+        Digest digestor = new Digest("SHA-1");
+        YggdrasilConfig config = context.getConfig();
+        if (config.isDownloadResumable()) {
+            tmpFile = downloadResumable(prs, digestor);
+        } else if (config.getDownloadSegments() > 1) {
+            tmpFile = context.getHttpCommunication().download(pr.Content_URI, config.getDownloadSegments(), 
+                    config.getDownloadSegmentMinSize(), config.getDownloadAttempts(), digestor);
+        } else {
+            HttpPayload payload = context.getHttpCommunication().get(pr.Content_URI);
+            if (payload != null) {
+                tmpFile = payload.writeToFile(digestor);
+            }
+        }
+        if (tmpFile != null) {
+            prs.setContentPayload(tmpFile, digestor.getDigestOfReadBytes());
             context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, 
                     PreservationState.PRESERVATION_RESOURCES_DOWNLOAD_SUCCESS);
             context.getStateDatabase().putPreservationRecord(prs.getUUID(), prs);
@@ -274,4 +474,124 @@ public class PreservationRequestHandler extends MessageRequestHandler<Preservati
                     "Failed to download resource.");
         }
     }
+
+    /**
+     * Downloads the content with range requests, while storing the progress of the download with the state of the 
+     * request, thus the download can be resumed, if Yggdrasil is restarted and the request is received again.
+     * A stored download, which cannot be resumed, e.g. since the resource has changed, is started over.
+     * The checksum is calculated while downloading, but the part downloaded before a restart is read once more.
+     * If the server does not accept range requests, then the content is downloaded with a single GET request.
+     * @param prs The current request.
+     * @param digestor The digest to calculate of the downloaded file.
+     * @return The downloaded file, or null if the download failed.
+     * @throws YggdrasilException If the state of the request cannot be stored.
+     * @throws IOException If the file cannot be written.
+     */
+    private File downloadResumable(final PreservationRequestState prs, Digest digestor) 
+            throws YggdrasilException, IOException {
+        YggdrasilConfig config = context.getConfig();
+        HttpCommunication httpCommunication = context.getHttpCommunication();
+        final StateDatabase states = context.getStateDatabase();
+        String url = prs.getRequest().Content_URI;
+        SegmentedDownload download = prs.getPartialDownload();
+        if (download != null && (!url.equals(download.getUrl()) || !download.getFile().isFile()
+                || download.getFile().length() != download.getContentLength())) {
+            logger.info("Cannot resume the stored download of '" + download.getUrl() + "'. Starting over.");
+            discardPartialDownload(prs);
+            download = null;
+        }
+        boolean resumed = download != null;
+        if (resumed) {
+            logger.info("Resuming the download of '" + url + "' from " + download.getBytesReceived() + " of " 
+                    + download.getContentLength() + " bytes.");
+        } else {
+            download = httpCommunication.prepareDownload(url, config.getDownloadSegments(), 
+                    config.getDownloadSegmentMinSize());
+            if (download == null) {
+                HttpPayload payload = httpCommunication.get(url);
+                return payload == null ? null : payload.writeToFile(digestor);
+            }
+        }
+        prs.setPartialDownload(download);
+        states.putPreservationRecord(prs.getUUID(), prs);
+
+        Runnable checkpoint = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    states.putPreservationRecord(prs.getUUID(), prs);
+                } catch (YggdrasilException e) {
+                    logger.warn("Could not store the progress of the download for '" + prs.getUUID() + "'.", e);
+                }
+            }
+        };
+        if (!httpCommunication.download(download, config.getDownloadAttempts(), checkpoint, digestor)) {
+            discardPartialDownload(prs);
+            if (resumed) {
+                logger.info("Could not resume the download of '" + url + "'. Starting over.");
+                return downloadResumable(prs, digestor);
+            }
+            return null;
+        }
+        prs.setPartialDownload(null);
+        return download.getFile();
+    }
+
+    /**
+     * Deletes the file of the partial download of the request, and removes the partial download from the request.
+     * @param prs The current request.
+     */
+    private void discardPartialDownload(PreservationRequestState prs) {
+        File partialFile = prs.getPartialDownload().getFile();
+        if (partialFile.exists() && !partialFile.delete()) {
+            logger.warn("Could not delete the partial download '" + partialFile.getAbsolutePath() + "'.");
+        }
+        prs.setPartialDownload(null);
+    }
+
+    /**
+     * Takes over the partial download from the stored state of the request, if it was received before Yggdrasil 
+     * was restarted, thus the download can be resumed.
+     * @param prs The state of the newly received request.
+     */
+    private void restorePartialDownload(PreservationRequestState prs) {
+        StateDatabase states = context.getStateDatabase();
+        try {
+            if (prs.getRequest().Content_URI == null || !states.hasPreservationEntry(prs.getUUID())) {
+                return;
+            }
+            SegmentedDownload download = states.getPreservationRecord(prs.getUUID()).getPartialDownload();
+            if (download != null) {
+                logger.info("Found a partial download of " + download.getBytesReceived() + " bytes for '" 
+                        + prs.getUUID() + "'.");
+                prs.setPartialDownload(download);
+            }
+        } catch (YggdrasilException e) {
+            logger.warn("Could not read the stored state of '" + prs.getUUID() + "'. Any partial download of its "
+                    + "content will start over.", e);
+        }
+    }
+
+    /**
+     * Takes an idle validator of the transformed metadata from the pool, or creates a new one if none is idle.
+     * The validator must be offered back to the pool after use, which keeps it if the pool is not full.
+     * @return The validator, validating against the shared compiled XSDs.
+     */
+    private XmlValidator acquireXmlValidator() {
+        XmlValidator res = xmlValidators.poll();
+        if (res == null) {
+            res = new XmlValidator(getSchemaCache());
+        }
+        return res;
+    }
+
+    /**
+     * @return The cache of the compiled XSDs for validating the transformed metadata.
+     */
+    private synchronized XmlSchemaCache getSchemaCache() {
+        if (schemaCache == null) {
+            schemaCache = new XmlSchemaCache(new File(context.getConfig().getTemporaryDir(), SCHEMA_CATALOG_SUBDIR));
+        }
+        return schemaCache;
+    }
 }
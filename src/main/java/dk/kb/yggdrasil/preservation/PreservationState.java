@@ -117,6 +117,14 @@ public enum PreservationState implements Serializable {
         return !FAIL_STATES.contains(this);
     }
 
+    /**
+     * Method for finding out whether the state is an intermediate state, which will be followed by another state.
+     * @return true, if the state is neither a failstate nor the final upload success state; otherwise false.
+     */
+    public boolean isIntermediateState() {
+        return isOkState() && this != PRESERVATION_PACKAGE_UPLOAD_SUCCESS;
+    }
+
     /**
      * Verify if state change is valid. Throws an Exception if not valid change
      * @param oldState the old state
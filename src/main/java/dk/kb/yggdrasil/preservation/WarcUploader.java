@@ -0,0 +1,361 @@
+package dk.kb.yggdrasil.preservation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.config.RequestHandlerContext;
+import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.db.UploadJournal;
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.utils.ThreadMode;
+import dk.kb.yggdrasil.warc.WarcRecordIndex;
+
+/**
+ * Uploads the sealed WARC files to the Bitrepository, and reports the result for each request in the WARC file.
+ *
+ * With upload threads the WARC files are uploaded in the background, thus the packers can continue with a new
+ * WARC file while the previous one is being uploaded. A failed upload is retried after a delay, until the
+ * number of attempts has been used. Only then are the requests of the WARC file reported as failed.
+ * Without upload threads the WARC file is uploaded by the thread sealing it, as the packers have always done.
+ */
+public class WarcUploader {
+    /** Logging mechanism. */
+    private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+    /** The maximum time to wait for the pending uploads during shutdown: 1 hour. */
+    private static final long SHUTDOWN_TIMEOUT_IN_MINUTES = 60L;
+
+    /** The context, containing the Bitrepository, the state database, etc. */
+    private final RequestHandlerContext context;
+    /** The threads uploading the WARC files, or null if the WARC files are uploaded by the sealing thread. */
+    private final ScheduledExecutorService uploadThreads;
+    /** The number of attempts to upload a WARC file, before giving up. */
+    private final int uploadAttempts;
+    /** The delay in milliseconds before retrying a failed upload. */
+    private final long retryDelay;
+    /** The journal of the WARC files not yet uploaded, or null if the WARC files are not journaled. */
+    private final UploadJournal journal;
+
+    /**
+     * Constructor, with the upload threads and retry policy from the configuration, and with the journal in the
+     * database directory.
+     * @param context The context for the preservation.
+     */
+    public WarcUploader(RequestHandlerContext context) {
+        this(context, context.getConfig().getThreadMode(), context.getConfig().getUploadThreads(),
+                context.getConfig().getUploadAttempts(), context.getConfig().getUploadRetryDelay(),
+                new UploadJournal(context.getConfig().getDatabaseDir()));
+    }
+
+    /**
+     * Constructor.
+     * @param context The context for the preservation.
+     * @param threadMode The kind of threads for uploading the WARC files.
+     * @param numberOfThreads The number of upload threads. 0 for uploading in the thread sealing the WARC file.
+     * @param uploadAttempts The number of attempts to upload a WARC file, before giving up.
+     * @param retryDelay The delay in milliseconds before retrying a failed upload.
+     * @param journal The journal of the WARC files not yet uploaded, or null for not journaling the WARC files.
+     */
+    public WarcUploader(RequestHandlerContext context, ThreadMode threadMode, int numberOfThreads,
+            int uploadAttempts, long retryDelay, UploadJournal journal) {
+        ArgumentCheck.checkNotNull(context, "RequestHandlerContext context");
+        ArgumentCheck.checkNotNull(threadMode, "ThreadMode threadMode");
+        ArgumentCheck.checkNotNegativeInt(numberOfThreads, "int numberOfThreads");
+        ArgumentCheck.checkPositiveInt(uploadAttempts, "int uploadAttempts");
+        ArgumentCheck.checkNotNegativeLong(retryDelay, "long retryDelay");
+        this.context = context;
+        this.uploadAttempts = uploadAttempts;
+        this.retryDelay = retryDelay;
+        this.journal = journal;
+        if (numberOfThreads > 0) {
+            this.uploadThreads = Executors.newScheduledThreadPool(numberOfThreads,
+                    threadMode.newThreadFactory("WarcUploader"));
+        } else {
+            this.uploadThreads = null;
+        }
+    }
+
+    /**
+     * @return Whether the WARC files are uploaded in the background.
+     */
+    public boolean isAsynchronous() {
+        return uploadThreads != null;
+    }
+
+    /**
+     * @return The journal of the WARC files not yet uploaded, or null if the WARC files are not journaled.
+     */
+    public UploadJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Uploads the WARC files left in the journal by a previous run, i.e. the sealed WARC files which were not
+     * uploaded, and the WARC files which were still being written. A WARC file is cut off after the records of the
+     * last journaled request, since a later record may be incomplete. Its index is rebuilt, since the records of
+     * the index must match the cut off WARC file.
+     * The journaled requests, whose records are not in the WARC file, e.g. since they were lost with a power loss, 
+     * are reported as failed uploads, thus they can be sent again. A WARC file without any of its journaled 
+     * requests is deleted.
+     * This must only be called at startup, before any WARC files are written.
+     */
+    public void recoverUploads() {
+        if (journal == null) {
+            return;
+        }
+        for (UploadJournal.WarcFileEntry entry : journal.getWarcFileEntries()) {
+            File warcFile = entry.getWarcFile();
+            List<PreservationRequestState> requests = new ArrayList<PreservationRequestState>();
+            List<PreservationRequestState> lostRequests = new ArrayList<PreservationRequestState>();
+            long validSize = 0L;
+            for (int i = 0; i < entry.getRequests().size(); i++) {
+                long size = entry.getWarcFileSizes().get(i);
+                if (warcFile.isFile() && size <= warcFile.length()) {
+                    requests.add(entry.getRequests().get(i));
+                    validSize = size;
+                } else {
+                    lostRequests.add(entry.getRequests().get(i));
+                }
+            }
+            if (!lostRequests.isEmpty()) {
+                logger.error("The records of " + lostRequests.size() + " journaled requests are missing from the "
+                        + "WARC file '" + warcFile.getAbsolutePath() + "'. Reporting them as failed uploads.");
+                reportRequests(warcFile, entry.getCollectionId(), lostRequests, false);
+            }
+            if (requests.isEmpty()) {
+                logger.warn("Cannot recover the upload of the WARC file '" + warcFile.getAbsolutePath()
+                        + "', since it does not contain any of its journaled requests. Deleting it.");
+                deleteWarcFile(warcFile);
+                journal.remove(warcFile);
+                continue;
+            }
+            try {
+                truncate(warcFile, validSize);
+            } catch (IOException e) {
+                logger.warn("Cannot cut off the WARC file '" + warcFile.getAbsolutePath() + "' after its last "
+                        + "journaled request. Skipping its upload.", e);
+                continue;
+            }
+            try {
+                WarcRecordIndex.build(warcFile).write(warcFile);
+            } catch (YggdrasilException e) {
+                logger.warn("Could not rebuild the index of the WARC file '" + warcFile.getAbsolutePath() + "'.", e);
+            }
+            logger.info("Recovering the upload of the WARC file '" + warcFile.getName() + "' with "
+                    + requests.size() + " requests.");
+            upload(warcFile, entry.getCollectionId(), requests);
+        }
+    }
+
+    /**
+     * Uploads a sealed WARC file, and reports the result for each of its requests.
+     * The WARC file must be closed, and the requests must no longer be changed by the packer.
+     * @param warcFile The sealed WARC file.
+     * @param collectionId The id of the collection to upload the WARC file to.
+     * @param requests The requests with records in the WARC file.
+     */
+    public void upload(File warcFile, String collectionId, List<PreservationRequestState> requests) {
+        ArgumentCheck.checkExistsNormalFile(warcFile, "File warcFile");
+        ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
+        ArgumentCheck.checkNotNull(requests, "List<PreservationRequestState> requests");
+        UploadTask task = new UploadTask(warcFile, collectionId,
+                new ArrayList<PreservationRequestState>(requests));
+        if (uploadThreads == null) {
+            task.runSynchronously();
+        } else {
+            logger.debug("Queueing the upload of the WARC file '" + warcFile.getName() + "'.");
+            uploadThreads.execute(task);
+        }
+    }
+
+    /**
+     * Waits for the pending uploads, including their retries, to finish.
+     */
+    public void shutdown() {
+        if (uploadThreads == null) {
+            return;
+        }
+        uploadThreads.shutdown();
+        try {
+            if (!uploadThreads.awaitTermination(SHUTDOWN_TIMEOUT_IN_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn("Timed out waiting for the WARC files to be uploaded.");
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the WARC files to be uploaded.", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reports the result of the upload for each of the requests in the WARC file, and removes their states.
+     * @param warcFile The WARC file.
+     * @param collectionId The id of the collection.
+     * @param requests The requests with records in the WARC file.
+     * @param success Whether the WARC file was uploaded.
+     */
+    private void reportUpload(File warcFile, String collectionId, List<PreservationRequestState> requests,
+            boolean success) {
+        reportRequests(warcFile, collectionId, requests, success);
+        if (journal != null) {
+            journal.remove(warcFile);
+        }
+    }
+
+    /**
+     * Reports the result of the upload for each of the requests, and removes their states.
+     * @param warcFile The WARC file.
+     * @param collectionId The id of the collection.
+     * @param requests The requests.
+     * @param success Whether the WARC file with their records was uploaded.
+     */
+    private void reportRequests(File warcFile, String collectionId, List<PreservationRequestState> requests,
+            boolean success) {
+        try {
+            for(PreservationRequestState prs : requests) {
+                if(success) {
+                    updateRequestState(PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS, prs);
+                    logger.info("Upload to bitrepository for UUID '" + prs.getUUID()
+                            + "' of package '" + warcFile.getName() + "' was successful.");
+                } else {
+                    prs.resetUploadPackage(); // reset warcId to null
+                    updateRequestState(PreservationState.PRESERVATION_PACKAGE_UPLOAD_FAILURE, prs);
+                    logger.warn("Upload to bitrepository for UUID '" + prs.getUUID() + "' of package '"
+                            + warcFile.getName() + "' failed.");
+                }
+                prs.cleanup();
+                context.getStateDatabase().delete(prs.getUUID());
+            }
+        } catch (YggdrasilException e) {
+            logger.error("A error occured when reporting about bitrepository upload of the file '"
+                    + warcFile.getName() + "' to the collection '" + collectionId + "'. Trying to continue.", e);
+        }
+    }
+
+    /**
+     * Deletes a WARC file, which will not be uploaded, along with its index.
+     * @param warcFile The WARC file.
+     */
+    private void deleteWarcFile(File warcFile) {
+        for (File file : new File[]{warcFile, WarcRecordIndex.getIndexFile(warcFile)}) {
+            if (file.exists() && !file.delete()) {
+                logger.warn("Could not delete the file '" + file.getAbsolutePath() + "'.");
+            }
+        }
+    }
+
+    /**
+     * Cuts off the end of a file, if it is larger than the given size.
+     * @param file The file.
+     * @param size The size to cut the file down to.
+     * @throws IOException If the file cannot be cut.
+     */
+    private static void truncate(File file, long size) throws IOException {
+        if (file.length() > size) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+            }
+        }
+    }
+
+    /**
+     * Update the preservation state of the request, both locally and remote.
+     * @param preservationState The new state.
+     * @param prs The request to update.
+     * @throws YggdrasilException If something goes wrong.
+     */
+    private void updateRequestState(PreservationState preservationState, PreservationRequestState prs)
+            throws YggdrasilException {
+        context.getRemotePreservationStateUpdater().sendPreservationResponse(prs, preservationState);
+        context.getStateDatabase().putPreservationRecord(prs.getUUID(), prs);
+    }
+
+    /**
+     * The upload of a single WARC file, with its remaining attempts.
+     */
+    private class UploadTask implements Runnable {
+        /** The sealed WARC file. */
+        private final File warcFile;
+        /** The id of the collection. */
+        private final String collectionId;
+        /** The requests with records in the WARC file. */
+        private final List<PreservationRequestState> requests;
+        /** The number of attempts made so far. */
+        private int attempts = 0;
+
+        /**
+         * Constructor.
+         * @param warcFile The sealed WARC file.
+         * @param collectionId The id of the collection.
+         * @param requests The requests with records in the WARC file.
+         */
+        UploadTask(File warcFile, String collectionId, List<PreservationRequestState> requests) {
+            this.warcFile = warcFile;
+            this.collectionId = collectionId;
+            this.requests = requests;
+        }
+
+        /**
+         * Makes one attempt. If it fails and attempts remain, then the task is rescheduled after the retry delay.
+         */
+        @Override
+        public void run() {
+            if (attemptUpload()) {
+                reportUpload(warcFile, collectionId, requests, true);
+                return;
+            }
+            if (attempts < uploadAttempts) {
+                try {
+                    uploadThreads.schedule(this, retryDelay, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Cannot retry the upload of the WARC file '" + warcFile.getName()
+                            + "' during shutdown.", e);
+                }
+            }
+            reportUpload(warcFile, collectionId, requests, false);
+        }
+
+        /**
+         * Makes all the attempts in the current thread, waiting the retry delay between them.
+         */
+        void runSynchronously() {
+            boolean success = attemptUpload();
+            while (!success && attempts < uploadAttempts) {
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting to retry the upload of the WARC file '"
+                            + warcFile.getName() + "'.", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                success = attemptUpload();
+            }
+            reportUpload(warcFile, collectionId, requests, success);
+        }
+
+        /**
+         * @return Whether the WARC file was uploaded at this attempt.
+         */
+        private boolean attemptUpload() {
+            attempts++;
+            boolean success = context.getBitrepository().uploadFile(warcFile, collectionId);
+            if (!success && attempts < uploadAttempts) {
+                logger.warn("Attempt " + attempts + " of " + uploadAttempts + " to upload the WARC file '"
+                        + warcFile.getName() + "' to the collection '" + collectionId + "' failed. Retrying in "
+                        + retryDelay + " ms.");
+            }
+            return success;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package dk.kb.yggdrasil.preservationimport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bitrepository.bitrepositoryelements.ChecksumType;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * Calculates the checksums in several algorithms in a single pass over the data, by updating a message digest for
+ * each of the algorithms with every read byte.
+ * The data can either be digested while it is read for another purpose, e.g. while it is extracted or delivered,
+ * or be read from a file.
+ */
+public class ChecksumCalculator {
+    /** The size of the buffer, when reading a file. */
+    private static final int BUFFER_SIZE = 16*1024;
+    /** The prefix of the names of the SHA checksum types. */
+    private static final String SHA_PREFIX = "SHA";
+
+    /** The message digests mapped by their checksum type. */
+    private final Map<ChecksumType, MessageDigest> digests = new LinkedHashMap<ChecksumType, MessageDigest>();
+    /** The calculated checksums, when they have been retrieved. */
+    private Map<ChecksumType, String> checksums = null;
+
+    /**
+     * Constructor.
+     * @param checksumTypes The types of the checksums to calculate.
+     * @throws YggdrasilException If one of the checksum types is not supported.
+     */
+    public ChecksumCalculator(Collection<ChecksumType> checksumTypes) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(checksumTypes, "Collection<ChecksumType> checksumTypes");
+        for (ChecksumType checksumType : checksumTypes) {
+            digests.put(checksumType, getMessageDigest(checksumType));
+        }
+    }
+
+    /**
+     * Wraps a stream, thus the checksums are calculated while the stream is being read.
+     * @param content The stream to calculate the checksums of.
+     * @return The wrapping stream.
+     */
+    public InputStream getDigestingInputStream(InputStream content) {
+        ArgumentCheck.checkNotNull(content, "InputStream content");
+        if (digests.isEmpty()) {
+            return content;
+        }
+        return new DigestingInputStream(content);
+    }
+
+    /**
+     * Calculates the checksums of a file by reading it once.
+     * @param file The file to calculate the checksums of.
+     * @return The checksums of the file as hexadecimal strings, mapped by their checksum type.
+     * @throws YggdrasilException If the file cannot be read.
+     */
+    public Map<ChecksumType, String> calculate(File file) throws YggdrasilException {
+        ArgumentCheck.checkExistsNormalFile(file, "File file");
+        try (InputStream in = getDigestingInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) > -1) {
+                // The checksums are calculated while reading.
+            }
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not calculate the checksums of the file '" + file.getName() + "'.",
+                    e);
+        }
+        return getChecksums();
+    }
+
+    /**
+     * Finishes the calculation of the checksums, thus no more data should be read through the digesting stream.
+     * @return The checksums of the read data as hexadecimal strings, mapped by their checksum type.
+     */
+    public synchronized Map<ChecksumType, String> getChecksums() {
+        if (checksums == null) {
+            Map<ChecksumType, String> res = new LinkedHashMap<ChecksumType, String>();
+            for (Map.Entry<ChecksumType, MessageDigest> digest : digests.entrySet()) {
+                res.put(digest.getKey(), toHex(digest.getValue().digest()));
+            }
+            checksums = Collections.unmodifiableMap(res);
+        }
+        return checksums;
+    }
+
+    /**
+     * @param checksumType The checksum type.
+     * @return Whether checksums of the type can be calculated.
+     */
+    public static boolean isSupported(ChecksumType checksumType) {
+        try {
+            getMessageDigest(checksumType);
+            return true;
+        } catch (YggdrasilException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param checksumType The checksum type.
+     * @return A new message digest for the checksum type.
+     * @throws YggdrasilException If the checksum type is not supported.
+     */
+    private static MessageDigest getMessageDigest(ChecksumType checksumType) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(checksumType, "ChecksumType checksumType");
+        String algorithm;
+        if (checksumType == ChecksumType.MD5) {
+            algorithm = "MD5";
+        } else if (checksumType.name().startsWith(SHA_PREFIX)) {
+            algorithm = SHA_PREFIX + "-" + checksumType.name().substring(SHA_PREFIX.length());
+        } else {
+            throw new YggdrasilException(checksumType.name() + " is not supported.");
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new YggdrasilException(checksumType.name() + " is not supported.", e);
+        }
+    }
+
+    /**
+     * @param bytes The bytes of a digest.
+     * @return The bytes as a hexadecimal string.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder res = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            res.append(String.format("%02x", b));
+        }
+        return res.toString();
+    }
+
+    /**
+     * Stream, which updates all the message digests with the read bytes.
+     */
+    private class DigestingInputStream extends FilterInputStream {
+        /**
+         * Constructor.
+         * @param in The stream to digest.
+         */
+        DigestingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int res = in.read();
+            if (res > -1) {
+                for (MessageDigest digest : digests.values()) {
+                    digest.update((byte) res);
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int res = in.read(b, off, len);
+            if (res > 0) {
+                for (MessageDigest digest : digests.values()) {
+                    digest.update(b, off, res);
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 0L))];
+            long res = 0L;
+            while (res < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - res));
+                if (read < 0) {
+                    break;
+                }
+                res += read;
+            }
+            return res;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
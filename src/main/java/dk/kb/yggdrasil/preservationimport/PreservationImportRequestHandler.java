@@ -4,23 +4,34 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
 import org.bitrepository.bitrepositoryelements.ChecksumType;
 import org.bitrepository.bitrepositoryelements.FilePart;
-import org.bitrepository.common.utils.ChecksumUtils;
+import org.jwat.common.RandomAccessFileInputStream;
 import org.jwat.common.Uri;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
@@ -37,6 +48,7 @@ import dk.kb.yggdrasil.json.preservationimport.PreservationImportRequest;
 import dk.kb.yggdrasil.json.preservationimport.Security;
 import dk.kb.yggdrasil.messaging.MessageRequestHandler;
 import dk.kb.yggdrasil.utils.TimeUtils;
+import dk.kb.yggdrasil.warc.WarcRecordIndex;
 
 /**
  * The handler class for preservation import requests.
@@ -47,9 +59,15 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
 
     /** Context for this preservation. */
     private final RequestHandlerContext context;
+    /** The cache of the retrieved WARC files and file parts. Created at the first retrieval, if enabled. */
+    private WarcFileCache cache;
+    /** The keys of the WARC files (see getOrderingKey), which are currently being retrieved. */
+    private final Set<String> retrievingWarcFiles = new HashSet<String>();
     
     /** The size of the buffer. */
     private static final int BUFFER_SIZE = 16*1024;
+    /** The subdirectory to the temporary directory for the cache of the retrieved WARC files. */
+    private static final String IMPORT_CACHE_SUBDIR = "import_cache";
     
     /**
      * Constructor.
@@ -89,7 +107,24 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
         return JSONMessaging.getRequest(new PushbackInputStream(new ByteArrayInputStream(b), PUSHBACKBUFFERSIZE), 
                 PreservationImportRequest.class);
     }
-    
+
+    /**
+     * The Bitrepository delivers a retrieved WARC file, or part of it, to a file exchange URL derived only from the
+     * WARC file id, thus the imports from the same WARC file are handled one at a time, to avoid the deliveries
+     * overwriting each other. Imports from different WARC files are handled concurrently.
+     * This handler is shared by the dispatchers of all the consumer groups, thus the retrievals are also kept apart
+     * by the handler itself, see lockWarcFile.
+     * @param request The preservation import request.
+     * @return The preservation profile along with the WARC file id, or null if the request has no WARC file id.
+     */
+    @Override
+    public String getOrderingKey(PreservationImportRequest request) {
+        if (request.warc == null || request.warc.warc_file_id == null) {
+            return null;
+        }
+        return request.preservation_profile + "/" + request.warc.warc_file_id;
+    }
+
     /**
      * Performing the import operation.
      * @param state The state for handling the preservation import request.
@@ -98,18 +133,38 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
     public void performImport(PreservationImportRequestState state) throws YggdrasilException {
         logger.info("Starting to import '" + state.getRequest().type + "' for uuid '" + state.getRequest().uuid + "'");
         try {
-            retrieveData(state);
-            logger.info("Retrieved data for import of '" + state.getRequest().type + "' for uuid '" 
-                    + state.getRequest().uuid + "'");
+            String warcFileKey = getOrderingKey(state.getRequest());
+            if(context.getConfig().isImportStreaming()) {
+                validateTokenDate(state);
+
+                logger.info("Starting to stream data for import '" + state.getRequest().type + "' for uuid '" 
+                        + state.getRequest().uuid + "'");
+
+                lockWarcFile(warcFileKey);
+                try {
+                    streamData(state);
+                } finally {
+                    unlockWarcFile(warcFileKey);
+                }
+            } else {
+                lockWarcFile(warcFileKey);
+                try {
+                    retrieveData(state);
+                } finally {
+                    unlockWarcFile(warcFileKey);
+                }
+                logger.info("Retrieved data for import of '" + state.getRequest().type + "' for uuid '" 
+                        + state.getRequest().uuid + "'");
+
+                validateExtractedData(state);
 
-            validateExtractedData(state);
+                validateTokenDate(state);
 
-            validateTokenDate(state);
-            
-            logger.info("Starting to deliver data for import '" + state.getRequest().type + "' for uuid '" 
-                    + state.getRequest().uuid + "'");
+                logger.info("Starting to deliver data for import '" + state.getRequest().type + "' for uuid '" 
+                        + state.getRequest().uuid + "'");
 
-            deliverData(state);
+                deliverData(state);
+            }
 
             // Send final success response.
             context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
@@ -129,6 +184,45 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
         }
     }
 
+    /**
+     * Waits until no other import is retrieving from the WARC file, and then marks it as being retrieved.
+     * The Bitrepository delivers to a file exchange URL derived only from the WARC file id, thus two concurrent 
+     * retrievals from the same WARC file would overwrite each other's delivery, also when they are dispatched from 
+     * different consumer groups.
+     * @param warcFileKey The key of the WARC file, or null if the import has no WARC file id.
+     * @throws YggdrasilException If interrupted while waiting.
+     */
+    private void lockWarcFile(String warcFileKey) throws YggdrasilException {
+        if(warcFileKey == null) {
+            return;
+        }
+        synchronized(retrievingWarcFiles) {
+            try {
+                while(!retrievingWarcFiles.add(warcFileKey)) {
+                    retrievingWarcFiles.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new YggdrasilException("Interrupted while waiting to retrieve from '" + warcFileKey + "'.", 
+                        e);
+            }
+        }
+    }
+
+    /**
+     * Marks the WARC file as no longer being retrieved, and wakes up the imports waiting for it.
+     * @param warcFileKey The key of the WARC file, or null if the import has no WARC file id.
+     */
+    private void unlockWarcFile(String warcFileKey) {
+        if(warcFileKey == null) {
+            return;
+        }
+        synchronized(retrievingWarcFiles) {
+            retrievingWarcFiles.remove(warcFileKey);
+            retrievingWarcFiles.notifyAll();
+        }
+    }
+
     /**
      * Validates the preservation import request.
      * Currently only validates the preservation profile against the possible bitrepository-collections.
@@ -209,17 +303,33 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
                 PreservationImportState.PRESERVATION_IMPORT_RETRIEVAL_FROM_BITREPOSITORY_INITIATED, null);
         try {
             if(state.getImportData() == null || !state.getImportData().isFile()) {
-                FilePart filePart = null;
                 PreservationImportRequest request = state.getRequest();
-                if(state.getRequest().warc.warc_offset != null && request.warc.warc_record_size != null) {
-                    filePart = new FilePart();
-                    filePart.setPartOffSet(BigInteger.valueOf(Long.parseLong(request.warc.warc_offset)));
-                    filePart.setPartLength(BigInteger.valueOf(Long.parseLong(request.warc.warc_record_size)));
-                }
-                File warcFile = context.getBitrepository().getFile(request.warc.warc_file_id, 
-                        request.preservation_profile, filePart);
+                FilePart filePart = getFilePart(request);
+                File warcFile = retrieveFile(request, filePart);
                 
-                File record = extractData(warcFile, state);
+                File record = null;
+                try {
+                    if(filePart != null) {
+                        record = extractDataAtOffset(warcFile, filePart, state);
+                        if(record == null) {
+                            logger.info("The record '" + request.warc.warc_record_id + "' was not at the given "
+                                    + "offset. Scanning for it instead.");
+                            record = extractDataOrNull(warcFile, state);
+                        }
+                        if(record == null) {
+                            logger.warn("The record '" + request.warc.warc_record_id + "' was not in the retrieved "
+                                    + "part of the WARC file. Retrieving the whole WARC file.");
+                            releaseFile(warcFile);
+                            warcFile = null;
+                            warcFile = retrieveFile(request, null);
+                        }
+                    }
+                    if(record == null) {
+                        record = extractData(warcFile, state);
+                    }
+                } finally {
+                    releaseFile(warcFile);
+                }
                 state.setImportData(record);
                 logger.info("Retrieved data from Bitrepository for '" + state.getRequest().uuid + "'.");
             } else {
@@ -234,6 +344,214 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
         }
     }
     
+    /**
+     * Streams the warc-record payload from the Bitrepository directly to the delivery URL, without storing the
+     * WARC file or the payload on local disk. 
+     * The checksums are calculated while the payload is delivered, thus they can only be validated, when the whole 
+     * payload has been sent. An invalid payload makes the delivery fail before the request is completed, but the 
+     * receiver may still have received the invalid bytes. This is a weaker integrity than validating the extracted 
+     * record before delivering it, thus streaming is off by default.
+     * If the record is not in the retrieved part of the WARC file, then the whole WARC file is streamed instead.
+     * @param state The state of the preservation import request message handling.
+     * @throws YggdrasilException If the retrieval, the delivery or the validation of the data fails.
+     */
+    private void streamData(PreservationImportRequestState state) throws YggdrasilException {
+        context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
+                PreservationImportState.PRESERVATION_IMPORT_RETRIEVAL_FROM_BITREPOSITORY_INITIATED, null);
+        PreservationImportRequest request = state.getRequest();
+        FilePart filePart = getFilePart(request);
+        if(filePart != null) {
+            if(streamRecord(state, filePart)) {
+                return;
+            }
+            logger.warn("The record '" + request.warc.warc_record_id + "' was not in the retrieved part "
+                    + "of the WARC file. Streaming the whole WARC file.");
+        }
+        if(!streamRecord(state, null)) {
+            String errMsg = "Did not find the record";
+            logger.warn(errMsg);
+            context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
+                    PreservationImportState.PRESERVATION_IMPORT_RETRIEVAL_FROM_BITREPOSITORY_FAILURE, errMsg);
+            throw new YggdrasilException(errMsg);
+        }
+    }
+
+    /**
+     * Streams the WARC file or the part of it from the Bitrepository, and delivers the payload of the requested 
+     * warc-record, when it is reached.
+     * A part of the WARC file, which cannot be parsed, is regarded as not containing the record, thus the whole WARC
+     * file is streamed instead.
+     * @param state The state of the preservation import request message handling.
+     * @param filePart The part of the WARC file, or null for the whole WARC file.
+     * @return Whether the record was found and delivered.
+     * @throws YggdrasilException If the retrieval, the delivery or the validation of the data fails.
+     */
+    private boolean streamRecord(PreservationImportRequestState state, FilePart filePart) 
+            throws YggdrasilException {
+        InputStream in;
+        try {
+            in = context.getBitrepository().getFileAsStream(state.getRequest().warc.warc_file_id, 
+                    state.getRequest().preservation_profile, filePart);
+        } catch (YggdrasilException e) {
+            context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
+                    PreservationImportState.PRESERVATION_IMPORT_RETRIEVAL_FROM_BITREPOSITORY_FAILURE, e.getMessage());
+            throw e;
+        }
+        boolean delivering = false;
+        try {
+            Uri uuid = getRecordUri(state);
+            WarcReader reader = WarcReaderFactory.getReader(in);
+            WarcRecord record;
+            while ((record = reader.getNextRecord()) != null) {
+                if(uuid.equals(record.header.warcRecordIdUri)) {
+                    state.setWarcHeaderChecksum(record.header.warcBlockDigestStr);
+                    delivering = true;
+                    deliverStream(state, record.getPayloadContent());
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            if(filePart != null && !delivering) {
+                // E.g. a stale offset pointing into the middle of a record or a gzip member.
+                logger.warn("Could not parse the retrieved part of the warc file.", e);
+                return false;
+            }
+            throw new YggdrasilException("Could not stream the data from the warc file.", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the stream of the warc file.", e);
+            }
+        }
+    }
+
+    /**
+     * Delivers the payload of the warc-record to the given URL, while calculating the checksums of it. 
+     * The checksums are validated against the optional security-checksum in the request and the warc-header 
+     * checksum, when the end of the payload is read, and an invalid payload aborts the request before it is 
+     * completed.
+     * @param state The state of the preservation import request message handling.
+     * @param payload The payload of the warc-record.
+     * @throws YggdrasilException If the data fails to be delivered, or it is not valid.
+     */
+    private void deliverStream(PreservationImportRequestState state, InputStream payload) 
+            throws YggdrasilException {
+        ChecksumCalculator calculator = new ChecksumCalculator(getChecksumTypes(state));
+        ValidatingInputStream in = new ValidatingInputStream(calculator.getDigestingInputStream(payload), state, 
+                calculator);
+        boolean success = post(state, new InputStreamBody(in, ContentType.DEFAULT_BINARY, state.getRequest().uuid));
+        if(in.checksumError != null) {
+            context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
+                    PreservationImportState.PRESERVATION_IMPORT_FAILURE, in.checksumError);
+            throw new YggdrasilException(in.checksumError);
+        }
+        checkDelivery(state, success);
+    }
+
+    /**
+     * @param request The request containing the WARC file and record.
+     * @return The part of the WARC file with the record, from the offset and size in the request or from the local 
+     * index of the WARC file, or null if the part is not known.
+     */
+    private FilePart getFilePart(PreservationImportRequest request) {
+        if(request.warc.warc_offset != null && request.warc.warc_record_size != null) {
+            FilePart res = new FilePart();
+            res.setPartOffSet(BigInteger.valueOf(Long.parseLong(request.warc.warc_offset)));
+            res.setPartLength(BigInteger.valueOf(Long.parseLong(request.warc.warc_record_size)));
+            return res;
+        }
+        return lookupFilePart(request);
+    }
+
+    /**
+     * Retrieves the WARC file or the part of it from the cache, or from the Bitrepository if it is not cached.
+     * A part can also be served by the whole WARC file, if it is cached.
+     * A retrieved whole WARC file is only cached, when it has been verified against the checksums of the pillars.
+     * A retrieved part cannot be verified this way, but the extracted record is validated against its block digest.
+     * A file from the cache is kept from being deleted, until it is given to releaseFile.
+     * @param request The request containing the WARC file and the collection.
+     * @param filePart The part of the WARC file, or null for the whole WARC file.
+     * @return The retrieved WARC file or part of it.
+     * @throws YggdrasilException If the retrieval from the Bitrepository fails.
+     */
+    private File retrieveFile(PreservationImportRequest request, FilePart filePart) throws YggdrasilException {
+        String fileId = request.warc.warc_file_id;
+        String collectionId = request.preservation_profile;
+        WarcFileCache cache = getCache();
+        if(cache == null) {
+            return context.getBitrepository().getFile(fileId, collectionId, filePart);
+        }
+        File res = cache.get(collectionId, fileId, filePart);
+        if(res == null && filePart != null) {
+            res = cache.get(collectionId, fileId, null);
+        }
+        if(res != null) {
+            logger.info("Using the cached copy of the WARC file '" + fileId + "'.");
+            return res;
+        }
+        res = context.getBitrepository().getFile(fileId, collectionId, filePart);
+        if(filePart == null && !context.getBitrepository().verifyChecksum(res, fileId, collectionId)) {
+            logger.warn("Not caching the WARC file '" + fileId + "', since it could not be verified against the "
+                    + "checksums of the Bitrepository.");
+            return res;
+        }
+        return cache.put(collectionId, fileId, filePart, res);
+    }
+
+    /**
+     * Releases a file from retrieveFile, when the record has been extracted from it. Thus the file can be deleted, 
+     * if it has been evicted from the cache meanwhile.
+     * @param warcFile The retrieved WARC file or part of it, or null if the retrieval failed.
+     */
+    private void releaseFile(File warcFile) {
+        WarcFileCache cache = getCache();
+        if(cache != null && warcFile != null) {
+            cache.release(warcFile);
+        }
+    }
+
+    /**
+     * @return The cache of the retrieved WARC files and file parts, or null if they are not cached.
+     */
+    private synchronized WarcFileCache getCache() {
+        if(cache == null && context.getConfig().getImportCacheSize() > 0) {
+            cache = new WarcFileCache(new File(context.getConfig().getTemporaryDir(), IMPORT_CACHE_SUBDIR), 
+                    context.getConfig().getImportCacheSize());
+        }
+        return cache;
+    }
+
+    /**
+     * Looks up the offset and length of the requested record in the local index of the WARC file, which is kept
+     * next to the WARC file, if it was packaged by this instance.
+     * @param request The request containing the WARC file and record.
+     * @return The part of the WARC file with the record, or null if the record is not in a local index.
+     */
+    private FilePart lookupFilePart(PreservationImportRequest request) {
+        for (File warcDir : context.getConfig().getWarcDirs()) {
+            File indexFile = WarcRecordIndex.getIndexFile(new File(warcDir, request.warc.warc_file_id));
+            if (!indexFile.isFile()) {
+                continue;
+            }
+            try {
+                WarcRecordIndex.Entry entry = WarcRecordIndex.read(indexFile).getEntry(
+                        "urn:uuid:" + request.warc.warc_record_id);
+                if (entry != null) {
+                    logger.debug("Found the record '" + request.warc.warc_record_id + "' in the local index.");
+                    FilePart res = new FilePart();
+                    res.setPartOffSet(BigInteger.valueOf(entry.getOffset()));
+                    res.setPartLength(BigInteger.valueOf(entry.getLength()));
+                    return res;
+                }
+            } catch (YggdrasilException e) {
+                logger.warn("Could not read the index file '" + indexFile.getAbsolutePath() + "'.", e);
+            }
+        }
+        return null;
+    }
+
     /**
      * Extracts the warc-record payload from the warc-file.
      * @param warcFile The warc file.
@@ -242,41 +560,100 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
      * @throws YggdrasilException If the extraction of the warc-record fails.
      */
     protected File extractData(File warcFile, PreservationImportRequestState state) throws YggdrasilException {
+        File res = extractDataOrNull(warcFile, state);
+        if(res == null) {
+            String errMsg = "Did not find the record";
+            logger.warn(errMsg);
+            throw new YggdrasilException(errMsg);
+        }
+        return res;
+    }
+
+    /**
+     * Extracts the warc-record payload from the warc-file, by scanning the records of the warc-file.
+     * @param warcFile The warc file.
+     * @param state The state of the request containing information about which warc record to extract.
+     * @return A file containing the warc-record payload, or null if the warc-file does not contain the record.
+     * @throws YggdrasilException If the extraction of the warc-record fails.
+     */
+    private File extractDataOrNull(File warcFile, PreservationImportRequestState state) throws YggdrasilException {
         ArgumentCheck.checkExistsNormalFile(warcFile, "File warcFile");
         try (InputStream in = new FileInputStream(warcFile);) {
-            WarcRecord retrievedRecord = null;
-            Uri uuid = new Uri("urn:uuid:" + state.getRequest().warc.warc_record_id);        
+            Uri uuid = getRecordUri(state);
             WarcReader reader = WarcReaderFactory.getReader( in );
             WarcRecord record;
-            while (retrievedRecord == null && (record = reader.getNextRecord()) != null) {
-                if(record.header.warcRecordIdUri.equals(uuid)) {
-                    retrievedRecord = record;
+            while ((record = reader.getNextRecord()) != null) {
+                if(uuid.equals(record.header.warcRecordIdUri)) {
                     state.setWarcHeaderChecksum(record.header.warcBlockDigestStr);
+                    return extractRecordPayloadAsFile(record, state);
                 }
             }
-            if(retrievedRecord == null) {
-                String errMsg = "Did not find the record";
-                logger.warn(errMsg);
-                throw new YggdrasilException(errMsg);
-            }
-            
-            return extractRecordPayloadAsFile(retrievedRecord);
+            return null;
         } catch (IOException e) {
             throw new YggdrasilException("Could not extract the data from the warc file.", e);
+        }
+    }
+
+    /**
+     * Extracts the warc-record payload from the record at the offset of the file part, by parsing only that record.
+     * The retrieved file is normally only the file part, thus the record is at its start. If the whole warc-file
+     * was retrieved, then the record is at the offset of the file part.
+     * @param warcFile The retrieved warc file or part of it.
+     * @param filePart The part of the warc-file with the record.
+     * @param state The state of the request containing information about which warc record to extract.
+     * @return A file containing the warc-record payload, or null if the record at the offset is not the requested 
+     * record.
+     * @throws YggdrasilException If the extraction of the warc-record fails.
+     */
+    private File extractDataAtOffset(File warcFile, FilePart filePart, PreservationImportRequestState state) 
+            throws YggdrasilException {
+        ArgumentCheck.checkExistsNormalFile(warcFile, "File warcFile");
+        long offset = filePart.getPartOffSet().longValue();
+        long position = 0L;
+        if(warcFile.length() > filePart.getPartLength().longValue() && warcFile.length() > offset) {
+            position = offset;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(warcFile, "r")) {
+            raf.seek(position);
+            WarcReader reader = WarcReaderFactory.getReader(new RandomAccessFileInputStream(raf));
+            WarcRecord record = reader.getNextRecord();
+            if(record == null || !getRecordUri(state).equals(record.header.warcRecordIdUri)) {
+                return null;
+            }
+            state.setWarcHeaderChecksum(record.header.warcBlockDigestStr);
+            return extractRecordPayloadAsFile(record, state);
+        } catch (IOException e) {
+            logger.debug("Could not parse a record at the offset " + position + " of the retrieved warc file.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param state The state of the request containing the id of the record.
+     * @return The record id as URI, as in the WARC-Record-ID header field.
+     * @throws YggdrasilException If the record id is not a valid URI.
+     */
+    private Uri getRecordUri(PreservationImportRequestState state) throws YggdrasilException {
+        try {
+            return new Uri("urn:uuid:" + state.getRequest().warc.warc_record_id);
         } catch (URISyntaxException e) {
             throw new YggdrasilException("URI for the warc-record is invalid.", e);
         }
     }
     
     /**
-     * Extracts the payload from the warc-record.
+     * Extracts the payload from the warc-record, and calculates the checksums needed for validating it while 
+     * extracting it.
      * @param record The warc record.
+     * @param state The state of the request, which gets the calculated checksums.
      * @return A file containing the payload of the warc-record.
      * @throws YggdrasilException If the extraction fails.
      */
-    private File extractRecordPayloadAsFile(WarcRecord record) throws YggdrasilException {
-        File res = new File(context.getConfig().getTemporaryDir(), "warc-record-" + new Date().getTime());
-        InputStream in = record.getPayloadContent();
+    private File extractRecordPayloadAsFile(WarcRecord record, PreservationImportRequestState state) 
+            throws YggdrasilException {
+        File res = new File(context.getConfig().getTemporaryDir(), "warc-record-" + UUID.randomUUID().toString());
+        ChecksumCalculator calculator = new ChecksumCalculator(getChecksumTypes(state));
+        InputStream in = calculator.getDigestingInputStream(record.getPayloadContent());
         try (FileOutputStream out = new FileOutputStream(res);){
             byte[] read = new byte[BUFFER_SIZE];
             int i;
@@ -287,60 +664,137 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
         } catch (IOException e) {
             throw new YggdrasilException("Could not extract warc record content into seperate file.", e);
         }
+        state.setImportDataChecksums(calculator.getChecksums());
         
         return res;
     }
     
     /**
      * Validates the extracted data against the optional security-checksum in the request (if it is there).
+     * The checksums are normally calculated while extracting the data. Otherwise, e.g. when recovering an import 
+     * with already extracted data, all the needed checksums are calculated in a single pass over the data.
      * @param state The preservation import request state.
      * @throws YggdrasilException If the extracted data is not valid.
      */
     private void validateExtractedData(PreservationImportRequestState state) throws YggdrasilException {
-        if(state.getRequest().security == null || state.getRequest().security.checksum == null 
-                || state.getRequest().security.checksum.isEmpty()) {
+        Set<ChecksumType> checksumTypes = getChecksumTypes(state);
+        Map<ChecksumType, String> checksums = state.getImportDataChecksums();
+        if(!checksums.keySet().containsAll(checksumTypes)) {
+            checksums = new ChecksumCalculator(checksumTypes).calculate(state.getImportData());
+        }
+        validateChecksums(state, checksums);
+    }
+
+    /**
+     * Finds the types of the checksums needed for validating the data: the type of the security-checksum in the 
+     * request, and the type of the warc-header checksum. 
+     * No checksums are needed, when the request has no security-checksum. Unsupported types are left out.
+     * @param state The preservation import request state.
+     * @return The checksum types.
+     */
+    private Set<ChecksumType> getChecksumTypes(PreservationImportRequestState state) {
+        Set<ChecksumType> res = new LinkedHashSet<ChecksumType>();
+        if(!hasSecurityChecksum(state)) {
+            return res;
+        }
+        for (String checksum : Arrays.asList(state.getRequest().security.checksum, state.getWarcHeaderChecksum())) {
+            if(checksum == null || !checksum.contains(":")) {
+                continue;
+            }
+            try {
+                ChecksumType checksumType = extractChecksumType(checksum);
+                if(ChecksumCalculator.isSupported(checksumType)) {
+                    res.add(checksumType);
+                }
+            } catch (YggdrasilException e) {
+                logger.debug("Cannot calculate the checksum '" + checksum + "'.", e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param state The preservation import request state.
+     * @return Whether the request has a security-checksum.
+     */
+    private boolean hasSecurityChecksum(PreservationImportRequestState state) {
+        return state.getRequest().security != null && state.getRequest().security.checksum != null 
+                && !state.getRequest().security.checksum.isEmpty();
+    }
+
+    /**
+     * Validates the calculated checksums of the data against the optional security-checksum in the request 
+     * (if it is there), and against the warc-header checksum.
+     * @param state The preservation import request state.
+     * @param checksums The calculated checksums of the data, mapped by their checksum type.
+     * @throws YggdrasilException If the data is not valid.
+     */
+    private void validateChecksums(PreservationImportRequestState state, Map<ChecksumType, String> checksums) 
+            throws YggdrasilException {
+        String errMsg = getChecksumError(state, checksums);
+        if(errMsg != null) {
+            context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
+                    PreservationImportState.PRESERVATION_IMPORT_FAILURE, errMsg);
+            throw new YggdrasilException(errMsg);
+        }
+    }
+
+    /**
+     * Compares the calculated checksums of the data with the optional security-checksum in the request 
+     * (if it is there), and with the warc-header checksum.
+     * @param state The preservation import request state.
+     * @param checksums The calculated checksums of the data, mapped by their checksum type.
+     * @return The description of the inconsistent checksum, or null if the data is valid.
+     * @throws YggdrasilException If a checksum cannot be compared, e.g. since its algorithm is not supported.
+     */
+    private String getChecksumError(PreservationImportRequestState state, Map<ChecksumType, String> checksums) 
+            throws YggdrasilException {
+        if(!hasSecurityChecksum(state)) {
             logger.debug("No checksum to validate ");
-            return;
+            return null;
         }
         ChecksumType csType = extractChecksumType(state.getRequest().security.checksum);
         String deliveredChecksum = state.getRequest().security.checksum.split(":")[1];
-        String calculatedChecksum = ChecksumUtils.generateChecksum(state.getImportData(), csType);
+        String calculatedChecksum = getCalculatedChecksum(checksums, csType);
         
         // Validate against delivered checksum.
         if(!calculatedChecksum.equalsIgnoreCase(deliveredChecksum)) {
-            String errMsg = "Inconsistent checksum between retrieved file ('" + calculatedChecksum 
+            return "Inconsistent checksum between retrieved file ('" + calculatedChecksum 
                     + "') and the delivered checksum ('" + deliveredChecksum + "') in the algorithm '" 
                     + csType.name() + "'.";
-            context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
-                    PreservationImportState.PRESERVATION_IMPORT_FAILURE, errMsg);
-
-            throw new YggdrasilException(errMsg);
         }
         
         // Validate against warc-header checksum
         if(state.getWarcHeaderChecksum() == null || state.getWarcHeaderChecksum().isEmpty() 
                 || !state.getWarcHeaderChecksum().contains(":")) {
             logger.warn("Cannot validate against header fields. Continuing anyway.");
-            return;
+            return null;
         }
         ChecksumType headerCsType = extractChecksumType(state.getWarcHeaderChecksum());
         String headerChecksum = state.getWarcHeaderChecksum().split(":")[1];
-        String checksumForHeader;
-        if(headerCsType == csType) {
-            checksumForHeader = calculatedChecksum;             
-        } else {
-            checksumForHeader = ChecksumUtils.generateChecksum(state.getImportData(), headerCsType);
-        }
+        String checksumForHeader = getCalculatedChecksum(checksums, headerCsType);
         
         if(!headerChecksum.equalsIgnoreCase(checksumForHeader)){
-            String errMsg = "Inconsistent checksum between retrieved file ('" + checksumForHeader 
+            return "Inconsistent checksum between retrieved file ('" + checksumForHeader 
                     + "') and the header checksum ('" + headerChecksum + "') in the algorithm '" 
                     + headerCsType.name() + "'.";
-            context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
-                    PreservationImportState.PRESERVATION_IMPORT_FAILURE, errMsg);
+        }
+        return null;
+    }
 
-            throw new YggdrasilException(errMsg);
+    /**
+     * @param checksums The calculated checksums of the data, mapped by their checksum type.
+     * @param csType The checksum type.
+     * @return The calculated checksum of the type.
+     * @throws YggdrasilException If the checksum of the type has not been calculated, since it is not supported.
+     */
+    private String getCalculatedChecksum(Map<ChecksumType, String> checksums, ChecksumType csType) 
+            throws YggdrasilException {
+        String res = checksums.get(csType);
+        if(res == null) {
+            throw new YggdrasilException(csType.name() + " is not supported.");
         }
+        return res;
     }
     
     /**
@@ -366,6 +820,27 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
      * @throws YggdrasilException If the data fails to be delivered.
      */
     private void deliverData(PreservationImportRequestState state) throws YggdrasilException {
+        deliver(state, new FileBody(state.getImportData()));
+    }
+
+    /**
+     * Sends the data to the given URL, though security demands a token, then also deliver the token.
+     * @param state The state of the preservation import request message handling.
+     * @param data The data to deliver.
+     * @throws YggdrasilException If the data fails to be delivered.
+     */
+    private void deliver(PreservationImportRequestState state, ContentBody data) throws YggdrasilException {
+        checkDelivery(state, post(state, data));
+    }
+
+    /**
+     * Posts the data to the given URL, though security demands a token, then also post the token.
+     * @param state The state of the preservation import request message handling.
+     * @param data The data to post.
+     * @return Whether the data was delivered.
+     * @throws YggdrasilException If the state of the request cannot be sent.
+     */
+    private boolean post(PreservationImportRequestState state, ContentBody data) throws YggdrasilException {
         context.getRemotePreservationStateUpdater().sendPreservationImportResponse(state, 
                 PreservationImportState.PRESERVATION_IMPORT_DELIVERY_INITIATED, null);
 
@@ -379,10 +854,18 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
         builder.addTextBody("uuid", state.getRequest().uuid);
         builder.addTextBody("type", state.getRequest().type);
 
-        builder.addBinaryBody("file", state.getImportData());
+        builder.addPart("file", data);
         HttpEntity multipart = builder.build();
-        boolean success = context.getHttpCommunication().post(state.getRequest().url, multipart);
+        return context.getHttpCommunication().post(state.getRequest().url, multipart);
+    }
 
+    /**
+     * Reports the outcome of the delivery of the data.
+     * @param state The state of the preservation import request message handling.
+     * @param success Whether the data was delivered.
+     * @throws YggdrasilException If the data failed to be delivered.
+     */
+    private void checkDelivery(PreservationImportRequestState state, boolean success) throws YggdrasilException {
         if(success) {
             logger.info("Successfully delivered data for '" + state.getRequest().uuid + "'");
         } else {
@@ -414,4 +897,67 @@ public class PreservationImportRequestHandler extends MessageRequestHandler<Pres
             }
         }
     }
+
+    /**
+     * Validates the checksums of a streamed payload, when the end of it is read, and fails the read if they are 
+     * inconsistent. Thus the delivery of an invalid payload is aborted, before the request is completed.
+     */
+    private class ValidatingInputStream extends FilterInputStream {
+        /** The state of the preservation import request message handling.*/
+        private final PreservationImportRequestState state;
+        /** The calculator of the checksums of the payload.*/
+        private final ChecksumCalculator calculator;
+        /** Whether the end of the payload has been read, thus the checksums have been validated.*/
+        private boolean endReached = false;
+        /** The description of the inconsistent checksum, or null if the checksums are valid or not validated.*/
+        private String checksumError = null;
+
+        /**
+         * Constructor.
+         * @param in The digesting stream of the payload.
+         * @param state The state of the preservation import request message handling.
+         * @param calculator The calculator of the checksums of the payload.
+         */
+        ValidatingInputStream(InputStream in, PreservationImportRequestState state, ChecksumCalculator calculator) {
+            super(in);
+            this.state = state;
+            this.calculator = calculator;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int res = super.read();
+            if(res == -1) {
+                validate();
+            }
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int res = super.read(b, off, len);
+            if(res == -1) {
+                validate();
+            }
+            return res;
+        }
+
+        /**
+         * Validates the checksums of the payload, the first time the end of it is read.
+         * @throws IOException If the checksums are inconsistent.
+         */
+        private void validate() throws IOException {
+            if(!endReached) {
+                endReached = true;
+                try {
+                    checksumError = getChecksumError(state, calculator.getChecksums());
+                } catch (YggdrasilException e) {
+                    checksumError = e.getMessage();
+                }
+            }
+            if(checksumError != null) {
+                throw new IOException(checksumError);
+            }
+        }
+    }
 }
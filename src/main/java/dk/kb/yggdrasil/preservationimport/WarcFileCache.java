@@ -0,0 +1,232 @@
+package dk.kb.yggdrasil.preservationimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.bitrepository.bitrepositoryelements.FilePart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * A size-bounded cache on disk of the WARC files and file parts retrieved from the Bitrepository for imports.
+ *
+ * The files are keyed by the collection, the WARC file id and the offset range of the file part, thus repeated
+ * imports from the same WARC file do not need to retrieve it from the pillars again. When the cache exceeds its
+ * size, then the least recently used files are deleted.
+ * The files returned by get and put are pinned, until they are given to release, thus a file being used by one import
+ * is not deleted, when another import evicts it. An evicted pinned file is deleted, when it is released.
+ * The cache is not kept between restarts, thus the cache directory is emptied when the cache is created.
+ */
+public class WarcFileCache {
+    /** Logging mechanism. */
+    private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** The directory with the cached files. */
+    private final File cacheDir;
+    /** The maximum total size of the cached files in bytes. */
+    private final long maxSize;
+    /** The cached files mapped by their keys, in the order of their last use. */
+    private final LinkedHashMap<String, File> files = new LinkedHashMap<String, File>(16, 0.75f, true);
+    /** The sizes of the cached files, when they were put into the cache, mapped by their keys. */
+    private final Map<String, Long> fileSizes = new HashMap<String, Long>();
+    /** The number of uses of the pinned files, i.e. the files returned by get and put, which are not released. */
+    private final Map<File, Integer> pins = new HashMap<File, Integer>();
+    /** The pinned files, which have been removed from the cache, and are to be deleted when they are released. */
+    private final Set<File> evictedPins = new HashSet<File>();
+    /** The total size of the cached files in bytes. */
+    private long size = 0L;
+
+    /**
+     * Constructor.
+     * @param cacheDir The directory for the cached files. Any files in it are deleted.
+     * @param maxSize The maximum total size of the cached files in bytes.
+     */
+    public WarcFileCache(File cacheDir, long maxSize) {
+        ArgumentCheck.checkNotNull(cacheDir, "File cacheDir");
+        ArgumentCheck.checkPositiveLong(maxSize, "long maxSize");
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        try {
+            if (cacheDir.isDirectory()) {
+                FileUtils.cleanDirectory(cacheDir);
+            }
+            Files.createDirectories(cacheDir.toPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not prepare the cache directory '" + cacheDir.getAbsolutePath()
+                    + "'.", e);
+        }
+    }
+
+    /**
+     * Looks up a retrieved file in the cache. A cached file, which has been removed or changed size on disk, is
+     * removed from the cache. A found file is pinned, and must be given to release when it is no longer used.
+     * @param collectionId The id of the collection.
+     * @param fileId The id of the WARC file.
+     * @param filePart The part of the WARC file, or null for the whole WARC file.
+     * @return The cached file, or null if it is not in the cache.
+     */
+    public synchronized File get(String collectionId, String fileId, FilePart filePart) {
+        String key = getKey(collectionId, fileId, filePart);
+        File res = files.get(key);
+        if (res == null) {
+            return null;
+        }
+        if (!res.isFile() || res.length() != fileSizes.get(key)) {
+            logger.warn("The cached file for '" + key + "' is no longer valid. Removing it from the cache.");
+            remove(key);
+            return null;
+        }
+        logger.debug("Found '" + key + "' in the cache.");
+        pin(res);
+        return res;
+    }
+
+    /**
+     * Moves a retrieved file into the cache, and removes the least recently used files, if the cache exceeds its
+     * size. A file larger than the cache is not cached. A cached file is pinned, and must be given to release when it
+     * is no longer used.
+     * @param collectionId The id of the collection.
+     * @param fileId The id of the WARC file.
+     * @param filePart The part of the WARC file, or null for the whole WARC file.
+     * @param retrievedFile The retrieved file.
+     * @return The cached file, or the retrieved file if it was not cached.
+     */
+    public synchronized File put(String collectionId, String fileId, FilePart filePart, File retrievedFile) {
+        ArgumentCheck.checkExistsNormalFile(retrievedFile, "File retrievedFile");
+        String key = getKey(collectionId, fileId, filePart);
+        long fileSize = retrievedFile.length();
+        if (fileSize > maxSize) {
+            logger.debug("Not caching '" + key + "', since it is larger than the cache.");
+            return retrievedFile;
+        }
+        File res = new File(cacheDir, UUID.randomUUID().toString());
+        try {
+            Files.move(retrievedFile.toPath(), res.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Could not move the retrieved file for '" + key + "' into the cache.", e);
+            return retrievedFile;
+        }
+        if (files.containsKey(key)) {
+            remove(key);
+        }
+        files.put(key, res);
+        fileSizes.put(key, fileSize);
+        size += fileSize;
+        pin(res);
+        evict();
+        return res;
+    }
+
+    /**
+     * Releases a use of a file returned by get or put. The file is deleted, if it has been evicted from the cache and
+     * this was its last use. Files, which are not in the cache, are ignored.
+     * @param file The file to release.
+     */
+    public synchronized void release(File file) {
+        Integer uses = pins.get(file);
+        if (uses == null) {
+            return;
+        }
+        if (uses > 1) {
+            pins.put(file, uses - 1);
+            return;
+        }
+        pins.remove(file);
+        if (evictedPins.remove(file)) {
+            delete(file);
+        }
+    }
+
+    /**
+     * @return The total size of the cached files in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Registers a use of a cached file.
+     * @param file The cached file.
+     */
+    private void pin(File file) {
+        Integer uses = pins.get(file);
+        pins.put(file, uses == null ? 1 : uses + 1);
+    }
+
+    /**
+     * Deletes the least recently used files, until the cache no longer exceeds its size.
+     * The most recently used file is never deleted, since it was just put into the cache.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+        while (size > maxSize && files.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, File> eldest = iterator.next();
+            iterator.remove();
+            deleteFile(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Removes a file from the cache and deletes it.
+     * @param key The key of the file.
+     */
+    private void remove(String key) {
+        File file = files.remove(key);
+        if (file != null) {
+            deleteFile(key, file);
+        }
+    }
+
+    /**
+     * Deletes a file, which has been removed from the cache. A pinned file is deleted when it is released.
+     * @param key The key of the file.
+     * @param file The file.
+     */
+    private void deleteFile(String key, File file) {
+        size -= fileSizes.remove(key);
+        logger.debug("Evicting '" + key + "' from the cache.");
+        if (pins.containsKey(file)) {
+            evictedPins.add(file);
+        } else {
+            delete(file);
+        }
+    }
+
+    /**
+     * Deletes a file from the cache directory.
+     * @param file The file.
+     */
+    private void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Could not delete the cached file '" + file.getAbsolutePath() + "'.");
+        }
+    }
+
+    /**
+     * @param collectionId The id of the collection.
+     * @param fileId The id of the WARC file.
+     * @param filePart The part of the WARC file, or null for the whole WARC file.
+     * @return The key of the retrieved file.
+     */
+    private static String getKey(String collectionId, String fileId, FilePart filePart) {
+        ArgumentCheck.checkNotNullOrEmpty(collectionId, "String collectionId");
+        ArgumentCheck.checkNotNullOrEmpty(fileId, "String fileId");
+        String res = collectionId + "/" + fileId;
+        if (filePart != null) {
+            res += "/" + filePart.getPartOffSet() + "-" + filePart.getPartLength();
+        }
+        return res;
+    }
+}
@@ -0,0 +1,30 @@
+package dk.kb.yggdrasil.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * Thread factory, which names the threads after their pool, e.g. 'RequestHandler-1', 'RequestHandler-2', etc.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    /** The name of the pool of threads. */
+    private final String name;
+    /** The number of threads created. */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param name The name of the pool of threads.
+     */
+    public NamedThreadFactory(String name) {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        return new Thread(r, name + "-" + count.incrementAndGet());
+    }
+}
@@ -0,0 +1,112 @@
+package dk.kb.yggdrasil.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * The kind of threads used for running blocking work, such as handling requests, downloading content and
+ * conversing with the bitrepository.
+ *
+ * Virtual threads are only available when running on Java 21 or newer. Yggdrasil is built for Java 8, thus the
+ * virtual threads are created through reflection, and on older Java versions the platform threads are used instead.
+ * Note, that a virtual thread waiting inside a synchronized block (e.g. the bitrepository BlockingEventHandler)
+ * keeps its carrier thread occupied on Java versions before 24.
+ */
+public enum ThreadMode {
+    /** Ordinary threads, pooled with a fixed number of threads. */
+    PLATFORM,
+    /** Virtual threads, with a new thread for each task. */
+    VIRTUAL;
+
+    /** Logging mechanism. */
+    private static final Logger logger = LoggerFactory.getLogger(ThreadMode.class.getName());
+
+    /**
+     * Finds the thread mode with the given name, ignoring case.
+     * @param name The name of the thread mode.
+     * @return The thread mode.
+     * @throws YggdrasilException If no thread mode has the given name.
+     */
+    public static ThreadMode fromName(String name) throws YggdrasilException {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        for (ThreadMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new YggdrasilException("Unknown thread mode '" + name + "'. Expected 'platform' or 'virtual'.");
+    }
+
+    /**
+     * @return Whether the threads of this mode are available on the running Java version.
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || newVirtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * Creates a thread factory for this mode.
+     * Falls back to platform threads, if virtual threads are not supported.
+     * @param name The name of the threads.
+     * @return The thread factory.
+     */
+    public ThreadFactory newThreadFactory(String name) {
+        if (this == VIRTUAL) {
+            ThreadFactory factory = newVirtualThreadFactory(name);
+            if (factory != null) {
+                return factory;
+            }
+            logger.warn("Virtual threads are not supported by this Java version. Using platform threads for '"
+                    + name + "'.");
+        }
+        return new NamedThreadFactory(name);
+    }
+
+    /**
+     * Creates a pool of threads for this mode.
+     * For virtual threads a new thread is started for each task, thus the number of threads is only used when
+     * falling back to platform threads.
+     * @param name The name of the threads.
+     * @param numberOfThreads The number of platform threads in the pool.
+     * @return The pool of threads.
+     */
+    public ExecutorService newWorkerPool(String name, int numberOfThreads) {
+        ArgumentCheck.checkPositiveInt(numberOfThreads, "int numberOfThreads");
+        if (this == VIRTUAL) {
+            ThreadFactory factory = newVirtualThreadFactory(name);
+            if (factory != null) {
+                return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), factory);
+            }
+            logger.warn("Virtual threads are not supported by this Java version. Using " + numberOfThreads
+                    + " platform threads for '" + name + "'.");
+        }
+        return Executors.newFixedThreadPool(numberOfThreads, new NamedThreadFactory(name));
+    }
+
+    /**
+     * Creates a factory for virtual threads through reflection, i.e. Thread.ofVirtual().name(name-, 1).factory().
+     * @param name The name of the threads.
+     * @return The thread factory, or null if virtual threads are not supported.
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -80,6 +81,47 @@ public class Digest {
         return createWarcDigest(checksum);
     }
 
+    /**
+     * Wraps a stream, thus the checksum is calculated while the stream is being read, e.g. while it is written 
+     * to a file. This avoids reading the data a second time for calculating the checksum.
+     * The checksum is retrieved with getDigestOfReadBytes, when the stream has been read.
+     * @param content The stream to calculate the checksum of.
+     * @return The wrapping stream.
+     */
+    public InputStream getDigestingInputStream(InputStream content) {
+        ArgumentCheck.checkNotNull(content, "InputStream content");
+        md.reset();
+        return new DigestInputStream(content, md);
+    }
+
+    /**
+     * Starts a new checksum, which is calculated from the bytes given to update, e.g. for content, which is not 
+     * read through a single stream. The checksum is retrieved with getDigestOfReadBytes.
+     */
+    public void reset() {
+        md.reset();
+    }
+
+    /**
+     * Adds bytes to the checksum started with reset.
+     * @param bytes The array containing the bytes.
+     * @param offset The offset of the first byte in the array.
+     * @param length The number of bytes.
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        ArgumentCheck.checkNotNull(bytes, "byte[] bytes");
+        md.update(bytes, offset, length);
+    }
+
+    /**
+     * Create a WarcDigest based on the bytes read through the stream from getDigestingInputStream, or given to 
+     * update.
+     * @return a WarcDigest based on the read bytes.
+     */
+    public WarcDigest getDigestOfReadBytes() {
+        return createWarcDigest(decodeBase16(md.digest()));
+    }
+
     /**
      * Calculates the checksum of an InputStream.
      * @param content The content to calculate the checksum of.
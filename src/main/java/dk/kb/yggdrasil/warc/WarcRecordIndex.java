@@ -0,0 +1,281 @@
+package dk.kb.yggdrasil.warc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jwat.warc.WarcConstants;
+import org.jwat.warc.WarcHeader;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+/**
+ * The index of the records in a WARC file, with the id, type, offset, length and block digest of each record.
+ *
+ * The index is stored in a sidecar file next to the WARC file, with one line per record, thus a record can be found
+ * by a single seek in the WARC file instead of scanning it.
+ * Each line has the fields separated by a single space:
+ * <pre>record-id type offset length digest</pre>
+ * where the digest is '-' for a record without a block digest.
+ */
+public class WarcRecordIndex {
+    /** The suffix of the index file to the name of the WARC file. */
+    public static final String INDEX_SUFFIX = ".index";
+    /** The separator between the fields of an entry. */
+    private static final String FIELD_SEPARATOR = " ";
+    /** The value of the digest field for a record without a block digest. */
+    private static final String NO_DIGEST = "-";
+    /** The number of fields in an entry. */
+    private static final int NUMBER_OF_FIELDS = 5;
+
+    /** The entries of the records, in the order of the records in the WARC file, mapped by their record id. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Adds the entry of a record.
+     * @param entry The entry.
+     */
+    public synchronized void add(Entry entry) {
+        ArgumentCheck.checkNotNull(entry, "Entry entry");
+        entries.put(entry.getRecordId(), entry);
+    }
+
+    /**
+     * Adds the entry of a record written with the given header.
+     * @param header The header of the record.
+     * @param offset The offset of the start of the record in the WARC file.
+     * @param length The length of the record in the WARC file.
+     */
+    public void add(WarcHeader header, long offset, long length) {
+        ArgumentCheck.checkNotNull(header, "WarcHeader header");
+        String type = header.warcTypeStr;
+        if (type == null && header.warcTypeIdx != null) {
+            type = WarcConstants.RT_IDX_STRINGS[header.warcTypeIdx];
+        }
+        String digest = header.warcBlockDigestStr;
+        if (digest == null && header.warcBlockDigest != null) {
+            digest = header.warcBlockDigest.toString();
+        }
+        add(new Entry(header.warcRecordIdUri.toString(), type, offset, length, digest));
+    }
+
+    /**
+     * @return The entries of the records, in the order of the records in the WARC file.
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    /**
+     * @param recordId The id of the record, e.g. 'urn:uuid:...'.
+     * @return The entry of the record, or null if the record is not in the index.
+     */
+    public synchronized Entry getEntry(String recordId) {
+        return entries.get(recordId);
+    }
+
+    /**
+     * Writes the index to the sidecar file of the WARC file.
+     * The index is written to a temporary file, which replaces the index file, thus the index file is never partial.
+     * @param warcFile The WARC file.
+     * @throws YggdrasilException If the index file cannot be written.
+     */
+    public synchronized void write(File warcFile) throws YggdrasilException {
+        ArgumentCheck.checkNotNull(warcFile, "File warcFile");
+        File indexFile = getIndexFile(warcFile);
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                out.write(entry.toLine());
+                out.write("\n");
+            }
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not write the index of the WARC file '" + warcFile.getName() + "'.",
+                    e);
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new YggdrasilException("Could not replace the index file '" + indexFile.getAbsolutePath() + "'.");
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new YggdrasilException("Could not move the index to the index file '"
+                    + indexFile.getAbsolutePath() + "'.");
+        }
+    }
+
+    /**
+     * @param warcFile The WARC file.
+     * @return The sidecar file with the index of the WARC file.
+     */
+    public static File getIndexFile(File warcFile) {
+        ArgumentCheck.checkNotNull(warcFile, "File warcFile");
+        return new File(warcFile.getParentFile(), warcFile.getName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Reads an index file.
+     * @param indexFile The index file.
+     * @return The index.
+     * @throws YggdrasilException If the index file cannot be read, or it contains an invalid entry.
+     */
+    public static WarcRecordIndex read(File indexFile) throws YggdrasilException {
+        ArgumentCheck.checkExistsNormalFile(indexFile, "File indexFile");
+        WarcRecordIndex res = new WarcRecordIndex();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    res.add(Entry.fromLine(line));
+                }
+            }
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not read the index file '" + indexFile.getAbsolutePath() + "'.", e);
+        }
+        return res;
+    }
+
+    /**
+     * Builds the index by scanning the WARC file, e.g. for a WARC file written before the index was kept, or
+     * a WARC file recovered after a crash.
+     * @param warcFile The WARC file.
+     * @return The index of the WARC file.
+     * @throws YggdrasilException If the WARC file cannot be read.
+     */
+    public static WarcRecordIndex build(File warcFile) throws YggdrasilException {
+        ArgumentCheck.checkExistsNormalFile(warcFile, "File warcFile");
+        WarcRecordIndex res = new WarcRecordIndex();
+        try (FileInputStream in = new FileInputStream(warcFile)) {
+            WarcReader reader = WarcReaderFactory.getReader(in);
+            WarcRecord previous = null;
+            WarcRecord record;
+            while ((record = reader.getNextRecord()) != null) {
+                if (previous != null) {
+                    res.add(previous.header, previous.getStartOffset(),
+                            record.getStartOffset() - previous.getStartOffset());
+                }
+                previous = record;
+            }
+            if (previous != null) {
+                res.add(previous.header, previous.getStartOffset(),
+                        warcFile.length() - previous.getStartOffset());
+            }
+            reader.close();
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not build the index of the WARC file '" + warcFile.getName()
+                    + "'.", e);
+        }
+        return res;
+    }
+
+    /**
+     * The entry of a record in the index.
+     */
+    public static class Entry {
+        /** The id of the record. */
+        private final String recordId;
+        /** The type of the record. */
+        private final String type;
+        /** The offset of the start of the record in the WARC file. */
+        private final long offset;
+        /** The length of the record in the WARC file, including its end mark. */
+        private final long length;
+        /** The block digest of the record, or null if the record has no block digest. */
+        private final String digest;
+
+        /**
+         * Constructor.
+         * @param recordId The id of the record.
+         * @param type The type of the record.
+         * @param offset The offset of the start of the record in the WARC file.
+         * @param length The length of the record in the WARC file, including its end mark.
+         * @param digest The block digest of the record, or null if the record has no block digest.
+         */
+        public Entry(String recordId, String type, long offset, long length, String digest) {
+            ArgumentCheck.checkNotNullOrEmpty(recordId, "String recordId");
+            ArgumentCheck.checkNotNullOrEmpty(type, "String type");
+            ArgumentCheck.checkNotNegativeLong(offset, "long offset");
+            ArgumentCheck.checkNotNegativeLong(length, "long length");
+            this.recordId = recordId;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+
+        /**
+         * @return The id of the record.
+         */
+        public String getRecordId() {
+            return recordId;
+        }
+
+        /**
+         * @return The type of the record.
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return The offset of the start of the record in the WARC file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The length of the record in the WARC file, including its end mark.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The block digest of the record, or null if the record has no block digest.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return The entry as a line in the index file, without the line break.
+         */
+        String toLine() {
+            return recordId + FIELD_SEPARATOR + type + FIELD_SEPARATOR + offset + FIELD_SEPARATOR + length
+                    + FIELD_SEPARATOR + (digest == null ? NO_DIGEST : digest);
+        }
+
+        /**
+         * @param line A line in the index file.
+         * @return The entry of the line.
+         * @throws YggdrasilException If the line is not a valid entry.
+         */
+        static Entry fromLine(String line) throws YggdrasilException {
+            String[] fields = line.split(FIELD_SEPARATOR);
+            if (fields.length != NUMBER_OF_FIELDS) {
+                throw new YggdrasilException("Invalid index entry: '" + line + "'.");
+            }
+            try {
+                return new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                        NO_DIGEST.equals(fields[4]) ? null : fields[4]);
+            } catch (NumberFormatException | ArgumentCheck e) {
+                throw new YggdrasilException("Invalid index entry: '" + line + "'.", e);
+            }
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package dk.kb.yggdrasil.warc;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.List;
 
@@ -38,6 +43,9 @@ public class WarcWriterWrapper {
     /** Buffer size used by the WARC reader. */
     public static final int WARC_READER_BUFFER_SIZE = 8192;
 
+    /** The two CRLFs ending a WARC record after its payload. */
+    private static final byte[] RECORD_END_MARK = {'\r', '\n', '\r', '\n'};
+
     /** UUID of package/WARC file. */
     protected String uuid;
 
@@ -56,14 +64,43 @@ public class WarcWriterWrapper {
     /** Is the WARC file new or not. */
     protected boolean bIsNew;
 
+    /** Whether the records are written gzip compressed, each record as its own gzip member. */
+    protected boolean compressed;
+
+    /** The index of the records written to the WARC file. */
+    private final WarcRecordIndex index = new WarcRecordIndex();
+
+    /** The number of bytes in the WARC file, counted as they are written, thus the file size is not looked up. 
+     * Volatile, since it may be read while a record is being written. */
+    private volatile long warcFileSize;
+
+    /** The offset of the start of the last written record. */
+    private long lastRecordStartOffset;
+
+    /** The offset of the end of the last written record. */
+    private long lastRecordEndOffset;
+
     /**
-     * Open new or existing WARC file.
+     * Open new or existing uncompressed WARC file.
      * @param path parent path where the file must be created/opened
      * @param uuid uuid of WARC file
      * @return WARC writer wrapper
      * @throws YggdrasilException is an exception occurs
      */
     public static WarcWriterWrapper getWriter(File path, String uuid) throws YggdrasilException {
+        return getWriter(path, uuid, false);
+    }
+
+    /**
+     * Open new or existing WARC file.
+     * A compressed WARC file has each record as its own gzip member, thus a record can be read from its offset.
+     * @param path parent path where the file must be created/opened
+     * @param uuid uuid of WARC file
+     * @param compressed Whether the records are written gzip compressed.
+     * @return WARC writer wrapper
+     * @throws YggdrasilException is an exception occurs
+     */
+    public static WarcWriterWrapper getWriter(File path, String uuid, boolean compressed) throws YggdrasilException {
         ArgumentCheck.checkExistsDirectory(path, "path");
         ArgumentCheck.checkNotNullOrEmpty(uuid, "uuid");
         WarcWriterWrapper w3 = null;
@@ -78,7 +115,10 @@ public class WarcWriterWrapper {
             w3.writerRaf = new RandomAccessFile(w3.writerFile, "rw");
             w3.writerRaf.seek(w3.writerRaf.length());
             w3.writerRafout = new RandomAccessFileOutputStream(w3.writerRaf);
-            w3.writer = WarcWriterFactory.getWriter(w3.writerRafout, WARC_READER_BUFFER_SIZE, false);
+            w3.warcFileSize = w3.writerRaf.length();
+            w3.compressed = compressed;
+            w3.writer = WarcWriterFactory.getWriter(w3.new CountingOutputStream(w3.writerRafout), 
+                    WARC_READER_BUFFER_SIZE, compressed);
             w3.writer.setExceptionOnContentLengthMismatch(true);
             w3.bIsNew = (w3.writerRaf.length() == 0L);
         } catch (FileNotFoundException e) {
@@ -121,9 +161,11 @@ public class WarcWriterWrapper {
             header.contentTypeStr = WarcConstants.CT_APP_WARC_FIELDS;
             header.warcBlockDigest = blockDigest;
             header.contentLength = Long.valueOf(warcFieldsBytes.length);
+            long startOffset = warcFileSize;
             writer.writeHeader(record);
             writer.streamPayload(bin);
             writer.closeRecord();
+            recordWritten(startOffset, header);
         } catch (UnsupportedEncodingException e) {
             throw new YggdrasilException("Exception while writing WARC warcinfo record!", e);
         } catch (URISyntaxException e) {
@@ -165,9 +207,51 @@ public class WarcWriterWrapper {
             header.warcBlockDigest = blockDigest;
             header.contentType = contentType;
             header.contentLength = len;
+            long startOffset = warcFileSize;
             writer.writeHeader(record);
             writer.streamPayload(in);
             writer.closeRecord();
+            recordWritten(startOffset, header);
+        } catch (URISyntaxException e) {
+            throw new YggdrasilException("Exception while writing WARC resource record!", e);
+        } catch (IOException e) {
+            throw new YggdrasilException("Exception while writing WARC resource record!", e);
+        }
+        logger.debug("Written Resource Record '" + uuid + "'.");
+
+        return warcRecordIdUri;
+    }
+
+    /**
+     * Append a resource record to WARC file, with the payload transferred directly from the given file.
+     * @param payloadFile The file with the payload.
+     * @param contentType payload content-type
+     * @param blockDigest optional block digest
+     * @param uuid The UUID for the record.
+     * @return WarcRecordId of newly created record
+     * @throws YggdrasilException if an exception occurs while writing record
+     */
+    public Uri writeResourceRecord(File payloadFile, ContentType contentType, WarcDigest blockDigest, 
+            String uuid) throws YggdrasilException {
+        ArgumentCheck.checkExistsNormalFile(payloadFile, "payloadFile");
+        ArgumentCheck.checkNotNull(contentType, "contentType");
+        ArgumentCheck.checkNotNull(uuid, "uuid");
+        Uri warcRecordIdUri = null;
+        try {
+            warcRecordIdUri = new Uri("urn:uuid:" + uuid);
+            WarcRecord record = WarcRecord.createRecord(writer);
+            WarcHeader header = record.header;
+            header.warcTypeIdx = WarcConstants.RT_IDX_RESOURCE;
+            header.warcDate = new Date();
+            header.warcWarcinfoIdUri = warcinfoRecordId;
+            header.warcRecordIdUri = warcRecordIdUri;
+            header.warcTargetUriUri = warcRecordIdUri;
+            header.warcBlockDigest = blockDigest;
+            header.contentType = contentType;
+            header.contentLength = payloadFile.length();
+            long startOffset = warcFileSize;
+            writeRecordWithPayloadFile(record, payloadFile);
+            recordWritten(startOffset, header);
         } catch (URISyntaxException e) {
             throw new YggdrasilException("Exception while writing WARC resource record!", e);
         } catch (IOException e) {
@@ -212,9 +296,11 @@ public class WarcWriterWrapper {
             header.warcBlockDigest = blockDigest;
             header.contentType = contentType;
             header.contentLength = len;
+            long startOffset = warcFileSize;
             writer.writeHeader(record);
             writer.streamPayload(in);
             writer.closeRecord();
+            recordWritten(startOffset, header);
         } catch (URISyntaxException e) {
             throw new YggdrasilException("Exception while writing WARC metadata record!", e);
         } catch (IOException e) {
@@ -259,9 +345,11 @@ public class WarcWriterWrapper {
             header.warcBlockDigest = blockDigest;
             header.contentType = contentType;
             header.contentLength = len;
+            long startOffset = warcFileSize;
             writer.writeHeader(record);
             writer.streamPayload(in);
             writer.closeRecord();
+            recordWritten(startOffset, header);
         } catch (URISyntaxException e) {
             throw new YggdrasilException("Exception while writing WARC metadata record!", e);
         } catch (IOException e) {
@@ -273,12 +361,158 @@ public class WarcWriterWrapper {
     }
     
     /**
+     * Append a update record to WARC file, with the payload transferred directly from the given file.
+     * @param payloadFile The file with the payload.
+     * @param contentType payload content-type
+     * @param refersTo The refers to header element.
+     * @param concurrentTo List of concurrentTo header elements.
+     * @param blockDigest optional block digest
+     * @param uuid The UUID for the record.
+     * @return WarcRecordId of newly created record
+     * @throws YggdrasilException if an exception occurs while writing record
+     */
+    public Uri writeUpdateRecord(File payloadFile, ContentType contentType, Uri refersTo, 
+            List<WarcConcurrentTo> concurrentTo, WarcDigest blockDigest, String uuid) throws YggdrasilException {
+        ArgumentCheck.checkExistsNormalFile(payloadFile, "payloadFile");
+        ArgumentCheck.checkNotNull(contentType, "contentType");
+        ArgumentCheck.checkNotNull(uuid, "uuid");
+        ArgumentCheck.checkNotNull(concurrentTo, "concurrentTo");
+        Uri warcRecordIdUri = null;
+        try {
+            warcRecordIdUri = new Uri("urn:uuid:" + uuid);
+            WarcRecord record = WarcRecord.createRecord(writer);
+            WarcHeader header = record.header;
+            header.warcTypeStr = "update";
+            header.warcDate = new Date();
+            header.warcWarcinfoIdUri = warcinfoRecordId;
+            header.warcRecordIdUri = warcRecordIdUri;
+            header.warcTargetUriUri = warcRecordIdUri;
+            header.warcConcurrentToList.addAll(concurrentTo);
+            header.warcRefersToUri = refersTo;
+            header.warcBlockDigest = blockDigest;
+            header.contentType = contentType;
+            header.contentLength = payloadFile.length();
+            long startOffset = warcFileSize;
+            writeRecordWithPayloadFile(record, payloadFile);
+            recordWritten(startOffset, header);
+        } catch (URISyntaxException e) {
+            throw new YggdrasilException("Exception while writing WARC update record!", e);
+        } catch (IOException e) {
+            throw new YggdrasilException("Exception while writing WARC update record!", e);
+        }
+        logger.debug("Written Update Record '" + uuid + "'.");
+
+        return warcRecordIdUri;
+    }
+
+    /**
+     * Writes a record, where the payload is transferred from the payload file to the WARC file by the file
+     * channels. Thus the operating system can copy the payload without passing it through the Java heap.
+     * The header is serialized by a separate WARC writer, since the WARC writer of the WARC file can only stream 
+     * the payload. The WARC writer of the WARC file has flushed all its records, when they were closed, thus the 
+     * record is appended at the end of the WARC file.
+     * A compressed record must pass through the gzip compression, thus it is streamed by the WARC writer instead.
+     * @param record The record with the header to write. The content length must be the size of the payload file.
+     * @param payloadFile The file with the payload.
+     * @throws IOException If the record cannot be written, or the payload file changes size while being written.
+     */
+    private void writeRecordWithPayloadFile(WarcRecord record, File payloadFile) throws IOException {
+        if (compressed) {
+            try (InputStream in = new FileInputStream(payloadFile)) {
+                writer.writeHeader(record);
+                writer.streamPayload(in);
+                writer.closeRecord();
+            }
+            return;
+        }
+        WarcWriter headerWriter = WarcWriterFactory.getWriter(new ByteArrayOutputStream(), false);
+        byte[] headerBytes = headerWriter.writeHeader(record);
+        writerRaf.write(headerBytes);
+        warcFileSize += headerBytes.length;
+        long len = record.header.contentLength;
+        long transferred = 0L;
+        try (FileInputStream in = new FileInputStream(payloadFile)) {
+            FileChannel source = in.getChannel();
+            FileChannel target = writerRaf.getChannel();
+            while (transferred < len) {
+                long count = source.transferTo(transferred, len - transferred, target);
+                if (count <= 0L) {
+                    break;
+                }
+                transferred += count;
+                warcFileSize += count;
+            }
+        }
+        if (transferred != len) {
+            throw new IOException("Payload length mismatch: expected " + len + " bytes from '" 
+                    + payloadFile.getAbsolutePath() + "', but transferred " + transferred + " bytes.");
+        }
+        writerRaf.write(RECORD_END_MARK);
+        warcFileSize += RECORD_END_MARK.length;
+    }
+
+    /**
+     * Registers the offsets of a record, when it has been written and flushed, and adds it to the index.
+     * @param startOffset The offset of the start of the record.
+     * @param header The header of the record.
+     */
+    private void recordWritten(long startOffset, WarcHeader header) {
+        lastRecordStartOffset = startOffset;
+        lastRecordEndOffset = warcFileSize;
+        index.add(header, startOffset, lastRecordEndOffset - startOffset);
+    }
+
+    /**
+     * The size is counted while writing, thus it does not require a look up in the file system. Between records
+     * it is the exact size of the WARC file, since each record is flushed when it is closed.
      * @return The current size of the warc file.
      */
     public long getWarcFileSize() {
-        return writerFile.length();
+        return warcFileSize;
+    }
+
+    /**
+     * Forces the written records to the disk, e.g. before they are journaled.
+     * @throws YggdrasilException If the records cannot be forced to the disk.
+     */
+    public void sync() throws YggdrasilException {
+        try {
+            writerRaf.getFD().sync();
+        } catch (IOException e) {
+            throw new YggdrasilException("Could not force the WARC file '" + writerFile.getName() 
+                    + "' to the disk.", e);
+        }
+    }
+
+    /**
+     * @return The offset in the WARC file of the start of the last written record.
+     */
+    public long getLastRecordStartOffset() {
+        return lastRecordStartOffset;
+    }
+
+    /**
+     * @return The offset in the WARC file of the end of the last written record, including its end mark.
+     */
+    public long getLastRecordEndOffset() {
+        return lastRecordEndOffset;
     }
     
+    /**
+     * Only the records written by this writer are in the index, thus not the records of an existing WARC file.
+     * @return The index of the records written to the WARC file.
+     */
+    public WarcRecordIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Whether the records are written gzip compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     /**
      * @return The Warc file.
      */
@@ -315,4 +549,29 @@ public class WarcWriterWrapper {
             throw new YggdrasilException("Exception closing WarcWriterWrapper!", e);
         }
     }
+
+    /**
+     * Counts the bytes written to the WARC file by the WARC writer.
+     */
+    private class CountingOutputStream extends FilterOutputStream {
+        /**
+         * Constructor.
+         * @param out The stream to the WARC file.
+         */
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            warcFileSize++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            warcFileSize += len;
+        }
+    }
 }
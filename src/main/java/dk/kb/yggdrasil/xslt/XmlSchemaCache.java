@@ -0,0 +1,190 @@
+package dk.kb.yggdrasil.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * Thread-safe cache of compiled XML schemas, keyed by the namespaces and locations of the schemas, which the
+ * documents refer to with xsi:schemaLocation.
+ * The schemas, and the schemas they import or include, are resolved through a local catalog directory, thus they
+ * are only retrieved from their locations once. Each combination of schemas is only compiled once. The compiled
+ * schemas are thread-safe, whereas their validators are not, thus each XmlValidator keeps its own validators.
+ */
+public class XmlSchemaCache {
+    /** Logging mechanism. */
+    private static Logger logger = LoggerFactory.getLogger(XmlSchemaCache.class.getName());
+
+    /** The local catalog of the schemas. */
+    private final XmlEntityResolver catalog;
+    /** The factory for compiling the schemas. It is not thread-safe. */
+    private final SchemaFactory schemaFactory;
+    /** For creating the inputs of the schemas resolved through the catalog. */
+    private final DOMImplementationLS domImplementation;
+    /** The compiled schemas mapped by their keys. */
+    private final Map<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+    /**
+     * Constructor.
+     * @param catalogDir The directory of the local schema catalog. Schemas, which are not in the catalog, are
+     * retrieved from their locations and stored in the catalog.
+     */
+    public XmlSchemaCache(File catalogDir) {
+        ArgumentCheck.checkNotNull(catalogDir, "File catalogDir");
+        catalog = new XmlEntityResolver(catalogDir);
+        schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        schemaFactory.setResourceResolver(new CatalogResourceResolver());
+        try {
+            domImplementation = (DOMImplementationLS) DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .getDOMImplementation();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Could not create a new 'DocumentBuilder'!", e);
+        }
+    }
+
+    /**
+     * Get the compiled schema for the schemas. The schemas are compiled, if this combination of schemas has not been
+     * compiled before.
+     * @param schemaLocations The values of the xsi:schemaLocation attributes of a document, which are pairs of
+     * namespaces and schema locations.
+     * @return The compiled schema.
+     * @throws SAXException If the schemas cannot be retrieved or compiled.
+     */
+    public Schema getSchema(Collection<String> schemaLocations) throws SAXException {
+        ArgumentCheck.checkNotNullOrEmptyCollection(schemaLocations, "Collection<String> schemaLocations");
+        Map<String, String> locations = getLocationsByNamespace(schemaLocations);
+        String key = locations.toString();
+        Schema res = schemas.get(key);
+        if (res == null) {
+            res = compile(locations);
+            Schema existing = schemas.putIfAbsent(key, res);
+            if (existing != null) {
+                res = existing;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Removes all the compiled schemas from the cache. The catalog is kept.
+     */
+    public void clear() {
+        schemas.clear();
+    }
+
+    /**
+     * Compiles the schemas into one schema.
+     * @param locations The schema locations mapped by their namespaces.
+     * @return The compiled schema.
+     * @throws SAXException If the schemas cannot be retrieved or compiled.
+     */
+    private Schema compile(Map<String, String> locations) throws SAXException {
+        logger.debug("Compiling the schemas " + locations.values());
+        Source[] sources = new Source[locations.size()];
+        int i = 0;
+        for (String location : locations.values()) {
+            sources[i++] = resolveSource(location);
+        }
+        // The SchemaFactory is not thread-safe.
+        synchronized (schemaFactory) {
+            return schemaFactory.newSchema(sources);
+        }
+    }
+
+    /**
+     * Resolves a schema through the catalog.
+     * @param location The location of the schema.
+     * @return The source of the schema, from the catalog if possible.
+     * @throws SAXException If the catalog fails.
+     */
+    private Source resolveSource(String location) throws SAXException {
+        InputSource inputSource;
+        try {
+            inputSource = catalog.resolveEntity(null, location);
+        } catch (IOException e) {
+            throw new SAXException("Could not resolve the schema '" + location + "'.", e);
+        }
+        StreamSource res = new StreamSource(location);
+        if (inputSource != null) {
+            res.setReader(inputSource.getCharacterStream());
+            res.setInputStream(inputSource.getByteStream());
+        }
+        return res;
+    }
+
+    /**
+     * @param schemaLocations The values of xsi:schemaLocation attributes.
+     * @return The schema locations mapped by their namespaces in the order of the namespaces.
+     */
+    private static Map<String, String> getLocationsByNamespace(Collection<String> schemaLocations) {
+        Map<String, String> res = new TreeMap<String, String>();
+        for (String schemaLocation : schemaLocations) {
+            String[] tokens = schemaLocation.trim().split("\\s+");
+            for (int i = 0; i + 1 < tokens.length; i += 2) {
+                if (!res.containsKey(tokens[i])) {
+                    res.put(tokens[i], tokens[i + 1]);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Resolves the schemas imported or included by the compiled schemas through the catalog.
+     */
+    private class CatalogResourceResolver implements LSResourceResolver {
+        @Override
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId,
+                String baseURI) {
+            if (systemId == null) {
+                return null;
+            }
+            String location = systemId;
+            if (baseURI != null) {
+                try {
+                    location = URI.create(baseURI).resolve(systemId).toString();
+                } catch (IllegalArgumentException e) {
+                    logger.debug("Could not resolve '" + systemId + "' against '" + baseURI + "'.", e);
+                }
+            }
+            try {
+                InputSource inputSource = catalog.resolveEntity(publicId, location);
+                if (inputSource == null) {
+                    return null;
+                }
+                LSInput res = domImplementation.createLSInput();
+                res.setPublicId(publicId);
+                res.setSystemId(location);
+                res.setBaseURI(baseURI);
+                res.setCharacterStream(inputSource.getCharacterStream());
+                res.setByteStream(inputSource.getByteStream());
+                return res;
+            } catch (SAXException | IOException e) {
+                logger.warn("Could not resolve the schema '" + location + "' through the catalog.", e);
+                return null;
+            }
+        }
+    }
+}
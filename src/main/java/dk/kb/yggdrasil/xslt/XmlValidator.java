@@ -1,20 +1,32 @@
 package dk.kb.yggdrasil.xslt;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathFactory;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.EntityResolver;
@@ -48,10 +60,25 @@ public class XmlValidator {
     /** Cached document builder with DTD/Schema validation. */
     private DocumentBuilder builderValidating;
 
+    /** Cache of compiled XSDs, or null if the XSDs are resolved and compiled for every document. */
+    private XmlSchemaCache schemaCache;
+    /** The validator of each compiled XSD from the cache, reused since an XmlValidator is not shared by threads. */
+    private final Map<Schema, Validator> schemaValidators = new IdentityHashMap<Schema, Validator>();
+
     /**
      * Construct an <code>XmlValidator</code> instance.
      */
     public XmlValidator() {
+        this(null);
+    }
+
+    /**
+     * Construct an <code>XmlValidator</code> instance, which validates against the compiled XSDs of the supplied
+     * cache, when documents refer to XSDs.
+     * @param schemaCache cache of compiled XSDs, or null
+     */
+    public XmlValidator(XmlSchemaCache schemaCache) {
+        this.schemaCache = schemaCache;
         factoryParsing = DocumentBuilderFactory.newInstance();
         factoryParsing.setNamespaceAware(true);
         factoryParsing.setValidating(false);
@@ -252,8 +279,10 @@ public class XmlValidator {
 
     /**
      * Validate XML document against any DTD/XSD found. Closes the input stream before returning.
+     * If this validator has a cache of compiled XSDs, then a document referring to XSDs and no DTD is validated
+     * against the cached XSDs, and the document is read into memory before validating.
      * @param in XML input stream
-     * @param entityResolver XML entity resolver or null
+     * @param entityResolver XML entity resolver or null, which is not used for the cached XSDs
      * @param errorHandler error handler or null
      * @param result validation results
      * @return result of testing, true if the document was validated against DTD/XSD(s).
@@ -267,13 +296,25 @@ public class XmlValidator {
             errorHandler = new XmlErrorHandler();
         }
         try {
-            /*
-             * Validate against DTD/XSD.
-             */
-            builderValidating.reset();
-            builderValidating.setEntityResolver(entityResolver);
-            builderValidating.setErrorHandler(errorHandler);
-            result.document = builderValidating.parse(in);
+            boolean bValidated = false;
+            if (schemaCache != null) {
+                /*
+                 * Validate against cached XSD(s).
+                 */
+                byte[] bytes = IOUtils.toByteArray(in);
+                in.close();
+                in = new ByteArrayInputStream(bytes);
+                bValidated = testCachedSchemaValidity(bytes, errorHandler, result);
+            }
+            if (!bValidated) {
+                /*
+                 * Validate against DTD/XSD.
+                 */
+                builderValidating.reset();
+                builderValidating.setEntityResolver(entityResolver);
+                builderValidating.setErrorHandler(errorHandler);
+                result.document = builderValidating.parse(in);
+            }
             in.close();
             in = null;
         } catch (Throwable t) {
@@ -305,4 +346,47 @@ public class XmlValidator {
         }
         return result.bValid;
     }
+
+    /**
+     * Validate XML document against the compiled XSD(s) from the cache, unless it refers to a DTD or no XSD.
+     * @param bytes XML document
+     * @param errorHandler error handler
+     * @param result validation results
+     * @return true if the document was validated against the cached XSD(s), false if it must be validated by
+     * parsing it with DTD/Schema validation
+     * @throws IOException if the document cannot be read
+     * @throws SAXException if the document is not well-formed or the XSD(s) cannot be compiled
+     */
+    private boolean testCachedSchemaValidity(byte[] bytes, XmlErrorHandlerAbstract errorHandler,
+            XmlValidationResult result) throws IOException, SAXException {
+        builderParsing.reset();
+        builderParsing.setErrorHandler(errorHandler);
+        Document document = builderParsing.parse(new ByteArrayInputStream(bytes));
+        if (document.getDoctype() != null) {
+            return false;
+        }
+        List<String> schemaLocations = new LinkedList<String>();
+        NodeList elements = document.getElementsByTagNameNS("*", "*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            String schemaLocation = ((Element) elements.item(i)).getAttributeNS(
+                    XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+            if (!schemaLocation.isEmpty()) {
+                schemaLocations.add(schemaLocation);
+            }
+        }
+        if (schemaLocations.isEmpty()) {
+            return false;
+        }
+        Schema schema = schemaCache.getSchema(schemaLocations);
+        Validator validator = schemaValidators.get(schema);
+        if (validator == null) {
+            validator = schema.newValidator();
+            schemaValidators.put(schema, validator);
+        }
+        validator.reset();
+        validator.setErrorHandler(errorHandler);
+        validator.validate(new DOMSource(document));
+        result.document = document;
+        return true;
+    }
 }
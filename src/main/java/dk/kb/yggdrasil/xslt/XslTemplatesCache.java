@@ -0,0 +1,91 @@
+package dk.kb.yggdrasil.xslt;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.yggdrasil.exceptions.ArgumentCheck;
+
+/**
+ * Thread-safe cache of compiled XSL stylesheets, keyed by e.g. the metadata model using the stylesheet.
+ * A stylesheet is only parsed and compiled the first time it is used, and again if its file has been changed since.
+ * Every caller gets its own transformer from the compiled stylesheet, since transformers are not thread-safe.
+ */
+public class XslTemplatesCache {
+    /** Logging mechanism. */
+    private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** The compiled stylesheets mapped by their keys. */
+    private final Map<String, CachedTemplates> templates = new ConcurrentHashMap<String, CachedTemplates>();
+
+    /**
+     * Get a wrapped XSL transformer instance for the stylesheet file of the key.
+     * @param key The key of the stylesheet, e.g. the metadata model.
+     * @param xslFile The XSL file.
+     * @return XSL transformer instance, which must only be used by the calling thread.
+     * @throws TransformerConfigurationException If the stylesheet cannot be compiled.
+     */
+    public XslTransformer getTransformer(String key, File xslFile) throws TransformerConfigurationException {
+        return XslTransformer.getTransformer(getTemplates(key, xslFile));
+    }
+
+    /**
+     * Get the compiled stylesheet for the key. The stylesheet is compiled, if it is not in the cache, or if it was
+     * compiled from another file or from an older version of the file.
+     * @param key The key of the stylesheet, e.g. the metadata model.
+     * @param xslFile The XSL file.
+     * @return The compiled stylesheet.
+     * @throws TransformerConfigurationException If the stylesheet cannot be compiled.
+     */
+    public Templates getTemplates(String key, File xslFile) throws TransformerConfigurationException {
+        ArgumentCheck.checkNotNullOrEmpty(key, "String key");
+        ArgumentCheck.checkExistsNormalFile(xslFile, "File xslFile");
+        long lastModified = xslFile.lastModified();
+        CachedTemplates cached = templates.get(key);
+        if (cached == null || !cached.xslFile.equals(xslFile) || cached.lastModified != lastModified) {
+            logger.debug("Compiling the XSL file '" + xslFile.getAbsolutePath() + "' for '" + key + "'.");
+            cached = new CachedTemplates(xslFile, lastModified,
+                    XslTransformer.compileTemplates(new StreamSource(xslFile)));
+            templates.put(key, cached);
+        }
+        return cached.templates;
+    }
+
+    /**
+     * Removes all the compiled stylesheets from the cache.
+     */
+    public void clear() {
+        templates.clear();
+    }
+
+    /**
+     * A compiled stylesheet along with the file and version of the file, it was compiled from.
+     */
+    private static final class CachedTemplates {
+        /** The XSL file. */
+        private final File xslFile;
+        /** The last modified date of the XSL file, when it was compiled. */
+        private final long lastModified;
+        /** The compiled stylesheet. */
+        private final Templates templates;
+
+        /**
+         * Constructor.
+         * @param xslFile The XSL file.
+         * @param lastModified The last modified date of the XSL file, when it was compiled.
+         * @param templates The compiled stylesheet.
+         */
+        CachedTemplates(File xslFile, long lastModified, Templates templates) {
+            this.xslFile = xslFile;
+            this.lastModified = lastModified;
+            this.templates = templates;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -43,7 +44,10 @@ public class XslTransformer {
     public static XslTransformer getTransformer(Source source) throws TransformerConfigurationException {
         ArgumentCheck.checkNotNull(source, "source");
         XslTransformer transformer = new XslTransformer();
-        transformer.transformerImpl = transformerFactory.newTransformer(source);
+        // The TransformerFactory is not guaranteed to be thread-safe.
+        synchronized (transformerFactory) {
+            transformer.transformerImpl = transformerFactory.newTransformer(source);
+        }
         return transformer;
     }
 
@@ -58,6 +62,34 @@ public class XslTransformer {
         return getTransformer(new StreamSource(xslFile));
     }
 
+    /**
+     * Get a wrapped XSL transformer instance for supplied compiled stylesheet.
+     * The compiled stylesheet is thread-safe, whereas the returned transformer must only be used by one thread.
+     * @param templates compiled XSL stylesheet
+     * @return XSL transformer instance
+     * @throws TransformerConfigurationException if an exception occurs while processing
+     */
+    public static XslTransformer getTransformer(Templates templates) throws TransformerConfigurationException {
+        ArgumentCheck.checkNotNull(templates, "templates");
+        XslTransformer transformer = new XslTransformer();
+        transformer.transformerImpl = templates.newTransformer();
+        return transformer;
+    }
+
+    /**
+     * Compile the supplied stylesheet source, thus transformers for it can be created without parsing it again.
+     * @param source XSL source
+     * @return compiled XSL stylesheet
+     * @throws TransformerConfigurationException if an exception occurs while processing
+     */
+    public static Templates compileTemplates(Source source) throws TransformerConfigurationException {
+        ArgumentCheck.checkNotNull(source, "source");
+        // The TransformerFactory is not guaranteed to be thread-safe.
+        synchronized (transformerFactory) {
+            return transformerFactory.newTemplates(source);
+        }
+    }
+
     /**
      * Get XSL transformer instance.
      * @return XSL transformer instance
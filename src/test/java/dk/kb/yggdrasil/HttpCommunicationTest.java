@@ -5,12 +5,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -24,12 +27,20 @@ import org.mortbay.jetty.Server;
 import org.mortbay.jetty.bio.SocketConnector;
 import org.mortbay.jetty.servlet.ServletHandler;
 
+import dk.kb.yggdrasil.warc.Digest;
+
 /**
  * Trivial tests to check if the put/get methods work as intended.
  */
 @RunWith(JUnit4.class)
 public class HttpCommunicationTest {
     protected static File testFileDir = new File("temporarydir");
+    protected static final byte[] RANGE_CONTENT = new byte[1000];
+    static {
+        for (int i = 0; i < RANGE_CONTENT.length; i++) {
+            RANGE_CONTENT[i] = (byte) i;
+        }
+    }
 
     private HttpCommunication httpCommunication = new HttpCommunication(testFileDir);
     
@@ -125,6 +136,175 @@ public class HttpCommunicationTest {
         }
     }
     
+    @Test
+    public void testPooledConnectionsAreReleased() throws Exception {
+        // A single pooled connection, thus a request blocks until the timeout, if the previous did not release it.
+        HttpCommunication pooled = new HttpCommunication(testFileDir, 1, 1, 5000, 0, 5000, 1000L);
+        WebServer server = startServer();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(pooled.post("http://localhost:" + server.port + "/post", "the body".getBytes(), 
+                        "text/plain"));
+                Assert.assertFalse(pooled.post("http://localhost:" + server.port + "/postt", "the body".getBytes(), 
+                        "text/plain"));
+                Assert.assertNull(pooled.get("http://localhost:" + server.port + "/gett"));
+                HttpPayload httpPayload = pooled.get("http://localhost:" + server.port + "/get");
+                Assert.assertNotNull(httpPayload);
+                httpPayload.close();
+            }
+        } finally {
+            pooled.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionReleasedWhenStreamFails() throws Exception {
+        testFileDir.mkdirs();
+        // A single pooled connection, thus a request blocks until the timeout, if the failed read did not release it.
+        HttpCommunication pooled = new HttpCommunication(testFileDir, 1, 1, 5000, 0, 5000, 1000L);
+        WebServer server = startServer();
+        try {
+            for (int i = 0; i < 3; i++) {
+                HttpPayload httpPayload = pooled.get("http://localhost:" + server.port + "/truncated");
+                Assert.assertNotNull(httpPayload);
+                try {
+                    httpPayload.writeToFile(new Digest("SHA-1"));
+                    Assert.fail("The content body ends before its content length.");
+                } catch (IOException e) {
+                    // expected
+                }
+                httpPayload = pooled.get("http://localhost:" + server.port + "/get");
+                Assert.assertNotNull(httpPayload);
+                FileUtils.deleteQuietly(httpPayload.writeToFile());
+            }
+        } finally {
+            pooled.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionReleasedWhenFileCannotBeWritten() throws Exception {
+        File missingDir = new File(testFileDir, "missing-dir");
+        FileUtils.deleteQuietly(missingDir);
+        HttpCommunication pooled = new HttpCommunication(missingDir, 1, 1, 5000, 0, 5000, 1000L);
+        WebServer server = startServer();
+        try {
+            for (int i = 0; i < 3; i++) {
+                HttpPayload httpPayload = pooled.get("http://localhost:" + server.port + "/get");
+                Assert.assertNotNull(httpPayload);
+                try {
+                    httpPayload.writeToFile();
+                    Assert.fail("The temporary directory does not exist.");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        } finally {
+            pooled.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        testFileDir.mkdirs();
+        HttpCommunication segmented = new HttpCommunication(testFileDir, 4, 4, 5000, 0, 5000, 1000L);
+        WebServer server = startServer();
+        try {
+            Digest digestor = new Digest("SHA-1");
+            File file = segmented.download("http://localhost:" + server.port + "/range", 4, 100L, 1, digestor);
+            Assert.assertNotNull(file);
+            Assert.assertArrayEquals(RANGE_CONTENT, FileUtils.readFileToByteArray(file));
+            Assert.assertEquals(new Digest("SHA-1").getDigestOfBytes(RANGE_CONTENT).toString(), 
+                    digestor.getDigestOfReadBytes().toString());
+            file.delete();
+
+            // Without range support, the resource is downloaded with a single request.
+            file = segmented.download("http://localhost:" + server.port + "/get", 4, 1L, 1, new Digest("SHA-1"));
+            Assert.assertArrayEquals("I am Jettyman.".getBytes(), FileUtils.readFileToByteArray(file));
+            file.delete();
+        } finally {
+            segmented.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSegmentedDownloadResumesSegments() throws Exception {
+        testFileDir.mkdirs();
+        HttpCommunication segmented = new HttpCommunication(testFileDir, 4, 4, 5000, 0, 5000, 1000L);
+        WebServer server = startServer();
+        File file = new File(testFileDir, "segmented-download");
+        try {
+            SegmentedDownload download = new SegmentedDownload("http://localhost:" + server.port + "/range", file, 
+                    RANGE_CONTENT.length, null, null, 3);
+            // The first half of the first segment has already been written.
+            long received = download.getSegmentEnd(0) / 2;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.write(RANGE_CONTENT, 0, (int) received);
+            }
+            download.addReceived(0, received);
+
+            Digest digestor = new Digest("SHA-1");
+            Assert.assertTrue(segmented.download(download, 1, null, digestor));
+            Assert.assertTrue(download.isComplete());
+            Assert.assertArrayEquals(RANGE_CONTENT, FileUtils.readFileToByteArray(file));
+            Assert.assertEquals(new Digest("SHA-1").getDigestOfBytes(RANGE_CONTENT).toString(), 
+                    digestor.getDigestOfReadBytes().toString());
+        } finally {
+            file.delete();
+            segmented.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSegmentedDigestOfSegmentsWrittenOutOfOrder() throws Exception {
+        testFileDir.mkdirs();
+        File file = new File(testFileDir, "segmented-digest");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(RANGE_CONTENT.length);
+            SegmentedDownload download = new SegmentedDownload("http://localhost/range", file, 
+                    RANGE_CONTENT.length, null, null, 2);
+            Digest digestor = new Digest("SHA-1");
+            SegmentedDigest digest = new SegmentedDigest(download, raf.getChannel(), digestor);
+
+            // The second segment is written ahead, thus it is not digested yet.
+            writeSegmentPart(raf, download, digest, 1, 10);
+            writeSegmentPart(raf, download, digest, 0, (int) download.getSegmentEnd(0) + 1);
+            Assert.assertFalse(digest.isComplete());
+            // The part of the second segment written ahead is read back, and the rest is digested as written.
+            digest.readBack();
+            writeSegmentPart(raf, download, digest, 1, (int) (RANGE_CONTENT.length - download.getSegmentPosition(1)));
+            Assert.assertTrue(digest.isComplete());
+            Assert.assertEquals(new Digest("SHA-1").getDigestOfBytes(RANGE_CONTENT).toString(), 
+                    digestor.getDigestOfReadBytes().toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void writeSegmentPart(RandomAccessFile raf, SegmentedDownload download, SegmentedDigest digest, 
+            int segment, int length) throws IOException {
+        long position = download.getSegmentPosition(segment);
+        byte[] buffer = Arrays.copyOfRange(RANGE_CONTENT, (int) position, (int) position + length);
+        raf.seek(position);
+        raf.write(buffer);
+        download.addReceived(segment, length);
+        digest.written(position, buffer, length);
+    }
+
+    private WebServer startServer() throws Exception {
+        WebServer server = new WebServer();
+        server.start();
+        for (int i = 0; i < 100 && server.port == -1; i++) {
+            Thread.sleep(50);
+        }
+        return server;
+    }
+
     /**
      * Defines a simple <code>HttpServlet</code> to validate our get/put methods.
      */
@@ -147,6 +327,28 @@ public class HttpCommunicationTest {
                 out.write(contentBody);
                 out.flush();
                 out.close();
+            } else if ("/truncated".equals(pathInfo) && "GET".equals(method)) {
+                resp.setStatus(200);
+                resp.setContentLength(RANGE_CONTENT.length);
+                OutputStream out = resp.getOutputStream();
+                out.write(RANGE_CONTENT, 0, 10);
+                out.flush();
+                out.close();
+            } else if ("/range".equals(pathInfo) && "HEAD".equals(method)) {
+                resp.setStatus(200);
+                resp.setHeader("Accept-Ranges", "bytes");
+                resp.setContentLength(RANGE_CONTENT.length);
+            } else if ("/range".equals(pathInfo) && "GET".equals(method)) {
+                String[] range = req.getHeader("Range").substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(range[0]);
+                int end = Integer.parseInt(range[1]);
+                resp.setStatus(206);
+                resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + RANGE_CONTENT.length);
+                resp.setContentLength(end - start + 1);
+                OutputStream out = resp.getOutputStream();
+                out.write(RANGE_CONTENT, start, end - start + 1);
+                out.flush();
+                out.close();
             } else if ("/post".equals(pathInfo) && "POST".equals(method)) {
                 int read;
                 byte[] tmpArr = new byte[1024];
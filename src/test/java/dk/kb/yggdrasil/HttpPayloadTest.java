@@ -1,5 +1,6 @@
 package dk.kb.yggdrasil;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
@@ -12,6 +13,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.jwat.warc.WarcDigest;
+
+import dk.kb.yggdrasil.warc.Digest;
 
 @RunWith(JUnit4.class)
 public class HttpPayloadTest {
@@ -36,4 +40,18 @@ public class HttpPayloadTest {
         hp.close();
         hp.close();
     }
+
+    @Test
+    public void testWriteToWithDigest() throws Exception {
+        byte[] contentBodyBytes = "helloWorld".getBytes();
+        InputStream contentBody = new ByteArrayInputStream(contentBodyBytes);
+        HttpPayload hp = new HttpPayload(contentBody, "UTF-8", "text/plain", (long) contentBodyBytes.length, 
+                testFileDir);
+        Digest digestor = new Digest("SHA-1");
+        File f = hp.writeToFile(digestor);
+        WarcDigest digest = digestor.getDigestOfReadBytes();
+        assertEquals(new Digest("SHA-1").getDigestOfFile(f).toString(), digest.toString());
+        f.delete();
+        hp.close();
+    }
 }
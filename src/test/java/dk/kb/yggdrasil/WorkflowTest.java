@@ -1,6 +1,8 @@
 package dk.kb.yggdrasil;
 
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -10,14 +12,19 @@ import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import dk.kb.yggdrasil.bitmag.Bitrepository;
+import dk.kb.yggdrasil.config.ConsumerGroupSettings;
 import dk.kb.yggdrasil.config.Models;
 import dk.kb.yggdrasil.config.YggdrasilConfig;
 import dk.kb.yggdrasil.config.RabbitMqSettings;
@@ -63,7 +70,7 @@ public class WorkflowTest extends MqFixtureTestAPI {
 
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(finalReponse);
 
         workflow.run();
 
@@ -73,8 +80,8 @@ public class WorkflowTest extends MqFixtureTestAPI {
 
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, atLeastOnce()).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, atLeastOnce()).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
     
@@ -92,7 +99,7 @@ public class WorkflowTest extends MqFixtureTestAPI {
         MqResponse firstReponse = new MqResponse("ThisIsNotAProperMessageType", "418: I'm a teapot".getBytes());
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(firstReponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(firstReponse, finalReponse);
 
         workflow.run();
 
@@ -102,8 +109,8 @@ public class WorkflowTest extends MqFixtureTestAPI {
 
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
     
@@ -121,7 +128,7 @@ public class WorkflowTest extends MqFixtureTestAPI {
         MqResponse firstReponse = new MqResponse(null, "null".getBytes());
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(firstReponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(firstReponse, finalReponse);
 
         workflow.run();
 
@@ -131,8 +138,81 @@ public class WorkflowTest extends MqFixtureTestAPI {
 
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, atLeastOnce()).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, atLeastOnce()).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
+
+    @Test
+    public void verifyConsumerGroupHandling() throws Exception {
+        StateDatabase stateDatabase = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        HttpCommunication httpCommunication = mock(HttpCommunication.class);
+        MQ mq = mock(MQ.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        RabbitMqSettings groupSettings = new RabbitMqSettings(settings.getBrokerUri(), 
+                settings.getPreservationDestination(), settings.getPreservationResponseDestination());
+        groupSettings.getConsumerGroups().add(new ConsumerGroupSettings("bulk-test-queue", 2));
+        when(mq.getSettings()).thenReturn(groupSettings);
+
+        Workflow workflow = new Workflow(mq, stateDatabase, bitrepository, config, models, httpCommunication, updater);
+
+        final CountDownLatch groupReceived = new CountDownLatch(1);
+        MqResponse groupResponse = new MqResponse("ThisIsNotAProperMessageType", "418: I'm a teapot".getBytes());
+        when(mq.receiveMessageFromQueue(eq("bulk-test-queue"), anyLong())).thenAnswer(new Answer<MqResponse>() {
+            @Override
+            public MqResponse answer(InvocationOnMock invocation) throws Throwable {
+                groupReceived.countDown();
+                return null;
+            }
+        }).thenReturn(groupResponse, (MqResponse) null);
+        final MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, 
+                "Please terminate Yggdrasil".getBytes());
+        when(mq.receiveMessageFromQueue(eq(groupSettings.getPreservationDestination()), anyLong())).thenAnswer(
+                new Answer<MqResponse>() {
+            @Override
+            public MqResponse answer(InvocationOnMock invocation) throws Throwable {
+                groupReceived.await(10, TimeUnit.SECONDS);
+                return finalReponse;
+            }
+        });
+
+        workflow.run();
+
+        verifyNoMoreInteractions(stateDatabase);
+        verifyNoMoreInteractions(updater);
+        verifyNoMoreInteractions(bitrepository);
+
+        verify(mq).getSettings();
+        verify(mq).receiveMessageFromQueue(eq(groupSettings.getPreservationDestination()), anyLong());
+        verify(mq, atLeastOnce()).receiveMessageFromQueue(eq("bulk-test-queue"), anyLong());
+        verifyNoMoreInteractions(mq);
+    }
+
+    @Test(timeout = 30000)
+    public void verifyShutdownFromConsumerGroupStopsAllReceivers() throws Exception {
+        StateDatabase stateDatabase = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        HttpCommunication httpCommunication = mock(HttpCommunication.class);
+        MQ mq = mock(MQ.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        RabbitMqSettings groupSettings = new RabbitMqSettings(settings.getBrokerUri(), 
+                settings.getPreservationDestination(), settings.getPreservationResponseDestination());
+        groupSettings.getConsumerGroups().add(new ConsumerGroupSettings("bulk-test-queue", 2));
+        when(mq.getSettings()).thenReturn(groupSettings);
+
+        Workflow workflow = new Workflow(mq, stateDatabase, bitrepository, config, models, httpCommunication, updater);
+
+        MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
+        when(mq.receiveMessageFromQueue(eq("bulk-test-queue"), anyLong())).thenReturn(finalReponse);
+
+        workflow.run();
+
+        verifyNoMoreInteractions(stateDatabase);
+        verifyNoMoreInteractions(updater);
+        verifyNoMoreInteractions(bitrepository);
+
+        verify(mq).receiveMessageFromQueue(eq("bulk-test-queue"), anyLong());
+        verify(mq, atLeastOnce()).receiveMessageFromQueue(eq(groupSettings.getPreservationDestination()), anyLong());
+    }
 }
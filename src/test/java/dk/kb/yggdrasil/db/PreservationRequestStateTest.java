@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.UUID;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -135,6 +136,26 @@ public class PreservationRequestStateTest {
         assertFalse(metadataFile.exists());        
     }
 
+    @Test
+    public void testMetadataPayloadInMemory() throws Exception {
+        PreservationRequest pr = new PreservationRequest();
+        String uuid = UUID.randomUUID().toString();
+        PreservationState preservationState = PreservationState.PRESERVATION_REQUEST_RECEIVED;
+        PreservationRequestState prs = new PreservationRequestState(pr, preservationState, uuid);
+        assertFalse(prs.hasMetadataPayload());
+
+        byte[] metadata = "<metadata/>".getBytes("UTF-8");
+        prs.setMetadataPayloadData(metadata);
+        assertTrue(prs.hasMetadataPayload());
+        assertNull(prs.getMetadataPayload());
+        assertEquals(metadata.length, prs.getMetadataPayloadLength());
+        assertArrayEquals(metadata, IOUtils.toByteArray(prs.getMetadataPayloadStream()));
+
+        prs.cleanup();
+        assertFalse(prs.hasMetadataPayload());
+        assertNull(prs.getMetadataPayloadData());
+    }
+
     @Test
     public void testCleanupWhenFilesAreAlreadyRemoved() throws Exception {
         PreservationRequest pr = new PreservationRequest();
@@ -0,0 +1,119 @@
+package dk.kb.yggdrasil.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dk.kb.yggdrasil.json.preservation.PreservationRequest;
+import dk.kb.yggdrasil.preservation.PreservationState;
+
+@RunWith(JUnit4.class)
+public class UploadJournalTest {
+    private static final String COLLECTION_ID = "collection";
+
+    private File databaseDir;
+
+    @Before
+    public void setUp() throws Exception {
+        databaseDir = Files.createTempDirectory("UploadJournalTest").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(databaseDir);
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        UploadJournal journal = new UploadJournal(databaseDir);
+        File warcFile = new File(databaseDir, "warc-file");
+        journal.append(warcFile, COLLECTION_ID, makeRequestState("first"), 100L);
+        journal.append(warcFile, COLLECTION_ID, makeRequestState("second"), 200L);
+
+        List<UploadJournal.WarcFileEntry> entries = journal.getWarcFileEntries();
+        assertEquals(1, entries.size());
+        UploadJournal.WarcFileEntry entry = entries.get(0);
+        assertEquals(warcFile.getAbsolutePath(), entry.getWarcFile().getAbsolutePath());
+        assertEquals(COLLECTION_ID, entry.getCollectionId());
+        assertEquals(2, entry.getRequests().size());
+        assertEquals("first", entry.getRequests().get(0).getUUID());
+        assertEquals("second", entry.getRequests().get(1).getUUID());
+        assertEquals(Long.valueOf(100L), entry.getWarcFileSizes().get(0));
+        assertEquals(Long.valueOf(200L), entry.getWarcFileSizes().get(1));
+
+        journal.remove(warcFile);
+        assertTrue(journal.getWarcFileEntries().isEmpty());
+    }
+
+    @Test
+    public void testIncompleteEntryIsIgnored() throws Exception {
+        UploadJournal journal = new UploadJournal(databaseDir);
+        File warcFile = new File(databaseDir, "warc-file");
+        journal.append(warcFile, COLLECTION_ID, makeRequestState("first"), 100L);
+        File journalFile = new File(new File(databaseDir, "UPLOAD_JOURNAL"), "warc-file.journal");
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[] {0, 0, 0});
+        }
+
+        List<UploadJournal.WarcFileEntry> entries = journal.getWarcFileEntries();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).getRequests().size());
+        assertEquals("first", entries.get(0).getRequests().get(0).getUUID());
+    }
+
+    @Test
+    public void testZeroFilledTailIsIgnored() throws Exception {
+        UploadJournal journal = new UploadJournal(databaseDir);
+        File warcFile = new File(databaseDir, "warc-file");
+        journal.append(warcFile, COLLECTION_ID, makeRequestState("first"), 100L);
+        journal.append(warcFile, COLLECTION_ID, makeRequestState("second"), 200L);
+        try (FileOutputStream out = new FileOutputStream(getJournalFile(), true)) {
+            out.write(new byte[4096]);
+        }
+
+        List<UploadJournal.WarcFileEntry> entries = journal.getWarcFileEntries();
+        assertEquals(1, entries.size());
+        assertEquals(2, entries.get(0).getRequests().size());
+        assertEquals("second", entries.get(0).getRequests().get(1).getUUID());
+        assertEquals(Long.valueOf(200L), entries.get(0).getWarcFileSizes().get(1));
+    }
+
+    @Test
+    public void testGarbageLengthTailIsIgnored() throws Exception {
+        UploadJournal journal = new UploadJournal(databaseDir);
+        File warcFile = new File(databaseDir, "warc-file");
+        journal.append(warcFile, COLLECTION_ID, makeRequestState("first"), 100L);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(getJournalFile(), true))) {
+            out.writeLong(300L);
+            out.writeInt(Integer.MAX_VALUE - 1);
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        }
+
+        List<UploadJournal.WarcFileEntry> entries = journal.getWarcFileEntries();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).getRequests().size());
+        assertEquals("first", entries.get(0).getRequests().get(0).getUUID());
+    }
+
+    private File getJournalFile() {
+        return new File(new File(databaseDir, "UPLOAD_JOURNAL"), "warc-file.journal");
+    }
+
+    private PreservationRequestState makeRequestState(String uuid) {
+        PreservationRequest request = new PreservationRequest();
+        request.UUID = uuid;
+        return new PreservationRequestState(request, PreservationState.PRESERVATION_PACKAGE_COMPLETE, uuid);
+    }
+}
@@ -0,0 +1,104 @@
+package dk.kb.yggdrasil.messaging;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+@RunWith(JUnit4.class)
+public class ChannelPoolTest {
+
+    @Test
+    public void testBorrowDifferentChannels() throws Exception {
+        Connection connection = mock(Connection.class);
+        Channel first = mockChannel();
+        Channel second = mockChannel();
+        when(connection.createChannel()).thenReturn(first, second);
+        ChannelPool pool = new ChannelPool(connection, 2, false);
+        verify(connection, times(2)).createChannel();
+        verify(first, never()).confirmSelect();
+
+        Channel borrowed = pool.borrow();
+        Channel otherBorrowed = pool.borrow();
+        Assert.assertNotSame(borrowed, otherBorrowed);
+        pool.release(borrowed);
+        Assert.assertSame(borrowed, pool.borrow());
+    }
+
+    @Test
+    public void testSameChannelForOrderingKey() throws Exception {
+        Connection connection = mock(Connection.class);
+        Channel[] channels = {mockChannel(), mockChannel(), mockChannel(), mockChannel()};
+        when(connection.createChannel()).thenReturn(channels[0], channels[1], channels[2], channels[3]);
+        ChannelPool pool = new ChannelPool(connection, 4, false);
+
+        for (String key : new String[]{"uuid-1", "uuid-2", "uuid-3"}) {
+            Channel borrowed = pool.borrow(key);
+            pool.release(borrowed);
+            // Borrowing other channels in between does not change the channel of the key.
+            pool.release(pool.borrow());
+            Assert.assertSame(borrowed, pool.borrow(key));
+            pool.release(borrowed);
+        }
+    }
+
+    @Test
+    public void testReplaceClosedChannel() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(connection.isOpen()).thenReturn(true);
+        Channel closed = mockChannel();
+        Channel replacement = mockChannel();
+        when(connection.createChannel()).thenReturn(closed, replacement);
+        ChannelPool pool = new ChannelPool(connection, 1, true);
+        verify(closed).confirmSelect();
+
+        Channel borrowed = pool.borrow();
+        when(closed.isOpen()).thenReturn(false);
+        pool.release(borrowed);
+        Assert.assertSame(replacement, pool.borrow());
+        verify(replacement).confirmSelect();
+    }
+
+    @Test
+    public void testWaitForConfirmsOnAllChannels() throws Exception {
+        Connection connection = mock(Connection.class);
+        Channel first = mockChannel();
+        Channel second = mockChannel();
+        when(first.waitForConfirms(1000L)).thenReturn(true);
+        when(second.waitForConfirms(1000L)).thenReturn(true);
+        when(connection.createChannel()).thenReturn(first, second);
+        ChannelPool pool = new ChannelPool(connection, 2, true);
+
+        pool.waitForConfirms(1000L);
+        verify(first).waitForConfirms(1000L);
+        verify(second).waitForConfirms(1000L);
+    }
+
+    @Test(expected = YggdrasilException.class)
+    public void testWaitForConfirmsRejected() throws Exception {
+        Connection connection = mock(Connection.class);
+        Channel channel = mockChannel();
+        when(channel.waitForConfirms(1000L)).thenReturn(false);
+        when(connection.createChannel()).thenReturn(channel);
+        ChannelPool pool = new ChannelPool(connection, 1, true);
+
+        pool.waitForConfirms(1000L);
+    }
+
+    private Channel mockChannel() {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        return channel;
+    }
+}
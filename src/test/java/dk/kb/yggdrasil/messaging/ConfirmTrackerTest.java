@@ -0,0 +1,49 @@
+package dk.kb.yggdrasil.messaging;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.rabbitmq.client.Channel;
+
+@RunWith(JUnit4.class)
+public class ConfirmTrackerTest {
+
+    @Test
+    public void testEachMessageConfirmedOnItsOwn() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L, 4L);
+        ConfirmTracker tracker = new ConfirmTracker(channel);
+        verify(channel).addConfirmListener(tracker);
+        verify(channel).addShutdownListener(tracker);
+
+        PublishConfirmation first = tracker.track();
+        PublishConfirmation second = tracker.track();
+        PublishConfirmation third = tracker.track();
+        PublishConfirmation fourth = tracker.track();
+        tracker.handleAck(2L, true);
+        tracker.handleNack(3L, false);
+
+        Assert.assertTrue(first.await(0L));
+        Assert.assertTrue(second.await(0L));
+        Assert.assertFalse(third.await(0L));
+        Assert.assertFalse(fourth.await(10L));
+    }
+
+    @Test
+    public void testClosedChannelStopsWaiting() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(false);
+        when(channel.getNextPublishSeqNo()).thenReturn(1L);
+        ConfirmTracker tracker = new ConfirmTracker(channel);
+
+        PublishConfirmation confirmation = tracker.track();
+        Assert.assertFalse(confirmation.await(60000L));
+    }
+}
@@ -0,0 +1,77 @@
+package dk.kb.yggdrasil.messaging;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.rabbitmq.client.Channel;
+
+@RunWith(JUnit4.class)
+public class DeliveryAcknowledgerTest {
+
+    @Test
+    public void testAcknowledgeInOrder() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger(channel);
+        acknowledger.delivered(1L);
+        acknowledger.delivered(2L);
+
+        acknowledger.handled(1L);
+        verify(channel).basicAck(1L, false);
+        acknowledger.handled(2L);
+        verify(channel).basicAck(2L, false);
+        verifyNoMoreInteractions(channel);
+        Assert.assertEquals(0, acknowledger.getUnacknowledgedCount());
+    }
+
+    @Test
+    public void testAcknowledgeOutOfOrder() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger(channel);
+        acknowledger.delivered(1L);
+        acknowledger.delivered(2L);
+        acknowledger.delivered(3L);
+
+        acknowledger.handled(3L);
+        acknowledger.handled(2L);
+        verify(channel).basicAck(3L, false);
+        verify(channel).basicAck(2L, false);
+        Assert.assertEquals(1, acknowledger.getUnacknowledgedCount());
+
+        acknowledger.handled(1L);
+        verify(channel).basicAck(1L, false);
+        verifyNoMoreInteractions(channel);
+        Assert.assertEquals(0, acknowledger.getUnacknowledgedCount());
+    }
+
+    @Test
+    public void testPendingMessageDoesNotBlockLaterAcknowledgements() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger(channel);
+        acknowledger.delivered(1L);
+        acknowledger.delivered(2L);
+        acknowledger.delivered(3L);
+        acknowledger.delivered(4L);
+
+        acknowledger.handled(1L);
+        acknowledger.handled(3L);
+        verify(channel).basicAck(1L, false);
+        verify(channel).basicAck(3L, false);
+        verifyNoMoreInteractions(channel);
+        Assert.assertEquals(2, acknowledger.getUnacknowledgedCount());
+    }
+
+    @Test
+    public void testUnknownDeliveryTagIsIgnored() throws Exception {
+        Channel channel = mock(Channel.class);
+        DeliveryAcknowledger acknowledger = new DeliveryAcknowledger(channel);
+        acknowledger.handled(42L);
+        verifyZeroInteractions(channel);
+    }
+}
@@ -0,0 +1,145 @@
+package dk.kb.yggdrasil.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+@RunWith(JUnit4.class)
+public class RequestDispatcherTest {
+
+    @Test
+    public void testOrderingWithinSameKey() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher("test", 4, 100);
+        RecordingHandler handler = new RecordingHandler(null);
+        for (int i = 0; i < 50; i++) {
+            dispatcher.dispatch(handler, "collection#" + i);
+        }
+        dispatcher.shutdown();
+
+        Assert.assertEquals(50, handler.handled.size());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals("collection#" + i, handler.handled.get(i));
+        }
+    }
+
+    @Test
+    public void testParallelAcrossKeys() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher("test", 2, 10);
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        RecordingHandler handler = new RecordingHandler(bothStarted);
+        dispatcher.dispatch(handler, "collection1#1");
+        dispatcher.dispatch(handler, "collection2#1");
+
+        Assert.assertTrue("Requests for different collections must be handled in parallel",
+                bothStarted.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+        Assert.assertEquals(2, handler.handled.size());
+    }
+
+    @Test
+    public void testFailingRequestDoesNotBlockKey() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher("test", 1, 10);
+        RecordingHandler handler = new RecordingHandler(null);
+        dispatcher.dispatch(handler, "collection#fail");
+        dispatcher.dispatch(handler, "collection#1");
+        dispatcher.shutdown();
+
+        Assert.assertEquals(Collections.singletonList("collection#1"), handler.handled);
+    }
+
+    @Test
+    public void testCompletionCallbackRunAfterHandling() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher("test", 1, 10);
+        RecordingHandler handler = new RecordingHandler(null);
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        dispatcher.dispatch(handler, "collection#1", new Runnable() {
+            @Override
+            public void run() {
+                completed.add("collection#1");
+            }
+        });
+        dispatcher.dispatch(handler, "collection#fail", new Runnable() {
+            @Override
+            public void run() {
+                completed.add("collection#fail");
+            }
+        });
+        dispatcher.shutdown();
+
+        Assert.assertEquals(Arrays.asList("collection#1", "collection#fail"), completed);
+    }
+
+    @Test
+    public void testCompletionCallbackHandedToTheHandler() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher("test", 1, 10);
+        final List<Runnable> callbacks = Collections.synchronizedList(new ArrayList<Runnable>());
+        RecordingHandler handler = new RecordingHandler(null) {
+            @Override
+            public void handleRequest(String request, Runnable onCompletion) throws YggdrasilException {
+                handleRequest(request);
+                callbacks.add(onCompletion);
+            }
+        };
+        final CountDownLatch completed = new CountDownLatch(1);
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+                completed.countDown();
+            }
+        };
+        dispatcher.dispatch(handler, "collection#1", callback);
+        dispatcher.shutdown();
+
+        // The handler has not yet finished the request in the background, thus the callback must not have run.
+        Assert.assertEquals(1, completed.getCount());
+        Assert.assertEquals(Collections.singletonList(callback), callbacks);
+    }
+
+    /**
+     * Handler for requests of the form 'key#value', which records the handled requests.
+     */
+    private static class RecordingHandler extends MessageRequestHandler<String> {
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch;
+
+        RecordingHandler(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void handleRequest(String request) throws YggdrasilException {
+            if (request.endsWith("#fail")) {
+                throw new YggdrasilException("Failing request");
+            }
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new YggdrasilException("Interrupted", e);
+                }
+            }
+            handled.add(request);
+        }
+
+        @Override
+        public String extractRequest(byte[] b) throws YggdrasilException {
+            return new String(b);
+        }
+
+        @Override
+        public String getOrderingKey(String request) {
+            return request.split("#")[0];
+        }
+    }
+}
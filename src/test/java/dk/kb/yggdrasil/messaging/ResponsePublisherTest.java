@@ -0,0 +1,185 @@
+package dk.kb.yggdrasil.messaging;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+import dk.kb.yggdrasil.json.preservation.Preservation;
+import dk.kb.yggdrasil.json.preservation.PreservationResponse;
+import dk.kb.yggdrasil.json.preservationimport.PreservationImportResponse;
+import dk.kb.yggdrasil.preservation.PreservationState;
+
+@RunWith(JUnit4.class)
+public class ResponsePublisherTest {
+
+    @Test
+    public void testResponsesPublishedInOrder() throws Exception {
+        MQ mq = mock(MQ.class);
+        ResponsePublisher publisher = new ResponsePublisher(mq, 2, 3, false, false);
+        PreservationResponse first = createResponse("Valhal:1", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationImportResponse second = new PreservationImportResponse();
+        PreservationResponse third = createResponse("Valhal:1", PreservationState.PRESERVATION_PACKAGE_COMPLETE);
+        publisher.publishPreservationResponse(first);
+        publisher.publishPreservationImportResponse(second);
+        publisher.publishPreservationResponse(third);
+        publisher.close();
+
+        InOrder order = inOrder(mq);
+        order.verify(mq).publishPreservationResponse(first);
+        order.verify(mq).publishPreservationImportResponse(second);
+        order.verify(mq).publishPreservationResponse(third);
+        verify(mq, never()).waitForConfirms(anyLong());
+    }
+
+    @Test
+    public void testWaitForConfirms() throws Exception {
+        MQ mq = mock(MQ.class);
+        PublishConfirmation confirmation = mock(PublishConfirmation.class);
+        when(confirmation.await(anyLong())).thenReturn(true);
+        PreservationResponse response = createResponse("Valhal:1",
+                PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS);
+        when(mq.publishPreservationResponse(response)).thenReturn(confirmation);
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, true, false);
+        publisher.publishPreservationResponse(response);
+        publisher.close();
+
+        InOrder order = inOrder(mq, confirmation);
+        order.verify(mq).publishPreservationResponse(response);
+        order.verify(confirmation).await(anyLong());
+    }
+
+    @Test
+    public void testOnlyUnconfirmedResponsesReturnedForRetry() throws Exception {
+        MQ mq = mock(MQ.class);
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, true, false);
+        publisher.close();
+
+        PreservationResponse confirmed = createResponse("Valhal:1", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationResponse rejected = createResponse("Valhal:2", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationResponse failed = createResponse("Valhal:1", PreservationState.PRESERVATION_PACKAGE_COMPLETE);
+        PreservationResponse notPublished = createResponse("Valhal:3",
+                PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PublishConfirmation confirmation = mockConfirmation(true);
+        PublishConfirmation rejection = mockConfirmation(false);
+        when(mq.publishPreservationResponse(confirmed)).thenReturn(confirmation);
+        when(mq.publishPreservationResponse(rejected)).thenReturn(rejection);
+        when(mq.publishPreservationResponse(failed)).thenThrow(new YggdrasilException("Channel closed"));
+
+        List<Object> remaining = publisher.publishBatch(Arrays.<Object>asList(confirmed, rejected, failed,
+                notPublished));
+        Assert.assertEquals(Arrays.<Object>asList(rejected, failed, notPublished), remaining);
+        verify(mq, never()).publishPreservationResponse(notPublished);
+
+        when(mq.publishPreservationResponse(any(PreservationResponse.class))).thenReturn(confirmation);
+        Assert.assertTrue(publisher.publishBatch(remaining).isEmpty());
+        verify(mq, times(1)).publishPreservationResponse(confirmed);
+    }
+
+    @Test
+    public void testLaterResponsesForUnconfirmedObjectReturnedForRetry() throws Exception {
+        MQ mq = mock(MQ.class);
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, true, false);
+        publisher.close();
+
+        PreservationResponse received = createResponse("Valhal:1", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationResponse other = createResponse("Valhal:2", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationResponse downloaded = createResponse("Valhal:1",
+                PreservationState.PRESERVATION_RESOURCES_DOWNLOAD_SUCCESS);
+        PublishConfirmation confirmation = mockConfirmation(true);
+        PublishConfirmation rejection = mockConfirmation(false);
+        when(mq.publishPreservationResponse(received)).thenReturn(rejection);
+        when(mq.publishPreservationResponse(other)).thenReturn(confirmation);
+        when(mq.publishPreservationResponse(downloaded)).thenReturn(confirmation);
+
+        // The confirmed later state is sent again after the earlier state, thus it is still the last one sent.
+        List<Object> remaining = publisher.publishBatch(Arrays.<Object>asList(received, other, downloaded));
+        Assert.assertEquals(Arrays.<Object>asList(received, downloaded), remaining);
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws Exception {
+        MQ mq = mock(MQ.class);
+        PreservationResponse response = createResponse("Valhal:1", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        when(mq.publishPreservationResponse(response)).thenThrow(new YggdrasilException("Broker down"));
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, true, false, 0L, 10000L);
+        publisher.publishPreservationResponse(response);
+        publisher.close();
+
+        verify(mq, times(30)).publishPreservationResponse(response);
+    }
+
+    @Test
+    public void testCloseGivesUpAfterTimeout() throws Exception {
+        MQ mq = mock(MQ.class);
+        PreservationResponse response = createResponse("Valhal:1", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        when(mq.publishPreservationResponse(response)).thenThrow(new YggdrasilException("Broker down"));
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, true, false, 60000L, 100L);
+        publisher.publishPreservationResponse(response);
+        long start = System.currentTimeMillis();
+        publisher.close();
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000L);
+        verify(mq, times(1)).publishPreservationResponse(response);
+    }
+
+    @Test
+    public void testCoalesceIntermediateStates() throws Exception {
+        MQ mq = mock(MQ.class);
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, false, true);
+        publisher.close();
+
+        PreservationResponse received = createResponse("Valhal:1", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationResponse other = createResponse("Valhal:2", PreservationState.PRESERVATION_REQUEST_RECEIVED);
+        PreservationResponse failure = createResponse("Valhal:1",
+                PreservationState.PRESERVATION_RESOURCES_DOWNLOAD_FAILURE);
+        PreservationResponse complete = createResponse("Valhal:1", PreservationState.PRESERVATION_PACKAGE_COMPLETE);
+        PreservationResponse success = createResponse("Valhal:1",
+                PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS);
+        PreservationImportResponse importResponse = new PreservationImportResponse();
+
+        List<Object> batch = new ArrayList<Object>(Arrays.<Object>asList(received, other, failure, complete,
+                importResponse, success));
+        publisher.coalesce(batch);
+        Assert.assertEquals(Arrays.<Object>asList(other, failure, importResponse, success), batch);
+    }
+
+    @Test(expected = YggdrasilException.class)
+    public void testPublishAfterClose() throws Exception {
+        MQ mq = mock(MQ.class);
+        ResponsePublisher publisher = new ResponsePublisher(mq, 10, 10, false, false);
+        publisher.close();
+        publisher.publishPreservationResponse(createResponse("Valhal:1",
+                PreservationState.PRESERVATION_REQUEST_RECEIVED));
+    }
+
+    private PublishConfirmation mockConfirmation(boolean confirmed) throws Exception {
+        PublishConfirmation res = mock(PublishConfirmation.class);
+        when(res.await(anyLong())).thenReturn(confirmed);
+        return res;
+    }
+
+    private PreservationResponse createResponse(String id, PreservationState state) {
+        PreservationResponse response = new PreservationResponse();
+        response.id = id;
+        response.model = "work";
+        response.preservation = new Preservation();
+        response.preservation.preservation_state = state.name();
+        return response;
+    }
+}
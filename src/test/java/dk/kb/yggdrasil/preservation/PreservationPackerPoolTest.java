@@ -0,0 +1,81 @@
+package dk.kb.yggdrasil.preservation;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PreservationPackerPoolTest {
+
+    @Test
+    public void testRoundRobinAssignment() {
+        PreservationPacker first = mock(PreservationPacker.class);
+        PreservationPacker second = mock(PreservationPacker.class);
+        PreservationPackerPool pool = new PreservationPackerPool(Arrays.asList(first, second),
+                PackerAssignment.ROUND_ROBIN);
+
+        Assert.assertSame(first, pool.nextPacker());
+        Assert.assertSame(second, pool.nextPacker());
+        Assert.assertSame(first, pool.nextPacker());
+    }
+
+    @Test
+    public void testLeastSizeAssignment() {
+        PreservationPacker first = mock(PreservationPacker.class);
+        PreservationPacker second = mock(PreservationPacker.class);
+        PreservationPacker third = mock(PreservationPacker.class);
+        when(first.getCurrentWarcFileSize()).thenReturn(3000L);
+        when(second.getCurrentWarcFileSize()).thenReturn(1000L);
+        when(third.getCurrentWarcFileSize()).thenReturn(2000L);
+        PreservationPackerPool pool = new PreservationPackerPool(Arrays.asList(first, second, third),
+                PackerAssignment.LEAST_SIZE);
+
+        pool.release(second);
+        when(second.getCurrentWarcFileSize()).thenReturn(4000L);
+        Assert.assertSame(third, pool.nextPacker());
+    }
+
+    @Test
+    public void testLeastSizeAssignmentSpreadsPendingRequests() {
+        PreservationPacker first = mock(PreservationPacker.class);
+        PreservationPacker second = mock(PreservationPacker.class);
+        PreservationPacker third = mock(PreservationPacker.class);
+        when(first.getCurrentWarcFileSize()).thenReturn(3000L);
+        when(second.getCurrentWarcFileSize()).thenReturn(1000L);
+        when(third.getCurrentWarcFileSize()).thenReturn(2000L);
+        PreservationPackerPool pool = new PreservationPackerPool(Arrays.asList(first, second, third),
+                PackerAssignment.LEAST_SIZE);
+
+        Assert.assertSame(second, pool.nextPacker());
+        Assert.assertSame(third, pool.nextPacker());
+        Assert.assertSame(first, pool.nextPacker());
+        Assert.assertSame(second, pool.nextPacker());
+
+        pool.release(third);
+        Assert.assertSame(third, pool.nextPacker());
+    }
+
+    @Test
+    public void testLeastSizeAssignmentRoundRobinOnTies() {
+        PreservationPacker first = mock(PreservationPacker.class);
+        PreservationPacker second = mock(PreservationPacker.class);
+        PreservationPackerPool pool = new PreservationPackerPool(Arrays.asList(first, second),
+                PackerAssignment.LEAST_SIZE);
+
+        PreservationPacker packer = pool.nextPacker();
+        pool.release(packer);
+        Assert.assertNotSame(packer, pool.nextPacker());
+    }
+
+    @Test
+    public void testPackerAssignmentFromName() throws Exception {
+        Assert.assertEquals(PackerAssignment.ROUND_ROBIN, PackerAssignment.fromName("round_robin"));
+        Assert.assertEquals(PackerAssignment.LEAST_SIZE, PackerAssignment.fromName("LEAST_SIZE"));
+    }
+}
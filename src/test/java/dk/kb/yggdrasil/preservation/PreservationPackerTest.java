@@ -179,6 +179,35 @@ public class PreservationPackerTest {
         Assert.assertEquals(records.get(metadataRecordUUID).header.contentLengthStr, "" + metadataPayloadFile.length());
     }
     
+    @Test
+    public void writePreservationRecordWithMetadataInMemoryValidateWarcFile() throws Exception {
+        RemotePreservationStateUpdater updater = Mockito.mock(RemotePreservationStateUpdater.class);
+        RequestHandlerContext context = new RequestHandlerContext(bitrepository, config, stateDatabase, updater, httpCommunication);
+        PreservationPacker packer = new PreservationPacker(context, "test-collection");
+        PreservationRequest request = makeRequest();
+        
+        PreservationRequestState prs = new PreservationRequestState(request, PreservationState.PRESERVATION_REQUEST_RECEIVED, request.UUID);
+        byte[] metadata = FileUtils.readFileToByteArray(metadataPayloadFile);
+        prs.setMetadataPayloadData(metadata);
+        Assert.assertNull(prs.getMetadataPayload());
+
+        packer.writePreservationRecord(prs);
+        
+        verify(updater).sendPreservationResponse(any(PreservationRequestState.class), eq(PreservationState.PRESERVATION_PACKAGE_COMPLETE));
+        verify(updater).sendPreservationResponse(any(PreservationRequestState.class), eq(PreservationState.PRESERVATION_PACKAGE_WAITING_FOR_MORE_DATA));
+        verifyNoMoreInteractions(updater);
+        Assert.assertNotNull(prs.getOffset());
+
+        File warcFile = new File(config.getTemporaryDir(), prs.getWarcId());
+        Assert.assertTrue(warcFile.isFile());
+        Map<String, WarcRecord> records = retrieveWarcRecords(warcFile);
+        Assert.assertEquals(records.size(), 2);
+        String metadataRecordUUID = "urn:uuid:" + prs.getUUID();
+        Assert.assertTrue(records.containsKey(metadataRecordUUID));
+        Assert.assertEquals(records.get(metadataRecordUUID).header.warcTypeStr, "metadata");
+        Assert.assertEquals(records.get(metadataRecordUUID).header.contentLengthStr, "" + metadata.length);
+    }
+    
     @Test
     public void writePreservationRecordWithResourceFile() throws Exception {
         RemotePreservationStateUpdater updater = Mockito.mock(RemotePreservationStateUpdater.class);
@@ -0,0 +1,209 @@
+package dk.kb.yggdrasil.preservation;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.exceptions.PreservationException;
+import dk.kb.yggdrasil.json.preservation.PreservationRequest;
+import dk.kb.yggdrasil.utils.ThreadMode;
+
+@RunWith(JUnit4.class)
+public class PreservationPipelineTest {
+
+    @Test
+    public void testStagesPerformedInOrder() throws Exception {
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.PLATFORM, 2, 2, 1, 1);
+        PreservationRequestState[] states = new PreservationRequestState[10];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = createState("uuid-" + i);
+            pipeline.submit(states[i]);
+        }
+        pipeline.shutdown();
+
+        for (PreservationRequestState prs : states) {
+            InOrder order = inOrder(handler);
+            order.verify(handler).performDownloadStage(prs);
+            order.verify(handler).performTransformationStage(prs);
+            order.verify(handler).performPackagingStage(prs);
+        }
+        verify(handler, never()).handlePreservationFailure(any(PreservationRequestState.class),
+                any(PreservationException.class));
+    }
+
+    @Test
+    public void testFailureStopsThePipelineForTheRequest() throws Exception {
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        PreservationRequestState prs = createState("failing-uuid");
+        PreservationException failure = new PreservationException(
+                PreservationState.PRESERVATION_RESOURCES_DOWNLOAD_FAILURE, "Download failed");
+        doThrow(failure).when(handler).performDownloadStage(prs);
+
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.PLATFORM, 1, 1, 1, 1);
+        pipeline.submit(prs);
+        pipeline.shutdown();
+
+        verify(handler).handlePreservationFailure(eq(prs), eq(failure));
+        verify(handler, never()).performTransformationStage(prs);
+        verify(handler, never()).performPackagingStage(prs);
+    }
+
+    @Test
+    public void testCompletionAfterPackaging() throws Exception {
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        PreservationRequestState prs = createState("uuid");
+        Runnable onCompletion = mock(Runnable.class);
+
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.PLATFORM, 1, 1, 1, 1);
+        pipeline.submit(prs, onCompletion);
+        pipeline.shutdown();
+
+        InOrder order = inOrder(handler, onCompletion);
+        order.verify(handler).performDownloadStage(prs);
+        order.verify(handler).performTransformationStage(prs);
+        order.verify(handler).performPackagingStage(prs);
+        order.verify(onCompletion).run();
+        verifyNoMoreInteractions(onCompletion);
+    }
+
+    @Test
+    public void testCompletionAfterFailure() throws Exception {
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        PreservationRequestState prs = createState("failing-uuid");
+        PreservationException failure = new PreservationException(
+                PreservationState.PRESERVATION_METADATA_PACKAGED_FAILURE, "Transformation failed");
+        doThrow(failure).when(handler).performTransformationStage(prs);
+        Runnable onCompletion = mock(Runnable.class);
+
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.PLATFORM, 1, 1, 1, 1);
+        pipeline.submit(prs, onCompletion);
+        pipeline.shutdown();
+
+        InOrder order = inOrder(handler, onCompletion);
+        order.verify(handler).handlePreservationFailure(eq(prs), eq(failure));
+        order.verify(onCompletion).run();
+        verifyNoMoreInteractions(onCompletion);
+        verify(handler, never()).performPackagingStage(prs);
+    }
+
+    @Test
+    public void testRuntimeExceptionIsReportedAsFailure() throws Exception {
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        PreservationRequestState prs = createState("failing-uuid");
+        doThrow(new IllegalStateException("Unexpected")).when(handler).performTransformationStage(prs);
+        Runnable onCompletion = mock(Runnable.class);
+
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.PLATFORM, 1, 1, 1, 1);
+        pipeline.submit(prs, onCompletion);
+        pipeline.shutdown();
+
+        ArgumentCaptor<PreservationException> failure = ArgumentCaptor.forClass(PreservationException.class);
+        InOrder order = inOrder(handler, onCompletion);
+        order.verify(handler).handlePreservationFailure(eq(prs), failure.capture());
+        order.verify(onCompletion).run();
+        Assert.assertEquals(PreservationState.PRESERVATION_REQUEST_FAILED, failure.getValue().getState());
+        Assert.assertTrue(failure.getValue().getCause() instanceof IllegalStateException);
+        verify(handler, never()).performPackagingStage(prs);
+    }
+
+    @Test
+    public void testPackagingInOrderOfOrderingKey() throws Exception {
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        when(handler.getOrderingKey(any(PreservationRequest.class))).thenReturn("collection");
+        final PreservationRequestState first = createState("uuid-1");
+        PreservationRequestState second = createState("uuid-2");
+        PreservationRequestState failing = createState("uuid-3");
+        PreservationRequestState third = createState("uuid-4");
+        final CountDownLatch laterTransformed = new CountDownLatch(3);
+        // The first request is transformed last, thus the others must wait for it to be packaged.
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                if (invocation.getArguments()[0] == first) {
+                    Assert.assertTrue(laterTransformed.await(10, TimeUnit.SECONDS));
+                } else {
+                    laterTransformed.countDown();
+                }
+                return null;
+            }
+        }).when(handler).performTransformationStage(any(PreservationRequestState.class));
+        PreservationException failure = new PreservationException(
+                PreservationState.PRESERVATION_METADATA_PACKAGED_FAILURE, "Packaging failed");
+        doThrow(failure).when(handler).performPackagingStage(failing);
+
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.PLATFORM, 4, 4, 2, 4);
+        for (PreservationRequestState prs : new PreservationRequestState[]{first, second, failing, third}) {
+            pipeline.submit(prs);
+        }
+        pipeline.shutdown();
+
+        InOrder order = inOrder(handler);
+        order.verify(handler).performPackagingStage(first);
+        order.verify(handler).performPackagingStage(second);
+        order.verify(handler).performPackagingStage(failing);
+        order.verify(handler).handlePreservationFailure(eq(failing), eq(failure));
+        order.verify(handler).performPackagingStage(third);
+    }
+
+    @Test
+    public void testConcurrentDownloadsWithVirtualThreads() throws Exception {
+        Assume.assumeTrue(ThreadMode.VIRTUAL.isSupported());
+        PreservationRequestHandler handler = mock(PreservationRequestHandler.class);
+        final CountDownLatch started = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(handler).performDownloadStage(any(PreservationRequestState.class));
+
+        // The queue capacity does not limit the downloads on virtual threads, only the download limit does.
+        PreservationPipeline pipeline = new PreservationPipeline(handler, ThreadMode.VIRTUAL, 4, 1, 1, 1);
+        PreservationRequestState[] states = new PreservationRequestState[4];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = createState("uuid-" + i);
+            pipeline.submit(states[i]);
+        }
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        pipeline.shutdown();
+
+        for (PreservationRequestState prs : states) {
+            verify(handler).performPackagingStage(prs);
+        }
+    }
+
+    private PreservationRequestState createState(String uuid) {
+        PreservationRequest request = new PreservationRequest();
+        request.UUID = uuid;
+        request.Preservation_profile = "collection";
+        request.Valhal_ID = "Valhal:1";
+        request.Model = "work";
+        return new PreservationRequestState(request, PreservationState.PRESERVATION_REQUEST_RECEIVED, uuid);
+    }
+}
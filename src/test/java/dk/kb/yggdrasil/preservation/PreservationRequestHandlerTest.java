@@ -1,10 +1,13 @@
 package dk.kb.yggdrasil.preservation;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.stub;
 import static org.mockito.Mockito.timeout;
@@ -19,6 +22,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Date;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -29,6 +33,7 @@ import org.mockito.stubbing.Answer;
 
 import dk.kb.yggdrasil.HttpCommunication;
 import dk.kb.yggdrasil.HttpPayload;
+import dk.kb.yggdrasil.SegmentedDownload;
 import dk.kb.yggdrasil.bitmag.Bitrepository;
 import dk.kb.yggdrasil.config.Models;
 import dk.kb.yggdrasil.config.RequestHandlerContext;
@@ -39,6 +44,7 @@ import dk.kb.yggdrasil.exceptions.YggdrasilException;
 import dk.kb.yggdrasil.json.preservation.PreservationRequest;
 import dk.kb.yggdrasil.messaging.RemotePreservationStateUpdater;
 import dk.kb.yggdrasil.testutils.MetadataContentUtils;
+import dk.kb.yggdrasil.warc.Digest;
 
 @RunWith(JUnit4.class)
 public class PreservationRequestHandlerTest {
@@ -95,6 +101,37 @@ public class PreservationRequestHandlerTest {
         verifyZeroInteractions(httpCommunication);
     }
     
+    @Test
+    public void testSharedUploaderNotShutDownWithHandler() throws Exception {
+        StateDatabase states = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = getMockUpdater();
+        HttpCommunication httpCommunication = mock(HttpCommunication.class);
+        WarcUploader uploader = mock(WarcUploader.class);
+
+        RequestHandlerContext context = new RequestHandlerContext(bitrepository, config, states, updater, httpCommunication);
+        PreservationRequestHandler first = new PreservationRequestHandler(context, models, uploader);
+        PreservationRequestHandler second = new PreservationRequestHandler(context, models, uploader);
+        first.shutdown();
+        second.shutdown();
+
+        verify(uploader, never()).shutdown();
+    }
+
+    @Test
+    public void testOrderingKey() throws Exception {
+        RequestHandlerContext context = new RequestHandlerContext(mock(Bitrepository.class), config, 
+                mock(StateDatabase.class), getMockUpdater(), mock(HttpCommunication.class));
+        PreservationRequestHandler prh = new PreservationRequestHandler(context, models, mock(WarcUploader.class));
+        PreservationRequest otherObject = makeRequest();
+        otherObject.Valhal_ID = "Valhal:2";
+
+        // Only the requests for the same object are ordered, also with a single packer per collection.
+        Assert.assertEquals(prh.getOrderingKey(request), prh.getOrderingKey(makeRequest()));
+        Assert.assertNotEquals(prh.getOrderingKey(request), prh.getOrderingKey(otherObject));
+        prh.shutdown();
+    }
+
     @Test
     public void testInvalidRequest() throws Exception {
         StateDatabase states = mock(StateDatabase.class);
@@ -465,6 +502,88 @@ public class PreservationRequestHandlerTest {
         verifyNoMoreInteractions(httpCommunication);
     }
     
+    @Test
+    public void testResumableContentDownload() throws Exception {
+        StateDatabase states = mock(StateDatabase.class);
+        HttpCommunication httpCommunication = mock(HttpCommunication.class);
+        final byte[] content = "Content file content".getBytes();
+        testFileDir.mkdirs();
+        SegmentedDownload download = new SegmentedDownload("http://localhost/test.txt", new File(testFileDir, "partial-download"), 
+                content.length, "\"etag\"", null, 1);
+        when(httpCommunication.prepareDownload(anyString(), anyInt(), anyLong())).thenReturn(download);
+        when(httpCommunication.download(any(SegmentedDownload.class), anyInt(), any(Runnable.class), any(Digest.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                SegmentedDownload d = (SegmentedDownload) invocation.getArguments()[0];
+                FileUtils.writeByteArrayToFile(d.getFile(), content);
+                d.addReceived(0, content.length);
+                ((Digest) invocation.getArguments()[3]).update(content, 0, content.length);
+                ((Runnable) invocation.getArguments()[2]).run();
+                return true;
+            }
+        });
+
+        PreservationRequestState prs = makeContentFileRequestState();
+        PreservationRequestHandler prh = new PreservationRequestHandler(makeResumableContext(states, httpCommunication), models);
+        prh.performDownloadStage(prs);
+
+        Assert.assertNull(prs.getPartialDownload());
+        Assert.assertEquals(download.getFile(), prs.getContentPayload());
+        Assert.assertEquals(new Digest("SHA-1").getDigestOfBytes(content).toString(), prs.getContentPayloadDigest().toString());
+        // Stored before the download, at the checkpoint, and after the download.
+        verify(states, times(3)).putPreservationRecord(eq(NON_RANDOM_UUID), eq(prs));
+        verify(httpCommunication).prepareDownload(eq("http://localhost/test.txt"), anyInt(), anyLong());
+        prs.cleanup();
+    }
+
+    @Test
+    public void testResumeStoredContentDownload() throws Exception {
+        StateDatabase states = mock(StateDatabase.class);
+        HttpCommunication httpCommunication = mock(HttpCommunication.class);
+        final byte[] content = "Content file content".getBytes();
+        testFileDir.mkdirs();
+        SegmentedDownload download = new SegmentedDownload("http://localhost/test.txt", new File(testFileDir, "partial-download"), 
+                content.length, "\"etag\"", null, 1);
+        // The first half was downloaded before the restart.
+        FileUtils.writeByteArrayToFile(download.getFile(), content);
+        download.addReceived(0, content.length / 2);
+        when(httpCommunication.download(eq(download), anyInt(), any(Runnable.class), any(Digest.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                SegmentedDownload d = (SegmentedDownload) invocation.getArguments()[0];
+                Assert.assertEquals(content.length / 2, d.getSegmentPosition(0));
+                d.addReceived(0, content.length - content.length / 2);
+                return true;
+            }
+        });
+
+        PreservationRequestState prs = makeContentFileRequestState();
+        prs.setPartialDownload(download);
+        PreservationRequestHandler prh = new PreservationRequestHandler(makeResumableContext(states, httpCommunication), models);
+        prh.performDownloadStage(prs);
+
+        Assert.assertNull(prs.getPartialDownload());
+        Assert.assertEquals(download.getFile(), prs.getContentPayload());
+        verify(httpCommunication).download(eq(download), anyInt(), any(Runnable.class), any(Digest.class));
+        verifyNoMoreInteractions(httpCommunication);
+        prs.cleanup();
+    }
+
+    private RequestHandlerContext makeResumableContext(StateDatabase states, HttpCommunication httpCommunication) throws Exception {
+        YggdrasilConfig resumableConfig = spy(config);
+        stub(resumableConfig.isDownloadResumable()).toReturn(true);
+        return new RequestHandlerContext(mock(Bitrepository.class), resumableConfig, states, getMockUpdater(), httpCommunication);
+    }
+
+    private PreservationRequestState makeContentFileRequestState() {
+        PreservationRequest request = makeRequest();
+        request.Model = "contentfile";
+        request.File_UUID = NON_RANDOM_FILE_UUID;
+        request.Content_URI = "http://localhost/test.txt";
+        request.metadata = MetadataContentUtils.getExampleContentFileMetadata();
+        return new PreservationRequestState(request, PreservationState.PRESERVATION_REQUEST_RECEIVED, NON_RANDOM_UUID);
+    }
+
     public static PreservationRequest makeRequest() {
         PreservationRequest request = new PreservationRequest();
         request.Content_URI = null;
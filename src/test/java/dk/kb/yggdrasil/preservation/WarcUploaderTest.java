@@ -0,0 +1,177 @@
+package dk.kb.yggdrasil.preservation;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dk.kb.yggdrasil.HttpCommunication;
+import dk.kb.yggdrasil.bitmag.Bitrepository;
+import dk.kb.yggdrasil.config.RequestHandlerContext;
+import dk.kb.yggdrasil.config.YggdrasilConfig;
+import dk.kb.yggdrasil.db.PreservationRequestState;
+import dk.kb.yggdrasil.db.StateDatabase;
+import dk.kb.yggdrasil.db.UploadJournal;
+import dk.kb.yggdrasil.json.preservation.PreservationRequest;
+import dk.kb.yggdrasil.messaging.RemotePreservationStateUpdater;
+import dk.kb.yggdrasil.utils.ThreadMode;
+
+@RunWith(JUnit4.class)
+public class WarcUploaderTest {
+    private static final String COLLECTION_ID = "collection";
+    private static final String UUID = "uuid";
+
+    @Test
+    public void testSynchronousUploadIsRetried() throws Exception {
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        StateDatabase states = mock(StateDatabase.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        when(bitrepository.uploadFile(any(File.class), anyString())).thenReturn(false, true);
+        PreservationRequestState prs = makeRequestState();
+        File warcFile = makeWarcFile();
+
+        WarcUploader uploader = new WarcUploader(makeContext(bitrepository, states, updater), ThreadMode.PLATFORM,
+                0, 3, 0L, null);
+        Assert.assertFalse(uploader.isAsynchronous());
+        uploader.upload(warcFile, COLLECTION_ID, Arrays.asList(prs));
+
+        verify(bitrepository, times(2)).uploadFile(eq(warcFile), eq(COLLECTION_ID));
+        verify(updater).sendPreservationResponse(prs, PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS);
+        verify(states).putPreservationRecord(UUID, prs);
+        verify(states).delete(UUID);
+    }
+
+    @Test
+    public void testAsynchronousUploadFailsAfterAllAttempts() throws Exception {
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        StateDatabase states = mock(StateDatabase.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        when(bitrepository.uploadFile(any(File.class), anyString())).thenReturn(false);
+        PreservationRequestState prs = makeRequestState();
+        File warcFile = makeWarcFile();
+
+        WarcUploader uploader = new WarcUploader(makeContext(bitrepository, states, updater), ThreadMode.PLATFORM,
+                1, 2, 10L, null);
+        Assert.assertTrue(uploader.isAsynchronous());
+        uploader.upload(warcFile, COLLECTION_ID, Arrays.asList(prs));
+
+        verify(updater, timeout(5000)).sendPreservationResponse(prs,
+                PreservationState.PRESERVATION_PACKAGE_UPLOAD_FAILURE);
+        verify(states, timeout(5000)).delete(UUID);
+        verify(bitrepository, times(2)).uploadFile(eq(warcFile), eq(COLLECTION_ID));
+        verify(prs).resetUploadPackage();
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testShutdownWaitsForPendingUploads() throws Exception {
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        StateDatabase states = mock(StateDatabase.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        when(bitrepository.uploadFile(any(File.class), anyString())).thenReturn(true);
+        PreservationRequestState prs = makeRequestState();
+        File warcFile = makeWarcFile();
+
+        WarcUploader uploader = new WarcUploader(makeContext(bitrepository, states, updater), ThreadMode.PLATFORM,
+                2, 1, 0L, null);
+        uploader.upload(warcFile, COLLECTION_ID, Arrays.asList(prs));
+        uploader.shutdown();
+
+        verify(bitrepository).uploadFile(eq(warcFile), eq(COLLECTION_ID));
+        verify(updater).sendPreservationResponse(prs, PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS);
+        verify(states).delete(UUID);
+    }
+
+    @Test
+    public void testRecoverUploadsCutsOffUnjournaledRecords() throws Exception {
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        StateDatabase states = mock(StateDatabase.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        when(bitrepository.uploadFile(any(File.class), anyString())).thenReturn(true);
+        File warcFile = makeWarcFile();
+        FileUtils.writeByteArrayToFile(warcFile, new byte[100]);
+        File databaseDir = Files.createTempDirectory("WarcUploaderTest").toFile();
+        UploadJournal journal = new UploadJournal(databaseDir);
+        journal.append(warcFile, COLLECTION_ID, makeSerializableRequestState("first"), 60L);
+        journal.append(warcFile, COLLECTION_ID, makeSerializableRequestState("second"), 150L);
+
+        WarcUploader uploader = new WarcUploader(makeContext(bitrepository, states, updater), ThreadMode.PLATFORM,
+                0, 1, 0L, journal);
+        uploader.recoverUploads();
+
+        Assert.assertEquals(60L, warcFile.length());
+        verify(bitrepository).uploadFile(eq(warcFile), eq(COLLECTION_ID));
+        verify(updater).sendPreservationResponse(any(PreservationRequestState.class),
+                eq(PreservationState.PRESERVATION_PACKAGE_UPLOAD_SUCCESS));
+        verify(states).delete("first");
+        // The records of the second request were lost, thus it is reported as a failed upload.
+        verify(updater).sendPreservationResponse(any(PreservationRequestState.class),
+                eq(PreservationState.PRESERVATION_PACKAGE_UPLOAD_FAILURE));
+        verify(states).delete("second");
+        Assert.assertTrue(journal.getWarcFileEntries().isEmpty());
+        FileUtils.deleteDirectory(databaseDir);
+    }
+
+    @Test
+    public void testRecoverUploadsReportsLostRequests() throws Exception {
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        StateDatabase states = mock(StateDatabase.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        File warcFile = makeWarcFile();
+        FileUtils.writeByteArrayToFile(warcFile, new byte[10]);
+        File databaseDir = Files.createTempDirectory("WarcUploaderTest").toFile();
+        UploadJournal journal = new UploadJournal(databaseDir);
+        journal.append(warcFile, COLLECTION_ID, makeSerializableRequestState("first"), 60L);
+
+        WarcUploader uploader = new WarcUploader(makeContext(bitrepository, states, updater), ThreadMode.PLATFORM,
+                0, 1, 0L, journal);
+        uploader.recoverUploads();
+
+        verify(bitrepository, never()).uploadFile(any(File.class), anyString());
+        verify(updater).sendPreservationResponse(any(PreservationRequestState.class),
+                eq(PreservationState.PRESERVATION_PACKAGE_UPLOAD_FAILURE));
+        verify(states).delete("first");
+        Assert.assertFalse(warcFile.exists());
+        Assert.assertTrue(journal.getWarcFileEntries().isEmpty());
+        FileUtils.deleteDirectory(databaseDir);
+    }
+
+    private RequestHandlerContext makeContext(Bitrepository bitrepository, StateDatabase states,
+            RemotePreservationStateUpdater updater) {
+        return new RequestHandlerContext(bitrepository, mock(YggdrasilConfig.class), states, updater,
+                mock(HttpCommunication.class));
+    }
+
+    private PreservationRequestState makeRequestState() {
+        PreservationRequestState prs = mock(PreservationRequestState.class);
+        when(prs.getUUID()).thenReturn(UUID);
+        return prs;
+    }
+
+    private PreservationRequestState makeSerializableRequestState(String uuid) throws Exception {
+        PreservationRequest request = new PreservationRequest();
+        request.UUID = uuid;
+        return new PreservationRequestState(request, PreservationState.PRESERVATION_PACKAGE_COMPLETE, uuid);
+    }
+
+    private File makeWarcFile() throws Exception {
+        File warcFile = File.createTempFile("WarcUploaderTest", ".warc");
+        warcFile.deleteOnExit();
+        return warcFile;
+    }
+}
@@ -0,0 +1,64 @@
+package dk.kb.yggdrasil.preservationimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bitrepository.bitrepositoryelements.ChecksumType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+@RunWith(JUnit4.class)
+public class ChecksumCalculatorTest {
+    private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+    private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+    private static final String SHA1 = "2fd4e1c67a2d28fced849ee1bb76e7391b93eb12";
+
+    @Test
+    public void testSeveralChecksumsInOnePass() throws Exception {
+        ChecksumCalculator calculator = new ChecksumCalculator(Arrays.asList(ChecksumType.MD5, ChecksumType.SHA1));
+        InputStream in = calculator.getDigestingInputStream(new ByteArrayInputStream(DATA));
+        Assert.assertArrayEquals(DATA, IOUtils.toByteArray(in));
+
+        Map<ChecksumType, String> checksums = calculator.getChecksums();
+        Assert.assertEquals(2, checksums.size());
+        Assert.assertEquals(MD5, checksums.get(ChecksumType.MD5));
+        Assert.assertEquals(SHA1, checksums.get(ChecksumType.SHA1));
+        // Retrieving the checksums again must not reset them.
+        Assert.assertEquals(checksums, calculator.getChecksums());
+    }
+
+    @Test
+    public void testChecksumsOfFile() throws Exception {
+        File file = File.createTempFile("ChecksumCalculatorTest", ".dat");
+        FileUtils.writeByteArrayToFile(file, DATA);
+        try {
+            Map<ChecksumType, String> checksums = new ChecksumCalculator(Arrays.asList(ChecksumType.SHA1,
+                    ChecksumType.MD5)).calculate(file);
+            Assert.assertEquals(MD5, checksums.get(ChecksumType.MD5));
+            Assert.assertEquals(SHA1, checksums.get(ChecksumType.SHA1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testUnsupportedChecksumType() throws Exception {
+        Assert.assertTrue(ChecksumCalculator.isSupported(ChecksumType.SHA256));
+        Assert.assertFalse(ChecksumCalculator.isSupported(ChecksumType.HMAC_MD5));
+        try {
+            new ChecksumCalculator(Arrays.asList(ChecksumType.OTHER));
+            Assert.fail("An unsupported checksum type must not be accepted.");
+        } catch (YggdrasilException e) {
+            // expected
+        }
+    }
+}
@@ -10,12 +10,28 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpEntity;
 import org.bitrepository.bitrepositoryelements.FilePart;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -36,6 +52,7 @@ import dk.kb.yggdrasil.json.preservationimport.PreservationImportRequest;
 import dk.kb.yggdrasil.json.preservationimport.Security;
 import dk.kb.yggdrasil.json.preservationimport.Warc;
 import dk.kb.yggdrasil.messaging.RemotePreservationStateUpdater;
+import dk.kb.yggdrasil.warc.WarcRecordIndex;
 
 @RunWith(JUnit4.class)
 public class PreservationImportRequestHandlerTest {
@@ -91,6 +108,20 @@ public class PreservationImportRequestHandlerTest {
         prih.extractRequest(request.getBytes());
     }
 
+    @Test
+    public void testOrderingKeyIsTheWarcFile() throws Exception {
+        RequestHandlerContext context = mock(RequestHandlerContext.class);
+        PreservationImportRequestHandler prih = new PreservationImportRequestHandler(context);
+        PreservationImportRequest request = makeRequest();
+        PreservationImportRequest otherRecord = makeRequest();
+        otherRecord.warc.warc_record_id = "other-record";
+        Assert.assertEquals(DEFAULT_COLLECTION + "/" + NON_RANDOM_WARC_ID, prih.getOrderingKey(request));
+        Assert.assertEquals(prih.getOrderingKey(request), prih.getOrderingKey(otherRecord));
+
+        request.warc = null;
+        Assert.assertNull(prih.getOrderingKey(request));
+    }
+
     @Test
     public void testSuccessCase() throws Exception {
         StateDatabase states = mock(StateDatabase.class);
@@ -122,6 +153,53 @@ public class PreservationImportRequestHandlerTest {
         verifyNoMoreInteractions(httpCommunication);
     }
 
+    @Test
+    public void testRetrievalsFromSameWarcFileAreExclusive() throws Exception {
+        StateDatabase states = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = Mockito.mock(HttpCommunication.class);
+        final AtomicInteger retrieving = new AtomicInteger();
+        final AtomicInteger maxRetrieving = new AtomicInteger();
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        when(bitrepository.getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any())).thenAnswer(
+                new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                maxRetrieving.set(Math.max(maxRetrieving.get(), retrieving.incrementAndGet()));
+                Thread.sleep(200);
+                retrieving.decrementAndGet();
+                return WARC_FILE;
+            }
+        });
+        when(httpCommunication.post(anyString(), any())).thenReturn(true);
+
+        RequestHandlerContext context = new RequestHandlerContext(bitrepository, config, states, updater, httpCommunication);
+        // The same handler is shared by the dispatchers of several consumer groups.
+        final PreservationImportRequestHandler prh = new PreservationImportRequestHandler(context);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Void>> imports = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 2; i++) {
+                imports.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        prh.handleRequest(makeRequest());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : imports) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, maxRetrieving.get());
+        verify(httpCommunication, Mockito.times(2)).post(eq(DEFAULT_URL), any());
+    }
+
     @Test
     public void testWarcOffset() throws Exception {
         Long offset = 87539319L;
@@ -161,6 +239,198 @@ public class PreservationImportRequestHandlerTest {
         verifyNoMoreInteractions(httpCommunication);
     }
 
+    @Test
+    public void testWarcOffsetOfRetrievedFilePart() throws Exception {
+        WarcRecordIndex.Entry entry = WarcRecordIndex.build(WARC_FILE).getEntry("urn:uuid:" + NON_RANDOM_RECORD_UUID);
+        File partFile = makeFilePart(WARC_FILE, entry.getOffset(), entry.getLength());
+        StateDatabase states = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = Mockito.mock(HttpCommunication.class);
+        PreservationImportRequest request = makeRequest();
+        request.warc.warc_offset = Long.toString(entry.getOffset());
+        request.warc.warc_record_size = Long.toString(entry.getLength());
+        FilePart filePart = new FilePart();
+        filePart.setPartOffSet(BigInteger.valueOf(entry.getOffset()));
+        filePart.setPartLength(BigInteger.valueOf(entry.getLength()));
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        when(bitrepository.getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), eq(filePart))).thenReturn(partFile);
+        when(httpCommunication.post(anyString(), any())).thenReturn(true);
+
+        RequestHandlerContext context = new RequestHandlerContext(bitrepository, config, states, updater, httpCommunication);
+        PreservationImportRequestHandler prh = new PreservationImportRequestHandler(context);
+        prh.handleRequest(request);
+
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_FINISHED), any());
+        verify(bitrepository).getKnownCollections();
+        verify(bitrepository).getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), eq(filePart));
+        verifyNoMoreInteractions(bitrepository);
+        verify(httpCommunication).post(eq(DEFAULT_URL), any());
+    }
+
+    @Test
+    public void testMismatchedWarcOffsetRetrievesWholeFile() throws Exception {
+        WarcRecordIndex.Entry entry = WarcRecordIndex.build(WARC_FILE).getEntries().get(0);
+        Assert.assertNotEquals("urn:uuid:" + NON_RANDOM_RECORD_UUID, entry.getRecordId());
+        File partFile = makeFilePart(WARC_FILE, entry.getOffset(), entry.getLength());
+        StateDatabase states = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = Mockito.mock(HttpCommunication.class);
+        PreservationImportRequest request = makeRequest();
+        request.warc.warc_offset = Long.toString(entry.getOffset());
+        request.warc.warc_record_size = Long.toString(entry.getLength());
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        when(bitrepository.getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any(FilePart.class))).thenReturn(partFile);
+        when(bitrepository.getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), eq(null))).thenReturn(WARC_FILE);
+        when(httpCommunication.post(anyString(), any())).thenReturn(true);
+
+        RequestHandlerContext context = new RequestHandlerContext(bitrepository, config, states, updater, httpCommunication);
+        PreservationImportRequestHandler prh = new PreservationImportRequestHandler(context);
+        prh.handleRequest(request);
+
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_FINISHED), any());
+        verify(bitrepository).getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), eq(null));
+        verify(httpCommunication).post(eq(DEFAULT_URL), any());
+    }
+
+    @Test
+    public void testRepeatedImportUsesCachedWarcFile() throws Exception {
+        File tmpDir = Files.createTempDirectory("PreservationImportRequestHandlerTest").toFile();
+        File retrievedFile = new File(tmpDir, "retrieved.warc");
+        Files.copy(WARC_FILE.toPath(), retrievedFile.toPath());
+        YggdrasilConfig cacheConfig = mock(YggdrasilConfig.class);
+        when(cacheConfig.getImportCacheSize()).thenReturn(WARC_FILE.length() * 2);
+        when(cacheConfig.getTemporaryDir()).thenReturn(tmpDir);
+        StateDatabase states = mock(StateDatabase.class);
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = Mockito.mock(HttpCommunication.class);
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        when(bitrepository.getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any())).thenReturn(retrievedFile);
+        when(bitrepository.verifyChecksum(any(File.class), eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION))).thenReturn(true);
+        when(httpCommunication.post(anyString(), any())).thenReturn(true);
+
+        RequestHandlerContext context = new RequestHandlerContext(bitrepository, cacheConfig, states, updater, httpCommunication);
+        PreservationImportRequestHandler prh = new PreservationImportRequestHandler(context);
+        prh.handleRequest(makeRequest());
+        prh.handleRequest(makeRequest());
+
+        verify(updater, Mockito.times(2)).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_FINISHED), any());
+        verify(bitrepository).getFile(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), eq(null));
+        verify(bitrepository).verifyChecksum(any(File.class), eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION));
+        verify(httpCommunication, Mockito.times(2)).post(eq(DEFAULT_URL), any());
+        FileUtils.deleteDirectory(tmpDir);
+    }
+
+    @Test
+    public void testStreamingImport() throws Exception {
+        ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = makeStreamingHttpCommunication(delivered);
+        PreservationImportRequest request = makeRequestWithSecurity();
+        request.security.checksum = SECURITY_CHECKSUM;
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        when(bitrepository.getFileAsStream(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any())).thenReturn(new FileInputStream(WARC_FILE));
+
+        PreservationImportRequestHandler prh = new PreservationImportRequestHandler(makeStreamingContext(bitrepository, updater, httpCommunication));
+        prh.handleRequest(request);
+
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_REQUEST_RECEIVED_AND_VALIDATED), any());
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_RETRIEVAL_FROM_BITREPOSITORY_INITIATED), any());
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_DELIVERY_INITIATED), any());
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_FINISHED), any());
+        verifyNoMoreInteractions(updater);
+
+        verify(bitrepository).getKnownCollections();
+        verify(bitrepository).getFileAsStream(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any());
+        verifyNoMoreInteractions(bitrepository);
+        verify(httpCommunication).post(eq(DEFAULT_URL), any());
+        Assert.assertTrue(delivered.size() > 0);
+        Assert.assertTrue(new String(delivered.toByteArray()).endsWith("--\r\n"));
+    }
+
+    @Test
+    public void testStreamingImportWithUnparsablePart() throws Exception {
+        ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = makeStreamingHttpCommunication(delivered);
+        PreservationImportRequest request = makeRequestWithSecurity();
+        request.security.checksum = SECURITY_CHECKSUM;
+        request.warc.warc_offset = "5";
+        request.warc.warc_record_size = "100";
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        // A stale offset pointing into the middle of a record cannot be parsed.
+        when(bitrepository.getFileAsStream(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any())).thenAnswer(
+                new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                if (invocation.getArguments()[2] == null) {
+                    return new FileInputStream(WARC_FILE);
+                }
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Not the start of a record");
+                    }
+                };
+            }
+        });
+
+        PreservationImportRequestHandler prh = new PreservationImportRequestHandler(makeStreamingContext(bitrepository, updater, httpCommunication));
+        prh.handleRequest(request);
+
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_FINISHED), any());
+        verify(bitrepository).getFileAsStream(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), eq(null));
+        verify(httpCommunication).post(eq(DEFAULT_URL), any());
+        Assert.assertTrue(new String(delivered.toByteArray()).endsWith("--\r\n"));
+    }
+
+    @Test
+    public void testStreamingImportWithIncorrectChecksum() throws Exception {
+        ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+        Bitrepository bitrepository = mock(Bitrepository.class);
+        RemotePreservationStateUpdater updater = mock(RemotePreservationStateUpdater.class);
+        HttpCommunication httpCommunication = makeStreamingHttpCommunication(delivered);
+        PreservationImportRequest request = makeRequestWithSecurity();
+        request.security.checksum = "sha-1:1111111111111111111111111111111111111111";
+
+        when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(DEFAULT_COLLECTION));
+        when(bitrepository.getFileAsStream(eq(NON_RANDOM_WARC_ID), eq(DEFAULT_COLLECTION), any())).thenReturn(new FileInputStream(WARC_FILE));
+
+        // Needed for setting of the preservation import state by the updater, when failing.
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                PreservationImportRequestState prs = (PreservationImportRequestState) invocation.getArguments()[0];
+                PreservationImportState newState = (PreservationImportState) invocation.getArguments()[1];
+                prs.setState(newState);
+                return null;
+            }
+        }).when(updater).sendPreservationImportResponse(any(), any(), any());
+
+        PreservationImportRequestHandler prh = new PreservationImportRequestHandler(makeStreamingContext(bitrepository, updater, httpCommunication));
+        prh.handleRequest(request);
+
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_REQUEST_RECEIVED_AND_VALIDATED), any());
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_RETRIEVAL_FROM_BITREPOSITORY_INITIATED), any());
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_DELIVERY_INITIATED), any());
+        verify(updater).sendPreservationImportResponse(any(PreservationImportRequestState.class), eq(PreservationImportState.PRESERVATION_IMPORT_FAILURE), any());
+        verifyNoMoreInteractions(updater);
+
+        // The delivery was aborted before the closing boundary of the multipart request.
+        verify(httpCommunication).post(eq(DEFAULT_URL), any());
+        Assert.assertTrue(delivered.size() > 0);
+        Assert.assertFalse(new String(delivered.toByteArray()).endsWith("--\r\n"));
+    }
+
     @Test
     public void testInvalidRequest() throws Exception {
         StateDatabase states = mock(StateDatabase.class);
@@ -562,6 +832,39 @@ public class PreservationImportRequestHandlerTest {
         verifyZeroInteractions(httpCommunication);
     }
 
+    private RequestHandlerContext makeStreamingContext(Bitrepository bitrepository, RemotePreservationStateUpdater updater,
+            HttpCommunication httpCommunication) {
+        YggdrasilConfig streamingConfig = mock(YggdrasilConfig.class);
+        when(streamingConfig.isImportStreaming()).thenReturn(true);
+        return new RequestHandlerContext(bitrepository, streamingConfig, mock(StateDatabase.class), updater, httpCommunication);
+    }
+
+    private HttpCommunication makeStreamingHttpCommunication(final ByteArrayOutputStream delivered) throws Exception {
+        HttpCommunication httpCommunication = Mockito.mock(HttpCommunication.class);
+        // The streamed entity must be consumed, for the checksums to be calculated.
+        // As the real post, a failure to write the entity fails the delivery.
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                try {
+                    ((HttpEntity) invocation.getArguments()[1]).writeTo(delivered);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }).when(httpCommunication).post(anyString(), any());
+        return httpCommunication;
+    }
+
+    private static File makeFilePart(File file, long offset, long length) throws Exception {
+        File res = File.createTempFile("filepart", ".warc");
+        res.deleteOnExit();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(res.toPath(), Arrays.copyOfRange(bytes, (int) offset, (int) (offset + length)));
+        return res;
+    }
+
     public static PreservationImportRequest makeRequest() {
         PreservationImportRequest request = new PreservationImportRequest();
         request.preservation_profile = DEFAULT_COLLECTION;
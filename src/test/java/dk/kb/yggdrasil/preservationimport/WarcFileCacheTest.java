@@ -0,0 +1,131 @@
+package dk.kb.yggdrasil.preservationimport;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.bitrepository.bitrepositoryelements.FilePart;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WarcFileCacheTest {
+    private static final String COLLECTION_ID = "collection";
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("WarcFileCacheTest").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testCachedFileIsFound() throws Exception {
+        WarcFileCache cache = new WarcFileCache(cacheDir, 1000L);
+        File retrieved = makeFile(100);
+        Assert.assertNull(cache.get(COLLECTION_ID, "warc", null));
+
+        File cached = cache.put(COLLECTION_ID, "warc", null, retrieved);
+        Assert.assertFalse(retrieved.exists());
+        Assert.assertEquals(cacheDir, cached.getParentFile());
+        Assert.assertEquals(cached, cache.get(COLLECTION_ID, "warc", null));
+        Assert.assertNull(cache.get("other-collection", "warc", null));
+        Assert.assertNull(cache.get(COLLECTION_ID, "warc", makeFilePart(0L, 100L)));
+        Assert.assertEquals(100L, cache.getSize());
+    }
+
+    @Test
+    public void testFilePartsAreKeyedByTheirRange() throws Exception {
+        WarcFileCache cache = new WarcFileCache(cacheDir, 1000L);
+        File first = cache.put(COLLECTION_ID, "warc", makeFilePart(0L, 10L), makeFile(10));
+        File second = cache.put(COLLECTION_ID, "warc", makeFilePart(10L, 20L), makeFile(20));
+
+        Assert.assertEquals(first, cache.get(COLLECTION_ID, "warc", makeFilePart(0L, 10L)));
+        Assert.assertEquals(second, cache.get(COLLECTION_ID, "warc", makeFilePart(10L, 20L)));
+        Assert.assertNull(cache.get(COLLECTION_ID, "warc", makeFilePart(0L, 20L)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFileIsEvicted() throws Exception {
+        WarcFileCache cache = new WarcFileCache(cacheDir, 250L);
+        File first = cache.put(COLLECTION_ID, "first", null, makeFile(100));
+        cache.release(first);
+        File second = cache.put(COLLECTION_ID, "second", null, makeFile(100));
+        cache.release(second);
+        Assert.assertNotNull(cache.get(COLLECTION_ID, "first", null));
+        cache.release(first);
+
+        File third = cache.put(COLLECTION_ID, "third", null, makeFile(100));
+        Assert.assertEquals(first, cache.get(COLLECTION_ID, "first", null));
+        Assert.assertNull(cache.get(COLLECTION_ID, "second", null));
+        Assert.assertFalse(second.exists());
+        Assert.assertEquals(third, cache.get(COLLECTION_ID, "third", null));
+        Assert.assertEquals(200L, cache.getSize());
+    }
+
+    @Test
+    public void testFileLargerThanTheCacheIsNotCached() throws Exception {
+        WarcFileCache cache = new WarcFileCache(cacheDir, 50L);
+        File retrieved = makeFile(100);
+        Assert.assertEquals(retrieved, cache.put(COLLECTION_ID, "warc", null, retrieved));
+        Assert.assertNull(cache.get(COLLECTION_ID, "warc", null));
+        Assert.assertEquals(0L, cache.getSize());
+        retrieved.delete();
+    }
+
+    @Test
+    public void testChangedFileIsRemoved() throws Exception {
+        WarcFileCache cache = new WarcFileCache(cacheDir, 1000L);
+        File cached = cache.put(COLLECTION_ID, "warc", null, makeFile(100));
+        cache.release(cached);
+        FileUtils.writeByteArrayToFile(cached, new byte[10]);
+
+        Assert.assertNull(cache.get(COLLECTION_ID, "warc", null));
+        Assert.assertFalse(cached.exists());
+        Assert.assertEquals(0L, cache.getSize());
+    }
+
+    @Test
+    public void testPinnedFileIsDeletedWhenReleased() throws Exception {
+        WarcFileCache cache = new WarcFileCache(cacheDir, 150L);
+        File first = cache.put(COLLECTION_ID, "first", null, makeFile(100));
+        cache.release(first);
+        Assert.assertEquals(first, cache.get(COLLECTION_ID, "first", null));
+        Assert.assertEquals(first, cache.get(COLLECTION_ID, "first", null));
+
+        File second = cache.put(COLLECTION_ID, "second", null, makeFile(100));
+        Assert.assertNull(cache.get(COLLECTION_ID, "first", null));
+        Assert.assertEquals(100L, cache.getSize());
+        Assert.assertTrue(first.exists());
+
+        cache.release(first);
+        Assert.assertTrue(first.exists());
+        cache.release(first);
+        Assert.assertFalse(first.exists());
+        cache.release(second);
+        Assert.assertTrue(second.exists());
+    }
+
+    private File makeFile(int size) throws Exception {
+        File res = File.createTempFile("WarcFileCacheTest", ".warc");
+        FileUtils.writeByteArrayToFile(res, new byte[size]);
+        return res;
+    }
+
+    private FilePart makeFilePart(long offset, long length) {
+        FilePart res = new FilePart();
+        res.setPartOffSet(BigInteger.valueOf(offset));
+        res.setPartLength(BigInteger.valueOf(length));
+        return res;
+    }
+}
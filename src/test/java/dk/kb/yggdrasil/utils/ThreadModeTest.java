@@ -0,0 +1,54 @@
+package dk.kb.yggdrasil.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+@RunWith(JUnit4.class)
+public class ThreadModeTest {
+
+    @Test
+    public void testFromName() throws Exception {
+        Assert.assertEquals(ThreadMode.PLATFORM, ThreadMode.fromName("platform"));
+        Assert.assertEquals(ThreadMode.VIRTUAL, ThreadMode.fromName("Virtual"));
+    }
+
+    @Test(expected = YggdrasilException.class)
+    public void testFromUnknownName() throws Exception {
+        ThreadMode.fromName("green");
+    }
+
+    @Test
+    public void testPlatformThreadNames() throws Exception {
+        Thread t = ThreadMode.PLATFORM.newThreadFactory("Test").newThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        Assert.assertEquals("Test-1", t.getName());
+        Assert.assertTrue(ThreadMode.PLATFORM.isSupported());
+    }
+
+    @Test
+    public void testWorkerPoolRunsTasksInBothModes() throws Exception {
+        // Virtual threads falls back to platform threads on Java versions without virtual threads.
+        for (ThreadMode mode : ThreadMode.values()) {
+            ExecutorService pool = mode.newWorkerPool("Test", 2);
+            String name = pool.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return Thread.currentThread().getName();
+                }
+            }).get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(name, name.startsWith("Test-"));
+            pool.shutdown();
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package dk.kb.yggdrasil.warc;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -29,6 +31,24 @@ public class TestDigest {
         Assert.assertEquals(expectedChecksum, res.digestString);
     }
 
+    @Test
+    public void testDigestWhileReadingMD5() throws YggdrasilException, IOException {
+        String testString = "Yggdrasil\n";
+        String expectedChecksum = "c1d6d0fbe801dbe092ee1987ae16fb74";
+
+        Digest digest = new Digest("MD5");
+        InputStream in = digest.getDigestingInputStream(new ByteArrayInputStream(testString.getBytes()));
+        while (in.read() != -1) {
+            // read all
+        }
+        in.close();
+
+        WarcDigest res = digest.getDigestOfReadBytes();
+        Assert.assertNotNull(res);
+        Assert.assertEquals("md5", res.algorithm);
+        Assert.assertEquals(expectedChecksum, res.digestString);
+    }
+
     @Test
     public void testDigestFileMD5() throws YggdrasilException, IOException {
         File file = File.createTempFile("Digest", "test");
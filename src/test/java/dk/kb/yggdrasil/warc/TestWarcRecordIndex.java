@@ -0,0 +1,105 @@
+package dk.kb.yggdrasil.warc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.jwat.common.ContentType;
+import org.jwat.common.RandomAccessFileInputStream;
+import org.jwat.common.Uri;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+import dk.kb.yggdrasil.exceptions.YggdrasilException;
+
+@RunWith(JUnit4.class)
+public class TestWarcRecordIndex {
+
+    @Test
+    public void testIndexOfWrittenRecords() throws Exception {
+        testIndexOfWrittenRecords(false);
+    }
+
+    @Test
+    public void testIndexOfCompressedRecords() throws Exception {
+        testIndexOfWrittenRecords(true);
+    }
+
+    @Test
+    public void testInvalidIndexFile() throws Exception {
+        File dir = Files.createTempDirectory("TestWarcRecordIndex").toFile();
+        File indexFile = new File(dir, "warc" + WarcRecordIndex.INDEX_SUFFIX);
+        FileUtils.writeStringToFile(indexFile, "urn:uuid:1 resource not-a-number 10 -\n");
+        try {
+            WarcRecordIndex.read(indexFile);
+            Assert.fail("An invalid index entry must not be accepted.");
+        } catch (YggdrasilException e) {
+            // expected
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private void testIndexOfWrittenRecords(boolean compressed) throws Exception {
+        File dir = Files.createTempDirectory("TestWarcRecordIndex").toFile();
+        String warcId = UUID.randomUUID().toString();
+        String resourceUuid = UUID.randomUUID().toString();
+        String metadataUuid = UUID.randomUUID().toString();
+        byte[] resourceBytes = "the resource".getBytes("UTF-8");
+        byte[] metadataBytes = "<metadata/>".getBytes("UTF-8");
+        Digest digestor = new Digest("SHA-1");
+
+        WarcWriterWrapper w3 = WarcWriterWrapper.getWriter(dir, warcId, compressed);
+        w3.writeWarcinfoRecord("greetings: hi mom!\n".getBytes("UTF-8"), null);
+        Uri resourceId = w3.writeResourceRecord(new ByteArrayInputStream(resourceBytes), resourceBytes.length,
+                ContentType.parseContentType("application/binary"), digestor.getDigestOfBytes(resourceBytes),
+                resourceUuid);
+        w3.writeMetadataRecord(new ByteArrayInputStream(metadataBytes), metadataBytes.length,
+                ContentType.parseContentType("text/xml"), resourceId, null, metadataUuid, resourceUuid);
+        File warcFile = w3.getWarcFile();
+        w3.getIndex().write(warcFile);
+        w3.close();
+
+        WarcRecordIndex index = WarcRecordIndex.read(WarcRecordIndex.getIndexFile(warcFile));
+        List<WarcRecordIndex.Entry> entries = index.getEntries();
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("warcinfo", entries.get(0).getType());
+        Assert.assertEquals(0L, entries.get(0).getOffset());
+        WarcRecordIndex.Entry resourceEntry = index.getEntry("urn:uuid:" + resourceUuid);
+        Assert.assertEquals("resource", resourceEntry.getType());
+        Assert.assertEquals(digestor.getDigestOfBytes(resourceBytes).toString(), resourceEntry.getDigest());
+        WarcRecordIndex.Entry metadataEntry = index.getEntry("urn:uuid:" + metadataUuid);
+        Assert.assertEquals("metadata", metadataEntry.getType());
+        Assert.assertNull(metadataEntry.getDigest());
+        Assert.assertEquals(warcFile.length(), metadataEntry.getOffset() + metadataEntry.getLength());
+
+        // The index built by scanning the WARC file must match the index kept while writing.
+        List<WarcRecordIndex.Entry> builtEntries = WarcRecordIndex.build(warcFile).getEntries();
+        Assert.assertEquals(entries.size(), builtEntries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Assert.assertEquals(entries.get(i).getRecordId(), builtEntries.get(i).getRecordId());
+            Assert.assertEquals(entries.get(i).getType(), builtEntries.get(i).getType());
+            Assert.assertEquals(entries.get(i).getOffset(), builtEntries.get(i).getOffset());
+            Assert.assertEquals(entries.get(i).getLength(), builtEntries.get(i).getLength());
+        }
+
+        // A single seek must find the record.
+        try (RandomAccessFile raf = new RandomAccessFile(warcFile, "r")) {
+            raf.seek(resourceEntry.getOffset());
+            WarcReader reader = WarcReaderFactory.getReader(new RandomAccessFileInputStream(raf));
+            WarcRecord record = reader.getNextRecord();
+            Assert.assertEquals(resourceId, record.header.warcRecordIdUri);
+            reader.close();
+        }
+        FileUtils.deleteDirectory(dir);
+    }
+}
@@ -4,12 +4,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.junit.Assert;
@@ -21,6 +23,7 @@ import org.jwat.common.ByteCountingPushBackInputStream;
 import org.jwat.common.ContentType;
 import org.jwat.common.RandomAccessFileInputStream;
 import org.jwat.common.Uri;
+import org.jwat.warc.WarcConcurrentTo;
 import org.jwat.warc.WarcConstants;
 import org.jwat.warc.WarcDigest;
 import org.jwat.warc.WarcHeader;
@@ -194,4 +197,132 @@ public class TestWarcWriterWrapper {
             Assert.fail("Unexpected exception!");
         }
     }
+
+    @Test
+    public void test_records_with_payload_file() throws Exception {
+        File dir = new File(getUrlPath(this.getClass().getClassLoader().getResource("")));
+        File warcFile = new File(dir, "43");
+        if (warcFile.exists()) {
+            Assert.assertTrue("Unable to remove data from previous run!", warcFile.delete());
+        }
+        File payloadFile = File.createTempFile("payload", ".bin");
+        payloadFile.deleteOnExit();
+        byte[] dataBytes = new byte[100000];
+        for (int i = 0; i < dataBytes.length; i++) {
+            dataBytes[i] = (byte) i;
+        }
+        FileOutputStream fos = new FileOutputStream(payloadFile);
+        fos.write(dataBytes);
+        fos.close();
+        WarcDigest blockDigest = new Digest("SHA-1").getDigestOfFile(payloadFile);
+        ContentType contentType = ContentType.parseContentType("application/binary");
+
+        WarcWriterWrapper w3 = WarcWriterWrapper.getWriter(dir, "43");
+        w3.writeWarcinfoRecord("greetings: hi mom!\n".getBytes("UTF-8"), null);
+        Assert.assertEquals(warcFile.length(), w3.getWarcFileSize());
+        long warcinfoEnd = w3.getLastRecordEndOffset();
+        String dataUUID = UUID.randomUUID().toString();
+        Uri resourceId = w3.writeResourceRecord(payloadFile, contentType, blockDigest, dataUUID);
+        Assert.assertEquals(warcinfoEnd, w3.getLastRecordStartOffset());
+        Assert.assertEquals(warcFile.length(), w3.getLastRecordEndOffset());
+        Assert.assertEquals(warcFile.length(), w3.getWarcFileSize());
+        WarcConcurrentTo concurrentTo = new WarcConcurrentTo();
+        concurrentTo.warcConcurrentToStr = dataUUID;
+        Uri updateId = w3.writeUpdateRecord(payloadFile, contentType, null, Arrays.asList(concurrentTo), 
+                blockDigest, UUID.randomUUID().toString());
+        byte[] metadataBytes = "very interesting metadata!".getBytes("UTF-8");
+        w3.writeMetadataRecord(new ByteArrayInputStream(metadataBytes), metadataBytes.length, 
+                ContentType.parseContentType("text/xml"), resourceId, null, dataUUID, dataUUID);
+        Assert.assertEquals(warcFile.length(), w3.getWarcFileSize());
+        w3.close();
+
+        RandomAccessFile raf = new RandomAccessFile(warcFile, "r");
+        WarcReader reader = WarcReaderFactory.getReader(new RandomAccessFileInputStream(raf), 8192);
+        WarcRecord record = reader.getNextRecord();
+        Assert.assertEquals(new Integer(WarcConstants.RT_IDX_WARCINFO), record.header.warcTypeIdx);
+
+        record = reader.getNextRecord();
+        Assert.assertTrue(record.isCompliant());
+        Assert.assertEquals(resourceId, record.header.warcRecordIdUri);
+        Assert.assertArrayEquals(dataBytes, readPayload(record));
+
+        // The update records are not WARC compliant, since they have a custom WARC-Type.
+        record = reader.getNextRecord();
+        Assert.assertEquals("update", record.header.warcTypeStr);
+        Assert.assertEquals(updateId, record.header.warcRecordIdUri);
+        Assert.assertArrayEquals(dataBytes, readPayload(record));
+
+        record = reader.getNextRecord();
+        Assert.assertTrue(record.isCompliant());
+        Assert.assertArrayEquals(metadataBytes, readPayload(record));
+
+        Assert.assertNull(reader.getNextRecord());
+        reader.close();
+        raf.close();
+    }
+
+    @Test
+    public void test_compressed_records_from_offsets() throws Exception {
+        File dir = new File(getUrlPath(this.getClass().getClassLoader().getResource("")));
+        File warcFile = new File(dir, "44");
+        if (warcFile.exists()) {
+            Assert.assertTrue("Unable to remove data from previous run!", warcFile.delete());
+        }
+        File payloadFile = File.createTempFile("payload", ".bin");
+        payloadFile.deleteOnExit();
+        byte[] dataBytes = new byte[100000];
+        for (int i = 0; i < dataBytes.length; i++) {
+            dataBytes[i] = (byte) (i % 7);
+        }
+        FileOutputStream fos = new FileOutputStream(payloadFile);
+        fos.write(dataBytes);
+        fos.close();
+        WarcDigest blockDigest = new Digest("SHA-1").getDigestOfFile(payloadFile);
+
+        WarcWriterWrapper w3 = WarcWriterWrapper.getWriter(dir, "44", true);
+        Assert.assertTrue(w3.isCompressed());
+        w3.writeWarcinfoRecord("greetings: hi mom!\n".getBytes("UTF-8"), null);
+        String dataUUID = UUID.randomUUID().toString();
+        Uri resourceId = w3.writeResourceRecord(payloadFile, ContentType.parseContentType("application/binary"),
+                blockDigest, dataUUID);
+        long resourceStart = w3.getLastRecordStartOffset();
+        long resourceEnd = w3.getLastRecordEndOffset();
+        byte[] metadataBytes = "very interesting metadata!".getBytes("UTF-8");
+        w3.writeMetadataRecord(new ByteArrayInputStream(metadataBytes), metadataBytes.length, 
+                ContentType.parseContentType("text/xml"), resourceId, null, dataUUID, dataUUID);
+        long metadataStart = w3.getLastRecordStartOffset();
+        Assert.assertEquals(resourceEnd, metadataStart);
+        Assert.assertEquals(warcFile.length(), w3.getWarcFileSize());
+        Assert.assertTrue("The payload must be compressed", resourceEnd - resourceStart < dataBytes.length);
+        w3.close();
+
+        RandomAccessFile raf = new RandomAccessFile(warcFile, "r");
+        raf.seek(resourceStart);
+        WarcReader reader = WarcReaderFactory.getReader(new RandomAccessFileInputStream(raf), 8192);
+        Assert.assertTrue(reader.isCompressed());
+        WarcRecord record = reader.getNextRecord();
+        Assert.assertEquals(resourceId, record.header.warcRecordIdUri);
+        Assert.assertArrayEquals(dataBytes, readPayload(record));
+        reader.close();
+
+        raf.seek(metadataStart);
+        reader = WarcReaderFactory.getReader(new RandomAccessFileInputStream(raf), 8192);
+        record = reader.getNextRecord();
+        Assert.assertEquals(new Integer(WarcConstants.RT_IDX_METADATA), record.header.warcTypeIdx);
+        Assert.assertArrayEquals(metadataBytes, readPayload(record));
+        reader.close();
+        raf.close();
+    }
+
+    private byte[] readPayload(WarcRecord record) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteCountingPushBackInputStream pbin = record.getPayload().getInputStream();
+        byte[] tmpBuf = new byte[1024];
+        int read;
+        while ((read = pbin.read(tmpBuf)) != -1) {
+            out.write(tmpBuf, 0, read);
+        }
+        pbin.close();
+        return out.toByteArray();
+    }
 }
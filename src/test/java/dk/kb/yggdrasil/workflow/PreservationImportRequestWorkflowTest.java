@@ -1,6 +1,7 @@
 package dk.kb.yggdrasil.workflow;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
@@ -92,7 +93,7 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.IMPORTREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(mq.getSettings()).thenReturn(settings);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.getFile(anyString(), anyString(), any())).thenReturn(WARC_FILE);
@@ -116,8 +117,8 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getFile(anyString(), anyString(), any());
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -143,7 +144,7 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.IMPORTREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(mq.getSettings()).thenReturn(settings);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList());
 
@@ -158,8 +159,8 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getKnownCollections();
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -185,7 +186,7 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.IMPORTREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(mq.getSettings()).thenReturn(settings);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
 
@@ -200,8 +201,8 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getKnownCollections();
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -227,7 +228,7 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.IMPORTREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(mq.getSettings()).thenReturn(settings);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.getFile(anyString(), anyString(), any())).thenThrow(new YggdrasilException("Not file"));
@@ -259,8 +260,8 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getFile(anyString(), anyString(), any());
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -286,7 +287,7 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.IMPORTREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(mq.getSettings()).thenReturn(settings);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.getFile(anyString(), anyString(), any())).thenReturn(WARC_FILE);;
@@ -318,8 +319,8 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getFile(anyString(), anyString(), any());
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -345,7 +346,7 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.IMPORTREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(mq.getSettings()).thenReturn(settings);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.getFile(anyString(), anyString(), any())).thenReturn(WARC_FILE);
@@ -380,8 +381,8 @@ public class PreservationImportRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getFile(anyString(), anyString(), any());
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
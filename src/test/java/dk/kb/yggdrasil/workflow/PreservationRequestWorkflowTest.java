@@ -1,6 +1,7 @@
 package dk.kb.yggdrasil.workflow;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -84,7 +85,7 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.uploadFile(any(), anyString())).thenReturn(true);
 
@@ -105,8 +106,8 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).uploadFile(any(File.class), eq(profile));
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -133,7 +134,7 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList());
         when(bitrepository.uploadFile(any(), anyString())).thenReturn(true);
 
@@ -147,8 +148,8 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getKnownCollections();
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -174,7 +175,7 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.uploadFile(any(), anyString())).thenReturn(true);
 
@@ -191,8 +192,8 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getKnownCollections();
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -218,7 +219,7 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.uploadFile(any(), anyString())).thenReturn(true);
 
@@ -235,8 +236,8 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).getKnownCollections();
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
@@ -262,7 +263,7 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         MqResponse handledResponse = new MqResponse(MQ.PRESERVATIONREQUEST_MESSAGE_TYPE, requestBytes);
         MqResponse finalReponse = new MqResponse(MQ.SHUTDOWN_MESSAGE_TYPE, "Please terminate Yggdrasil".getBytes());
 
-        when(mq.receiveMessageFromQueue(anyString())).thenReturn(handledResponse, finalReponse);
+        when(mq.receiveMessageFromQueue(anyString(), anyLong())).thenReturn(handledResponse, finalReponse);
         when(bitrepository.getKnownCollections()).thenReturn(Arrays.asList(profile));
         when(bitrepository.uploadFile(any(), anyString())).thenReturn(false);
 
@@ -283,8 +284,8 @@ public class PreservationRequestWorkflowTest extends MqFixtureTestAPI {
         verify(bitrepository).uploadFile(any(File.class), eq(profile));
         verifyNoMoreInteractions(bitrepository);
 
-        verify(mq, times(2)).getSettings();
-        verify(mq, times(2)).receiveMessageFromQueue(anyString());
+        verify(mq).getSettings();
+        verify(mq, times(2)).receiveMessageFromQueue(anyString(), anyLong());
         verifyNoMoreInteractions(mq);
     }
 
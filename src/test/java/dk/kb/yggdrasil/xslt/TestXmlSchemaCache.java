@@ -0,0 +1,89 @@
+package dk.kb.yggdrasil.xslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.xml.validation.Schema;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestXmlSchemaCache {
+    private static final String SCHEMA_LOCATION = "http://example.org/record http://example.org/schemas/record.xsd";
+    private static final String RECORD_XSD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:n=\"http://example.org/note\" "
+            + "targetNamespace=\"http://example.org/record\" elementFormDefault=\"qualified\">\n"
+            + "  <xs:import namespace=\"http://example.org/note\" schemaLocation=\"note.xsd\"/>\n"
+            + "  <xs:element name=\"record\">\n"
+            + "    <xs:complexType><xs:sequence>\n"
+            + "      <xs:element name=\"title\" type=\"xs:string\"/>\n"
+            + "      <xs:element ref=\"n:note\" minOccurs=\"0\"/>\n"
+            + "    </xs:sequence></xs:complexType>\n"
+            + "  </xs:element>\n"
+            + "</xs:schema>\n";
+    private static final String NOTE_XSD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" "
+            + "targetNamespace=\"http://example.org/note\" elementFormDefault=\"qualified\">\n"
+            + "  <xs:element name=\"note\" type=\"xs:string\"/>\n"
+            + "</xs:schema>\n";
+    private static final String VALID_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<r:record xmlns:r=\"http://example.org/record\" xmlns:n=\"http://example.org/note\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"" + SCHEMA_LOCATION
+            + "\"><r:title>Title</r:title><n:note>Note</n:note></r:record>";
+    private static final String INVALID_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<r:record xmlns:r=\"http://example.org/record\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"" + SCHEMA_LOCATION
+            + "\"><r:unknown>Title</r:unknown></r:record>";
+
+    File catalogDir;
+
+    @Before
+    public void setup() throws Exception {
+        catalogDir = new File("temporarydir", "TestXmlSchemaCache");
+        FileUtils.forceMkdir(catalogDir);
+        FileUtils.writeStringToFile(new File(catalogDir, "record.xsd"), RECORD_XSD, "UTF-8");
+        FileUtils.writeStringToFile(new File(catalogDir, "note.xsd"), NOTE_XSD, "UTF-8");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(catalogDir);
+    }
+
+    @Test
+    public void testValidationWithCachedSchemas() throws Exception {
+        XmlValidator xmlValidator = new XmlValidator(new XmlSchemaCache(catalogDir));
+
+        XmlErrorHandler errorHandler = new XmlErrorHandler();
+        XmlValidationResult result = new XmlValidationResult();
+        Assert.assertTrue(xmlValidator.testDefinedValidity(new ByteArrayInputStream(VALID_XML.getBytes("UTF-8")),
+                null, errorHandler, result));
+        Assert.assertFalse(errorHandler.hasErrors());
+        Assert.assertNotNull(result.document);
+        Assert.assertTrue(result.bWellformed);
+
+        errorHandler = new XmlErrorHandler();
+        result = new XmlValidationResult();
+        Assert.assertFalse(xmlValidator.testDefinedValidity(new ByteArrayInputStream(INVALID_XML.getBytes("UTF-8")),
+                null, errorHandler, result));
+        Assert.assertTrue(errorHandler.hasErrors());
+        Assert.assertFalse(result.bValid);
+    }
+
+    @Test
+    public void testSchemasCompiledOnce() throws Exception {
+        XmlSchemaCache cache = new XmlSchemaCache(catalogDir);
+        Schema schema = cache.getSchema(Arrays.asList(SCHEMA_LOCATION));
+        Assert.assertSame(schema, cache.getSchema(Arrays.asList(" " + SCHEMA_LOCATION + " ")));
+
+        cache.clear();
+        Assert.assertNotSame(schema, cache.getSchema(Arrays.asList(SCHEMA_LOCATION)));
+    }
+}
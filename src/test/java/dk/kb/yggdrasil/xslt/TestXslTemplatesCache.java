@@ -0,0 +1,75 @@
+package dk.kb.yggdrasil.xslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestXslTemplatesCache {
+    File tempDir;
+    File xslFile;
+
+    @Before
+    public void setup() throws Exception {
+        tempDir = new File("temporarydir", "TestXslTemplatesCache");
+        FileUtils.forceMkdir(tempDir);
+        xslFile = new File(tempDir, "file.xsl");
+        FileUtils.copyFile(new File("src/test/resources/config/xslt/file.xsl"), xslFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testCompiledOnlyOnce() throws Exception {
+        XslTemplatesCache cache = new XslTemplatesCache();
+        Templates templates = cache.getTemplates("file", xslFile);
+        Assert.assertSame(templates, cache.getTemplates("file", xslFile));
+        Assert.assertNotSame(templates, cache.getTemplates("another", xslFile));
+
+        XslTransformer first = cache.getTransformer("file", xslFile);
+        XslTransformer second = cache.getTransformer("file", xslFile);
+        Assert.assertNotSame(first.getTransformerImpl(), second.getTransformerImpl());
+        Assert.assertSame(templates, cache.getTemplates("file", xslFile));
+    }
+
+    @Test
+    public void testRecompiledWhenFileChanges() throws Exception {
+        XslTemplatesCache cache = new XslTemplatesCache();
+        Templates templates = cache.getTemplates("file", xslFile);
+        Assert.assertTrue(xslFile.setLastModified(xslFile.lastModified() + 10000L));
+        Templates changed = cache.getTemplates("file", xslFile);
+        Assert.assertNotSame(templates, changed);
+        Assert.assertSame(changed, cache.getTemplates("file", xslFile));
+
+        cache.clear();
+        Assert.assertNotSame(changed, cache.getTemplates("file", xslFile));
+    }
+
+    @Test
+    public void testTransformWithCachedTemplates() throws Exception {
+        XslTemplatesCache cache = new XslTemplatesCache();
+        File xmlFile = new File("src/test/resources/valhal/xml/content_file.xml");
+        XmlValidator xmlValidator = new XmlValidator();
+        for (int i = 0; i < 2; i++) {
+            byte[] bytes = cache.getTransformer("file", xslFile).transform(new StreamSource(xmlFile),
+                    new XslUriResolver(), new XslErrorListener());
+            XmlValidationResult result = new XmlValidationResult();
+            Assert.assertTrue(xmlValidator.testStructuralValidity(new ByteArrayInputStream(bytes), null, null, result));
+            Assert.assertTrue(result.bWellformed);
+            Assert.assertTrue(new String(bytes, "UTF-8").contains("<mets:mets"));
+        }
+    }
+}